@@ -0,0 +1,147 @@
+/**
+ * Copyright 2014 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-connectors (FI-WARE project).
+ *
+ * fiware-connectors is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-connectors is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-connectors. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with Francisco Romero
+ * francisco.romerobueno@telefonica.com
+ */
+
+package es.tid.fiware.fiwareconnectors.cygnus.containers;
+
+import com.google.gson.Gson;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.InputSource;
+
+/**
+ *
+ * @author frb
+ *
+ * Per-event cost of parsing a notification, creating the parsing objects per event (as it was done before
+ * NotifyContextRequestParser reused them) and reusing them. Json notifications are parsed both from a String and from
+ * the raw payload.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class NotifyContextRequestParserBenchmark {
+
+    private final String notifyJson = ""
+            + "{"
+            +   "\"subscriptionId\" : \"51c0ac9ed714fb3b37d7d5a8\","
+            +   "\"originator\" : \"localhost\","
+            +   "\"contextResponses\" : ["
+            +     "{"
+            +       "\"contextElement\" : {"
+            +         "\"attributes\" : ["
+            +           "{"
+            +             "\"name\" : \"temperature\","
+            +             "\"type\" : \"centigrade\","
+            +             "\"value\" : \"26.5\""
+            +           "},"
+            +           "{"
+            +             "\"name\" : \"pressure\","
+            +             "\"type\" : \"mmHg\","
+            +             "\"value\" : \"720\""
+            +           "}"
+            +         "],"
+            +         "\"type\" : \"Room\","
+            +         "\"isPattern\" : \"false\","
+            +         "\"id\" : \"Room1\""
+            +       "},"
+            +       "\"statusCode\" : {"
+            +         "\"code\" : \"200\","
+            +         "\"reasonPhrase\" : \"OK\""
+            +       "}"
+            +     "}"
+            +   "]"
+            + "}";
+    private final String notifyXML = ""
+            + "<notifyContextRequest>"
+            +   "<subscriptionId>51c0ac9ed714fb3b37d7d5a8</subscriptionId>"
+            +   "<originator>localhost</originator>"
+            +   "<contextResponseList>"
+            +     "<contextElementResponse>"
+            +       "<contextElement>"
+            +         "<entityId type=\"Room\" isPattern=\"false\">"
+            +           "<id>Room1</id>"
+            +         "</entityId>"
+            +         "<contextAttributeList>"
+            +           "<contextAttribute>"
+            +             "<name>temperature</name>"
+            +             "<type>centigrade</type>"
+            +             "<contextValue>26.5</contextValue>"
+            +           "</contextAttribute>"
+            +           "<contextAttribute>"
+            +             "<name>pressure</name>"
+            +             "<type>mmHg</type>"
+            +             "<contextValue>720</contextValue>"
+            +           "</contextAttribute>"
+            +         "</contextAttributeList>"
+            +       "</contextElement>"
+            +       "<statusCode>"
+            +         "<code>200</code>"
+            +         "<reasonPhrase>OK</reasonPhrase>"
+            +       "</statusCode>"
+            +     "</contextElementResponse>"
+            +   "</contextResponseList>"
+            + "</notifyContextRequest>";
+    private final byte[] notifyJsonBytes = notifyJson.getBytes(Charset.forName("UTF-8"));
+
+    @Benchmark
+    public NotifyContextRequest parseJsonPerEvent() {
+        Gson gson = new Gson();
+        return gson.fromJson(notifyJson, NotifyContextRequest.class);
+    } // parseJsonPerEvent
+
+    @Benchmark
+    public NotifyContextRequest parseJsonReused() throws Exception {
+        return NotifyContextRequestParser.parse(notifyJson, "application/json");
+    } // parseJsonReused
+
+    @Benchmark
+    public NotifyContextRequest parseJsonRawReused() throws Exception {
+        return NotifyContextRequestParser.parse(notifyJsonBytes, "application/json");
+    } // parseJsonRawReused
+
+    @Benchmark
+    public NotifyContextRequest parseXMLPerEvent() throws Exception {
+        SAXParserFactory saxParserFactory = SAXParserFactory.newInstance();
+        SAXParser saxParser = saxParserFactory.newSAXParser();
+        NotifyContextRequestSAXHandler handler = new NotifyContextRequestSAXHandler();
+        saxParser.parse(new InputSource(new StringReader(notifyXML)), handler);
+        return handler.getNotifyContextRequest();
+    } // parseXMLPerEvent
+
+    @Benchmark
+    public NotifyContextRequest parseXMLReused() throws Exception {
+        return NotifyContextRequestParser.parse(notifyXML, "application/xml");
+    } // parseXMLReused
+
+} // NotifyContextRequestParserBenchmark
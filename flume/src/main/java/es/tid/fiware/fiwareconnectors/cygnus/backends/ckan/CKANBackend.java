@@ -19,6 +19,7 @@
 
 package es.tid.fiware.fiwareconnectors.cygnus.backends.ckan;
 
+import java.util.List;
 import java.util.Map;
 import org.apache.http.client.HttpClient;
 
@@ -39,7 +40,8 @@ public interface CKANBackend {
     void initOrg(HttpClient httpClient, String organization) throws Exception;
 
     /**
-     * Persist data in the CKAN datastore associated with the entity in a given organization (row mode).
+     * Persist data in the CKAN datastore associated with the entity in a given organization (row mode). The data is
+     * buffered until flushed.
      * 
      * @param httpClient HTTP client for accessing the backend server.
      * @param recvTimeTs reception time in milliseconds.
@@ -56,7 +58,8 @@ public interface CKANBackend {
                  String attrName, String attrType, String attrValue, String attrMd) throws Exception;
 
     /**
-     * Persist data in the CKAN datastore associated with the entity in a given organization (column mode).
+     * Persist data in the CKAN datastore associated with the entity in a given organization (column mode). The data is
+     * buffered until flushed.
      *
      * @param httpClient HTTP client for accessing the backend server.
      * @param recvTime reception time (human readable)
@@ -68,6 +71,48 @@ public interface CKANBackend {
      */
     void persist(HttpClient httpClient, String recvTime, String organization, String entity,
                  Map<String, String> attrList, Map<String, String> attrMdList) throws Exception;
-
     
+    /**
+     * Checks if the data buffered by the calling thread has reached the maximum number of records, bytes or age, thus
+     * it should be flushed.
+     *
+     * @return True if the buffer should be flushed, false otherwise
+     */
+    boolean isFlushRequired();
+    
+    /**
+     * Upserts all the data buffered by the calling thread, a request per datastore. The buffer is emptied even if the
+     * upsert fails, since the data is expected to be re-injected by the caller.
+     *
+     * @param httpClient HTTP client for accessing the backend server.
+     * @throws Exception
+     */
+    void flush(HttpClient httpClient) throws Exception;
+    
+    /**
+     * Initializes in parallel the given organizations, waiting for them up to a timeout. The organizations that could
+     * not be initialized are initialized again when used.
+     *
+     * @param httpClient HTTP client for accessing the backend server.
+     * @param organizations organizations to initialize
+     * @param numThreads number of threads initializing the organizations
+     * @param timeout maximum number of milliseconds waiting for the organizations to be initialized
+     */
+    void warmUp(HttpClient httpClient, List<String> organizations, int numThreads, long timeout);
+    
+    /**
+     * Loads the initialized organizations and their resources from a snapshot file, if existing.
+     *
+     * @param snapshotFile file the snapshot is loaded from
+     * @return The loaded organizations
+     */
+    List<String> loadSnapshot(String snapshotFile);
+    
+    /**
+     * Saves the initialized organizations and their resources to a snapshot file.
+     *
+     * @param snapshotFile file the snapshot is saved to
+     */
+    void saveSnapshot(String snapshotFile);
+
 } // CKANBackend
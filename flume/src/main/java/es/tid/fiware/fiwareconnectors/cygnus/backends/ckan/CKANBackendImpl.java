@@ -22,7 +22,11 @@ package es.tid.fiware.fiwareconnectors.cygnus.backends.ckan;
 import es.tid.fiware.fiwareconnectors.cygnus.errors.CygnusBadConfiguration;
 import es.tid.fiware.fiwareconnectors.cygnus.errors.CygnusPersistenceError;
 import es.tid.fiware.fiwareconnectors.cygnus.errors.CygnusRuntimeError;
+import es.tid.fiware.fiwareconnectors.cygnus.log.CygnusLogger;
+import es.tid.fiware.fiwareconnectors.cygnus.management.StatusReporter;
 import es.tid.fiware.fiwareconnectors.cygnus.utils.Constants;
+import es.tid.fiware.fiwareconnectors.cygnus.utils.LRUCache;
+import es.tid.fiware.fiwareconnectors.cygnus.utils.Utils;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.methods.HttpGet;
@@ -33,20 +37,45 @@ import org.apache.log4j.Logger;
 import org.json.simple.JSONArray;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.JSONObject;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.http.client.HttpClient;
 
 /**
  * Interface for those backends implementing the persistence in CKAN.
+ * 
+ * The records to be persisted are buffered per resource, and then upserted in a single datastore_upsert request per
+ * resource. The buffer is only flushed explicitly; the callers are told when the number of buffered records, their
+ * size or the age of the oldest one reaches its maximum, thus they can flush it and know which data was upserted.
+ * There is a buffer per thread, thus several threads may persist and flush concurrently, each one upserting its own
+ * records only.
+ * 
+ * The organizations, packages and resources are cached in bounded caches whose entries expire, and those ones whose
+ * initialization failed are negatively cached for a while. It is thread-safe; an organization is queried to CKAN by a
+ * single thread at a time.
+ * 
+ * The caches can be warmed up in parallel for a list of organizations, and saved to (and loaded from) a snapshot file,
+ * thus a restarted sink does not initialize again the organizations already known.
  *
  * @author fermin
  */
-public class CKANBackendImpl implements CKANBackend {
+public class CKANBackendImpl implements CKANBackend, StatusReporter {
 
     private Logger logger;
     private String apiKey;
@@ -54,17 +83,37 @@ public class CKANBackendImpl implements CKANBackend {
     private String ckanPort;
     private String defaultDataset;
     private String orionUrl;
+    private int upsertBatchSize;
+    private long upsertBatchBytes;
+    private long upsertBatchTimeout;
+    
+    // records to be upserted, per resource id, buffered by each thread
+    private final ThreadLocal<UpsertBuffer> upsertBuffers;
+
+    // this cache implements the f(NGSIentity, Org) = CKANresourceId function
+    private LRUCache<OrgResourcePair, String> resourceIds;
 
-    // this map implements the f(NGSIentity, Org) = CKANresourceId function
-    private HashMap<OrgResourcePair, String> resourceIds;
+    // this cache implements the f(Org) = defaultPackageId function
+    private LRUCache<String, String> packagesIds;
+    
+    // organizations (by name) and resources (by <org,entity> pair) whose initialization or lookup definitely failed,
+    // together with the error, thus CKAN is not queried again for them until the entry expires
+    private LRUCache<String, Exception> negativeCache;
+    
+    // a lock per organization being initialized, thus only a thread queries CKAN for it
+    private final ConcurrentHashMap<String, Object> orgLocks;
+    private final AtomicLong numOrgLoads;
+    
+    // the CKAN version, and the strategy for it, is got once and then refreshed only on error
+    private volatile CKANVersionStrategy versionStrategy;
+    private volatile String ckanVersion;
+    private final AtomicLong numVersionQueries;
 
-    // this map implements the f(Org) = defaultPackageId function
-    private HashMap<String, String> packagesIds;
+    // Note that the cache entries expire, thus if some of the elements is deleted or changed by other actor the cache
+    // becomes valid again after the TTL at most. A resource not found in the cache is looked up again in CKAN before
+    // creating it in row mode: only the default package of its organization is queried if the organization is cached,
+    // otherwise the organization is loaded again (under its lock, and without purging the live cache entries).
 
-    // Note that the usage of maps as "cache" for organizations, packages/datasets and resources assumes
-    // that once we discover/create some of the elements no other actor is going to delete it or change
-    // in a way the cache becomes invalid. An improved version of this backend will implement mechanism
-    // to manage "cache fails" and cache updates in that case
 
     /**
      * Constructor.
@@ -75,26 +124,129 @@ public class CKANBackendImpl implements CKANBackend {
      * @param orionUrl
      */
     public CKANBackendImpl(String apiKey, String ckanHost, String ckanPort, String defaultDataset, String orionUrl) {
+        this(apiKey, ckanHost, ckanPort, defaultDataset, orionUrl, Constants.CKAN_UPSERT_BATCH_SIZE,
+                Constants.CKAN_UPSERT_BATCH_BYTES, Constants.CKAN_UPSERT_BATCH_TIMEOUT);
+    } // CKANBackendImpl
+    
+    /**
+     * Constructor.
+     * @param apiKey
+     * @param ckanHost
+     * @param ckanPort
+     * @param defaultDataset
+     * @param orionUrl
+     * @param upsertBatchSize Maximum number of buffered records before flushing them
+     * @param upsertBatchBytes Maximum number of buffered bytes before flushing them
+     * @param upsertBatchTimeout Maximum number of milliseconds a record is buffered before flushing it
+     */
+    public CKANBackendImpl(String apiKey, String ckanHost, String ckanPort, String defaultDataset, String orionUrl,
+            int upsertBatchSize, long upsertBatchBytes, long upsertBatchTimeout) {
+        this(apiKey, ckanHost, ckanPort, defaultDataset, orionUrl, upsertBatchSize, upsertBatchBytes,
+                upsertBatchTimeout, Constants.CKAN_CACHE_SIZE, Constants.CKAN_CACHE_TTL,
+                Constants.CKAN_NEGATIVE_CACHE_TTL);
+    } // CKANBackendImpl
+    
+    /**
+     * Constructor.
+     * @param apiKey
+     * @param ckanHost
+     * @param ckanPort
+     * @param defaultDataset
+     * @param orionUrl
+     * @param upsertBatchSize Maximum number of buffered records before flushing them
+     * @param upsertBatchBytes Maximum number of buffered bytes before flushing them
+     * @param upsertBatchTimeout Maximum number of milliseconds a record is buffered before flushing it
+     * @param cacheSize Maximum number of cached organizations, and of cached resources
+     * @param cacheTTL Maximum number of milliseconds an organization or resource is cached, 0 if never expiring
+     * @param negativeCacheTTL Maximum number of milliseconds an organization or resource whose initialization or
+     * lookup failed is not queried again, 0 if not cached
+     */
+    public CKANBackendImpl(String apiKey, String ckanHost, String ckanPort, String defaultDataset, String orionUrl,
+            int upsertBatchSize, long upsertBatchBytes, long upsertBatchTimeout, int cacheSize, long cacheTTL,
+            long negativeCacheTTL) {
         logger = Logger.getLogger(CKANBackendImpl.class);
         this.apiKey = apiKey;
         this.ckanHost = ckanHost;
         this.ckanPort = ckanPort;
         this.defaultDataset = defaultDataset;
         this.orionUrl = orionUrl;
-        resourceIds = new HashMap<OrgResourcePair, String>();
-        packagesIds = new HashMap<String, String>();
+        resourceIds = new LRUCache<OrgResourcePair, String>(cacheSize, cacheTTL);
+        packagesIds = new LRUCache<String, String>(cacheSize, cacheTTL);
+        negativeCache = new LRUCache<String, Exception>(negativeCacheTTL > 0 ? cacheSize : 0, negativeCacheTTL);
+        orgLocks = new ConcurrentHashMap<String, Object>();
+        numOrgLoads = new AtomicLong();
+        numVersionQueries = new AtomicLong();
+        this.upsertBatchSize = upsertBatchSize;
+        this.upsertBatchBytes = upsertBatchBytes;
+        this.upsertBatchTimeout = upsertBatchTimeout;
+        upsertBuffers = new ThreadLocal<UpsertBuffer>() {
+
+            @Override
+            protected UpsertBuffer initialValue() {
+                return new UpsertBuffer();
+            } // initialValue
+
+        };
     } // CKANBackendImpl
 
     @Override
     public void initOrg(HttpClient httpClient, String orgName) throws Exception {
         // check if the organization has already been initialized
-        if (packagesIds.containsKey(orgName)) {
-            logger.debug("Organization found in the cache, thus it is already initialized (orgName=" + orgName + ")");
+        if (packagesIds.get(orgName) != null) {
+            CygnusLogger.debug(logger, "Organization found in the cache, thus it is already initialized (orgName={})",
+                    orgName);
             return;
-        } else {
-            logger.debug("Organization not found in the cache, querying CKAN for it (orgName=" + orgName + ")");
-        } // if else
-
+        } // if
+        
+        // only a thread per organization queries CKAN for it, the others wait and then find it in the cache
+        Object lock = new Object();
+        Object currentLock = orgLocks.putIfAbsent(orgName, lock);
+        
+        if (currentLock != null) {
+            lock = currentLock;
+        } // if
+        
+        synchronized (lock) {
+            try {
+                if (packagesIds.get(orgName) != null) {
+                    CygnusLogger.debug(logger, "Organization initialized by other thread (orgName={})", orgName);
+                    return;
+                } // if
+                
+                Exception error = negativeCache.get(orgName);
+                
+                if (error != null) {
+                    CygnusLogger.debug(logger, "Organization initialization recently failed, not querying CKAN again "
+                            + "(orgName={})", orgName);
+                    throw error;
+                } // if
+                
+                CygnusLogger.debug(logger, "Organization not found in the cache, querying CKAN for it (orgName={})",
+                        orgName);
+                numOrgLoads.incrementAndGet();
+                
+                try {
+                    loadOrg(httpClient, orgName);
+                } catch (CygnusPersistenceError e) {
+                    // CKAN could not be reached, which is not related to the organization
+                    throw e;
+                } catch (Exception e) {
+                    negativeCache.put(orgName, e);
+                    throw e;
+                } // try catch
+            } finally {
+                orgLocks.remove(orgName, lock);
+            } // try finally
+        } // synchronized
+    } // initOrg
+    
+    /**
+     * Queries CKAN for an organization and its default package, creating them if not existing, and caches them.
+     * @param httpClient
+     * @param orgName
+     * @throws Exception
+     */
+    private void loadOrg(HttpClient httpClient, String orgName) throws Exception {
         // query CKAN for the organization information
         String ckanURL = "http://" + ckanHost + ":" + ckanPort + "/api/3/action/organization_show?id=" + orgName;
         CKANResponse res = doCKANRequest(httpClient, "GET", ckanURL);
@@ -112,7 +264,7 @@ public class CKANBackendImpl implements CKANBackend {
             } // if
             
             String orgId = result.get("id").toString();
-            logger.debug("Organization found (orgName=" + orgName + ", orgId=" + orgId + ")");
+            CygnusLogger.debug(logger, "Organization found (orgName={}, orgId={})", orgName, orgId);
 
             // create the effective default package and check its validity
             String effectiveDefaultDataset = orgName + "_" + defaultDataset;
@@ -129,8 +281,8 @@ public class CKANBackendImpl implements CKANBackend {
             
             // check if orgName contains the default package
             JSONArray packages = (JSONArray) result.get("packages");
-            logger.debug("Going to iterate on the packages looking for the default one (orgName=" + orgName
-                    + ", defaultPkgName=" + effectiveDefaultDataset + ")");
+            CygnusLogger.debug(logger, "Going to iterate on the packages looking for the default one (orgName={}, "
+                    + "defaultPkgName={})", orgName, effectiveDefaultDataset);
             Iterator<JSONObject> iterator = packages.iterator();
             
             while (iterator.hasNext()) {
@@ -147,51 +299,47 @@ public class CKANBackendImpl implements CKANBackend {
                     } // if
                     
                     String pkgId = pkg.get("id").toString();
-                    logger.debug("Default package found (orgName=" + orgName + ", defaultPkgName="
-                            + effectiveDefaultDataset + ", defaultPkgId= " + pkgId + ")");
+                    CygnusLogger.debug(logger, "Default package found (orgName={}, defaultPkgName={}, defaultPkgId={})",
+                            orgName, effectiveDefaultDataset, pkgId);
                     JSONArray resources = null;
                     
-                    // this piece of code tries to make the code compatible with CKAN 2.0, whose "organization_show"
-                    // method returns no resource lists for its packages! (not in CKAN 2.2)
-                    // more info --> https://github.com/telefonicaid/fiware-connectors/issues/153
-                    // if the resources list is null we must try to get it package by package
-                    logger.debug("Going to get the CKAN version");
-                    String ckanVersion = getCKANVersion(httpClient);
+                    // the way the resources are obtained depends on the CKAN version, which is got only once; if
+                    // the resources cannot be obtained, the version is got again the next time
+                    CKANVersionStrategy strategy = getVersionStrategy(httpClient);
                     
-                    if (ckanVersion.equals("2.0")) {
-                        logger.debug("CKAN version is 2.0, try to discover the resources for this package (pkgName="
-                                + pkgName + ")");
-                        resources = discoverResources(httpClient, pkgName);
-                    } else { // 2.2 or higher
-                        logger.debug("CKAN version is 2.2 (or higher), the resources list can be obtained from the "
-                                + "organization information (pkgName=" + pkgName + ")");
-                        resources = (JSONArray) pkg.get("resources");
-                    } // if else
+                    try {
+                        resources = strategy.getResources(httpClient, pkg);
+                    } catch (CygnusPersistenceError e) {
+                        throw e;
+                    } catch (Exception e) {
+                        versionStrategy = null;
+                        throw e;
+                    } // try catch
                     
-                    logger.debug("Going to populate the resources cache (orgName=" + orgName + ")");
+                    CygnusLogger.debug(logger, "Going to populate the resources cache (orgName={})", orgName);
                     populateResourcesMap(resources, orgName);
                     packagesIds.put(orgName, pkgId);
-                    logger.debug("Default package added to pckages map (orgName=" + orgName + " -> defaultPkgId="
-                            + pkgId + ")");
+                    CygnusLogger.debug(logger, "Default package added to pckages map (orgName={} -> defaultPkgId={})",
+                            orgName, pkgId);
                     return;
                 } // if
                 // it seems the other packages are not of interest for Cygnus
             } // while
 
             // if we have reach this point, then orgName doesn't include the default package; thus create is
-            logger.debug("Default package not found, going to create it (orgName=" + orgName + ", defaultPkgName="
-                    + effectiveDefaultDataset + ")");
+            CygnusLogger.debug(logger, "Default package not found, going to create it (orgName={}, defaultPkgName={})",
+                    orgName, effectiveDefaultDataset);
             String packageId = createPackage(httpClient, effectiveDefaultDataset, orgId);
             packagesIds.put(orgName, packageId);
-            logger.debug("Default package added to pckages map (orgName=" + orgName + " -> defaultPkgId="
-                            + packageId + ")");
+            CygnusLogger.debug(logger, "Default package added to pckages map (orgName={} -> defaultPkgId={})", orgName,
+                    packageId);
         } else if (res.getStatusCode() == 404) {
             // orgName doesn't exist in CKAN, create it
             createOrganization(httpClient, orgName);
         } else {
             throw new CygnusRuntimeError("Don't know how to treat response code " + res.getStatusCode() + ")");
         } // if else
-    } // initOrg
+    } // loadOrg
     
     /**
      * This piece of code tries to make the code compatible with CKAN 2.0, whose "organization_show" method returns
@@ -210,14 +358,41 @@ public class CKANBackendImpl implements CKANBackend {
         if (res.getStatusCode() == 200) {
             JSONObject result = (JSONObject) res.getJsonObject().get("result");
             JSONArray resources = (JSONArray) result.get("resources");
-            logger.debug("Resources successfully discovered (pkgName=" + pkgName + ", numResources="
-                    + resources.size() + ")");
+            CygnusLogger.debug(logger, "Resources successfully discovered (pkgName={}, numResources={})", pkgName,
+                    resources.size());
             return resources;
         } else {
             throw new CygnusRuntimeError("Don't know how to treat response code " + res.getStatusCode() + ")");
         } // if else
     } // discoverResources
     
+    /**
+     * Looks for a resource within the default package of an organization, querying CKAN for the resources of that
+     * package only. The found resources are cached.
+     * @param httpClient
+     * @param orgName
+     * @param resourceName
+     * @param packageId
+     * @return The resource id, null if the resource does not exist
+     * @throws Exception
+     */
+    private String lookupResource(HttpClient httpClient, String orgName, String resourceName, String packageId)
+        throws Exception {
+        JSONArray resources = discoverResources(httpClient, packageId);
+        populateResourcesMap(resources, orgName);
+        Iterator<JSONObject> iterator = resources.iterator();
+        
+        while (iterator.hasNext()) {
+            JSONObject resource = (JSONObject) iterator.next();
+            
+            if (resourceName.equals(resource.get("name"))) {
+                return (String) resource.get("id");
+            } // if
+        } // while
+        
+        return null;
+    } // lookupResource
+    
     /**
      * Populates the entity-resource map of a given orgName with the package information from the CKAN response.
      * @param resources JSON vector from the CKAN response containing resource information.
@@ -237,8 +412,8 @@ public class CKANBackendImpl implements CKANBackend {
             String resourceName = (String) factObj.get("name");
             OrgResourcePair orgResourcePair = new OrgResourcePair(orgName, resourceName);
             resourceIds.put(orgResourcePair, resourceId);
-            logger.debug("Resource added to resources map (<orgName,resourceName>=" + orgResourcePair
-                    + " -> resourceId=" + resourceId + ")");
+            CygnusLogger.debug(logger, "Resource added to resources map (<orgName,resourceName>={} -> resourceId={})",
+                    orgResourcePair, resourceId);
         } // while
     } // populateResourcesMap
 
@@ -246,14 +421,15 @@ public class CKANBackendImpl implements CKANBackend {
     public void persist(HttpClient httpClient, long recvTimeTs, String recvTime, String orgName,
             String resourceName, String attrName, String attrType, String attrValue, String attrMd) throws Exception {
         // try to get the resource identifier from the cache
-        String resourceId = resourceLookupAndCreate(httpClient, orgName, resourceName, true, true);
+        String resourceId = resourceLookupAndCreate(httpClient, orgName, resourceName, true);
 
         if (resourceId == null) {
             throw new CygnusRuntimeError("Cannot persist the data (orgName=" + orgName + ", resourceName="
                     + resourceName + ")");
         } else {
-            // persist the resourceName
-            insert(httpClient, recvTimeTs, recvTime, resourceId, attrName, attrType, attrValue, attrMd);
+            // buffer the record
+            upsertBuffers.get().add(resourceId, createRecord(recvTimeTs, recvTime, attrName, attrType, attrValue,
+                    attrMd));
         } // if else
     } // persist
 
@@ -261,16 +437,49 @@ public class CKANBackendImpl implements CKANBackend {
     public void persist(HttpClient httpClient, String recvTime, String orgName, String resourceName,
                  Map<String, String> attrList, Map<String, String> attrMdList) throws Exception {
         // try to get the resource identifier from the cache
-        String resourceId = resourceLookupAndCreate(httpClient, orgName, resourceName, false, true);
+        String resourceId = resourceLookupAndCreate(httpClient, orgName, resourceName, false);
 
         if (resourceId == null) {
             throw new CygnusRuntimeError("Cannot persist the data (orgName=" + orgName + ", resourceName="
                     + resourceName + ")");
         } else {
-            // persist the resourceName
-            insert(httpClient, recvTime, resourceId, attrList, attrMdList);
+            // buffer the record
+            upsertBuffers.get().add(resourceId, createRecord(recvTime, attrList, attrMdList));
         } // if else
     } // persist
+    
+    @Override
+    public boolean isFlushRequired() {
+        UpsertBuffer buffer = upsertBuffers.get();
+        return buffer.getNumRecords() >= upsertBatchSize || buffer.getNumBytes() >= upsertBatchBytes
+                || buffer.getAge() >= upsertBatchTimeout;
+    } // isFlushRequired
+    
+    @Override
+    public void flush(HttpClient httpClient) throws Exception {
+        UpsertBuffer buffer = upsertBuffers.get();
+        
+        if (buffer.isEmpty()) {
+            return;
+        } // if
+        
+        CygnusLogger.debug(logger, "Flushing buffered CKAN records (numRecords={}, numResources={})",
+                buffer.getNumRecords(), buffer.getNumResources());
+        List<Map.Entry<String, ArrayList<String>>> batches = buffer.drain();
+        
+        for (Map.Entry<String, ArrayList<String>> batch : batches) {
+            upsert(httpClient, batch.getKey(), batch.getValue());
+        } // for
+    } // flush
+    
+    /**
+     * Gets the number of records buffered by the calling thread. It is protected due to it is only required for testing
+     * purposes.
+     * @return The number of buffered records
+     */
+    protected int getNumBufferedRecords() {
+        return upsertBuffers.get().getNumRecords();
+    } // getNumBufferedRecords
 
     /**
      * looks the ID of a resource identified by orgName and resourceName, creating it if not found and the
@@ -280,28 +489,56 @@ public class CKANBackendImpl implements CKANBackend {
      * @param resourceName
      * @param createResource True if running in row-like mode (where resources can be created on the fly), false if
      * running in column-like mode (where the resources must be preprovisioned).
-     * @param purgeCache True if the cache has to be purged when an error is found, false otherwise.
      * @return
      * @throws Exception
      */
     private String resourceLookupAndCreate(HttpClient httpClient, String orgName, String resourceName,
-            boolean createResource, boolean purge) throws Exception {
+            boolean createResource) throws Exception {
         try {
             // look for the resource resourceId associated to the resourceName in the hashmap
-            String resourceId;
             OrgResourcePair orgResourcePair = new OrgResourcePair(orgName, resourceName);
-
-            // check if the resource can be obtained from the map
-            if (resourceIds.containsKey(orgResourcePair)) {
+            String resourceId = resourceIds.get(orgResourcePair);
+            
+            if (resourceId != null) {
+                CygnusLogger.debug(logger, "Resource id found in the map (<orgName,resourceName>={} -> resourceId={})",
+                        orgResourcePair, resourceId);
+                return resourceId;
+            } // if
+            
+            if (!createResource && negativeCache.get(orgResourcePair.toString()) != null) {
+                throw negativeCache.get(orgResourcePair.toString());
+            } // if
+            
+            // Reached this point, it could be that the resource was created after the organization was cached, or
+            // that it was evicted from the cache before the organization. Look for it in CKAN again before creating
+            // anything, otherwise an existing resource would be created twice.
+            String packageId = packagesIds.get(orgName);
+            
+            if (packageId == null) {
+                // the organization is loaded again, together with its resources
+                initOrg(httpClient, orgName);
                 resourceId = resourceIds.get(orgResourcePair);
-                logger.debug("Resource id found in the map (<orgName,resourceName>=" + orgResourcePair
-                        + " -> resourceId=" + resourceId + ")");
+                packageId = packagesIds.get(orgName);
+            } else {
+                // only the resources of the default package of the organization are queried
+                resourceId = lookupResource(httpClient, orgName, resourceName, packageId);
+            } // if else
+            
+            if (resourceId != null) {
+                CygnusLogger.debug(logger, "Resource id found in CKAN (<orgName,resourceName>={} -> resourceId={})",
+                        orgResourcePair, resourceId);
             } else if (createResource) {
-                logger.debug("Resource id not found in the map, going to create it (orgName=" + orgName
-                        + ", resourceName=" + resourceName + ")");
+                CygnusLogger.debug(logger, "Resource id not found, going to create it (orgName={}, resourceName={})",
+                        orgName, resourceName);
+                
+                if (packageId == null) {
+                    throw new CygnusPersistenceError("The default package of the organization was evicted from the "
+                            + "cache before creating the resource (orgName=" + orgName + ", resourceName="
+                            + resourceName + ")");
+                } // if
 
                 // create the resource resourceId and datastore, adding it to the resourceIds map
-                resourceId = createResource(httpClient, resourceName, orgName);
+                resourceId = createResource(httpClient, resourceName, packageId);
 
                 if (resourceId == null) {
                     throw new CygnusBadConfiguration("The resource id did not exist and could not be created. The "
@@ -310,20 +547,14 @@ public class CKANBackendImpl implements CKANBackend {
 
                 createDataStore(httpClient, resourceId);
                 resourceIds.put(orgResourcePair, resourceId);
-                logger.debug("Resource id added to resources map (<orgName,resourceName>=" + orgResourcePair
-                        + " -> resourceId=" + resourceId + ")");
-            } else if (purge) {
-                // Reached this point, it could be that the resource was created after the organization was cached.
-                // Purge this cache entry and reload the organization again (observe purge=false, i.e. after reloading
-                // the organization the same behaviour is definitely considered an error).
-                logger.debug("Going to purge the cache (orgName=" + orgName + ")");
-                purgeCache(orgName);
-                initOrg(httpClient, orgName);
-                return resourceLookupAndCreate(httpClient, orgName, resourceName, createResource, false);
+                CygnusLogger.debug(logger, "Resource id added to resources map (<orgName,resourceName>={} -> "
+                        + "resourceId={})", orgResourcePair, resourceId);
             } else {
-                throw new CygnusBadConfiguration("The resource id did not exist and could not be created. The "
-                        + "resource/datastore pre-provision in column mode failed");
-            } // if else
+                CygnusBadConfiguration e = new CygnusBadConfiguration("The resource id did not exist and could not be "
+                        + "created. The resource/datastore pre-provision in column mode failed");
+                negativeCache.put(orgResourcePair.toString(), e);
+                throw e;
+            } // if else if else
 
             return resourceId;
         } catch (Exception e) {
@@ -337,149 +568,312 @@ public class CKANBackendImpl implements CKANBackend {
         } // try catch
     } // resourceLookupAndCreate
     
-    /**
-     * Purges the cache regarding an organization, given its name.
-     * @param orgName
-     * @throws Exception
-     */
-    private void purgeCache(String orgName) throws Exception {
-        packagesIds.remove(orgName);
+    @Override
+    public void warmUp(final HttpClient httpClient, List<String> orgNames, int numThreads, long timeout) {
+        if (orgNames.isEmpty()) {
+            return;
+        } // if
         
-        Iterator it = resourceIds.keySet().iterator();
+        logger.info("Warming up the cache (numOrgs=" + orgNames.size() + ", numThreads=" + numThreads + ")");
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "CKANBackendImpl-warmup");
+                thread.setDaemon(true);
+                return thread;
+            } // newThread
+
+        });
         
-        while (it.hasNext()) {
-            OrgResourcePair pair = (OrgResourcePair) it.next();
+        for (final String orgName : orgNames) {
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        initOrg(httpClient, orgName);
+                    } catch (Exception e) {
+                        logger.warn("The organization could not be warmed up (orgName=" + orgName + ", details="
+                                + e.getMessage() + ")");
+                    } // try catch
+                } // run
+
+            });
+        } // for
+        
+        executor.shutdown();
+        
+        try {
+            if (!executor.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+                logger.warn("The cache warm-up timed out, the remaining organizations will be initialized when "
+                        + "notified (timeout=" + timeout + ")");
+                executor.shutdownNow();
+            } // if
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        } // try catch
+        
+        logger.info("Cache warmed up (numOrgs=" + packagesIds.size() + ", numResources=" + resourceIds.size() + ")");
+    } // warmUp
+    
+    @Override
+    public List<String> loadSnapshot(String snapshotFile) {
+        ArrayList<String> orgNames = new ArrayList<String>();
+        
+        if (snapshotFile == null || snapshotFile.isEmpty() || !new File(snapshotFile).exists()) {
+            return orgNames;
+        } // if
+        
+        BufferedReader reader = null;
+        
+        try {
+            reader = new BufferedReader(new FileReader(snapshotFile));
+            String line;
             
-            if (pair.getOrg().equals("orgName")) {
-                it.remove(); // Map.remove(objectKey) cannot be used inside a loop!
+            while ((line = reader.readLine()) != null) {
+                String[] tokens = line.split("\t");
+                
+                if (tokens.length == 3 && tokens[0].equals("package")) {
+                    packagesIds.put(tokens[1], tokens[2]);
+                    orgNames.add(tokens[1]);
+                } else if (tokens.length == 4 && tokens[0].equals("resource")) {
+                    resourceIds.put(new OrgResourcePair(tokens[1], tokens[2]), tokens[3]);
+                } // if else if
+            } // while
+            
+            logger.info("Cache snapshot loaded (file=" + snapshotFile + ", numOrgs=" + orgNames.size()
+                    + ", numResources=" + resourceIds.size() + ")");
+        } catch (IOException e) {
+            logger.warn("The cache snapshot could not be loaded (file=" + snapshotFile + ", details="
+                    + e.getMessage() + ")");
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    CygnusLogger.debug(logger, "The cache snapshot file could not be closed ({})", e.getMessage());
+                } // try catch
             } // if
-        } // while
-    } // purgeCache
+        } // try catch finally
+        
+        return orgNames;
+    } // loadSnapshot
+    
+    @Override
+    public void saveSnapshot(String snapshotFile) {
+        if (snapshotFile == null || snapshotFile.isEmpty()) {
+            return;
+        } // if
+        
+        // written aside and then renamed, thus a failure while writing does not corrupt the previous snapshot
+        File file = new File(snapshotFile);
+        File tmpFile = new File(snapshotFile + ".tmp");
+        FileWriter writer = null;
+        int numOrgs = 0;
+        int numResources = 0;
+        
+        try {
+            writer = new FileWriter(tmpFile);
+            
+            for (String orgName : packagesIds.keySet()) {
+                String pkgId = packagesIds.get(orgName);
+                
+                if (pkgId != null) {
+                    writer.write("package\t" + orgName + "\t" + pkgId + "\n");
+                    numOrgs++;
+                } // if
+            } // for
+            
+            for (OrgResourcePair pair : resourceIds.keySet()) {
+                String resourceId = resourceIds.get(pair);
+                
+                if (resourceId != null) {
+                    writer.write("resource\t" + pair.getOrg() + "\t" + pair.getEntity() + "\t" + resourceId + "\n");
+                    numResources++;
+                } // if
+            } // for
+            
+            writer.close();
+            writer = null;
+            
+            if (!tmpFile.renameTo(file) && !(file.delete() && tmpFile.renameTo(file))) {
+                throw new IOException("The temporary file could not be renamed");
+            } // if
+            
+            logger.info("Cache snapshot saved (file=" + snapshotFile + ", numOrgs=" + numOrgs + ", numResources="
+                    + numResources + ")");
+        } catch (IOException e) {
+            logger.warn("The cache snapshot could not be saved (file=" + snapshotFile + ", details="
+                    + e.getMessage() + ")");
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    CygnusLogger.debug(logger, "The cache snapshot file could not be closed ({})", e.getMessage());
+                } // try catch
+            } // if
+        } // try catch finally
+    } // saveSnapshot
+    
+    /**
+     * Gets the number of times CKAN has been queried for an organization. It is protected due to it is only required
+     * for testing purposes.
+     * @return The number of times CKAN has been queried for an organization
+     */
+    protected long getNumOrgLoads() {
+        return numOrgLoads.get();
+    } // getNumOrgLoads
+    
+    /**
+     * Gets the number of times CKAN has been queried for its version. It is protected due to it is only required for
+     * testing purposes.
+     * @return The number of times CKAN has been queried for its version
+     */
+    protected long getNumVersionQueries() {
+        return numVersionQueries.get();
+    } // getNumVersionQueries
+    
+    @Override
+    public Map<String, Object> getStatus() {
+        LinkedHashMap<String, Object> status = new LinkedHashMap<String, Object>();
+        status.put("ckanVersion", ckanVersion);
+        status.put("numVersionQueries", numVersionQueries.get());
+        status.put("numOrgLoads", numOrgLoads.get());
+        status.put("organizations", getStatus(packagesIds));
+        status.put("resources", getStatus(resourceIds));
+        status.put("failures", getStatus(negativeCache));
+        return status;
+    } // getStatus
+    
+    private Map<String, Object> getStatus(LRUCache<?, ?> cache) {
+        LinkedHashMap<String, Object> status = new LinkedHashMap<String, Object>();
+        status.put("size", cache.size());
+        status.put("numHits", cache.getNumHits());
+        status.put("numMisses", cache.getNumMisses());
+        status.put("numEvictions", cache.getNumEvictions());
+        return status;
+    } // getStatus
 
     /**
-     * Insert record in datastore (row mode).
+     * Upserts a batch of records in the datastore of a resource, by means of a single request. If the batch is
+     * rejected by CKAN due to bad data (409), it is split in halves which are upserted separately, so that only the bad
+     * records are discarded. Any other failure is a persistence error, thus the data is re-injected by the caller.
      * @param httpClient HTTP client for accessing the backend server.
-     * @param recvTimeTs timestamp.
-     * @param recvTime timestamp (human readable)
-     * @param resourceId the resource in which datastore the record is going to be inserted.
-     * @param attrName attribute resourceName.
-     * @param attrType attribute type.
-     * @param attrValue attribute value.
+     * @param resourceId the resource in which datastore the records are going to be upserted.
+     * @param records the records, as Json objects.
      * @throws Exception
      */
-    private void insert(HttpClient httpClient, long recvTimeTs, String recvTime, String resourceId,
-            String attrName, String attrType, String attrValue, String attrMd) throws Exception {
-        String ckanURL = null;
-        String jsonString = null;
-        
+    private void upsert(HttpClient httpClient, String resourceId, List<String> records) throws Exception {
         try {
             // create the CKAN request JSON
-            String records = "\"" + Constants.RECV_TIME_TS + "\": \"" + recvTimeTs / 1000 + "\", "
-                    + "\"" + Constants.RECV_TIME + "\": \"" + recvTime + "\", "
-                    + "\"" + Constants.ATTR_NAME + "\": \"" + attrName + "\", "
-                    + "\"" + Constants.ATTR_TYPE + "\": \"" + attrType + "\", "
-                    + "\"" + Constants.ATTR_VALUE + "\": " + attrValue;
-
-            // metadata is an special case, because CKAN doesn't support empty array, e.g. "[ ]"
-            // (http://stackoverflow.com/questions/24207065/inserting-empty-arrays-in-json-type-fields-in-datastore)
-            if (!attrMd.equals(Constants.EMPTY_MD)) {
-                records += ", \"" + Constants.ATTR_MD + "\": " + attrMd;
-            } // if
-
-            jsonString = "{ \"resource_id\": \"" + resourceId
-                    + "\", \"records\": [ { " + records + " } ], "
-                    + "\"method\": \"insert\", "
-                    + "\"force\": \"true\" }";
+            StringBuilder jsonString = new StringBuilder("{ \"resource_id\": \"").append(resourceId)
+                    .append("\", \"records\": [ ");
+            
+            for (int i = 0; i < records.size(); i++) {
+                jsonString.append(i == 0 ? "" : ", ").append(records.get(i));
+            } // for
+            
+            jsonString.append(" ], \"method\": \"insert\", \"force\": \"true\" }");
             
             // create the CKAN request URL
-            ckanURL = "http://" + ckanHost + ":" + ckanPort + "/api/3/action/datastore_upsert";
+            String ckanURL = "http://" + ckanHost + ":" + ckanPort + "/api/3/action/datastore_upsert";
         
             // do the CKAN request
-            CKANResponse res = doCKANRequest(httpClient, "POST", ckanURL, jsonString);
+            CKANResponse res = doCKANRequest(httpClient, "POST", ckanURL, jsonString.toString());
 
             // check the status
             if (res.getStatusCode() == 200) {
-                logger.debug("Successful insert (resource/datastore id=" + resourceId + ")");
+                CygnusLogger.debug(logger, "Successful upsert (resource/datastore id={}, numRecords={})", resourceId,
+                        records.size());
+            } else if (res.getStatusCode() == 409) {
+                if (records.size() == 1) {
+                    logger.warn("Bad context data, the record is discarded (resource/datastore id=" + resourceId
+                            + ", details=" + res.getJsonObject() + ")");
+                } else {
+                    CygnusLogger.debug(logger, "The batch was rejected, upserting it in halves (resource/datastore "
+                            + "id={}, numRecords={})", resourceId, records.size());
+                    int half = records.size() / 2;
+                    upsert(httpClient, resourceId, records.subList(0, half));
+                    upsert(httpClient, resourceId, records.subList(half, records.size()));
+                } // if else
             } else {
-                throw new CygnusRuntimeError("Don't know how to treat response code " + res.getStatusCode());
-            } // if else
+                throw new CygnusPersistenceError("The records could not be upserted (resource/datastore id="
+                        + resourceId + ", numRecords=" + records.size() + ", statusCode=" + res.getStatusCode()
+                        + ")");
+            } // if else if else
         } catch (Exception e) {
-            if (e instanceof CygnusRuntimeError
-                    || e instanceof CygnusPersistenceError
-                    || e instanceof CygnusBadConfiguration) {
+            if (e instanceof CygnusPersistenceError) {
                 throw e;
             } else {
-                throw new CygnusRuntimeError(e.getMessage());
+                throw new CygnusPersistenceError(e.getMessage());
             } // if else
         } // try catch
-    } // insert
+    } // upsert
 
     /**
-     * Insert record in datastore (column mode).
-     * @param httpClient HTTP client for accessing the backend server.
+     * Creates a record (row mode).
+     * @param recvTimeTs timestamp.
      * @param recvTime timestamp (human readable)
-     * @param resourceId the resource in which datastore the record is going to be inserted.
-     * @param attrList map with the attributes to persist
-     * @throws Exception
+     * @param attrName attribute resourceName.
+     * @param attrType attribute type.
+     * @param attrValue attribute value.
+     * @param attrMd attribute metadata.
+     * @return The record, as a Json object.
      */
-    private void insert(HttpClient httpClient, String recvTime, String resourceId,
-                        Map<String, String> attrList, Map<String, String> attrMdList) throws Exception {
-        String ckanURL = null;
-        String jsonString = null;
-        
-        try {
-            // create the CKAN request JSON
-            String records = "\"" + Constants.RECV_TIME + "\": \"" + recvTime + "\"";
+    private String createRecord(long recvTimeTs, String recvTime, String attrName, String attrType, String attrValue,
+            String attrMd) {
+        String record = "\"" + Constants.RECV_TIME_TS + "\": \"" + recvTimeTs / 1000 + "\", "
+                + "\"" + Constants.RECV_TIME + "\": \"" + recvTime + "\", "
+                + "\"" + Constants.ATTR_NAME + "\": \"" + attrName + "\", "
+                + "\"" + Constants.ATTR_TYPE + "\": \"" + attrType + "\", "
+                + "\"" + Constants.ATTR_VALUE + "\": " + attrValue;
+
+        // metadata is an special case, because CKAN doesn't support empty array, e.g. "[ ]"
+        // (http://stackoverflow.com/questions/24207065/inserting-empty-arrays-in-json-type-fields-in-datastore)
+        if (!attrMd.equals(Constants.EMPTY_MD)) {
+            record += ", \"" + Constants.ATTR_MD + "\": " + attrMd;
+        } // if
 
-            // iterate on the attribute and metadata maps in order to build the query
-            Iterator it = attrList.keySet().iterator();
+        return "{ " + record + " }";
+    } // createRecord
 
-            while (it.hasNext()) {
-                String attrName = (String) it.next();
-                String attrValue = attrList.get(attrName);
-                records += ", \"" + attrName + "\": " + attrValue;
-            } // while
+    /**
+     * Creates a record (column mode).
+     * @param recvTime timestamp (human readable)
+     * @param attrList map with the attributes to persist
+     * @param attrMdList map with the attribute metadata to persist
+     * @return The record, as a Json object.
+     */
+    private String createRecord(String recvTime, Map<String, String> attrList, Map<String, String> attrMdList) {
+        String record = "\"" + Constants.RECV_TIME + "\": \"" + recvTime + "\"";
 
-            it = attrMdList.keySet().iterator();
+        // iterate on the attribute and metadata maps in order to build the query
+        Iterator it = attrList.keySet().iterator();
 
-            while (it.hasNext()) {
-                String attrName = (String) it.next();
-                String attrMd = attrMdList.get(attrName);
+        while (it.hasNext()) {
+            String attrName = (String) it.next();
+            String attrValue = attrList.get(attrName);
+            record += ", \"" + attrName + "\": " + attrValue;
+        } // while
 
-                // metadata is an special case, because CKAN doesn't support empty array, e.g. "[ ]"
-                // (http://stackoverflow.com/questions/24207065/inserting-empty-arrays-in-json-type-fields-in-datastore)
-                if (!attrMd.equals(Constants.EMPTY_MD)) {
-                    records += ", \"" + attrName + "\": " + attrMd;
-                } // if
-            } // while
+        it = attrMdList.keySet().iterator();
 
-            jsonString = "{ \"resource_id\": \"" + resourceId
-                    + "\", \"records\": [ { " + records + " } ], "
-                    + "\"method\": \"insert\", "
-                    + "\"force\": \"true\" }";
-            
-            // create the CKAN request URL
-            ckanURL = "http://" + ckanHost + ":" + ckanPort + "/api/3/action/datastore_upsert";
-        
-            // do the CKAN request
-            CKANResponse res = doCKANRequest(httpClient, "POST", ckanURL, jsonString);
+        while (it.hasNext()) {
+            String attrName = (String) it.next();
+            String attrMd = attrMdList.get(attrName);
 
-            // check the status
-            if (res.getStatusCode() == 200) {
-                logger.debug("Successful insert (resource/datastore id=" + resourceId + ")");
-            } else {
-                throw new CygnusRuntimeError("Don't know how to treat response code " + res.getStatusCode());
-            } // if else
-        } catch (Exception e) {
-            if (e instanceof CygnusRuntimeError
-                    || e instanceof CygnusPersistenceError
-                    || e instanceof CygnusBadConfiguration) {
-                throw e;
-            } else {
-                throw new CygnusRuntimeError(e.getMessage());
-            } // if else
-        } // try catch
-    } // insert
+            // metadata is an special case, because CKAN doesn't support empty array, e.g. "[ ]"
+            // (http://stackoverflow.com/questions/24207065/inserting-empty-arrays-in-json-type-fields-in-datastore)
+            if (!attrMd.equals(Constants.EMPTY_MD)) {
+                record += ", \"" + attrName + "\": " + attrMd;
+            } // if
+        } // while
+
+        return "{ " + record + " }";
+    } // createRecord
 
     /**
      * Creates an orgName in CKAN.
@@ -501,7 +895,7 @@ public class CKANBackendImpl implements CKANBackend {
             // check the status
             if (res.getStatusCode() == 200) {
                 String orgId = ((JSONObject) res.getJsonObject().get("result")).get("id").toString();
-                logger.debug("Successful organization creation (orgName=" + orgName + ", orgId=" + orgId + ")");
+                CygnusLogger.debug(logger, "Successful organization creation (orgName={}, orgId={})", orgName, orgId);
 
                 // create the package/dataset
                 String packageName = orgName + "_" + defaultDataset;
@@ -518,7 +912,8 @@ public class CKANBackendImpl implements CKANBackend {
 
                 String packageId = createPackage(httpClient, packageName, orgId);
                 packagesIds.put(orgName, packageId);
-                logger.debug("Package added to packages map (orgName=" + orgName + " -> packageId=" + packageId + ")");
+                CygnusLogger.debug(logger, "Package added to packages map (orgName={} -> packageId={})", orgName,
+                        packageId);
             } else {
                 throw new CygnusRuntimeError("Don't know how to treat the response code. Possibly the organization "
                         + "already exists in a deleted state (respCode=" + res.getStatusCode() + ", orgName="
@@ -552,7 +947,7 @@ public class CKANBackendImpl implements CKANBackend {
             // check the status
             if (res.getStatusCode() == 200) {
                 String packageId = ((JSONObject) res.getJsonObject().get("result")).get("id").toString();
-                logger.debug("Successful package creation (pkgId=" + packageId + ")");
+                CygnusLogger.debug(logger, "Successful package creation (pkgId={})", packageId);
                 return packageId;
             /*
             This is not deleted if in the future we try to activate deleted elements again
@@ -586,14 +981,14 @@ public class CKANBackendImpl implements CKANBackend {
     } // createDefaultPackage
 
     /**
-     * Creates a resource within the default dataset of a given orgName.
+     * Creates a resource within a given default dataset.
      * @param httpClient HTTP client for accessing the backend server.
      * @param resourceName Resource to be created.
-     * @param orgName orgName to which the default dataset belongs
+     * @param packageId identifies the default dataset of the organization
      * @return resource ID if the resource was created or "" if it wasn't.
      * @throws Exception
      */
-    private String createResource(HttpClient httpClient, String resourceName, String orgName)
+    private String createResource(HttpClient httpClient, String resourceName, String packageId)
         throws Exception {
         try {
             // create the CKAN request JSON; compose the resource URL with the one corresponding to the NGSI10
@@ -602,7 +997,7 @@ public class CKANBackendImpl implements CKANBackend {
             String jsonURL = orionUrl + "/ngsi10/contextEntitites/" + st.nextElement();
             String jsonString = "{ \"name\": \"" + resourceName + "\", "
                     + "\"url\": \"" + jsonURL + "\", "
-                    + "\"package_id\": \"" + packagesIds.get(orgName) + "\" }";
+                    + "\"package_id\": \"" + packageId + "\" }";
             
             // create the CKAN request URL
             String ckanURL = "http://" + ckanHost + ":" + ckanPort + "/api/3/action/resource_create";
@@ -613,7 +1008,7 @@ public class CKANBackendImpl implements CKANBackend {
             // check the status
             if (res.getStatusCode() == 200) {
                 String resourceId = ((JSONObject) res.getJsonObject().get("result")).get("id").toString();
-                logger.debug("Successful resource creation (resource id=" + resourceId + ")");
+                CygnusLogger.debug(logger, "Successful resource creation (resource id={})", resourceId);
                 return resourceId;
             } else {
                 throw new CygnusRuntimeError("Don't know how to treat the response code. Possibly the resource "
@@ -659,7 +1054,7 @@ public class CKANBackendImpl implements CKANBackend {
 
             // check the status
             if (res.getStatusCode() == 200) {
-                logger.debug("Successful datastore creation (resourceId=" + resourceId + ")");
+                CygnusLogger.debug(logger, "Successful datastore creation (resourceId={})", resourceId);
             } else {
                 throw new CygnusRuntimeError("Don't know how to treat the response code. Possibly the datastore "
                         + "already exists (respCode=" + res.getStatusCode() + ", resourceId=" + resourceId + ")");
@@ -697,11 +1092,46 @@ public class CKANBackendImpl implements CKANBackend {
         } // if else
     } // activateElementState
     
+    /**
+     * Gets the strategy for the CKAN version, querying CKAN for its version only if not already known.
+     * @param httpClient
+     * @return The strategy for the CKAN version
+     * @throws Exception
+     */
+    private CKANVersionStrategy getVersionStrategy(HttpClient httpClient) throws Exception {
+        CKANVersionStrategy strategy = versionStrategy;
+        
+        if (strategy != null) {
+            return strategy;
+        } // if
+        
+        logger.debug("Going to get the CKAN version");
+        numVersionQueries.incrementAndGet();
+        String version = getCKANVersion(httpClient);
+        
+        if (version == null) {
+            // not cached, thus the version is queried again the next time
+            logger.warn("The CKAN version could not be got, assuming 2.2 (or higher)");
+            return new CKAN22Strategy();
+        } // if
+        
+        if (version.equals("2.0") || version.startsWith("2.0.")) {
+            strategy = new CKAN20Strategy();
+        } else {
+            strategy = new CKAN22Strategy();
+        } // if else
+        
+        ckanVersion = version;
+        versionStrategy = strategy;
+        logger.info("CKAN version got (version=" + version + ")");
+        return strategy;
+    } // getVersionStrategy
+    
     private String getCKANVersion(HttpClient httpClient) throws Exception {
         String ckanURL = "http://" + ckanHost + ":" + ckanPort + "/api/util/status";
         CKANResponse res = doCKANRequest(httpClient, "GET", ckanURL);
         
-        if (res.getStatusCode() == 200) {
+        if (res.getStatusCode() == 200 && res.getJsonObject().get("ckan_version") != null) {
             return res.getJsonObject().get("ckan_version").toString();
         } else {
             return null;
@@ -743,8 +1173,8 @@ public class CKANBackendImpl implements CKANBackend {
 
                 // payload (optional)
                 if (!payload.equals("")) {
-                    logger.debug("request payload: " + payload);
-                    r.setEntity(new StringEntity(payload, ContentType.create("application/json")));
+                    CygnusLogger.debug(logger, "request payload: {}", CygnusLogger.payload(payload));
+                    r.setEntity(new StringEntity(payload, ContentType.create("application/json", "UTF-8")));
                 } // if
                 
                 request = r;
@@ -756,7 +1186,7 @@ public class CKANBackendImpl implements CKANBackend {
             request.addHeader("Authorization", apiKey);
 
             // execute the request
-            logger.debug("CKAN operation: " + request.toString());
+            CygnusLogger.debug(logger, "CKAN operation: {}", request);
         } catch (Exception e) {
             if (e instanceof CygnusRuntimeError
                     || e instanceof CygnusPersistenceError
@@ -778,10 +1208,10 @@ public class CKANBackendImpl implements CKANBackend {
             String res = reader.readLine();
             request.releaseConnection();
             long l = response.getEntity().getContentLength();
-            logger.debug("CKAN response (" + l + " bytes): " + response.getStatusLine().toString());
+            CygnusLogger.debug(logger, "CKAN response ({} bytes): {}", l, response.getStatusLine());
 
             // get the JSON encapsulated in the response
-            logger.debug("response payload: " + res);
+            CygnusLogger.debug(logger, "response payload: {}", CygnusLogger.payload(res));
             JSONParser j = new JSONParser();
             JSONObject o = (JSONObject) j.parse(res);
 
@@ -798,6 +1228,63 @@ public class CKANBackendImpl implements CKANBackend {
         } // try catch
     } // doCKANRequest
 
+    /**
+     * Behaviour depending on the CKAN version.
+     */
+    private interface CKANVersionStrategy {
+        
+        /**
+         * Gets the resources of a package, as returned by the "organization_show" operation.
+         * @param httpClient
+         * @param pkg
+         * @return The resources of the package
+         * @throws Exception
+         */
+        JSONArray getResources(HttpClient httpClient, JSONObject pkg) throws Exception;
+        
+    } // CKANVersionStrategy
+    
+    /**
+     * CKAN 2.0, whose "organization_show" operation returns no resource lists for its packages, thus they must be
+     * discovered package by package. More info --> https://github.com/telefonicaid/fiware-connectors/issues/153
+     */
+    private class CKAN20Strategy implements CKANVersionStrategy {
+        
+        @Override
+        public JSONArray getResources(HttpClient httpClient, JSONObject pkg) throws Exception {
+            String pkgName = (String) pkg.get("name");
+            CygnusLogger.debug(logger, "CKAN version is 2.0, try to discover the resources for this package "
+                    + "(pkgName={})", pkgName);
+            return discoverResources(httpClient, pkgName);
+        } // getResources
+        
+    } // CKAN20Strategy
+    
+    /**
+     * CKAN 2.2 or higher, whose "organization_show" operation returns the resource lists of its packages.
+     */
+    private class CKAN22Strategy implements CKANVersionStrategy {
+        
+        @Override
+        public JSONArray getResources(HttpClient httpClient, JSONObject pkg) throws Exception {
+            String pkgName = (String) pkg.get("name");
+            JSONArray resources = (JSONArray) pkg.get("resources");
+            
+            if (resources == null) {
+                // CKAN may have been downgraded, thus the version is got again the next time
+                CygnusLogger.debug(logger, "No resources list within the organization information, try to discover the "
+                        + "resources for this package (pkgName={})", pkgName);
+                versionStrategy = null;
+                return discoverResources(httpClient, pkgName);
+            } // if
+            
+            CygnusLogger.debug(logger, "CKAN version is 2.2 (or higher), the resources list can be obtained from the "
+                    + "organization information (pkgName={})", pkgName);
+            return resources;
+        } // getResources
+        
+    } // CKAN22Strategy
+    
     /**
      * Class to store the <org, entity> pair, uses as key in the resourceId hashmap in the CKANBackendImpl class.
      */
@@ -861,5 +1348,88 @@ public class CKANBackendImpl implements CKANBackend {
         } // toString
 
     } // OrgResourcePair
+    
+    /**
+     * Records to be upserted, per resource id, buffered by a single thread.
+     */
+    private static class UpsertBuffer {
+        
+        private LinkedHashMap<String, ArrayList<String>> batches;
+        private int numRecords;
+        private long numBytes;
+        private long oldestRecordTime;
+        
+        /**
+         * Constructor.
+         */
+        public UpsertBuffer() {
+            batches = new LinkedHashMap<String, ArrayList<String>>();
+            numRecords = 0;
+            numBytes = 0;
+            oldestRecordTime = 0;
+        } // UpsertBuffer
+        
+        /**
+         * Buffers a record for the given resource.
+         * @param resourceId
+         * @param record
+         */
+        public void add(String resourceId, String record) {
+            ArrayList<String> records = batches.get(resourceId);
+
+            if (records == null) {
+                records = new ArrayList<String>();
+                batches.put(resourceId, records);
+            } // if
+
+            records.add(record);
+
+            if (numRecords == 0) {
+                oldestRecordTime = System.currentTimeMillis();
+            } // if
+
+            numRecords++;
+            numBytes += Utils.getUTF8Length(record);
+        } // add
+        
+        /**
+         * Gets the buffered batches, emptying the buffer.
+         * @return The buffered batches, per resource id
+         */
+        public List<Map.Entry<String, ArrayList<String>>> drain() {
+            ArrayList<Map.Entry<String, ArrayList<String>>> drained =
+                    new ArrayList<Map.Entry<String, ArrayList<String>>>(batches.entrySet());
+            batches = new LinkedHashMap<String, ArrayList<String>>();
+            numRecords = 0;
+            numBytes = 0;
+            oldestRecordTime = 0;
+            return drained;
+        } // drain
+        
+        public boolean isEmpty() {
+            return batches.isEmpty();
+        } // isEmpty
+        
+        public int getNumRecords() {
+            return numRecords;
+        } // getNumRecords
+        
+        public int getNumResources() {
+            return batches.size();
+        } // getNumResources
+        
+        public long getNumBytes() {
+            return numBytes;
+        } // getNumBytes
+        
+        /**
+         * Gets the number of milliseconds the oldest record has been buffered.
+         * @return The age of the oldest record, 0 if empty
+         */
+        public long getAge() {
+            return numRecords == 0 ? 0 : System.currentTimeMillis() - oldestRecordTime;
+        } // getAge
+        
+    } // UpsertBuffer
 
 } // CKANBackendImpl
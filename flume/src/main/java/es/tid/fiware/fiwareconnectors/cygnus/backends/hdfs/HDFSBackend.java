@@ -19,8 +19,9 @@
 
 package es.tid.fiware.fiwareconnectors.cygnus.backends.hdfs;
 
-import es.tid.fiware.fiwareconnectors.cygnus.hive.HiveClient;
+import es.tid.fiware.fiwareconnectors.cygnus.hive.HiveTableProvisioner;
 import es.tid.fiware.fiwareconnectors.cygnus.utils.Constants;
+import es.tid.fiware.fiwareconnectors.cygnus.utils.LRUCache;
 import java.util.Arrays;
 import java.util.LinkedList;
 import org.apache.http.client.HttpClient;
@@ -39,6 +40,8 @@ public abstract class HDFSBackend {
     protected String cosmosDefaultPassword;
     protected String hiveHost;
     protected String hivePort;
+    protected LRUCache<String, Boolean> existingFiles; // files known to exist, thus not requiring to be checked
+    protected HiveTableProvisioner hiveProvisioner;
     private Logger logger;
     
     /**
@@ -52,17 +55,64 @@ public abstract class HDFSBackend {
      */
     public HDFSBackend(String[] cosmosHost, String cosmosPort, String cosmosDefaultUsername,
             String cosmosDefaultPassword, String hiveHost, String hivePort) {
+        this(cosmosHost, cosmosPort, cosmosDefaultUsername, cosmosDefaultPassword, hiveHost, hivePort,
+                Constants.HDFS_FILE_CACHE_SIZE, Constants.HDFS_FILE_CACHE_TTL);
+    } // HDFSBackend
+    
+    /**
+     * 
+     * @param cosmosHost
+     * @param cosmosPort
+     * @param cosmosDefaultUsername
+     * @param cosmosDefaultPassword
+     * @param hiveHost
+     * @param hivePort
+     * @param fileCacheSize Maximum number of files known to exist
+     * @param fileCacheTTL Maximum number of milliseconds a file is known to exist without checking it again
+     */
+    public HDFSBackend(String[] cosmosHost, String cosmosPort, String cosmosDefaultUsername,
+            String cosmosDefaultPassword, String hiveHost, String hivePort, int fileCacheSize, long fileCacheTTL) {
+        this(cosmosHost, cosmosPort, cosmosDefaultUsername, cosmosDefaultPassword, hiveHost, hivePort, fileCacheSize,
+                fileCacheTTL, new HiveTableProvisioner(hiveHost, hivePort, cosmosDefaultUsername,
+                cosmosDefaultPassword));
+    } // HDFSBackend
+    
+    /**
+     * 
+     * @param cosmosHost
+     * @param cosmosPort
+     * @param cosmosDefaultUsername
+     * @param cosmosDefaultPassword
+     * @param hiveHost
+     * @param hivePort
+     * @param fileCacheSize Maximum number of files known to exist
+     * @param fileCacheTTL Maximum number of milliseconds a file is known to exist without checking it again
+     * @param hiveProvisioner Provisioner of the Hive tables
+     */
+    public HDFSBackend(String[] cosmosHost, String cosmosPort, String cosmosDefaultUsername,
+            String cosmosDefaultPassword, String hiveHost, String hivePort, int fileCacheSize, long fileCacheTTL,
+            HiveTableProvisioner hiveProvisioner) {
         this.cosmosHost = new LinkedList(Arrays.asList(cosmosHost));
         this.cosmosPort = cosmosPort;
         this.cosmosDefaultPassword = cosmosDefaultPassword;
         this.cosmosDefaultUsername = cosmosDefaultUsername;
         this.hiveHost = hiveHost;
         this.hivePort = hivePort;
+        existingFiles = new LRUCache<String, Boolean>(fileCacheSize, fileCacheTTL);
+        this.hiveProvisioner = hiveProvisioner;
         logger = Logger.getLogger(HDFSBackend.class);
     } // HDFSBackend
 
     /**
-     * Provisions a Hive external table (row mode).
+     * Closes the backend, stopping the background provisioning of Hive tables.
+     */
+    public void close() {
+        hiveProvisioner.shutdown();
+    } // close
+
+    /**
+     * Provisions a Hive external table (row mode). The table is created in background, and only if not yet
+     * provisioned.
      * @param organization
      * @param entityDescriptor
      * @throws Exception
@@ -72,10 +122,10 @@ public abstract class HDFSBackend {
         // the replacement is necessary because Hive, due it is similar to MySQL, does not accept '-' in the table names
         String tableName = cosmosDefaultUsername + "_" + organization + "_" + entityDescriptor.replaceAll("-", "_")
                 + "_row";
-        logger.info("Creating Hive external table=" + tableName);
         
-        // get a Hive client
-        HiveClient hiveClient = new HiveClient(hiveHost, hivePort, cosmosDefaultUsername, cosmosDefaultPassword);
+        if (hiveProvisioner.isProvisioned(tableName)) {
+            return;
+        } // if
 
         // create the standard 8-fields
         String fields = "("
@@ -90,20 +140,18 @@ public abstract class HDFSBackend {
                 + ")";
 
         // create the query
-        
-        String query = "create external table " + tableName + " " + fields + " row format serde "
+        String query = "create external table if not exists " + tableName + " " + fields + " row format serde "
                 + "'org.openx.data.jsonserde.JsonSerDe' location '/user/" + cosmosDefaultUsername + "/"
                 + organization + "/" + entityDescriptor + "'";
 
-        // execute the query
-        if (!hiveClient.doCreateTable(query)) {
-            logger.warn("The HiveQL external table could not be created, but Cygnus can continue working... "
-                    + "Check your Hive/Shark installation");
-        } // if
+        // execute the query in background
+        logger.debug("Provisioning Hive external table=" + tableName);
+        hiveProvisioner.provision(tableName, query);
     } // provisionHiveTable
     
     /**
-     * Provisions a Hive external table (column mode).
+     * Provisions a Hive external table (column mode). The table is created in background, and only if not yet
+     * provisioned.
      * @param organization
      * @param entitydescriptor
      * @param fields
@@ -114,21 +162,19 @@ public abstract class HDFSBackend {
         // the replacement is necessary because Hive, due it is similar to MySQL, does not accept '-' in the table names
         String tableName = cosmosDefaultUsername + "_" + organization + "_" + entityDescriptor.replaceAll("-", "_")
                 + "_column";
-        logger.info("Creating Hive external table=" + tableName);
         
-        // get a Hive client
-        HiveClient hiveClient = new HiveClient(hiveHost, hivePort, cosmosDefaultUsername, cosmosDefaultPassword);
+        if (hiveProvisioner.isProvisioned(tableName)) {
+            return;
+        } // if
         
         // create the query
-        String query = "create external table " + tableName + " (" + fields + ") row format serde "
+        String query = "create external table if not exists " + tableName + " (" + fields + ") row format serde "
                 + "'org.openx.data.jsonserde.JsonSerDe' location '/user/" + cosmosDefaultUsername + "/"
                 + organization + "/" + entityDescriptor + "'";
 
-        // execute the query
-        if (!hiveClient.doCreateTable(query)) {
-            logger.warn("The HiveQL external table could not be created, but Cygnus can continue working... "
-                    + "Check your Hive/Shark installation");
-        } // if
+        // execute the query in background
+        logger.debug("Provisioning Hive external table=" + tableName);
+        hiveProvisioner.provision(tableName, query);
     } // provisionHiveTable
     
     /**
@@ -163,7 +209,8 @@ public abstract class HDFSBackend {
     public abstract void append(HttpClient httpClient, String username, String filePath, String data)
         throws Exception;
     /**
-     * Checks if the file exists in HDFS.
+     * Checks if the file exists in HDFS. The files known to exist, i.e. recently created, appended or checked, are not
+     * checked again.
      * 
      * @param httpClient HTTP client for accessing the backend server
      * @param username Cosmos username
@@ -21,6 +21,8 @@ package es.tid.fiware.fiwareconnectors.cygnus.backends.hdfs;
 
 import es.tid.fiware.fiwareconnectors.cygnus.errors.CygnusPersistenceError;
 import es.tid.fiware.fiwareconnectors.cygnus.errors.CygnusRuntimeError;
+import es.tid.fiware.fiwareconnectors.cygnus.hive.HiveTableProvisioner;
+import es.tid.fiware.fiwareconnectors.cygnus.log.CygnusLogger;
 import java.io.IOException;
 import java.util.ArrayList;
 import org.apache.http.Header;
@@ -61,6 +63,26 @@ public class HDFSBackendImpl extends HDFSBackend {
         super(cosmosHost, cosmosPort, cosmosDefaultUsername, cosmosDefaultPassword, hiveHost, hivePort);
         logger = Logger.getLogger(HDFSBackendImpl.class);
     } // HDFSBackendImpl
+    
+    /**
+     * 
+     * @param cosmosHost
+     * @param cosmosPort
+     * @param cosmosDefaultUsername
+     * @param cosmosDefaultPassword
+     * @param hiveHost
+     * @param hivePort
+     * @param fileCacheSize
+     * @param fileCacheTTL
+     * @param hiveProvisioner
+     */
+    public HDFSBackendImpl(String[] cosmosHost, String cosmosPort, String cosmosDefaultUsername,
+            String cosmosDefaultPassword,  String hiveHost, String hivePort, int fileCacheSize, long fileCacheTTL,
+            HiveTableProvisioner hiveProvisioner) {
+        super(cosmosHost, cosmosPort, cosmosDefaultUsername, cosmosDefaultPassword, hiveHost, hivePort, fileCacheSize,
+                fileCacheTTL, hiveProvisioner);
+        logger = Logger.getLogger(HDFSBackendImpl.class);
+    } // HDFSBackendImpl
    
     @Override
     public void createDir(HttpClient httpClient, String username, String dirPath) throws Exception {
@@ -106,7 +128,8 @@ public class HDFSBackendImpl extends HDFSBackend {
         // do second step
         ArrayList<Header> headers = new ArrayList<Header>();
         headers.add(new BasicHeader("Content-Type", "application/octet-stream"));
-        response = doHDFSRequest(httpClient, "PUT", absoluteURL, false, headers, new StringEntity(data + "\n"));
+        response = doHDFSRequest(httpClient, "PUT", absoluteURL, false, headers,
+                new StringEntity(data + "\n", "UTF-8"));
     
         // check the status
         if (response.getStatusLine().getStatusCode() != 201) {
@@ -114,6 +137,8 @@ public class HDFSBackendImpl extends HDFSBackend {
                     + "data. HttpFS response: " + response.getStatusLine().getStatusCode() + " "
                     + response.getStatusLine().getReasonPhrase());
         } // if
+        
+        existingFiles.put(username + "/" + filePath, true);
     } // createFile
     
     @Override
@@ -128,6 +153,7 @@ public class HDFSBackendImpl extends HDFSBackend {
 
         // check the status
         if (response.getStatusLine().getStatusCode() != 307) {
+            existingFiles.remove(username + "/" + filePath);
             throw new CygnusPersistenceError("The " + filePath + " file seems to not exist in HDFS. "
                     + "HttpFS response: " + response.getStatusLine().getStatusCode() + " "
                     + response.getStatusLine().getReasonPhrase());
@@ -140,14 +166,18 @@ public class HDFSBackendImpl extends HDFSBackend {
         // do second step
         ArrayList<Header> headers = new ArrayList<Header>();
         headers.add(new BasicHeader("Content-Type", "application/octet-stream"));
-        response = doHDFSRequest(httpClient, "POST", absoluteURL, false, headers, new StringEntity(data + "\n"));
+        response = doHDFSRequest(httpClient, "POST", absoluteURL, false, headers,
+                new StringEntity(data + "\n", "UTF-8"));
         
         // check the status
         if (response.getStatusLine().getStatusCode() != 200) {
+            existingFiles.remove(username + "/" + filePath);
             throw new CygnusPersistenceError(filePath + " file exists in HDFS, but could not write the "
                     + "data. HttpFS response: " + response.getStatusLine().getStatusCode() + " "
                     + response.getStatusLine().getReasonPhrase());
         } // if
+        
+        existingFiles.put(username + "/" + filePath, true);
     } // append
     
     @Override
@@ -157,12 +187,28 @@ public class HDFSBackendImpl extends HDFSBackend {
             username = this.cosmosDefaultUsername;
         } // if
 
+        // the files known to exist are not checked again
+        if (existingFiles.contains(username + "/" + filePath)) {
+            return true;
+        } // if
+
         String relativeURL = "/webhdfs/v1/user/" + username + "/" + filePath + "?op=getfilestatus&user.name="
                 + username;
         HttpResponse response = doHDFSRequest(httpClient, "GET", relativeURL, true, null, null);
 
         // check the status
-        return (response.getStatusLine().getStatusCode() == 200);
+        int status = response.getStatusLine().getStatusCode();
+        
+        if (status == 200) {
+            existingFiles.put(username + "/" + filePath, true);
+            return true;
+        } else {
+            if (status == 404) {
+                existingFiles.remove(username + "/" + filePath);
+            } // if
+            
+            return false;
+        } // if else
     } // exists
     
     /**
@@ -248,7 +294,7 @@ public class HDFSBackendImpl extends HDFSBackend {
             } // for
         } // if
 
-        logger.debug("HDFS request: " + request.toString());
+        CygnusLogger.debug(logger, "HDFS request: {}", request);
 
         try {
             response = httpClient.execute(request);
@@ -257,7 +303,7 @@ public class HDFSBackendImpl extends HDFSBackend {
         } // try catch
 
         request.releaseConnection();
-        logger.debug("HDFS response: " + response.getStatusLine().toString());
+        CygnusLogger.debug(logger, "HDFS response: {}", response.getStatusLine());
         return response;
     } // doHDFSRequest
     
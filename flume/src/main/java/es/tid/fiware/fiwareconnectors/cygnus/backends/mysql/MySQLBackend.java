@@ -19,18 +19,23 @@
 
 package es.tid.fiware.fiwareconnectors.cygnus.backends.mysql;
 
-import es.tid.fiware.fiwareconnectors.cygnus.errors.CygnusBadContextData;
 import es.tid.fiware.fiwareconnectors.cygnus.errors.CygnusPersistenceError;
 import es.tid.fiware.fiwareconnectors.cygnus.errors.CygnusRuntimeError;
+import es.tid.fiware.fiwareconnectors.cygnus.log.CygnusLogger;
+import java.sql.BatchUpdateException;
 import java.sql.Statement;
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import org.apache.log4j.Logger;
 import es.tid.fiware.fiwareconnectors.cygnus.utils.Constants;
-import java.sql.SQLTimeoutException;
 
 /**
  *
@@ -38,14 +43,28 @@ import java.sql.SQLTimeoutException;
  * 
  * MySQL related operations (database and table creation, context data insertion) when dealing with a MySQL
  * persistence backend.
+ * 
+ * Context data is inserted by means of prepared statements. The rows to be inserted can be buffered, being grouped per
+ * database, table and column list, and then inserted in a JDBC batch per group; this batch is rewritten by the MySQL
+ * driver as a single multi-row insert. The buffer is only flushed explicitly; the callers are told when the number of
+ * buffered rows reaches the maximum batch size, thus they can flush it and know which data was inserted.
+ * 
+ * The connections to the MySQL server are borrowed from a pool, keyed by database name, and released once the
+ * operation finishes, thus they are reused across operations instead of being opened and closed each time.
+ * 
+ * The databases and tables already created are cached, thus they are not created again until the cache entry expires
+ * or an insertion reveals they do not exist anymore.
  */
 public class MySQLBackend {
     
-    private static String driverName = "com.mysql.jdbc.Driver";
-    private String mysqlHost;
-    private String mysqlPort;
-    private String mysqlUsername;
-    private String mysqlPassword;
+    private static final int ER_BAD_DB_ERROR = 1049;
+    private static final int ER_NO_SUCH_TABLE = 1146;
+    private MySQLConnectionPool pool;
+    private int insertBatchSize;
+    private LinkedHashMap<String, InsertBatch> insertBatches;
+    private int numBufferedRows;
+    private long schemaCacheTTL;
+    private HashMap<String, Long> knownSchemas;
     private Logger logger;
     
     /**
@@ -56,19 +75,82 @@ public class MySQLBackend {
      * @param mysqlPassword
      */
     public MySQLBackend(String mysqlHost, String mysqlPort, String mysqlUsername, String mysqlPassword) {
-        this.mysqlHost = mysqlHost;
-        this.mysqlPort = mysqlPort;
-        this.mysqlUsername = mysqlUsername;
-        this.mysqlPassword = mysqlPassword;
+        this(mysqlHost, mysqlPort, mysqlUsername, mysqlPassword, Constants.MYSQL_INSERT_BATCH_SIZE);
+    } // MySQLBackend
+    
+    /**
+     * Constructor.
+     * @param mysqlHost
+     * @param mysqlPort
+     * @param mysqlUsername
+     * @param mysqlPassword
+     * @param insertBatchSize Maximum number of buffered rows before flushing them
+     */
+    public MySQLBackend(String mysqlHost, String mysqlPort, String mysqlUsername, String mysqlPassword,
+            int insertBatchSize) {
+        this(new MySQLConnectionPool(mysqlHost, mysqlPort, mysqlUsername, mysqlPassword), insertBatchSize,
+                Constants.MYSQL_SCHEMA_CACHE_TTL);
+    } // MySQLBackend
+    
+    /**
+     * Constructor.
+     * @param pool Pool the connections to the MySQL server are borrowed from
+     * @param insertBatchSize Maximum number of buffered rows before flushing them
+     * @param schemaCacheTTL Maximum number of milliseconds a database or table is known to exist before creating it
+     * again, 0 if never expiring
+     */
+    public MySQLBackend(MySQLConnectionPool pool, int insertBatchSize, long schemaCacheTTL) {
+        this.pool = pool;
+        this.insertBatchSize = insertBatchSize;
+        this.schemaCacheTTL = schemaCacheTTL;
+        insertBatches = new LinkedHashMap<String, InsertBatch>();
+        numBufferedRows = 0;
+        knownSchemas = new HashMap<String, Long>();
         logger = Logger.getLogger(MySQLBackend.class);
     } // MySQLBackend
     
     /**
-     * Creates a database, given its name, if not exists.
+     * Gets the number of buffered rows. It is protected due to it is only required for testing purposes.
+     * @return The number of buffered rows
+     */
+    protected int getNumBufferedRows() {
+        return numBufferedRows;
+    } // getNumBufferedRows
+    
+    /**
+     * Gets the number of buffered insert batches, i.e. the number of insert statements that will be executed when
+     * flushing. It is protected due to it is only required for testing purposes.
+     * @return The number of buffered insert batches
+     */
+    protected int getNumInsertBatches() {
+        return insertBatches.size();
+    } // getNumInsertBatches
+    
+    /**
+     * Gets the connection pool. It is protected due to it is only required for testing purposes.
+     * @return The connection pool
+     */
+    protected MySQLConnectionPool getPool() {
+        return pool;
+    } // getPool
+    
+    /**
+     * Closes all the idle connections to the MySQL server.
+     */
+    public void close() {
+        pool.close();
+    } // close
+    
+    /**
+     * Creates a database, given its name, if not exists. Nothing is done if the database is known to exist.
      * @param dbName
      * @throws Exception
      */
     public void createDatabase(String dbName) throws Exception {
+        if (isKnownSchema(dbName)) {
+            return;
+        } // if
+        
         Statement stmt = null;
         
         // get a connection to an empty database
@@ -76,40 +158,45 @@ public class MySQLBackend {
         
         try {
             stmt = con.createStatement();
-        } catch (Exception e) {
-            throw new CygnusRuntimeError(e.getMessage());
-        } // try catch
-        
-        try {
             String query = "create database if not exists " + dbName;
-            logger.debug("Executing MySQL query (" + query + ")");
+            CygnusLogger.debug(logger, "Executing MySQL query ({})", query);
             stmt.executeUpdate(query);
         } catch (Exception e) {
             throw new CygnusRuntimeError(e.getMessage());
-        } // try catch
+        } finally {
+            closeMySQLObjects("", con, stmt);
+        } // try catch finally
         
-        closeMySQLObjects(con, stmt);
+        addKnownSchema(dbName);
     } // createDatabase
     
     /**
-     * Creates a table, given its name, if not exists in the given database.
+     * Creates a table, given its name, if not exists in the given database. Nothing is done if the table is known to
+     * exist. If the database is known to exist but it cannot be connected, it is forgotten and the creation fails, so
+     * that it is created again when retrying.
      * @param dbName
      * @param tableName
      * @throws Exception
      */
     public void createTable(String dbName, String tableName) throws Exception {
+        if (isKnownSchema(dbName + "." + tableName)) {
+            return;
+        } // if
+        
         Statement stmt = null;
+        Connection con;
         
         // get a connection to the given database
-        Connection con = getConnection(dbName);
-        
         try {
-            stmt = con.createStatement();
-        } catch (Exception e) {
-            throw new CygnusRuntimeError(e.getMessage());
+            con = getConnection(dbName);
+        } catch (CygnusPersistenceError e) {
+            // the database may not exist anymore
+            removeKnownSchema(dbName);
+            throw e;
         } // try catch
         
         try {
+            stmt = con.createStatement();
             String query = "create table if not exists " + tableName + " ("
                     + Constants.RECV_TIME_TS + " long, "
                     + Constants.RECV_TIME + " text, "
@@ -119,17 +206,27 @@ public class MySQLBackend {
                     + Constants.ATTR_TYPE + " text, "
                     + Constants.ATTR_VALUE + " text, "
                     + Constants.ATTR_MD + " text)";
-            logger.debug("Executing MySQL query (" + query + ")");
+            CygnusLogger.debug(logger, "Executing MySQL query ({})", query);
             stmt.executeUpdate(query);
+        } catch (SQLException e) {
+            if (e.getErrorCode() == ER_BAD_DB_ERROR) {
+                removeKnownSchema(dbName);
+                throw new CygnusPersistenceError(e.getMessage());
+            } // if
+            
+            throw new CygnusRuntimeError(e.getMessage());
         } catch (Exception e) {
             throw new CygnusRuntimeError(e.getMessage());
-        } // try catch
+        } finally {
+            closeMySQLObjects(dbName, con, stmt);
+        } // try catch finally
         
-        closeMySQLObjects(con, stmt);
+        addKnownSchema(dbName + "." + tableName);
     } // createTable
     
     /**
-     * Inserts a new row in the given table within the given database representing a unique attribute change.
+     * Inserts a new row in the given table within the given database representing a unique attribute change. Any other
+     * buffered row is inserted as well.
      * @param dbName
      * @param tableName
      * @param recvTimeTs
@@ -142,36 +239,17 @@ public class MySQLBackend {
      * @param attrMd
      * @throws Exception
      */
-    public void insertContextData(String dbName, String tableName, long recvTimeTs, String recvTime, String entityId,
-            String entityType, String attrName, String attrType, String attrValue, String attrMd) throws Exception {
-        Statement stmt = null;
-        
-        // get a connection to the given database
-        Connection con = getConnection(dbName);
-            
-        try {
-            stmt = con.createStatement();
-        } catch (Exception e) {
-            throw new CygnusRuntimeError(e.getMessage());
-        } // try catch
-        
-        try {
-            String query = "insert into " + tableName + " values ('" + recvTimeTs + "', '" + recvTime + "', '"
-                    + entityId + "', '" + entityType + "', '" + attrName + "', '" + attrType + "', '" + attrValue
-                    + "', '" + attrMd + "')";
-            logger.debug("Executing MySQL query (" + query + ")");
-            stmt.executeUpdate(query);
-        } catch (SQLTimeoutException e) {
-            throw new CygnusPersistenceError(e.getMessage());
-        } catch (SQLException e) {
-            throw new CygnusBadContextData(e.getMessage());
-        } // try catch
-        
-        closeMySQLObjects(con, stmt);
+    public synchronized void insertContextData(String dbName, String tableName, long recvTimeTs, String recvTime,
+            String entityId, String entityType, String attrName, String attrType, String attrValue, String attrMd)
+        throws Exception {
+        addContextData(dbName, tableName, recvTimeTs, recvTime, entityId, entityType, attrName, attrType, attrValue,
+                attrMd);
+        flush();
     } // insertContextData
     
     /**
-     * Inserts a new row in the given table within the given database representing full attribute list changes.
+     * Inserts a new row in the given table within the given database representing full attribute list changes. Any
+     * other buffered row is inserted as well.
      * @param dbName
      * @param tableName
      * @param recvTime
@@ -179,104 +257,412 @@ public class MySQLBackend {
      * @param mds
      * @throws Exception
      */
-    public void insertContextData(String dbName, String tableName, String recvTime,
+    public synchronized void insertContextData(String dbName, String tableName, String recvTime,
             Map<String, String> attrs, Map<String, String> mds) throws Exception {
-        Statement stmt = null;
-        String columnNames = null;
-        String columnValues = null;
-        
-        // get a connection to the MySQL server and get a statement
-        Connection con = getConnection(dbName);
-        
-        try {
-            
-            stmt = con.createStatement();
-
-            // for query building purposes
-            columnNames = Constants.RECV_TIME;
-            columnValues = "'" + recvTime + "'";
+        addContextData(dbName, tableName, recvTime, attrs, mds);
+        flush();
+    } // insertContextData
+    
+    /**
+     * Buffers a new row to be inserted in the given table within the given database representing a unique attribute
+     * change.
+     * @param dbName
+     * @param tableName
+     * @param recvTimeTs
+     * @param recvTime
+     * @param entityId
+     * @param entityType
+     * @param attrName
+     * @param attrType
+     * @param attrValue
+     * @param attrMd
+     * @throws Exception
+     */
+    public synchronized void addContextData(String dbName, String tableName, long recvTimeTs, String recvTime,
+            String entityId, String entityType, String attrName, String attrType, String attrValue, String attrMd)
+        throws Exception {
+        String query = "insert into " + tableName + " values (?, ?, ?, ?, ?, ?, ?, ?)";
+        addRow(dbName, tableName, query, new Object[] {recvTimeTs, recvTime, entityId, entityType, attrName, attrType,
+            attrValue, attrMd});
+    } // addContextData
+    
+    /**
+     * Buffers a new row to be inserted in the given table within the given database representing full attribute list
+     * changes.
+     * @param dbName
+     * @param tableName
+     * @param recvTime
+     * @param attrs
+     * @param mds
+     * @throws Exception
+     */
+    public synchronized void addContextData(String dbName, String tableName, String recvTime,
+            Map<String, String> attrs, Map<String, String> mds) throws Exception {
+        // for query building purposes; the column names cannot be parameterized, but the values can
+        String columnNames = Constants.RECV_TIME;
+        String placeholders = "?";
+        Object[] values = new Object[1 + attrs.size() + mds.size()];
+        values[0] = recvTime;
+        int i = 1;
 
-            // iterate on the attrs in order to build the query
-            Iterator it = attrs.keySet().iterator();
+        // iterate on the attrs in order to build the query
+        Iterator it = attrs.keySet().iterator();
 
-            while (it.hasNext()) {
-                String attrName = (String) it.next();
-                columnNames += "," + attrName;
-                String attrValue = attrs.get(attrName);
-                columnValues += ",'" + attrValue + "'";
-            } // while
+        while (it.hasNext()) {
+            String attrName = (String) it.next();
+            columnNames += "," + attrName;
+            placeholders += ",?";
+            values[i++] = attrs.get(attrName);
+        } // while
 
-            // iterate on the mds in order to build the query
-            it = mds.keySet().iterator();
+        // iterate on the mds in order to build the query
+        it = mds.keySet().iterator();
 
-            while (it.hasNext()) {
-                String attrMdName = (String) it.next();
-                columnNames += "," + attrMdName;
-                String md = mds.get(attrMdName);
-                columnValues += ",'" + md + "'";
-            } // while
+        while (it.hasNext()) {
+            String attrMdName = (String) it.next();
+            columnNames += "," + attrMdName;
+            placeholders += ",?";
+            values[i++] = mds.get(attrMdName);
+        } // while
+        
+        String query = "insert into " + tableName + " (" + columnNames + ") values (" + placeholders + ")";
+        addRow(dbName, tableName, query, values);
+    } // addContextData
+    
+    /**
+     * Checks if the number of buffered rows has reached the maximum batch size, thus the buffer should be flushed.
+     * @return True if the buffer should be flushed, false otherwise
+     */
+    public synchronized boolean isFlushRequired() {
+        return numBufferedRows >= insertBatchSize;
+    } // isFlushRequired
+    
+    /**
+     * Inserts all the buffered rows, a JDBC batch per database, table and column list. The buffer is emptied even if
+     * the insertion fails, since the rows are expected to be re-injected by the caller.
+     * @throws Exception
+     */
+    public synchronized void flush() throws Exception {
+        if (insertBatches.isEmpty()) {
+            return;
+        } // if
+        
+        CygnusLogger.debug(logger, "Flushing buffered MySQL rows (numRows={}, numBatches={})", numBufferedRows,
+                insertBatches.size());
+        ArrayList<InsertBatch> batches = new ArrayList<InsertBatch>(insertBatches.values());
+        insertBatches.clear();
+        numBufferedRows = 0;
+        
+        for (InsertBatch batch : batches) {
+            executeBatch(batch);
+        } // for
+    } // flush
+    
+    /**
+     * Buffers a row for a given database and insert query.
+     * @param dbName
+     * @param tableName
+     * @param query
+     * @param values
+     * @throws Exception
+     */
+    private void addRow(String dbName, String tableName, String query, Object[] values) throws Exception {
+        String key = dbName + "/" + query;
+        InsertBatch batch = insertBatches.get(key);
+        
+        if (batch == null) {
+            batch = new InsertBatch(dbName, tableName, query);
+            insertBatches.put(key, batch);
+        } // if
+        
+        batch.getRows().add(values);
+        numBufferedRows++;
+    } // addRow
+    
+    /**
+     * Executes an insert batch. If the batch is rejected by the MySQL server due to bad data, the rows not applied yet
+     * are inserted one by one so that only the bad rows are discarded. If the batch fails due to a connection or
+     * transient error, or because a database or table known to exist does not exist anymore (which is forgotten, so
+     * that it is created again), the insertion fails in order to be retried.
+     * @param batch
+     * @throws Exception
+     */
+    private void executeBatch(InsertBatch batch) throws Exception {
+        PreparedStatement stmt = null;
+        Connection con;
+        
+        // get a connection to the given database
+        try {
+            con = getConnection(batch.getDbName());
+        } catch (CygnusPersistenceError e) {
+            // the database may not exist anymore
+            removeKnownSchema(batch.getDbName());
+            throw e;
+        } // try catch
+        
+        try {
+            stmt = con.prepareStatement(batch.getQuery());
         } catch (Exception e) {
+            closeMySQLObjects(batch.getDbName(), con, stmt);
             throw new CygnusRuntimeError(e.getMessage());
         } // try catch
-                
+        
         try {
-            // finish creating the query and execute it
-            String query = "insert into " + tableName + " (" + columnNames + ") values (" + columnValues + ")";
-            logger.debug("Executing MySQL query (" + query + ")");
-            stmt.executeUpdate(query);
-        } catch (SQLTimeoutException e) {
-            throw new CygnusPersistenceError(e.getMessage());
+            CygnusLogger.debug(logger, "Executing MySQL query ({}, numRows={})", batch.getQuery(),
+                    batch.getRows().size());
+            
+            for (Object[] row : batch.getRows()) {
+                setParameters(stmt, row);
+                stmt.addBatch();
+            } // for
+            
+            stmt.executeBatch();
         } catch (SQLException e) {
-            throw new CygnusBadContextData(e.getMessage());
-        } // try catch
+            checkRetriable(e, batch);
+            
+            // only the rows not applied by the batch are inserted again, thus they are not duplicated
+            ArrayList<Object[]> pendingRows = getNotAppliedRows(e, batch);
+            
+            if (batch.getRows().size() == 1) {
+                logger.warn("Bad context data (" + e.getMessage() + ")");
+            } else if (!pendingRows.isEmpty()) {
+                CygnusLogger.debug(logger, "The batch was rejected, inserting the rows one by one (numRows={}, "
+                        + "details={})", pendingRows.size(), e.getMessage());
+                
+                try {
+                    stmt.clearBatch();
+                } catch (SQLException e2) {
+                    CygnusLogger.debug(logger, "The batch could not be cleared ({})", e2.getMessage());
+                } // try catch
+                
+                executeRows(stmt, batch, pendingRows);
+            } // if else if
+        } finally {
+            closeMySQLObjects(batch.getDbName(), con, stmt);
+        } // try catch finally
+    } // executeBatch
+    
+    /**
+     * Executes the given rows of an insert batch one by one, discarding those ones regarding bad data.
+     * @param stmt
+     * @param batch
+     * @param rows
+     * @throws Exception
+     */
+    private void executeRows(PreparedStatement stmt, InsertBatch batch, ArrayList<Object[]> rows) throws Exception {
+        for (Object[] row : rows) {
+            try {
+                setParameters(stmt, row);
+                stmt.executeUpdate();
+            } catch (SQLException e) {
+                checkRetriable(e, batch);
+                logger.warn("Bad context data (" + e.getMessage() + ")");
+            } // try catch
+        } // for
+    } // executeRows
+    
+    /**
+     * Checks if an insertion error is not due to bad data, i.e. it is due to a connection or transient error, or to a
+     * database or table known to exist which does not exist anymore (thus it is forgotten). In that case the insertion
+     * must be retried and a persistence error is thrown.
+     * @param e
+     * @param batch
+     * @throws CygnusPersistenceError
+     */
+    private void checkRetriable(SQLException e, InsertBatch batch) throws CygnusPersistenceError {
+        if (isTransient(e) || (e.getCause() instanceof SQLException && isTransient((SQLException) e.getCause()))) {
+            throw new CygnusPersistenceError(e.getMessage());
+        } // if
         
-        closeMySQLObjects(con, stmt);
-    } // insertContextData
+        if ((e.getErrorCode() == ER_NO_SUCH_TABLE || e.getErrorCode() == ER_BAD_DB_ERROR)
+                && removeKnownSchema(batch.getDbName(), batch.getTableName())) {
+            throw new CygnusPersistenceError(e.getMessage());
+        } // if
+    } // checkRetriable
+    
+    /**
+     * Checks if an SQL error is a connection or transient one (e.g. a timeout, a deadlock or a lost connection), thus
+     * the same statement may succeed if retried.
+     * @param e
+     * @return True if the SQL error is a connection or transient one, false otherwise
+     */
+    private boolean isTransient(SQLException e) {
+        String sqlState = e.getSQLState();
+        return e instanceof SQLRecoverableException || e instanceof SQLTransientException
+                || (sqlState != null && sqlState.startsWith("08"));
+    } // isTransient
+    
+    /**
+     * Gets the rows of a failed insert batch which were not applied. The update counts of a batch update error tell
+     * which rows were applied before the failure (or despite it); if not available, no row is considered applied.
+     * @param e
+     * @param batch
+     * @return The rows of the insert batch which were not applied
+     */
+    private ArrayList<Object[]> getNotAppliedRows(SQLException e, InsertBatch batch) {
+        int[] updateCounts = null;
+        
+        if (e instanceof BatchUpdateException) {
+            updateCounts = ((BatchUpdateException) e).getUpdateCounts();
+        } // if
+        
+        if (updateCounts == null) {
+            return batch.getRows();
+        } // if
+        
+        ArrayList<Object[]> notApplied = new ArrayList<Object[]>();
+        
+        for (int i = 0; i < batch.getRows().size(); i++) {
+            if (i >= updateCounts.length || updateCounts[i] == Statement.EXECUTE_FAILED) {
+                notApplied.add(batch.getRows().get(i));
+            } // if
+        } // for
+        
+        return notApplied;
+    } // getNotAppliedRows
+    
+    /**
+     * Sets the parameters of a prepared statement.
+     * @param stmt
+     * @param values
+     * @throws SQLException
+     */
+    private void setParameters(PreparedStatement stmt, Object[] values) throws SQLException {
+        for (int i = 0; i < values.length; i++) {
+            stmt.setObject(i + 1, values[i]);
+        } // for
+    } // setParameters
+    
+    /**
+     * Checks if a database or table, given its name ('dbName' or 'dbName.tableName'), is known to exist, i.e. it was
+     * created and its cache entry has not expired.
+     * @param schemaName
+     * @return True if the database or table is known to exist, false otherwise
+     */
+    private synchronized boolean isKnownSchema(String schemaName) {
+        Long creationTime = knownSchemas.get(schemaName);
+        
+        if (creationTime == null) {
+            return false;
+        } // if
+        
+        if (schemaCacheTTL > 0 && System.currentTimeMillis() - creationTime > schemaCacheTTL) {
+            knownSchemas.remove(schemaName);
+            return false;
+        } // if
+        
+        return true;
+    } // isKnownSchema
+    
+    /**
+     * Adds a database or table, given its name ('dbName' or 'dbName.tableName'), to the known ones.
+     * @param schemaName
+     */
+    private synchronized void addKnownSchema(String schemaName) {
+        knownSchemas.put(schemaName, System.currentTimeMillis());
+    } // addKnownSchema
+    
+    /**
+     * Removes a database, and all its tables, from the known ones.
+     * @param dbName
+     */
+    private synchronized void removeKnownSchema(String dbName) {
+        Iterator<String> it = knownSchemas.keySet().iterator();
+        
+        while (it.hasNext()) {
+            String schemaName = it.next();
+            
+            if (schemaName.equals(dbName) || schemaName.startsWith(dbName + ".")) {
+                it.remove();
+            } // if
+        } // while
+    } // removeKnownSchema
     
     /**
-     * Gets a connection to the MySQL server.
-     * @return
+     * Removes a table, and the database it belongs to, from the known ones.
+     * @param dbName
+     * @param tableName
+     * @return True if the table was known to exist, false otherwise
+     */
+    private synchronized boolean removeKnownSchema(String dbName, String tableName) {
+        boolean known = knownSchemas.remove(dbName + "." + tableName) != null;
+        knownSchemas.remove(dbName);
+        
+        if (known) {
+            CygnusLogger.debug(logger, "A known MySQL table does not exist anymore ({}.{})", dbName, tableName);
+        } // if
+        
+        return known;
+    } // removeKnownSchema
+    
+    /**
+     * Gets a connection to the given database, borrowed from the connection pool.
+     * @param dbName
+     * @return A connection to the given database
      * @throws Exception
      */
     private Connection getConnection(String dbName) throws Exception {
-        try {
-            // dynamically load the MySQL JDBC driver
-            Class.forName(driverName);
-
-            // return a connection based on the MySQL JDBC driver
-            logger.debug("Connecting to jdbc:mysql://" + mysqlHost + ":" + mysqlPort + "/" + dbName + "?user="
-                    + mysqlUsername + "&password=XXXXXXXXXX");
-            return DriverManager.getConnection("jdbc:mysql://" + mysqlHost + ":" + mysqlPort + "/" + dbName,
-                    mysqlUsername, mysqlPassword);
-        } catch (Exception e) {
-            throw new CygnusPersistenceError(e.getMessage());
-        } // try catch
+        return pool.borrowConnection(dbName);
     } // getConnection
     
     /**
-     * Close all the MySQL objects previously opened by doCreateTable and doQuery.
+     * Closes the given statement and releases the given connection to the connection pool. A connection no longer valid
+     * will be discarded by the pool next time it is borrowed.
+     * @param dbName
      * @param con
      * @param stmt
-     * @return True if the MySQL objects have been closed, false otherwise.
      */
-    private void closeMySQLObjects(Connection con, Statement stmt) throws Exception {
-        if (con != null) {
-            try {
-                con.close();
-            } catch (SQLException e) {
-                throw new CygnusRuntimeError("The Hive connection could not be closed. Details="
-                        + e.getMessage());
-            } // try catch
-        } // if
-
+    private void closeMySQLObjects(String dbName, Connection con, Statement stmt) {
         if (stmt != null) {
             try {
                 stmt.close();
             } catch (SQLException e) {
-                throw new CygnusRuntimeError("The Hive statement could not be closed. Details="
-                        + e.getMessage());
+                CygnusLogger.debug(logger, "The MySQL statement could not be closed ({})", e.getMessage());
             } // try catch
         } // if
+        
+        pool.releaseConnection(dbName, con);
     } // closeMySQLObjects
-    
+
+    /**
+     * Rows to be inserted in the same database by means of the same insert query.
+     */
+    private class InsertBatch {
+
+        private String dbName;
+        private String tableName;
+        private String query;
+        private ArrayList<Object[]> rows;
+
+        /**
+         * Constructor.
+         * @param dbName
+         * @param tableName
+         * @param query
+         */
+        public InsertBatch(String dbName, String tableName, String query) {
+            this.dbName = dbName;
+            this.tableName = tableName;
+            this.query = query;
+            rows = new ArrayList<Object[]>();
+        } // InsertBatch
+
+        public String getDbName() {
+            return dbName;
+        } // getDbName
+
+        public String getTableName() {
+            return tableName;
+        } // getTableName
+
+        public String getQuery() {
+            return query;
+        } // getQuery
+
+        public ArrayList<Object[]> getRows() {
+            return rows;
+        } // getRows
+
+    } // InsertBatch
+
 } // MySQLBackend
\ No newline at end of file
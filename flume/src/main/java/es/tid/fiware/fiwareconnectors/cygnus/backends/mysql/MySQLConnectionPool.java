@@ -0,0 +1,444 @@
+/**
+ * Copyright 2014 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-connectors (FI-WARE project).
+ *
+ * fiware-connectors is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-connectors is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-connectors. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with Francisco Romero
+ * francisco.romerobueno@telefonica.com
+ */
+
+package es.tid.fiware.fiwareconnectors.cygnus.backends.mysql;
+
+import es.tid.fiware.fiwareconnectors.cygnus.errors.CygnusPersistenceError;
+import es.tid.fiware.fiwareconnectors.cygnus.utils.Constants;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import org.apache.log4j.Logger;
+
+/**
+ *
+ * @author frb
+ *
+ * Pool of long-lived connections to a MySQL server, keyed by database name. Each database has its own set of
+ * connections, whose size is bounded by the maximum pool size; when all of them are in use, the borrowers wait for a
+ * connection to be released up to a maximum wait time. Idle connections are validated before being borrowed, and
+ * closed once they have been idle for more than the maximum idle time. The connections are validated and created out
+ * of the pool lock, thus a slow MySQL server does not block the borrowers and releasers of other databases.
+ */
+public class MySQLConnectionPool {
+
+    private static final String DRIVER_NAME = "com.mysql.jdbc.Driver";
+    private static final int VALIDATION_TIMEOUT = 2; // seconds
+    private String mysqlHost;
+    private String mysqlPort;
+    private String mysqlUsername;
+    private String mysqlPassword;
+    private int maxPoolSize;
+    private long maxIdleTime;
+    private long maxWaitTime;
+    private HashMap<String, LinkedList<IdleConnection>> idleConnections;
+    private HashMap<String, Integer> numOpenConnections;
+    private long numCreated;
+    private long numBorrowed;
+    private long numReused;
+    private long numEvicted;
+    private long numInvalidated;
+    private long numWaits;
+    private boolean closed;
+    private Logger logger;
+
+    /**
+     * Constructor.
+     * @param mysqlHost
+     * @param mysqlPort
+     * @param mysqlUsername
+     * @param mysqlPassword
+     */
+    public MySQLConnectionPool(String mysqlHost, String mysqlPort, String mysqlUsername, String mysqlPassword) {
+        this(mysqlHost, mysqlPort, mysqlUsername, mysqlPassword, Constants.MYSQL_POOL_MAX_SIZE,
+                Constants.MYSQL_POOL_MAX_IDLE_TIME, Constants.MYSQL_POOL_MAX_WAIT_TIME);
+    } // MySQLConnectionPool
+
+    /**
+     * Constructor.
+     * @param mysqlHost
+     * @param mysqlPort
+     * @param mysqlUsername
+     * @param mysqlPassword
+     * @param maxPoolSize Maximum number of open connections per database
+     * @param maxIdleTime Maximum number of milliseconds a connection is idle before closing it
+     * @param maxWaitTime Maximum number of milliseconds waiting for a connection to be released
+     */
+    public MySQLConnectionPool(String mysqlHost, String mysqlPort, String mysqlUsername, String mysqlPassword,
+            int maxPoolSize, long maxIdleTime, long maxWaitTime) {
+        this.mysqlHost = mysqlHost;
+        this.mysqlPort = mysqlPort;
+        this.mysqlUsername = mysqlUsername;
+        this.mysqlPassword = mysqlPassword;
+        this.maxPoolSize = maxPoolSize;
+        this.maxIdleTime = maxIdleTime;
+        this.maxWaitTime = maxWaitTime;
+        idleConnections = new HashMap<String, LinkedList<IdleConnection>>();
+        numOpenConnections = new HashMap<String, Integer>();
+        closed = false;
+        logger = Logger.getLogger(MySQLConnectionPool.class);
+    } // MySQLConnectionPool
+
+    /**
+     * Borrows a connection to the given database. The most recently released idle connection is reused if it is still
+     * valid; otherwise a new connection is created if the maximum pool size has not been reached, or the caller waits
+     * for a connection to be released. No connection is borrowed once the pool has been closed.
+     * @param dbName
+     * @return A connection to the given database
+     * @throws Exception
+     */
+    public Connection borrowConnection(String dbName) throws Exception {
+        evictIdleConnections();
+        long deadline = System.currentTimeMillis() + maxWaitTime;
+
+        while (true) {
+            Connection idleCon = null;
+
+            // take an idle connection, or reserve room for a new one, within the lock
+            synchronized (this) {
+                if (closed) {
+                    throw new CygnusPersistenceError("The MySQL connection pool is closed (dbName=" + dbName + ")");
+                } // if
+
+                LinkedList<IdleConnection> idle = idleConnections.get(dbName);
+
+                if (idle != null && !idle.isEmpty()) {
+                    idleCon = idle.removeLast().getConnection();
+                } else if (getNumOpenConnections(dbName) < maxPoolSize) {
+                    numOpenConnections.put(dbName, getNumOpenConnections(dbName) + 1);
+                } else {
+                    long remaining = deadline - System.currentTimeMillis();
+
+                    if (remaining <= 0) {
+                        throw new CygnusPersistenceError("No MySQL connection was released after waiting "
+                                + maxWaitTime + " ms (dbName=" + dbName + ", maxPoolSize=" + maxPoolSize + ")");
+                    } // if
+
+                    numWaits++;
+                    wait(remaining);
+                    continue;
+                } // if else if else
+            } // synchronized
+
+            // then validate or create it out of the lock
+            if (idleCon != null) {
+                if (isValid(idleCon)) {
+                    synchronized (this) {
+                        numBorrowed++;
+                        numReused++;
+                    } // synchronized
+
+                    return idleCon;
+                } // if
+
+                logger.debug("Discarding a not valid MySQL connection (dbName=" + dbName + ")");
+
+                synchronized (this) {
+                    forgetConnection(dbName);
+                    numInvalidated++;
+                } // synchronized
+
+                closeQuietly(dbName, idleCon);
+                continue;
+            } // if
+
+            Connection con;
+
+            try {
+                con = createConnection(dbName);
+            } catch (Exception e) {
+                synchronized (this) {
+                    forgetConnection(dbName);
+                } // synchronized
+
+                throw e;
+            } // try catch
+
+            synchronized (this) {
+                numCreated++;
+                numBorrowed++;
+            } // synchronized
+
+            return con;
+        } // while
+    } // borrowConnection
+
+    /**
+     * Releases a connection previously borrowed for the given database, making it available for other borrowers.
+     * @param dbName
+     * @param con
+     */
+    public synchronized void releaseConnection(String dbName, Connection con) {
+        if (con == null) {
+            return;
+        } // if
+
+        if (closed) {
+            closeConnection(dbName, con);
+            return;
+        } // if
+
+        LinkedList<IdleConnection> idle = idleConnections.get(dbName);
+
+        if (idle == null) {
+            idle = new LinkedList<IdleConnection>();
+            idleConnections.put(dbName, idle);
+        } // if
+
+        idle.addLast(new IdleConnection(con, System.currentTimeMillis()));
+        notifyAll();
+    } // releaseConnection
+
+    /**
+     * Closes the connections to all the databases that have been idle for more than the maximum idle time.
+     */
+    public synchronized void evictIdleConnections() {
+        long now = System.currentTimeMillis();
+
+        for (Map.Entry<String, LinkedList<IdleConnection>> entry : idleConnections.entrySet()) {
+            // the idle connections are ordered by release time, thus the oldest ones are at the beginning
+            Iterator<IdleConnection> it = entry.getValue().iterator();
+
+            while (it.hasNext()) {
+                IdleConnection idleConnection = it.next();
+
+                if (now - idleConnection.getReleaseTime() <= maxIdleTime) {
+                    break;
+                } // if
+
+                it.remove();
+                logger.debug("Evicting an idle MySQL connection (dbName=" + entry.getKey() + ")");
+                closeConnection(entry.getKey(), idleConnection.getConnection());
+                numEvicted++;
+            } // while
+        } // for
+    } // evictIdleConnections
+
+    /**
+     * Closes all the idle connections. The connections currently borrowed are closed once they are released.
+     */
+    public synchronized void close() {
+        for (Map.Entry<String, LinkedList<IdleConnection>> entry : idleConnections.entrySet()) {
+            for (IdleConnection idleConnection : entry.getValue()) {
+                closeConnection(entry.getKey(), idleConnection.getConnection());
+            } // for
+        } // for
+
+        idleConnections.clear();
+        closed = true;
+        logger.info("MySQL connection pool closed (" + getStats() + ")");
+    } // close
+
+    /**
+     * Gets the number of connections created so far.
+     * @return The number of connections created so far
+     */
+    public synchronized long getNumCreated() {
+        return numCreated;
+    } // getNumCreated
+
+    /**
+     * Gets the number of connections borrowed so far, either created or reused.
+     * @return The number of connections borrowed so far
+     */
+    public synchronized long getNumBorrowed() {
+        return numBorrowed;
+    } // getNumBorrowed
+
+    /**
+     * Gets the number of idle connections reused so far.
+     * @return The number of idle connections reused so far
+     */
+    public synchronized long getNumReused() {
+        return numReused;
+    } // getNumReused
+
+    /**
+     * Gets the number of connections closed so far due to they were idle for too long.
+     * @return The number of connections closed so far due to they were idle for too long
+     */
+    public synchronized long getNumEvicted() {
+        return numEvicted;
+    } // getNumEvicted
+
+    /**
+     * Gets the number of connections discarded so far due to they were not valid anymore.
+     * @return The number of connections discarded so far due to they were not valid anymore
+     */
+    public synchronized long getNumInvalidated() {
+        return numInvalidated;
+    } // getNumInvalidated
+
+    /**
+     * Gets the number of times a borrower had to wait for a connection to be released.
+     * @return The number of times a borrower had to wait for a connection to be released
+     */
+    public synchronized long getNumWaits() {
+        return numWaits;
+    } // getNumWaits
+
+    /**
+     * Gets the number of idle connections, for all the databases.
+     * @return The number of idle connections
+     */
+    public synchronized int getNumIdle() {
+        int numIdle = 0;
+
+        for (LinkedList<IdleConnection> idle : idleConnections.values()) {
+            numIdle += idle.size();
+        } // for
+
+        return numIdle;
+    } // getNumIdle
+
+    /**
+     * Gets the number of borrowed connections, for all the databases.
+     * @return The number of borrowed connections
+     */
+    public synchronized int getNumActive() {
+        int numOpen = 0;
+
+        for (Integer num : numOpenConnections.values()) {
+            numOpen += num;
+        } // for
+
+        return numOpen - getNumIdle();
+    } // getNumActive
+
+    /**
+     * Gets a summary of the pool metrics, suitable for logging purposes.
+     * @return A summary of the pool metrics
+     */
+    public synchronized String getStats() {
+        return "active=" + getNumActive() + ", idle=" + getNumIdle() + ", created=" + numCreated + ", borrowed="
+                + numBorrowed + ", reused=" + numReused + ", evicted=" + numEvicted + ", invalidated="
+                + numInvalidated + ", waits=" + numWaits;
+    } // getStats
+
+    /**
+     * Creates a new connection to the given database. The driver is asked for rewriting the JDBC batches as multi-row
+     * inserts. It is protected in order it can be overridden for testing purposes.
+     * @param dbName
+     * @return A new connection to the given database
+     * @throws Exception
+     */
+    protected Connection createConnection(String dbName) throws Exception {
+        try {
+            // the MySQL JDBC driver is loaded only once, the following calls have no effect
+            Class.forName(DRIVER_NAME);
+
+            // return a connection based on the MySQL JDBC driver
+            logger.debug("Connecting to jdbc:mysql://" + mysqlHost + ":" + mysqlPort + "/" + dbName + "?user="
+                    + mysqlUsername + "&password=XXXXXXXXXX");
+            return DriverManager.getConnection("jdbc:mysql://" + mysqlHost + ":" + mysqlPort + "/" + dbName
+                    + "?rewriteBatchedStatements=true", mysqlUsername, mysqlPassword);
+        } catch (Exception e) {
+            throw new CygnusPersistenceError(e.getMessage());
+        } // try catch
+    } // createConnection
+
+    /**
+     * Checks if a connection is still valid, i.e. the MySQL server has not closed it.
+     * @param con
+     * @return True if the connection is valid, false otherwise
+     */
+    private boolean isValid(Connection con) {
+        try {
+            return con.isValid(VALIDATION_TIMEOUT);
+        } catch (SQLException e) {
+            return false;
+        } // try catch
+    } // isValid
+
+    /**
+     * Closes a connection to the given database, making room in the pool for a new one.
+     * @param dbName
+     * @param con
+     */
+    private void closeConnection(String dbName, Connection con) {
+        forgetConnection(dbName);
+        closeQuietly(dbName, con);
+    } // closeConnection
+
+    /**
+     * Makes room in the pool for a new connection to the given database, once a connection has been discarded.
+     * @param dbName
+     */
+    private void forgetConnection(String dbName) {
+        numOpenConnections.put(dbName, getNumOpenConnections(dbName) - 1);
+        notifyAll();
+    } // forgetConnection
+
+    /**
+     * Closes a connection to the given database, ignoring the errors.
+     * @param dbName
+     * @param con
+     */
+    private void closeQuietly(String dbName, Connection con) {
+        try {
+            con.close();
+        } catch (SQLException e) {
+            logger.debug("The MySQL connection could not be closed (dbName=" + dbName + ", details="
+                    + e.getMessage() + ")");
+        } // try catch
+    } // closeQuietly
+
+    /**
+     * Gets the number of open connections, either borrowed or idle, to the given database.
+     * @param dbName
+     * @return The number of open connections to the given database
+     */
+    private int getNumOpenConnections(String dbName) {
+        Integer num = numOpenConnections.get(dbName);
+        return num == null ? 0 : num;
+    } // getNumOpenConnections
+
+    /**
+     * Connection waiting in the pool for being borrowed.
+     */
+    private class IdleConnection {
+
+        private Connection connection;
+        private long releaseTime;
+
+        /**
+         * Constructor.
+         * @param connection
+         * @param releaseTime
+         */
+        public IdleConnection(Connection connection, long releaseTime) {
+            this.connection = connection;
+            this.releaseTime = releaseTime;
+        } // IdleConnection
+
+        public Connection getConnection() {
+            return connection;
+        } // getConnection
+
+        public long getReleaseTime() {
+            return releaseTime;
+        } // getReleaseTime
+
+    } // IdleConnection
+
+} // MySQLConnectionPool
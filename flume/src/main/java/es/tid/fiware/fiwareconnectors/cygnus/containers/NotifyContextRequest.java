@@ -29,6 +29,9 @@ import java.util.ArrayList;
 *
 * Container classes mapping an Orion Context Broker nofifyContextRequest notification. These are necessaries in order
 * Gson (a Json parser) and DOM (a XML parser) can store in memory a notification.
+*
+* The context values and metadata values are stored either as JsonElement trees (Gson reflection and XML parsing) or as
+* raw strings (streaming Json parsing, see NotifyContextRequestTypeAdapter).
 */
 public class NotifyContextRequest {
     
@@ -216,6 +219,9 @@ public class NotifyContextRequest {
         private String name;
         private String type;
         private JsonElement value;
+        // raw value, set instead of the above one when streaming parsing; transient, thus Gson does not map it
+        private transient String rawValue;
+        private transient boolean rawCompound;
         private ArrayList<ContextMetadata> metadatas;
         
         /**
@@ -239,6 +245,14 @@ public class NotifyContextRequest {
          * @return The context value for this context attribute in String format.
          */
         public String getContextValue(boolean asStringRepresentation) {
+            if (rawValue != null) {
+                if (rawCompound || !asStringRepresentation) {
+                    return rawValue;
+                } else {
+                    return "\"" + rawValue + "\"";
+                } // if else
+            } // if
+            
             if (value.isJsonObject()) {
                 return value.getAsJsonObject().toString();
             } else if (value.isJsonArray()) {
@@ -278,6 +292,34 @@ public class NotifyContextRequest {
             return res.substring(0, res.length() - 1) + "]";
         } // getContextMetadata
         
+        /**
+         * Gets the context value as a Json element, as mapped by Gson.
+         * @return The context value as a Json element, null if set as a raw string
+         */
+        JsonElement getJsonContextValue() {
+            return value;
+        } // getJsonContextValue
+        
+        /**
+         * Gets the context value as a raw string, as set when streaming parsing.
+         * @return The raw context value, null if set as a Json element
+         */
+        String getRawContextValue() {
+            return rawValue;
+        } // getRawContextValue
+        
+        boolean isRawContextValueCompound() {
+            return rawCompound;
+        } // isRawContextValueCompound
+        
+        /**
+         * Gets the context metadata list, as is.
+         * @return The context metadata list
+         */
+        ArrayList<ContextMetadata> getContextMetadataList() {
+            return metadatas;
+        } // getContextMetadataList
+        
         public void setName(String name) {
             this.name = name;
         } // setName
@@ -288,8 +330,20 @@ public class NotifyContextRequest {
         
         public void setContextValue(JsonElement value) {
             this.value = value;
+            this.rawValue = null;
         } // setContextMetadata
         
+        /**
+         * Sets the context value as a raw string.
+         * @param rawValue Raw Json string if compound, otherwise the string value itself
+         * @param compound True if the value is compound (a Json object or array), false otherwise
+         */
+        public void setRawContextValue(String rawValue, boolean compound) {
+            this.rawValue = rawValue;
+            this.rawCompound = compound;
+            this.value = null;
+        } // setRawContextValue
+        
         public void setContextMetadata(ArrayList<ContextMetadata> metadatas) {
             this.metadatas = metadatas;
         } // setContextMetadata
@@ -304,6 +358,9 @@ public class NotifyContextRequest {
         private String name;
         private String type;
         private JsonElement value;
+        // raw value, set instead of the above one when streaming parsing; transient, thus Gson does not map it
+        private transient String rawValue;
+        private transient boolean rawCompound;
         
         /**
          * Constructor for Gson, a Json parser.
@@ -325,6 +382,10 @@ public class NotifyContextRequest {
          * @return The metadata value for this metadata attribute in String format.
          */
         public String getValue() {
+            if (rawValue != null) {
+                return rawCompound ? rawValue : "\"" + rawValue + "\"";
+            } // if
+            
             if (value.isJsonObject()) {
                 return value.getAsJsonObject().toString();
             } else if (value.isJsonArray()) {
@@ -334,6 +395,26 @@ public class NotifyContextRequest {
             } // if else if
         } // getValue
         
+        /**
+         * Gets the metadata value as a Json element, as mapped by Gson.
+         * @return The metadata value as a Json element, null if set as a raw string
+         */
+        JsonElement getJsonValue() {
+            return value;
+        } // getJsonValue
+        
+        /**
+         * Gets the metadata value as a raw string, as set when streaming parsing.
+         * @return The raw metadata value, null if set as a Json element
+         */
+        String getRawValue() {
+            return rawValue;
+        } // getRawValue
+        
+        boolean isRawValueCompound() {
+            return rawCompound;
+        } // isRawValueCompound
+        
         public void setName(String name) {
             this.name = name;
         } // setName
@@ -344,8 +425,20 @@ public class NotifyContextRequest {
         
         public void setContextMetadata(JsonElement value) {
             this.value = value;
+            this.rawValue = null;
         } // setContextMetadata
         
+        /**
+         * Sets the metadata value as a raw string.
+         * @param rawValue Raw Json string if compound, otherwise the string value itself
+         * @param compound True if the value is compound (a Json object or array), false otherwise
+         */
+        public void setRawValue(String rawValue, boolean compound) {
+            this.rawValue = rawValue;
+            this.rawCompound = compound;
+            this.value = null;
+        } // setRawValue
+        
     } // ContextMetadata
     
     /**
@@ -0,0 +1,60 @@
+/**
+ * Copyright 2014 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-connectors (FI-WARE project).
+ *
+ * fiware-connectors is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-connectors is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-connectors. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with Francisco Romero
+ * francisco.romerobueno@telefonica.com
+ */
+
+package es.tid.fiware.fiwareconnectors.cygnus.containers;
+
+import java.util.Map;
+import org.apache.flume.event.SimpleEvent;
+
+/**
+ *
+ * @author frb
+ *
+ * Flume event carrying, in addition to the notification payload, the notification object already parsed. This way the
+ * notification is parsed only once, by the first component requiring it, and reused by the following ones.
+ *
+ * The parsed notification only survives while the event is kept in memory, e.g. within a memory channel; the
+ * components receiving a plain event must parse its body.
+ */
+public class NotifyContextRequestEvent extends SimpleEvent {
+
+    private NotifyContextRequest notification;
+
+    /**
+     * Constructor.
+     * @param headers
+     * @param body
+     * @param notification
+     */
+    public NotifyContextRequestEvent(Map<String, String> headers, byte[] body, NotifyContextRequest notification) {
+        super();
+        setHeaders(headers);
+        setBody(body);
+        this.notification = notification;
+    } // NotifyContextRequestEvent
+
+    /**
+     * Gets the parsed notification.
+     * @return The parsed notification
+     */
+    public NotifyContextRequest getNotification() {
+        return notification;
+    } // getNotification
+
+} // NotifyContextRequestEvent
@@ -0,0 +1,163 @@
+/**
+ * Copyright 2014 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-connectors (FI-WARE project).
+ *
+ * fiware-connectors is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-connectors is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-connectors. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with Francisco Romero
+ * francisco.romerobueno@telefonica.com
+ */
+
+package es.tid.fiware.fiwareconnectors.cygnus.containers;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import es.tid.fiware.fiwareconnectors.cygnus.errors.CygnusBadContextData;
+import es.tid.fiware.fiwareconnectors.cygnus.utils.UTF8ByteArrayReader;
+import java.io.ByteArrayInputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import org.xml.sax.InputSource;
+
+/**
+ *
+ * @author frb
+ *
+ * Parser of Orion Context Broker notifyContextRequest notifications, either Json or XML, shared by the interceptors and
+ * the sinks.
+ *
+ * The parsing objects are created once and reused: the Json type adapter is thread-safe and thus shared by all the
+ * threads, while the SAX parser and its handler are not, thus each thread owns and resets its own ones.
+ *
+ * Json notifications are parsed in streaming mode (see NotifyContextRequestTypeAdapter), directly from the raw event
+ * body if given.
+ */
+public final class NotifyContextRequestParser {
+
+    private static final TypeAdapter<NotifyContextRequest> JSON_ADAPTER = new NotifyContextRequestTypeAdapter();
+    private static final SAXParserFactory SAX_PARSER_FACTORY = SAXParserFactory.newInstance();
+    private static final ThreadLocal<SAXParser> SAX_PARSER = new ThreadLocal<SAXParser>() {
+
+        @Override
+        protected SAXParser initialValue() {
+            // the factory is not guaranteed to be thread-safe
+            synchronized (SAX_PARSER_FACTORY) {
+                try {
+                    return SAX_PARSER_FACTORY.newSAXParser();
+                } catch (Exception e) {
+                    throw new IllegalStateException("The SAX parser could not be created (" + e.getMessage() + ")", e);
+                } // try catch
+            } // synchronized
+        } // initialValue
+
+    };
+    private static final ThreadLocal<NotifyContextRequestSAXHandler> SAX_HANDLER =
+            new ThreadLocal<NotifyContextRequestSAXHandler>() {
+
+        @Override
+        protected NotifyContextRequestSAXHandler initialValue() {
+            return new NotifyContextRequestSAXHandler();
+        } // initialValue
+
+    };
+
+    /**
+     * Constructor. It is private since utility classes should not have a public or default constructor.
+     */
+    private NotifyContextRequestParser() {
+    } // NotifyContextRequestParser
+
+    /**
+     * Parses a notification, depending on its content type.
+     * @param body Notification payload
+     * @param contentType Content type of the notification, either Json or XML
+     * @return The notification object regarding the payload
+     * @throws Exception
+     */
+    public static NotifyContextRequest parse(String body, String contentType) throws Exception {
+        if (contentType.contains("application/json")) {
+            return parseJson(new StringReader(body));
+        } else if (contentType.contains("application/xml")) {
+            return parseXML(new InputSource(new StringReader(body)));
+        } else {
+            // this point should never be reached since the content type has been checked when receiving the
+            // notification
+            throw new Exception("Unrecognized content type (not Json nor XML)");
+        } // if else if
+    } // parse
+
+    /**
+     * Parses a notification, depending on its content type, directly from the raw payload, i.e. without copying it
+     * into a String. Json payloads are decoded as UTF-8, while XML payloads are decoded as declared by themselves.
+     * @param body Notification raw payload
+     * @param contentType Content type of the notification, either Json or XML
+     * @return The notification object regarding the payload
+     * @throws Exception
+     */
+    public static NotifyContextRequest parse(byte[] body, String contentType) throws Exception {
+        if (contentType.contains("application/json")) {
+            return parseJson(new UTF8ByteArrayReader(body));
+        } else if (contentType.contains("application/xml")) {
+            return parseXML(new InputSource(new ByteArrayInputStream(body)));
+        } else {
+            // this point should never be reached since the content type has been checked when receiving the
+            // notification
+            throw new Exception("Unrecognized content type (not Json nor XML)");
+        } // if else if
+    } // parse
+
+    /**
+     * Parses a Json notification.
+     * @param body
+     * @return The notification object regarding the payload
+     * @throws CygnusBadContextData
+     */
+    private static NotifyContextRequest parseJson(Reader body) throws CygnusBadContextData {
+        try {
+            // lenient, as Gson.fromJson is
+            JsonReader reader = new JsonReader(body);
+            reader.setLenient(true);
+            return JSON_ADAPTER.read(reader);
+        } catch (Exception e) {
+            throw new CygnusBadContextData(e.getMessage());
+        } // try catch
+    } // parseJson
+
+    /**
+     * Parses a XML notification.
+     * @param body
+     * @return The notification object regarding the payload
+     * @throws CygnusBadContextData
+     */
+    private static NotifyContextRequest parseXML(InputSource body) throws CygnusBadContextData {
+        SAXParser saxParser = null;
+        NotifyContextRequestSAXHandler handler = SAX_HANDLER.get();
+
+        try {
+            saxParser = SAX_PARSER.get();
+            saxParser.parse(body, handler);
+            return handler.getNotifyContextRequest();
+        } catch (Exception e) {
+            throw new CygnusBadContextData(e.getMessage());
+        } finally {
+            // do not retain the last notification, and leave the parser ready for the next one
+            handler.reset();
+
+            if (saxParser != null) {
+                saxParser.reset();
+            } // if
+        } // try catch finally
+    } // parseXML
+
+} // NotifyContextRequestParser
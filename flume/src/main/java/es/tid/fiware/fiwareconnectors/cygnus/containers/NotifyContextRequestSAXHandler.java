@@ -63,6 +63,34 @@ public class NotifyContextRequestSAXHandler extends DefaultHandler {
     private ArrayList<String> seenTags = new ArrayList<String>();
     private boolean isMd = false;
     
+    /**
+     * Resets the handler, thus it can be reused for parsing another notification.
+     */
+    public void reset() {
+        notifyContextRequest = null;
+        subscriptionId = false;
+        originator = false;
+        contextResponseList = null;
+        contextElementResponse = null;
+        contextElement = null;
+        entityId = null;
+        id = false;
+        contextAttributeList = null;
+        contextAttribute = null;
+        name = false;
+        type = false;
+        contextValue = false;
+        value = false;
+        contextMetadataList = null;
+        contextMetadata = null;
+        statusCode = null;
+        code = false;
+        reasonPhrase = false;
+        createdElements.clear();
+        seenTags.clear();
+        isMd = false;
+    } // reset
+    
     /**
      * Gets the notifyContextRequest parsed object.
      * @return
@@ -71,6 +99,11 @@ public class NotifyContextRequestSAXHandler extends DefaultHandler {
         return notifyContextRequest;
     } // getNotifyContextRequest
     
+    @Override
+    public void startDocument() throws SAXException {
+        reset();
+    } // startDocument
+    
     @Override
     public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
         if (qName.equalsIgnoreCase("notifyContextRequest")) {
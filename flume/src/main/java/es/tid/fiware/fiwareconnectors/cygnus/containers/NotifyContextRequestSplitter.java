@@ -0,0 +1,230 @@
+/**
+ * Copyright 2014 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-connectors (FI-WARE project).
+ *
+ * fiware-connectors is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-connectors is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-connectors. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with Francisco Romero
+ * francisco.romerobueno@telefonica.com
+ */
+
+package es.tid.fiware.fiwareconnectors.cygnus.containers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * @author frb
+ *
+ * Splitter of Orion Context Broker notifyContextRequest notifications, either Json or XML, into notifications having
+ * a single context element each. The notifications are split at byte level, without parsing them: each resulting
+ * notification is the original one where the list of context responses only contains one of them, thus anything else
+ * (subscription id, originator, formatting) is kept as it is.
+ */
+public final class NotifyContextRequestSplitter {
+    
+    private static final byte[] CONTEXT_RESPONSES = "contextResponses".getBytes();
+    private static final byte[] XML_LIST_START = "<contextResponseList>".getBytes();
+    private static final byte[] XML_LIST_END = "</contextResponseList>".getBytes();
+    private static final byte[] XML_ELEMENT_START = "<contextElementResponse>".getBytes();
+    private static final byte[] XML_ELEMENT_END = "</contextElementResponse>".getBytes();
+    
+    /**
+     * Constructor. It is private since utility classes should not have a public or default constructor.
+     */
+    private NotifyContextRequestSplitter() {
+    } // NotifyContextRequestSplitter
+    
+    /**
+     * Splits a notification into notifications having a single context element each, in the same order than the
+     * context responses of the original one.
+     * @param body
+     * @param contentType
+     * @return The notifications having a single context element each, an empty list if the notification could not be
+     * split
+     */
+    public static List<byte[]> split(byte[] body, String contentType) {
+        // each element is given by its start (inclusive) and end (exclusive) positions, the first one being the
+        // content of the list of context responses
+        List<int[]> ranges = contentType.contains("application/xml") ? findXMLRanges(body) : findJsonRanges(body);
+        ArrayList<byte[]> bodies = new ArrayList<byte[]>();
+        
+        if (ranges.isEmpty()) {
+            return bodies;
+        } // if
+        
+        int[] list = ranges.get(0);
+        
+        for (int[] element : ranges.subList(1, ranges.size())) {
+            int elementLength = element[1] - element[0];
+            byte[] split = new byte[list[0] + elementLength + body.length - list[1]];
+            System.arraycopy(body, 0, split, 0, list[0]);
+            System.arraycopy(body, element[0], split, list[0], elementLength);
+            System.arraycopy(body, list[1], split, list[0] + elementLength, body.length - list[1]);
+            bodies.add(split);
+        } // for
+        
+        return bodies;
+    } // split
+    
+    /**
+     * Finds the context responses within a Json notification.
+     * @param body
+     * @return The content of the "contextResponses" array followed by each one of its elements, or an empty list if
+     * not found
+     */
+    private static List<int[]> findJsonRanges(byte[] body) {
+        ArrayList<int[]> ranges = new ArrayList<int[]>();
+        ranges.add(null);
+        int depth = 0;
+        boolean inString = false;
+        boolean escaped = false;
+        int stringStart = -1;
+        boolean isContextResponsesKey = false;
+        boolean inContextResponses = false;
+        int elementStart = -1;
+        
+        for (int i = 0; i < body.length; i++) {
+            byte b = body[i];
+            
+            if (inString) {
+                if (escaped) {
+                    escaped = false;
+                } else if (b == '\\') {
+                    escaped = true;
+                } else if (b == '"') {
+                    inString = false;
+                    
+                    if (depth == 1) {
+                        isContextResponsesKey = regionEquals(body, stringStart, i, CONTEXT_RESPONSES);
+                    } // if
+                } // if else if
+                
+                continue;
+            } // if
+            
+            switch (b) {
+                case '"':
+                    inString = true;
+                    stringStart = i + 1;
+                    break;
+                case '{':
+                case '[':
+                    if (depth == 1 && b == '[' && isContextResponsesKey) {
+                        inContextResponses = true;
+                        ranges.set(0, new int[] {i + 1, -1});
+                    } else if (depth == 2 && b == '{' && inContextResponses) {
+                        elementStart = i;
+                    } // if else if
+                    
+                    depth++;
+                    break;
+                case '}':
+                case ']':
+                    depth--;
+                    
+                    if (depth == 2 && b == '}' && inContextResponses) {
+                        ranges.add(new int[] {elementStart, i + 1});
+                    } else if (depth == 1 && b == ']' && inContextResponses) {
+                        ranges.get(0)[1] = i;
+                        return ranges;
+                    } // if else if
+                    
+                    break;
+                case ',':
+                    if (depth == 1) {
+                        isContextResponsesKey = false;
+                    } // if
+                    
+                    break;
+                default:
+                    break;
+            } // switch
+        } // for
+        
+        return new ArrayList<int[]>();
+    } // findJsonRanges
+    
+    /**
+     * Finds the context responses within a XML notification.
+     * @param body
+     * @return The content of the "contextResponseList" element followed by each one of its "contextElementResponse"
+     * elements, or an empty list if not found
+     */
+    private static List<int[]> findXMLRanges(byte[] body) {
+        ArrayList<int[]> ranges = new ArrayList<int[]>();
+        int listStart = indexOf(body, XML_LIST_START, 0);
+        int listEnd = indexOf(body, XML_LIST_END, listStart + 1);
+        
+        if (listStart < 0 || listEnd < 0) {
+            return ranges;
+        } // if
+        
+        ranges.add(new int[] {listStart + XML_LIST_START.length, listEnd});
+        int elementStart = indexOf(body, XML_ELEMENT_START, listStart);
+        
+        while (elementStart >= 0 && elementStart < listEnd) {
+            int elementEnd = indexOf(body, XML_ELEMENT_END, elementStart);
+            
+            if (elementEnd < 0 || elementEnd > listEnd) {
+                return new ArrayList<int[]>();
+            } // if
+            
+            elementEnd += XML_ELEMENT_END.length;
+            ranges.add(new int[] {elementStart, elementEnd});
+            elementStart = indexOf(body, XML_ELEMENT_START, elementEnd);
+        } // while
+        
+        return ranges;
+    } // findXMLRanges
+    
+    /**
+     * Finds the first appearance of the given bytes within a buffer, from the given position.
+     * @param data
+     * @param target
+     * @param from
+     * @return The position of the first appearance, -1 if not found
+     */
+    private static int indexOf(byte[] data, byte[] target, int from) {
+        for (int i = Math.max(from, 0); i <= data.length - target.length; i++) {
+            if (regionEquals(data, i, i + target.length, target)) {
+                return i;
+            } // if
+        } // for
+        
+        return -1;
+    } // indexOf
+    
+    /**
+     * Checks if a region of a buffer is equal to the given bytes.
+     * @param data
+     * @param start Start of the region, inclusive
+     * @param end End of the region, exclusive
+     * @param target
+     * @return True if the region is equal to the given bytes, false otherwise
+     */
+    private static boolean regionEquals(byte[] data, int start, int end, byte[] target) {
+        if (end - start != target.length) {
+            return false;
+        } // if
+        
+        for (int i = 0; i < target.length; i++) {
+            if (data[start + i] != target[i]) {
+                return false;
+            } // if
+        } // for
+        
+        return true;
+    } // regionEquals
+    
+} // NotifyContextRequestSplitter
@@ -0,0 +1,505 @@
+/**
+ * Copyright 2014 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-connectors (FI-WARE project).
+ *
+ * fiware-connectors is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-connectors is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-connectors. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with Francisco Romero
+ * francisco.romerobueno@telefonica.com
+ */
+
+package es.tid.fiware.fiwareconnectors.cygnus.containers;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import es.tid.fiware.fiwareconnectors.cygnus.containers.NotifyContextRequest.ContextAttribute;
+import es.tid.fiware.fiwareconnectors.cygnus.containers.NotifyContextRequest.ContextElement;
+import es.tid.fiware.fiwareconnectors.cygnus.containers.NotifyContextRequest.ContextElementResponse;
+import es.tid.fiware.fiwareconnectors.cygnus.containers.NotifyContextRequest.ContextMetadata;
+import es.tid.fiware.fiwareconnectors.cygnus.containers.NotifyContextRequest.StatusCode;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+
+/**
+ *
+ * @author frb
+ *
+ * Streaming deserializer of Json notifyContextRequest notifications. The notification objects are directly built while
+ * reading the Json tokens, instead of reflecting them; and the compound (object or array) context values and metadata
+ * values are kept as raw Json strings, instead of building a JsonElement tree per value. Unknown fields are skipped.
+ *
+ * The notifications are serialized with the same fields, no matter they were parsed by this adapter or mapped by Gson.
+ * Since the streaming parsing does not keep the type of the primitive values, they are written as strings.
+ *
+ * It is stateless, thus thread-safe.
+ */
+public class NotifyContextRequestTypeAdapter extends TypeAdapter<NotifyContextRequest> {
+
+    // used for writing the values mapped by Gson as Json elements; Gson instances are thread-safe
+    private static final Gson GSON = new Gson();
+
+    @Override
+    public NotifyContextRequest read(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        } // if
+
+        NotifyContextRequest notification = new NotifyContextRequest();
+        reader.beginObject();
+
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+
+            if (name.equals("subscriptionId")) {
+                notification.setSubscriptionId(readString(reader));
+            } else if (name.equals("originator")) {
+                notification.setOriginator(readString(reader));
+            } else if (name.equals("contextResponses") && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+
+                while (reader.hasNext()) {
+                    notification.getContextResponses().add(readContextElementResponse(reader, notification));
+                } // while
+
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            } // if else if
+        } // while
+
+        reader.endObject();
+        return notification;
+    } // read
+
+    @Override
+    public void write(JsonWriter writer, NotifyContextRequest notification) throws IOException {
+        if (notification == null) {
+            writer.nullValue();
+            return;
+        } // if
+
+        writer.beginObject();
+        writer.name("subscriptionId").value(notification.getSubscriptionId());
+        writer.name("originator").value(notification.getOriginator());
+        writer.name("contextResponses").beginArray();
+
+        for (ContextElementResponse contextElementResponse : notification.getContextResponses()) {
+            writeContextElementResponse(writer, contextElementResponse);
+        } // for
+
+        writer.endArray();
+        writer.endObject();
+    } // write
+
+    /**
+     * Reads a contextElementResponse.
+     * @param reader
+     * @param notification Notification the contextElementResponse belongs to
+     * @return The read contextElementResponse
+     * @throws IOException
+     */
+    private ContextElementResponse readContextElementResponse(JsonReader reader, NotifyContextRequest notification)
+        throws IOException {
+        ContextElementResponse contextElementResponse = notification.new ContextElementResponse();
+        reader.beginObject();
+
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+
+            if (name.equals("contextElement") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                readContextElement(reader, notification, contextElementResponse.getContextElement());
+            } else if (name.equals("statusCode") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                readStatusCode(reader, contextElementResponse.getStatusCode());
+            } else {
+                reader.skipValue();
+            } // if else if
+        } // while
+
+        reader.endObject();
+        return contextElementResponse;
+    } // readContextElementResponse
+
+    /**
+     * Reads a contextElement.
+     * @param reader
+     * @param notification Notification the contextElement belongs to
+     * @param contextElement ContextElement where to store the read fields
+     * @throws IOException
+     */
+    private void readContextElement(JsonReader reader, NotifyContextRequest notification,
+            ContextElement contextElement) throws IOException {
+        reader.beginObject();
+
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+
+            if (name.equals("id")) {
+                contextElement.setId(readString(reader));
+            } else if (name.equals("type")) {
+                contextElement.setType(readString(reader));
+            } else if (name.equals("isPattern")) {
+                contextElement.setIsPattern(readString(reader));
+            } else if (name.equals("attributes") && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+
+                while (reader.hasNext()) {
+                    contextElement.getAttributes().add(readContextAttribute(reader, notification));
+                } // while
+
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            } // if else if
+        } // while
+
+        reader.endObject();
+    } // readContextElement
+
+    /**
+     * Reads a contextAttribute.
+     * @param reader
+     * @param notification Notification the contextAttribute belongs to
+     * @return The read contextAttribute
+     * @throws IOException
+     */
+    private ContextAttribute readContextAttribute(JsonReader reader, NotifyContextRequest notification)
+        throws IOException {
+        ContextAttribute contextAttribute = notification.new ContextAttribute();
+        reader.beginObject();
+
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+
+            if (name.equals("name")) {
+                contextAttribute.setName(readString(reader));
+            } else if (name.equals("type")) {
+                contextAttribute.setType(readString(reader));
+            } else if (name.equals("value")) {
+                JsonToken token = reader.peek();
+
+                if (token == JsonToken.NULL) {
+                    reader.nextNull();
+                    contextAttribute.setContextValue(JsonNull.INSTANCE);
+                } else {
+                    boolean compound = token == JsonToken.BEGIN_OBJECT || token == JsonToken.BEGIN_ARRAY;
+                    contextAttribute.setRawContextValue(compound ? readRaw(reader) : readString(reader), compound);
+                } // if else
+            } else if (name.equals("metadatas") && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                ArrayList<ContextMetadata> metadatas = new ArrayList<ContextMetadata>();
+                reader.beginArray();
+
+                while (reader.hasNext()) {
+                    metadatas.add(readContextMetadata(reader, notification));
+                } // while
+
+                reader.endArray();
+                contextAttribute.setContextMetadata(metadatas);
+            } else {
+                reader.skipValue();
+            } // if else if
+        } // while
+
+        reader.endObject();
+        return contextAttribute;
+    } // readContextAttribute
+
+    /**
+     * Reads a contextMetadata.
+     * @param reader
+     * @param notification Notification the contextMetadata belongs to
+     * @return The read contextMetadata
+     * @throws IOException
+     */
+    private ContextMetadata readContextMetadata(JsonReader reader, NotifyContextRequest notification)
+        throws IOException {
+        ContextMetadata contextMetadata = notification.new ContextMetadata();
+        reader.beginObject();
+
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+
+            if (name.equals("name")) {
+                contextMetadata.setName(readString(reader));
+            } else if (name.equals("type")) {
+                contextMetadata.setType(readString(reader));
+            } else if (name.equals("value")) {
+                JsonToken token = reader.peek();
+
+                if (token == JsonToken.NULL) {
+                    reader.nextNull();
+                    contextMetadata.setContextMetadata(JsonNull.INSTANCE);
+                } else {
+                    boolean compound = token == JsonToken.BEGIN_OBJECT || token == JsonToken.BEGIN_ARRAY;
+                    contextMetadata.setRawValue(compound ? readRaw(reader) : readString(reader), compound);
+                } // if else
+            } else {
+                reader.skipValue();
+            } // if else if
+        } // while
+
+        reader.endObject();
+        return contextMetadata;
+    } // readContextMetadata
+
+    /**
+     * Reads a statusCode.
+     * @param reader
+     * @param statusCode StatusCode where to store the read fields
+     * @throws IOException
+     */
+    private void readStatusCode(JsonReader reader, StatusCode statusCode) throws IOException {
+        reader.beginObject();
+
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+
+            if (name.equals("code")) {
+                statusCode.setCode(readString(reader));
+            } else if (name.equals("reasonPhrase")) {
+                statusCode.setReasonPhrase(readString(reader));
+            } else {
+                reader.skipValue();
+            } // if else if
+        } // while
+
+        reader.endObject();
+    } // readStatusCode
+
+    /**
+     * Writes a contextElementResponse.
+     * @param writer
+     * @param contextElementResponse
+     * @throws IOException
+     */
+    private void writeContextElementResponse(JsonWriter writer, ContextElementResponse contextElementResponse)
+        throws IOException {
+        writer.beginObject();
+        ContextElement contextElement = contextElementResponse.getContextElement();
+
+        if (contextElement != null) {
+            writer.name("contextElement").beginObject();
+            writer.name("attributes").beginArray();
+
+            for (ContextAttribute contextAttribute : contextElement.getAttributes()) {
+                writeContextAttribute(writer, contextAttribute);
+            } // for
+
+            writer.endArray();
+            writer.name("type").value(contextElement.getType());
+            writer.name("isPattern").value(contextElement.getIsPattern());
+            writer.name("id").value(contextElement.getId());
+            writer.endObject();
+        } // if
+
+        StatusCode statusCode = contextElementResponse.getStatusCode();
+
+        if (statusCode != null) {
+            writer.name("statusCode").beginObject();
+            writer.name("code").value(statusCode.getCode());
+            writer.name("reasonPhrase").value(statusCode.getReasonPhrase());
+            writer.endObject();
+        } // if
+
+        writer.endObject();
+    } // writeContextElementResponse
+
+    /**
+     * Writes a contextAttribute.
+     * @param writer
+     * @param contextAttribute
+     * @throws IOException
+     */
+    private void writeContextAttribute(JsonWriter writer, ContextAttribute contextAttribute) throws IOException {
+        writer.beginObject();
+        writer.name("name").value(contextAttribute.getName());
+        writer.name("type").value(contextAttribute.getType());
+        writer.name("value");
+        writeValue(writer, contextAttribute.getRawContextValue(), contextAttribute.isRawContextValueCompound(),
+                contextAttribute.getJsonContextValue());
+
+        if (contextAttribute.getContextMetadataList() != null) {
+            writer.name("metadatas").beginArray();
+
+            for (ContextMetadata contextMetadata : contextAttribute.getContextMetadataList()) {
+                if (contextMetadata == null) {
+                    continue;
+                } // if
+
+                writer.beginObject();
+                writer.name("name").value(contextMetadata.getName());
+                writer.name("type").value(contextMetadata.getType());
+                writer.name("value");
+                writeValue(writer, contextMetadata.getRawValue(), contextMetadata.isRawValueCompound(),
+                        contextMetadata.getJsonValue());
+                writer.endObject();
+            } // for
+
+            writer.endArray();
+        } // if
+
+        writer.endObject();
+    } // writeContextAttribute
+
+    /**
+     * Writes a context value or a metadata value, either set as a raw string or as a Json element.
+     * @param writer
+     * @param rawValue Raw Json string if compound, otherwise the string value itself; null if not set this way
+     * @param rawCompound True if the raw value is compound (a Json object or array), false otherwise
+     * @param value Json element, used if the raw value is not set
+     * @throws IOException
+     */
+    private void writeValue(JsonWriter writer, String rawValue, boolean rawCompound, JsonElement value)
+        throws IOException {
+        if (rawValue == null) {
+            GSON.toJson(value == null ? JsonNull.INSTANCE : value, writer);
+        } else if (rawCompound) {
+            JsonReader reader = new JsonReader(new StringReader(rawValue));
+            reader.setLenient(true);
+            copy(reader, writer);
+        } else {
+            writer.value(rawValue);
+        } // if else if
+    } // writeValue
+
+    /**
+     * Reads a primitive value as a string, as Gson does when mapping a string field.
+     * @param reader
+     * @return The read value as a string, or null if the value is null
+     * @throws IOException
+     */
+    private String readString(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+
+        if (token == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        } else if (token == JsonToken.BOOLEAN) {
+            return Boolean.toString(reader.nextBoolean());
+        } else {
+            // numbers are read as they were written
+            return reader.nextString();
+        } // if else if
+    } // readString
+
+    /**
+     * Reads a compound value (object or array) as a raw Json string, in the same compact format a JsonElement is
+     * serialized.
+     * @param reader
+     * @return The raw Json string
+     * @throws IOException
+     */
+    private String readRaw(JsonReader reader) throws IOException {
+        StringWriter out = new StringWriter();
+        JsonWriter writer = new JsonWriter(out);
+        writer.setLenient(true);
+        copy(reader, writer);
+        writer.flush();
+        return out.toString();
+    } // readRaw
+
+    /**
+     * Copies the next value from a reader to a writer, token by token.
+     * @param reader
+     * @param writer
+     * @throws IOException
+     */
+    private void copy(JsonReader reader, JsonWriter writer) throws IOException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                reader.beginObject();
+                writer.beginObject();
+
+                while (reader.hasNext()) {
+                    writer.name(reader.nextName());
+                    copy(reader, writer);
+                } // while
+
+                reader.endObject();
+                writer.endObject();
+                break;
+            case BEGIN_ARRAY:
+                reader.beginArray();
+                writer.beginArray();
+
+                while (reader.hasNext()) {
+                    copy(reader, writer);
+                } // while
+
+                reader.endArray();
+                writer.endArray();
+                break;
+            case NUMBER:
+                writer.value(new RawNumber(reader.nextString()));
+                break;
+            case BOOLEAN:
+                writer.value(reader.nextBoolean());
+                break;
+            case NULL:
+                reader.nextNull();
+                writer.nullValue();
+                break;
+            default:
+                writer.value(reader.nextString());
+        } // switch
+    } // copy
+
+    /**
+     * Number written exactly as it was read, without any conversion.
+     */
+    private static class RawNumber extends Number {
+
+        private final String value;
+
+        /**
+         * Constructor.
+         * @param value
+         */
+        public RawNumber(String value) {
+            this.value = value;
+        } // RawNumber
+
+        @Override
+        public int intValue() {
+            return (int) doubleValue();
+        } // intValue
+
+        @Override
+        public long longValue() {
+            return (long) doubleValue();
+        } // longValue
+
+        @Override
+        public float floatValue() {
+            return (float) doubleValue();
+        } // floatValue
+
+        @Override
+        public double doubleValue() {
+            return Double.parseDouble(value);
+        } // doubleValue
+
+        @Override
+        public String toString() {
+            return value;
+        } // toString
+
+    } // RawNumber
+
+} // NotifyContextRequestTypeAdapter
@@ -0,0 +1,54 @@
+/**
+ * Copyright 2014 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-connectors (FI-WARE project).
+ *
+ * fiware-connectors is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-connectors is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-connectors. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with Francisco Romero
+ * francisco.romerobueno@telefonica.com
+ */
+
+package es.tid.fiware.fiwareconnectors.cygnus.errors;
+
+/**
+ *
+ * @author frb
+ *
+ * A notification is not admitted since Cygnus is overloaded (503) or the notifying organization exceeded its rate
+ * limit (429). The notifier should retry after the given number of seconds.
+ */
+public class CygnusAdmissionRejected extends Exception {
+    
+    private final int statusCode;
+    private final long retryAfter;
+    
+    /**
+     * Constructor.
+     * @param message
+     * @param statusCode HTTP status code to be responded
+     * @param retryAfter Number of seconds after which the notification should be retried
+     */
+    public CygnusAdmissionRejected(String message, int statusCode, long retryAfter) {
+        super("Admission rejected (" + message + ")");
+        this.statusCode = statusCode;
+        this.retryAfter = retryAfter;
+    } // CygnusAdmissionRejected
+    
+    public int getStatusCode() {
+        return statusCode;
+    } // getStatusCode
+    
+    public long getRetryAfter() {
+        return retryAfter;
+    } // getRetryAfter
+    
+} // CygnusAdmissionRejected
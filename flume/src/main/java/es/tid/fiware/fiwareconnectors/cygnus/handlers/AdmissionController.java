@@ -0,0 +1,339 @@
+/**
+ * Copyright 2014 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-connectors (FI-WARE project).
+ *
+ * fiware-connectors is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-connectors is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-connectors. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with Francisco Romero
+ * francisco.romerobueno@telefonica.com
+ */
+
+package es.tid.fiware.fiwareconnectors.cygnus.handlers;
+
+import es.tid.fiware.fiwareconnectors.cygnus.errors.CygnusAdmissionRejected;
+import es.tid.fiware.fiwareconnectors.cygnus.utils.Constants;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.apache.log4j.Logger;
+
+/**
+ *
+ * @author frb
+ *
+ * Admission control of the notifications, shedding load before reading their bodies when Cygnus cannot cope with
+ * them. A notification is rejected with 503 once any of these high-water marks is reached:
+ *  - the number of notifications in flight, i.e. admitted but not released yet
+ *  - the fill percentage of the fullest channel of the agent, as published by Flume through JMX; it is read at most
+ *    once per check interval, not per notification
+ * In addition, the notifications of each organization are rate limited by a token bucket, thus a noisy organization
+ * is rejected with 429 without starving the others. Since the organization is given by the client, the number of
+ * buckets is bounded: the buckets refilled up to their capacity are purged, being equivalent to new ones, and the
+ * organizations beyond the maximum share a single bucket until some bucket is purged.
+ *
+ * Any limit equal or lower than 0 is disabled.
+ */
+public class AdmissionController {
+    
+    private static final String CHANNEL_MBEANS = "org.apache.flume.channel:type=*";
+    private static final String CHANNEL_FILL_ATTRIBUTE = "ChannelFillPercentage";
+    private static final long BUCKETS_PURGE_INTERVAL = 1000;
+    private Logger logger;
+    private final int maxInFlight;
+    private final double channelFillHighWater;
+    private final long channelFillCheckInterval;
+    private final double tenantRate;
+    private final double tenantBurst;
+    private final int maxTenants;
+    private final long retryAfter;
+    private final AtomicInteger numInFlight;
+    private final AtomicLong lastChannelFillCheck;
+    private volatile double channelFill;
+    private final ConcurrentHashMap<String, TokenBucket> buckets;
+    private final TokenBucket overflowBucket;
+    private final AtomicLong lastBucketsPurge;
+    private final AtomicLong numRejectedOverloaded;
+    private final AtomicLong numRejectedRateLimited;
+    
+    /**
+     * Constructor.
+     * @param maxInFlight Maximum number of notifications in flight
+     * @param channelFillHighWater Maximum fill percentage of any channel
+     * @param channelFillCheckInterval Number of milliseconds between reads of the channels fill percentage
+     * @param tenantRate Number of notifications per second allowed to each organization
+     * @param tenantBurst Maximum number of notifications an organization may send at once, after being idle
+     * @param retryAfter Number of seconds after which an overloaded notification should be retried
+     */
+    public AdmissionController(int maxInFlight, double channelFillHighWater, long channelFillCheckInterval,
+            double tenantRate, double tenantBurst, long retryAfter) {
+        this(maxInFlight, channelFillHighWater, channelFillCheckInterval, tenantRate, tenantBurst,
+                Constants.ADMISSION_MAX_TENANTS, retryAfter);
+    } // AdmissionController
+    
+    /**
+     * Constructor.
+     * @param maxInFlight Maximum number of notifications in flight
+     * @param channelFillHighWater Maximum fill percentage of any channel
+     * @param channelFillCheckInterval Number of milliseconds between reads of the channels fill percentage
+     * @param tenantRate Number of notifications per second allowed to each organization
+     * @param tenantBurst Maximum number of notifications an organization may send at once, after being idle
+     * @param maxTenants Maximum number of organizations rate limited by their own bucket
+     * @param retryAfter Number of seconds after which an overloaded notification should be retried
+     */
+    public AdmissionController(int maxInFlight, double channelFillHighWater, long channelFillCheckInterval,
+            double tenantRate, double tenantBurst, int maxTenants, long retryAfter) {
+        logger = Logger.getLogger(AdmissionController.class);
+        this.maxInFlight = maxInFlight;
+        this.channelFillHighWater = channelFillHighWater;
+        this.channelFillCheckInterval = channelFillCheckInterval;
+        this.tenantRate = tenantRate;
+        this.tenantBurst = Math.max(tenantBurst, 1);
+        this.maxTenants = Math.max(maxTenants, 1);
+        this.retryAfter = retryAfter;
+        numInFlight = new AtomicInteger();
+        lastChannelFillCheck = new AtomicLong();
+        channelFill = 0;
+        buckets = new ConcurrentHashMap<String, TokenBucket>();
+        overflowBucket = new TokenBucket(tenantRate, this.tenantBurst);
+        lastBucketsPurge = new AtomicLong();
+        numRejectedOverloaded = new AtomicLong();
+        numRejectedRateLimited = new AtomicLong();
+    } // AdmissionController
+    
+    /**
+     * Admits a notification of the given organization. Once admitted, the notification is in flight until released.
+     * @param organization
+     * @throws CygnusAdmissionRejected If the notification is not admitted
+     */
+    public void admit(String organization) throws CygnusAdmissionRejected {
+        if (channelFillHighWater > 0 && getChannelFill() >= channelFillHighWater) {
+            numRejectedOverloaded.incrementAndGet();
+            throw new CygnusAdmissionRejected("channel fill percentage greater than " + channelFillHighWater, 503,
+                    retryAfter);
+        } // if
+        
+        // the notifications in flight are checked before the rate limit, otherwise an overloaded notification would
+        // consume a token of its organization anyway
+        if (numInFlight.incrementAndGet() > maxInFlight && maxInFlight > 0) {
+            numInFlight.decrementAndGet();
+            numRejectedOverloaded.incrementAndGet();
+            throw new CygnusAdmissionRejected("notifications in flight greater than " + maxInFlight, 503,
+                    retryAfter);
+        } // if
+        
+        if (tenantRate > 0) {
+            long wait = getBucket(organization).tryConsume();
+            
+            if (wait > 0) {
+                numInFlight.decrementAndGet();
+                numRejectedRateLimited.incrementAndGet();
+                throw new CygnusAdmissionRejected("rate limit of " + tenantRate + " notifications/s exceeded by "
+                        + organization, 429, (wait + 999) / 1000);
+            } // if
+        } // if
+    } // admit
+    
+    /**
+     * Charges the rate limit of the given organization with additional notifications, e.g. the rest of notifications
+     * within an already admitted batch. They are never rejected, since the batch has been already read, but the
+     * organization may run into debt, thus its next notifications are rejected until the debt is paid.
+     * @param organization
+     * @param numNotifications
+     */
+    public void charge(String organization, int numNotifications) {
+        if (tenantRate > 0 && numNotifications > 0) {
+            getBucket(organization).consume(numNotifications);
+        } // if
+    } // charge
+    
+    /**
+     * Releases an admitted notification, once processed.
+     */
+    public void release() {
+        numInFlight.decrementAndGet();
+    } // release
+    
+    public int getNumInFlight() {
+        return numInFlight.get();
+    } // getNumInFlight
+    
+    public long getNumRejectedOverloaded() {
+        return numRejectedOverloaded.get();
+    } // getNumRejectedOverloaded
+    
+    public long getNumRejectedRateLimited() {
+        return numRejectedRateLimited.get();
+    } // getNumRejectedRateLimited
+    
+    public int getNumBuckets() {
+        return buckets.size();
+    } // getNumBuckets
+    
+    /**
+     * Gets the token bucket of the given organization, creating it if not existing. If the maximum number of buckets
+     * has been reached, the full ones are purged first, at most once per purge interval; if none can be purged, the
+     * shared overflow bucket is returned.
+     * @param organization
+     * @return The token bucket of the organization
+     */
+    private TokenBucket getBucket(String organization) {
+        TokenBucket bucket = buckets.get(organization);
+
+        if (bucket == null) {
+            if (buckets.size() >= maxTenants) {
+                purgeBuckets();
+                
+                if (buckets.size() >= maxTenants) {
+                    return overflowBucket;
+                } // if
+            } // if
+            
+            TokenBucket newBucket = new TokenBucket(tenantRate, tenantBurst);
+            bucket = buckets.putIfAbsent(organization, newBucket);
+
+            if (bucket == null) {
+                bucket = newBucket;
+            } // if
+        } // if
+        
+        return bucket;
+    } // getBucket
+    
+    /**
+     * Removes the buckets refilled up to their capacity, since they are equivalent to new ones. Only one of the
+     * concurrent callers purges them, and only if the purge interval has elapsed.
+     */
+    private void purgeBuckets() {
+        long now = System.currentTimeMillis();
+        long lastPurge = lastBucketsPurge.get();
+        
+        if (now - lastPurge < BUCKETS_PURGE_INTERVAL || !lastBucketsPurge.compareAndSet(lastPurge, now)) {
+            return;
+        } // if
+        
+        for (Map.Entry<String, TokenBucket> entry : buckets.entrySet()) {
+            if (entry.getValue().isFull()) {
+                buckets.remove(entry.getKey(), entry.getValue());
+            } // if
+        } // for
+        
+        logger.debug("Token buckets purged (numBuckets=" + buckets.size() + ")");
+    } // purgeBuckets
+    
+    /**
+     * Gets the fill percentage of the fullest channel, read again if the check interval has elapsed. Only one of the
+     * concurrent callers reads it, the others get the last read value.
+     * @return The fill percentage of the fullest channel
+     */
+    private double getChannelFill() {
+        long now = System.currentTimeMillis();
+        long lastCheck = lastChannelFillCheck.get();
+        
+        if (now - lastCheck >= channelFillCheckInterval && lastChannelFillCheck.compareAndSet(lastCheck, now)) {
+            channelFill = readChannelFill();
+        } // if
+        
+        return channelFill;
+    } // getChannelFill
+    
+    /**
+     * Reads the fill percentage of the fullest channel of the agent. It is protected in order it can be overridden for
+     * testing purposes.
+     * @return The fill percentage of the fullest channel, 0 if it cannot be read
+     */
+    protected double readChannelFill() {
+        double maxFill = 0;
+        
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            
+            for (ObjectName name : server.queryNames(new ObjectName(CHANNEL_MBEANS), null)) {
+                maxFill = Math.max(maxFill, (Double) server.getAttribute(name, CHANNEL_FILL_ATTRIBUTE));
+            } // for
+        } catch (Exception e) {
+            logger.debug("The channels fill percentage could not be read (details=" + e.getMessage() + ")");
+        } // try catch
+        
+        return maxFill;
+    } // readChannelFill
+    
+    /**
+     * Token bucket refilled at a constant rate up to its capacity.
+     */
+    private static class TokenBucket {
+        
+        private final double rate;
+        private final double capacity;
+        private double tokens;
+        private long lastRefill;
+        
+        /**
+         * Constructor. The bucket is created full.
+         * @param rate Number of tokens added per second
+         * @param capacity
+         */
+        public TokenBucket(double rate, double capacity) {
+            this.rate = rate;
+            this.capacity = capacity;
+            tokens = capacity;
+            lastRefill = System.nanoTime();
+        } // TokenBucket
+        
+        /**
+         * Consumes a token, if available.
+         * @return 0 if a token was consumed, otherwise the number of milliseconds until a token is available
+         */
+        public synchronized long tryConsume() {
+            refill();
+            
+            if (tokens >= 1) {
+                tokens--;
+                return 0;
+            } // if
+            
+            return (long) Math.ceil((1 - tokens) * 1000 / rate);
+        } // tryConsume
+        
+        /**
+         * Consumes the given number of tokens, even if not available, thus the bucket may run into debt.
+         * @param numTokens
+         */
+        public synchronized void consume(int numTokens) {
+            refill();
+            tokens -= numTokens;
+        } // consume
+        
+        /**
+         * Checks if the bucket has been refilled up to its capacity, i.e. it is equivalent to a new one.
+         * @return True if the bucket is full, false otherwise
+         */
+        public synchronized boolean isFull() {
+            refill();
+            return tokens >= capacity;
+        } // isFull
+        
+        /**
+         * Adds the tokens accrued since the last refill, up to the capacity.
+         */
+        private void refill() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * rate / 1e9);
+            lastRefill = now;
+        } // refill
+        
+    } // TokenBucket
+    
+} // AdmissionController
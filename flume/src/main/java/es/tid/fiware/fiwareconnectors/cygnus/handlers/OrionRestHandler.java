@@ -19,10 +19,15 @@
 
 package es.tid.fiware.fiwareconnectors.cygnus.handlers;
 
+import es.tid.fiware.fiwareconnectors.cygnus.errors.CygnusAdmissionRejected;
 import es.tid.fiware.fiwareconnectors.cygnus.http.JettyServer;
+import es.tid.fiware.fiwareconnectors.cygnus.log.CygnusLogger;
 import es.tid.fiware.fiwareconnectors.cygnus.management.ManagementInterface;
-import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
@@ -35,6 +40,7 @@ import org.apache.flume.source.http.HTTPSourceHandler;
 import org.apache.http.MethodNotSupportedException;
 import org.apache.log4j.Logger;
 import es.tid.fiware.fiwareconnectors.cygnus.utils.Constants;
+import es.tid.fiware.fiwareconnectors.cygnus.utils.TransactionIdGenerator;
 import es.tid.fiware.fiwareconnectors.cygnus.utils.Utils;
 import java.util.Date;
 import org.apache.flume.event.EventBuilder;
@@ -51,30 +57,60 @@ import org.slf4j.MDC;
  */
 public class OrionRestHandler implements HTTPSourceHandler {
     
+    private static final byte[] CONTEXT_VALUE = "contextValue".getBytes();
+    private static final byte[] VALUE = "value".getBytes();
+    // per thread buffer where the notifications body is read and adapted, thus it is not allocated per notification
+    private static final ThreadLocal<byte[]> BODY_BUFFER = new ThreadLocal<byte[]>() {
+        
+        @Override
+        protected byte[] initialValue() {
+            return new byte[Constants.BODY_BUFFER_SIZE];
+        } // initialValue
+        
+    };
     private Logger logger;
     private String notificationsTarget;
+    private String batchNotificationsTarget;
+    private int batchMaxNotifications;
     private String defaultOrg;
     private String eventsTTL;
-    private long transactionCount;
-    private long bootTimeSeconds;
-    private long bootTimeMilliseconds;
+    private String nodeId;
+    private long bootTime;
+    private TransactionIdGenerator transIdGenerator;
+    private AdmissionController admissionController;
+    private boolean managementInterface;
+    
+    /**
+     * Constructor. The management interface is started when configuring the handler.
+     */
+    public OrionRestHandler() {
+        this(true);
+    } // OrionRestHandler
     
     /**
      * Constructor. This can be used as a place where to initialize all that things we would like to do in the Flume
      * "initialization" class, which is unreachable by our code. As long as this class is instantiated almost at boot
      * time, it is the closest code to such real initialization.
+     * @param managementInterface True if the management interface is started when configuring the handler, false
+     * otherwise
      */
-    public OrionRestHandler() {
+    public OrionRestHandler(boolean managementInterface) {
         // init the logger
         logger = Logger.getLogger(OrionRestHandler.class);
+        this.managementInterface = managementInterface;
         
-        // init the transaction id
-        transactionCount = 0;
+        // no batches larger than the default
+        batchMaxNotifications = Constants.BATCH_MAX_NOTIFICATIONS;
         
         // store the boot time (not the exact boot time, but very accurate one)
-        long bootTime = new Date().getTime();
-        bootTimeSeconds = bootTime / 1000;
-        bootTimeMilliseconds = bootTime % 1000;
+        bootTime = new Date().getTime();
+        
+        // init the transaction id generator, the node id may be configured later
+        transIdGenerator = new TransactionIdGenerator(null, bootTime);
+        
+        // no admission control until configured
+        admissionController = new AdmissionController(0, 0, Constants.ADMISSION_CHANNEL_FILL_CHECK_INTERVAL, 0, 0,
+                Constants.ADMISSION_RETRY_AFTER);
         
         // print Cygnus version
         logger.info("Cygnus version (" + Utils.getCygnusVersion() + "." + Utils.getLastCommit() + ")");
@@ -88,6 +124,23 @@ public class OrionRestHandler implements HTTPSourceHandler {
         return notificationsTarget;
     } // getNotificationTarget
     
+    /**
+     * Gets the batch notifications target. It is protected due to it is only required for testing purposes.
+     * @return The batch notifications target
+     */
+    protected String getBatchNotificationTarget() {
+        return batchNotificationsTarget;
+    } // getBatchNotificationTarget
+    
+    /**
+     * Gets the maximum number of notifications within a batch. It is protected due to it is only required for testing
+     * purposes.
+     * @return The maximum number of notifications within a batch
+     */
+    protected int getBatchMaxNotifications() {
+        return batchMaxNotifications;
+    } // getBatchMaxNotifications
+    
     /**
      * Gets the default organization. It is protected due to it is only required for testing purposes.
      * @return
@@ -95,6 +148,22 @@ public class OrionRestHandler implements HTTPSourceHandler {
     protected String getDefaultOrganization() {
         return defaultOrg;
     } // getDefaultOrganization
+    
+    /**
+     * Gets the node identifier. It is protected due to it is only required for testing purposes.
+     * @return The node identifier
+     */
+    protected String getNodeId() {
+        return nodeId;
+    } // getNodeId
+    
+    /**
+     * Gets the admission controller. It is protected due to it is only required for testing purposes.
+     * @return The admission controller
+     */
+    protected AdmissionController getAdmissionController() {
+        return admissionController;
+    } // getAdmissionController
 
     @Override
     public void configure(Context context) {
@@ -105,6 +174,23 @@ public class OrionRestHandler implements HTTPSourceHandler {
             notificationsTarget = "/" + notificationsTarget;
         } // if
         
+        batchNotificationsTarget = context.getString("batch_notification_target", notificationsTarget + "/batch");
+        logger.debug("Reading configuration (batch_notification_target=" + batchNotificationsTarget + ")");
+        
+        if (batchNotificationsTarget.charAt(0) != '/') {
+            batchNotificationsTarget = "/" + batchNotificationsTarget;
+        } // if
+        
+        batchMaxNotifications = context.getInteger("batch_max_notifications", Constants.BATCH_MAX_NOTIFICATIONS);
+        
+        if (batchMaxNotifications < 1) {
+            logger.error("Bad configuration (batch_max_notifications must be greater than 0)");
+            logger.info("Exiting Cygnus");
+            System.exit(-1);
+        } // if
+        
+        logger.debug("Reading configuration (batch_max_notifications=" + batchMaxNotifications + ")");
+        
         defaultOrg = Utils.encode(context.getString("default_organization", "default_org"));
         
         if (defaultOrg.length() > Constants.ORG_MAX_LEN) {
@@ -116,25 +202,92 @@ public class OrionRestHandler implements HTTPSourceHandler {
         logger.debug("Reading configuration (default_organization=" + defaultOrg + ")");
         eventsTTL = context.getString("events_ttl", "10");
         logger.debug("Reading configuration (events_ttl=" + eventsTTL + ")");
+        nodeId = context.getString("node_id", TransactionIdGenerator.getDefaultNodeId());
+        logger.debug("Reading configuration (node_id=" + nodeId + ")");
+        transIdGenerator = new TransactionIdGenerator(nodeId, bootTime);
+        int logPayloadMaxLength = context.getInteger("log_payload_max_length", Constants.LOG_PAYLOAD_MAX_LENGTH);
+        logger.debug("Reading configuration (log_payload_max_length=" + logPayloadMaxLength + ")");
+        int logPayloadSamplingRate = context.getInteger("log_payload_sampling_rate",
+                Constants.LOG_PAYLOAD_SAMPLING_RATE);
+        logger.debug("Reading configuration (log_payload_sampling_rate=" + logPayloadSamplingRate + ")");
+        CygnusLogger.setPayloadPolicy(logPayloadMaxLength, logPayloadSamplingRate);
+        int maxInFlight = context.getInteger("admission_max_in_flight", 0);
+        logger.debug("Reading configuration (admission_max_in_flight=" + maxInFlight + ")");
+        double channelFillHighWater = Double.parseDouble(context.getString("admission_channel_fill", "0"));
+        logger.debug("Reading configuration (admission_channel_fill=" + channelFillHighWater + ")");
+        double tenantRate = Double.parseDouble(context.getString("tenant_rate_limit", "0"));
+        logger.debug("Reading configuration (tenant_rate_limit=" + tenantRate + ")");
+        double tenantBurst = Double.parseDouble(context.getString("tenant_rate_burst", String.valueOf(tenantRate)));
+        logger.debug("Reading configuration (tenant_rate_burst=" + tenantBurst + ")");
+        int maxTenants = context.getInteger("tenant_rate_max_organizations", Constants.ADMISSION_MAX_TENANTS);
+        
+        if (maxTenants < 1) {
+            logger.error("Bad configuration (tenant_rate_max_organizations must be greater than 0)");
+            logger.info("Exiting Cygnus");
+            System.exit(-1);
+        } // if
+        
+        logger.debug("Reading configuration (tenant_rate_max_organizations=" + maxTenants + ")");
+        long retryAfter = context.getLong("admission_retry_after", Constants.ADMISSION_RETRY_AFTER);
+        logger.debug("Reading configuration (admission_retry_after=" + retryAfter + ")");
+        admissionController = new AdmissionController(maxInFlight, channelFillHighWater,
+                Constants.ADMISSION_CHANNEL_FILL_CHECK_INTERVAL, tenantRate, tenantBurst, maxTenants, retryAfter);
         
         // FIXME: temporal location for the Jetty server startup, this should be run at the same time the other Flume
         // components are initialized, i.e. within the Node Application.
-        JettyServer js = new JettyServer(context.getInteger("management_port", 8081), new ManagementInterface());
-        js.start();
+        if (managementInterface) {
+            JettyServer js = new JettyServer(context.getInteger("management_port", 8081), new ManagementInterface());
+            js.start();
+        } // if
         
         logger.info("Startup completed");
     } // configure
             
     @Override
     public List<Event> getEvents(javax.servlet.http.HttpServletRequest request) throws Exception {
+        // get the headers, their names in lower case
+        Map<String, String> headers = new HashMap<String, String>();
+        Enumeration headerNames = request.getHeaderNames();
+        
+        while (headerNames.hasMoreElements()) {
+            String headerName = (String) headerNames.nextElement();
+            headers.put(headerName.toLowerCase(Locale.ENGLISH), request.getHeader(headerName));
+        } // while
+        
+        // check the notification and get the event headers
+        Map<String, String> eventHeaders = checkNotification(request.getMethod(), request.getRequestURI(), headers);
+        
+        // get the data content and create the event list; the notification is not in flight anymore once the events
+        // are created, since the HTTP Flume source does not report when they are put in the channel
+        try {
+            ByteBuffer body = readBody(request);
+            return createEvents(request.getRequestURI(), eventHeaders, body.array(), 0, body.limit());
+        } finally {
+            releaseNotification();
+        } // try finally
+    } // getEvents
+    
+    /**
+     * Checks the method, the target and the headers of a notification are the ones tipically sent by Orion Context
+     * Broker, starting a new transaction. This is the common validation for any Cygnus source receiving notifications.
+     * Finally, the notification is admitted (see AdmissionController), thus it must be released once processed.
+     * @param method
+     * @param target
+     * @param headers Notification headers, their names in lower case
+     * @return The headers of the Flume event to be created for the notification
+     * @throws Exception MethodNotSupportedException if the method is not POST, HTTPBadRequestException if the target
+     * or any header is not supported, CygnusAdmissionRejected if the notification is not admitted
+     */
+    public Map<String, String> checkNotification(String method, String target, Map<String, String> headers)
+        throws Exception {
         // get a transaction id and store it in the log4j Mapped Diagnostic Context (MDC); this way it will be
         // accessible by the whole source code
-        String transId = generateTransId();
+        String transId = transIdGenerator.generateTransId();
         MDC.put(Constants.TRANSACTION_ID, transId);
-        logger.info("Starting transaction (" + transId + ")");
+        CygnusLogger.info(logger, "Starting transaction ({})", transId);
         
         // check the method
-        String method = request.getMethod().toUpperCase(Locale.ENGLISH);
+        method = method.toUpperCase(Locale.ENGLISH);
         
         if (!method.equals("POST")) {
             logger.warn("Bad HTTP notification (" + method + " method not supported)");
@@ -142,21 +295,20 @@ public class OrionRestHandler implements HTTPSourceHandler {
         } // if
 
         // check the notificationsTarget
-        String target = request.getRequestURI();
+        boolean isBatch = target.equals(batchNotificationsTarget);
         
-        if (!target.equals(notificationsTarget)) {
+        if (!target.equals(notificationsTarget) && !isBatch) {
             logger.warn("Bad HTTP notification (" + target + " target not supported)");
             throw new HTTPBadRequestException(target + " target not supported");
         } // if
         
         // check the headers looking for not supported user agents, content type and tenant/organization
-        Enumeration headerNames = request.getHeaderNames();
         String contentType = null;
         String organization = null;
         
-        while (headerNames.hasMoreElements()) {
-            String headerName = ((String) headerNames.nextElement()).toLowerCase(Locale.ENGLISH);
-            String headerValue = request.getHeader(headerName).toLowerCase(Locale.ENGLISH);
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            String headerName = header.getKey();
+            String headerValue = header.getValue().toLowerCase(Locale.ENGLISH);
             
             if (headerName.equals(Constants.USER_AGENT)) {
                 if (!headerValue.startsWith("orion")) {
@@ -181,72 +333,312 @@ public class OrionRestHandler implements HTTPSourceHandler {
                 } // if else
             } // if else if
         } // for
-
-        // get the data content
-        String data = "";
-        String line;
-        BufferedReader reader = request.getReader();
         
-        while ((line = reader.readLine()) != null) {
-            data += line;
-        } // while
-                
-        if (data.length() == 0) {
-            logger.warn("Bad HTTP notification (No content in the request)");
-            throw new HTTPBadRequestException("No content in the request");
+        if (contentType == null) {
+            logger.warn("Bad HTTP notification (no content type)");
+            throw new HTTPBadRequestException("no content type");
         } // if
-
-        // data adaptation; two replacements:
-        //   1. replace all the appearances of "contextValue" with "value" in order Orion versions under 0.10.0 may
-        //      work (Json content type only)
-        //   2. replace all the white lines between tags with nothing; the regex ">[ ]*<" means "all the white spaces
-        //      between '>' and '<', e.g. "<tag1>1</tag1>      <tag2>2</tag2>" becomes "<tag1>1</tag1><tag2>2</tag2>"
         
-        if (contentType.equals("application/json")) {
-            data = data.replaceAll("contextValue", "value");
+        if (isBatch && !contentType.equals("application/json")) {
+            logger.warn("Bad HTTP notification (" + contentType + " content type not supported in batches)");
+            throw new HTTPBadRequestException(contentType + " content type not supported in batches");
         } // if
-
-        data = data.replaceAll(">[ ]*<", "><");
-        logger.info("Received data (" + data + ")");
+        
+        if (organization == null) {
+            organization = defaultOrg;
+        } // if
+        
+        // shed the load before reading the body
+        try {
+            admissionController.admit(organization);
+        } catch (CygnusAdmissionRejected e) {
+            CygnusLogger.debug(logger, "Notification not admitted ({})", e.getMessage());
+            throw e;
+        } // try catch
         
         // create the appropiate headers
         Map<String, String> eventHeaders = new HashMap<String, String>();
         eventHeaders.put(Constants.CONTENT_TYPE, contentType);
-        logger.debug("Adding flume event header (name=" + Constants.CONTENT_TYPE + ", value=" + contentType + ")");
-        eventHeaders.put(Constants.ORG_HEADER, organization == null ? defaultOrg : organization);
-        logger.debug("Adding flume event header (name=" + Constants.ORG_HEADER
-                + ", value=" + (organization == null ? defaultOrg : organization) + ")");
+        eventHeaders.put(Constants.ORG_HEADER, organization);
         eventHeaders.put(Constants.TRANSACTION_ID, transId);
-        logger.debug("Adding flume event header (name=" + Constants.TRANSACTION_ID + ", value=" + transId + ")");
         eventHeaders.put(Constants.TTL, eventsTTL);
-        logger.debug("Adding flume event header (name=" + Constants.TTL + ", value=" + eventsTTL + ")");
-        
-        // create the event list containing only one event
-        ArrayList<Event> eventList = new ArrayList<Event>();
-        Event event = EventBuilder.withBody(data.getBytes(), eventHeaders);
-        eventList.add(event);
-        logger.info("Event put in the channel (id=" + event.hashCode() + ", ttl=" + eventsTTL + ")");
-        return eventList;
-    } // getEvents
+        return eventHeaders;
+    } // checkNotification
+    
+    /**
+     * Releases an admitted notification (see checkNotification), once processed.
+     */
+    public void releaseNotification() {
+        admissionController.release();
+    } // releaseNotification
+    
+    /**
+     * Creates the Flume events for an already checked notification (see checkNotification). A notification sent to the
+     * batch target results in an event per notification within the batch (see splitBatch), the rest in a single event.
+     * The events created for a request are put in the channel within a single transaction, thus a batch cannot have
+     * more notifications than the configured maximum, which must not be greater than the transaction capacity of the
+     * channel. The rate limit of the organization is charged with all the notifications within the batch (see
+     * AdmissionController). The body is adapted within the given buffer (see adaptBody) and then copied into the
+     * events.
+     * @param target
+     * @param eventHeaders
+     * @param buffer Buffer containing the body, it is modified
+     * @param offset Offset of the body within the buffer
+     * @param length Length of the body
+     * @return The Flume events
+     * @throws HTTPBadRequestException If the body is empty or it is not a valid batch, or it is too large
+     */
+    public List<Event> createEvents(String target, Map<String, String> eventHeaders, byte[] buffer, int offset,
+            int length) throws HTTPBadRequestException {
+        ArrayList<Event> events = new ArrayList<Event>();
+        
+        if (!target.equals(batchNotificationsTarget)) {
+            events.add(createEvent(eventHeaders, buffer, offset, length));
+            return events;
+        } // if
+        
+        int adaptedLength = adaptBody(buffer, offset, length, true);
+        List<int[]> elements = splitBatch(buffer, offset, adaptedLength);
+        
+        if (elements.size() > batchMaxNotifications) {
+            logger.warn("Bad HTTP notification (More than " + batchMaxNotifications + " notifications in the batch)");
+            throw new HTTPBadRequestException("More than " + batchMaxNotifications + " notifications in the batch");
+        } // if
+        
+        for (int[] element : elements) {
+            // each event has its own headers, since they may be modified by the interceptors
+            byte[] data = Arrays.copyOfRange(buffer, element[0], element[1]);
+            events.add(EventBuilder.withBody(data, new HashMap<String, String>(eventHeaders)));
+        } // for
+        
+        if (events.isEmpty()) {
+            logger.warn("Bad HTTP notification (No notifications in the batch)");
+            throw new HTTPBadRequestException("No notifications in the batch");
+        } // if
+        
+        // the first notification was charged when admitted
+        admissionController.charge(eventHeaders.get(Constants.ORG_HEADER), events.size() - 1);
+        CygnusLogger.info(logger, "Received batch (numNotifications={})", events.size());
+        CygnusLogger.debug(logger, "Adding flume event headers ({})", eventHeaders);
+        return events;
+    } // createEvents
+    
+    /**
+     * Creates the Flume event for a single notification. The body is adapted within the given buffer (see adaptBody)
+     * and then copied into the event.
+     * @param eventHeaders
+     * @param buffer Buffer containing the body, it is modified
+     * @param offset Offset of the body within the buffer
+     * @param length Length of the body
+     * @return The Flume event
+     * @throws HTTPBadRequestException If the body is empty
+     */
+    private Event createEvent(Map<String, String> eventHeaders, byte[] buffer, int offset, int length)
+        throws HTTPBadRequestException {
+        boolean isJson = eventHeaders.get(Constants.CONTENT_TYPE).equals("application/json");
+        int adaptedLength = adaptBody(buffer, offset, length, isJson);
+        
+        if (adaptedLength == 0) {
+            logger.warn("Bad HTTP notification (No content in the request)");
+            throw new HTTPBadRequestException("No content in the request");
+        } // if
+        
+        byte[] data = Arrays.copyOfRange(buffer, offset, offset + adaptedLength);
+        CygnusLogger.info(logger, "Received data ({})", CygnusLogger.payload(data));
+        CygnusLogger.debug(logger, "Adding flume event headers ({})", eventHeaders);
+        Event event = EventBuilder.withBody(data, eventHeaders);
+        CygnusLogger.info(logger, "Event put in the channel (id={}, ttl={})", event.hashCode(), eventsTTL);
+        return event;
+    } // createEvent
+    
+    /**
+     * Splits a batch of Json notifications, either a Json array of notifications or a sequence of notifications
+     * separated by white spaces (e.g. newline-delimited Json), without parsing them. The notifications within an array
+     * must be separated by a single comma, without empty elements nor trailing comma. It is protected due to it is only
+     * required for testing purposes.
+     * @param data Buffer containing the batch
+     * @param offset Offset of the batch within the buffer
+     * @param length Length of the batch
+     * @return The start (inclusive) and end (exclusive) positions of each notification within the buffer
+     * @throws HTTPBadRequestException If the batch is not an array or sequence of Json objects
+     */
+    protected static List<int[]> splitBatch(byte[] data, int offset, int length) throws HTTPBadRequestException {
+        ArrayList<int[]> elements = new ArrayList<int[]>();
+        int end = offset + length;
+        int i = offset;
+        
+        while (i < end && isWhiteSpace(data[i])) {
+            i++;
+        } // while
+        
+        boolean isArray = i < end && data[i] == '[';
+        boolean isArrayClosed = false;
+        boolean isCommaExpected = false; // an element has been found within the array, and no comma after it
+        boolean isElementExpected = false; // a comma has been found within the array, and no element after it
+        int depth = 0;
+        int start = -1;
+        boolean inString = false;
+        boolean escaped = false;
+        
+        for (i = isArray ? i + 1 : i; i < end; i++) {
+            byte b = data[i];
+            
+            if (inString) {
+                if (escaped) {
+                    escaped = false;
+                } else if (b == '\\') {
+                    escaped = true;
+                } else if (b == '"') {
+                    inString = false;
+                } // if else if
+            } else if (depth > 0) {
+                if (b == '"') {
+                    inString = true;
+                } else if (b == '{' || b == '[') {
+                    depth++;
+                } else if ((b == '}' || b == ']') && --depth == 0) {
+                    elements.add(new int[] {start, i + 1});
+                    isCommaExpected = isArray;
+                } // if else if
+            } else if (b == '{' && !isArrayClosed && !isCommaExpected) {
+                start = i;
+                depth = 1;
+                isElementExpected = false;
+            } else if (b == ']' && isArray && !isArrayClosed && !isElementExpected) {
+                isArrayClosed = true;
+            } else if (b == ',' && isCommaExpected && !isArrayClosed) {
+                isCommaExpected = false;
+                isElementExpected = true;
+            } else if (!isWhiteSpace(b)) {
+                throw new HTTPBadRequestException("Bad batch of notifications (unexpected character at position "
+                        + (i - offset) + ")");
+            } // if else if
+        } // for
+        
+        if (depth > 0 || (isArray && !isArrayClosed)) {
+            throw new HTTPBadRequestException("Bad batch of notifications (unexpected end)");
+        } // if
+        
+        return elements;
+    } // splitBatch
     
     /**
-     * Generates a new unique transaction identifier. The format for this id is:
-     * <bootTimeSeconds>-<bootTimeMilliseconds>-<transactionCount%10000000000>
-     * @return A new unique transaction identifier
+     * Checks if the given byte is a Json white space.
+     * @param b
+     * @return True if the byte is a Json white space, false otherwise
      */
-    private String generateTransId() {
-        long transCountTrunked = transactionCount % 10000000000L;
-        String transId = bootTimeSeconds + "-" + bootTimeMilliseconds + "-" + String.format("%010d", transCountTrunked);
+    private static boolean isWhiteSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    } // isWhiteSpace
+    
+    /**
+     * Reads the body of a notification, as it is, into the buffer of the current thread, sized from the Content-Length
+     * header if given. The buffer may be replaced by a larger one if the body does not fit.
+     * @param request
+     * @return The buffer containing the body, limited to the body length
+     * @throws IOException
+     */
+    private ByteBuffer readBody(javax.servlet.http.HttpServletRequest request) throws IOException {
+        byte[] buffer = BODY_BUFFER.get();
+        int contentLength = request.getContentLength();
+        
+        if (contentLength > buffer.length) {
+            // the Content-Length header is not trusted beyond the maximum pooled size, the buffer will grow if needed
+            buffer = new byte[Math.min(contentLength, Constants.BODY_BUFFER_MAX_POOLED_SIZE)];
+        } // if
+        
+        InputStream in = request.getInputStream();
+        int length = 0;
+        
+        while (contentLength < 0 || length < contentLength) {
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            } // if
+            
+            int read = in.read(buffer, length, buffer.length - length);
+            
+            if (read == -1) {
+                break;
+            } // if
+            
+            length += read;
+        } // while
+        
+        // keep the buffer for the next notifications, unless it is too large
+        if (buffer.length <= Constants.BODY_BUFFER_MAX_POOLED_SIZE) {
+            BODY_BUFFER.set(buffer);
+        } // if
+        
+        return ByteBuffer.wrap(buffer, 0, length);
+    } // readBody
+    
+    /**
+     * Adapts the body of a notification within the given buffer, in a single pass. Three adaptations are done:
+     *   1. the line breaks are removed
+     *   2. all the appearances of "contextValue" are replaced with "value" in order Orion versions under 0.10.0 may
+     *      work (Json content type only)
+     *   3. all the white spaces between tags are removed, e.g. "<tag1>1</tag1>      <tag2>2</tag2>" becomes
+     *      "<tag1>1</tag1><tag2>2</tag2>"
+     * The adapted body is never longer than the original one, and it starts at the same offset.
+     * @param data Buffer containing the body
+     * @param offset Offset of the body within the buffer
+     * @param length Length of the body
+     * @param isJson True if the content type is Json, false otherwise
+     * @return The length of the adapted body
+     */
+    protected static int adaptBody(byte[] data, int offset, int length, boolean isJson) {
+        int written = offset;
+        int lastTagEnd = -1; // position after the last written '>' only followed by white spaces, -1 if none
+        
+        for (int i = offset; i < offset + length; i++) {
+            byte b = data[i];
+            
+            if (b == '\n' || b == '\r') {
+                continue;
+            } // if
+            
+            if (b == '<' && lastTagEnd >= 0) {
+                written = lastTagEnd;
+            } // if
+            
+            data[written++] = b;
+            
+            if (b == '>') {
+                lastTagEnd = written;
+            } else if (b != ' ') {
+                lastTagEnd = -1;
+            } // if else if
+            
+            if (isJson && b == 'e' && written - offset >= CONTEXT_VALUE.length
+                    && endsWith(data, written, CONTEXT_VALUE)) {
+                written -= CONTEXT_VALUE.length;
+                System.arraycopy(VALUE, 0, data, written, VALUE.length);
+                written += VALUE.length;
+            } // if
+        } // for
+        
+        return written - offset;
+    } // adaptBody
+    
+    /**
+     * Checks if the given buffer, up to the given length, ends with the given bytes.
+     * @param data
+     * @param length
+     * @param suffix
+     * @return True if the buffer ends with the given bytes, false otherwise
+     */
+    private static boolean endsWith(byte[] data, int length, byte[] suffix) {
+        if (length < suffix.length) {
+            return false;
+        } // if
         
-        // check if the transactionCount must be restarted
-        if (transCountTrunked == 9999999999L) {
-            transactionCount = 0;
-            bootTimeMilliseconds = (bootTimeMilliseconds + 1) % 1000; // this could also overflow!
-        } else {
-            transactionCount++;
-        } // if else
+        for (int i = 0; i < suffix.length; i++) {
+            if (data[length - suffix.length + i] != suffix[i]) {
+                return false;
+            } // if
+        } // for
         
-        return transId;
-    } // generateTransId
- 
+        return true;
+    } // endsWith
+    
 } // OrionRestHandler
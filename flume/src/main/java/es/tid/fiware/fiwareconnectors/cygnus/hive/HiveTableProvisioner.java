@@ -0,0 +1,438 @@
+/**
+ * Copyright 2014 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-connectors (FI-WARE project).
+ *
+ * fiware-connectors is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-connectors is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-connectors. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with Francisco Romero
+ * francisco.romerobueno@telefonica.com
+ */
+
+package es.tid.fiware.fiwareconnectors.cygnus.hive;
+
+import es.tid.fiware.fiwareconnectors.cygnus.utils.Constants;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+
+/**
+ *
+ * @author frb
+ *
+ * Asynchronous provisioning of Hive external tables. The tables are created by a background thread, thus the callers
+ * are never blocked on Hive. Those tables whose creation fails are queued for being retried later, up to a maximum
+ * number of retries.
+ *
+ * The provisioned tables are recorded, and optionally persisted in a file (a table name per line), thus they are not
+ * created again, even after a restart. In that case the tables being provisioned are persisted as well, in a file
+ * named as the record file plus a '.pending' suffix (a table name and its creation query per line, separated by a
+ * tab), thus their provisioning is resumed after a restart.
+ *
+ * The background thread is started with the first provisioning, thus a provisioner never used does not hold a thread.
+ */
+public class HiveTableProvisioner {
+
+    private Logger logger;
+    private String hiveHost;
+    private String hivePort;
+    private String hadoopUser;
+    private String hadoopPassword;
+    private String recordFile;
+    private long retryInterval;
+    private int maxRetries;
+    private HashSet<String> provisionedTables;
+    private HashMap<String, String> pendingTables;
+    private ScheduledExecutorService executor;
+    private boolean shutdown;
+
+    /**
+     * Constructor. The provisioned tables are not persisted.
+     * @param hiveHost
+     * @param hivePort
+     * @param hadoopUser
+     * @param hadoopPassword
+     */
+    public HiveTableProvisioner(String hiveHost, String hivePort, String hadoopUser, String hadoopPassword) {
+        this(hiveHost, hivePort, hadoopUser, hadoopPassword, "", Constants.HIVE_RETRY_INTERVAL,
+                Constants.HIVE_MAX_RETRIES);
+    } // HiveTableProvisioner
+
+    /**
+     * Constructor.
+     * @param hiveHost
+     * @param hivePort
+     * @param hadoopUser
+     * @param hadoopPassword
+     * @param recordFile File where the provisioned tables are persisted, empty if not persisted; the tables being
+     * provisioned are persisted in the same file name plus a '.pending' suffix
+     * @param retryInterval Number of milliseconds between retries of a failed table creation
+     * @param maxRetries Maximum number of retries of a failed table creation
+     */
+    public HiveTableProvisioner(String hiveHost, String hivePort, String hadoopUser, String hadoopPassword,
+            String recordFile, long retryInterval, int maxRetries) {
+        logger = Logger.getLogger(HiveTableProvisioner.class);
+        this.hiveHost = hiveHost;
+        this.hivePort = hivePort;
+        this.hadoopUser = hadoopUser;
+        this.hadoopPassword = hadoopPassword;
+        this.recordFile = recordFile;
+        this.retryInterval = retryInterval;
+        this.maxRetries = maxRetries;
+        provisionedTables = new HashSet<String>();
+        pendingTables = new HashMap<String, String>();
+        executor = null;
+        shutdown = false;
+        loadRecord();
+        loadPending();
+        
+        // resume the provisioning of the tables pending before a restart
+        for (Map.Entry<String, String> entry : pendingTables.entrySet()) {
+            schedule(new ProvisioningTask(entry.getKey(), entry.getValue()), 0);
+        } // for
+    } // HiveTableProvisioner
+
+    /**
+     * Provisions a Hive table, given its name and its creation query, unless it is already provisioned or being
+     * provisioned. The table is created in background.
+     * @param tableName
+     * @param query
+     */
+    public synchronized void provision(String tableName, String query) {
+        if (provisionedTables.contains(tableName) || pendingTables.containsKey(tableName)) {
+            return;
+        } // if
+
+        pendingTables.put(tableName, query);
+        savePending();
+        schedule(new ProvisioningTask(tableName, query), 0);
+    } // provision
+
+    /**
+     * Checks if a Hive table, given its name, has been provisioned.
+     * @param tableName
+     * @return True if the table has been provisioned, false otherwise
+     */
+    public synchronized boolean isProvisioned(String tableName) {
+        return provisionedTables.contains(tableName);
+    } // isProvisioned
+
+    /**
+     * Gets the number of tables being provisioned, including those ones waiting for a retry.
+     * @return The number of tables being provisioned
+     */
+    public synchronized int getNumPending() {
+        return pendingTables.size();
+    } // getNumPending
+
+    /**
+     * Stops the background provisioning. The tables being provisioned are kept in the pending file, if a record file
+     * was given, thus their provisioning is resumed after a restart; otherwise they are discarded.
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+
+        if (executor != null) {
+            executor.shutdownNow();
+        } // if
+    } // shutdown
+
+    /**
+     * Checks if the background thread has been started. It is protected due to it is only required for testing
+     * purposes.
+     * @return True if the background thread has been started, false otherwise
+     */
+    protected synchronized boolean isStarted() {
+        return executor != null;
+    } // isStarted
+
+    /**
+     * Creates a Hive table. It is protected in order it can be overridden for testing purposes.
+     * @param query
+     * @return True if the table could be created, false otherwise
+     */
+    protected boolean createTable(String query) {
+        HiveClient hiveClient = new HiveClient(hiveHost, hivePort, hadoopUser, hadoopPassword);
+        return hiveClient.doCreateTable(query);
+    } // createTable
+
+    /**
+     * Schedules a provisioning task.
+     * @param task
+     * @param delay
+     */
+    private void schedule(ProvisioningTask task, long delay) {
+        ScheduledExecutorService currentExecutor = getExecutor();
+
+        if (currentExecutor == null) {
+            logger.debug("The Hive table provisioning could not be scheduled, the provisioner is shut down (table="
+                    + task.getTableName() + ")");
+            return;
+        } // if
+
+        try {
+            currentExecutor.schedule(task, delay, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            logger.debug("The Hive table provisioning could not be scheduled (table=" + task.getTableName()
+                    + ", details=" + e.getMessage() + ")");
+        } // try catch
+    } // schedule
+
+    /**
+     * Gets the executor running the provisioning tasks, starting it if not started yet.
+     * @return The executor running the provisioning tasks, null if the provisioner is shut down
+     */
+    private synchronized ScheduledExecutorService getExecutor() {
+        if (executor == null && !shutdown) {
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "HiveTableProvisioner");
+                    thread.setDaemon(true);
+                    return thread;
+                } // newThread
+
+            });
+        } // if
+
+        return executor;
+    } // getExecutor
+
+    /**
+     * Records a Hive table as provisioned, persisting it if a record file was given; then it is removed from the
+     * pending file.
+     * @param tableName
+     */
+    private synchronized void recordProvisioned(String tableName) {
+        pendingTables.remove(tableName);
+        provisionedTables.add(tableName);
+
+        if (recordFile == null || recordFile.isEmpty()) {
+            return;
+        } // if
+
+        FileWriter writer = null;
+
+        try {
+            writer = new FileWriter(recordFile, true);
+            writer.write(tableName + "\n");
+        } catch (IOException e) {
+            logger.warn("The provisioned Hive table could not be recorded (table=" + tableName + ", file="
+                    + recordFile + ", details=" + e.getMessage() + ")");
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    logger.debug("The Hive tables record file could not be closed (" + e.getMessage() + ")");
+                } // try catch
+            } // if
+        } // try catch finally
+
+        // once recorded as provisioned, the table is not pending anymore
+        savePending();
+    } // recordProvisioned
+
+    /**
+     * Discards a Hive table whose provisioning has definitely failed, thus it will be provisioned again if requested.
+     * @param tableName
+     */
+    private synchronized void discardPending(String tableName) {
+        pendingTables.remove(tableName);
+        savePending();
+    } // discardPending
+
+    /**
+     * Persists the tables being provisioned, and their creation queries, in the pending file, if a record file was
+     * given. The file is rewritten from scratch, or deleted if there is no pending table.
+     */
+    private synchronized void savePending() {
+        if (recordFile == null || recordFile.isEmpty()) {
+            return;
+        } // if
+
+        File pendingFile = new File(recordFile + ".pending");
+
+        if (pendingTables.isEmpty()) {
+            if (pendingFile.exists() && !pendingFile.delete()) {
+                logger.warn("The pending Hive tables file could not be deleted (file=" + pendingFile + ")");
+            } // if
+
+            return;
+        } // if
+
+        FileWriter writer = null;
+
+        try {
+            writer = new FileWriter(pendingFile, false);
+
+            for (Map.Entry<String, String> entry : pendingTables.entrySet()) {
+                // the queries are written in a single line
+                writer.write(entry.getKey() + "\t" + entry.getValue().replace('\n', ' ').replace('\r', ' ') + "\n");
+            } // for
+        } catch (IOException e) {
+            logger.warn("The pending Hive tables could not be persisted (file=" + pendingFile + ", details="
+                    + e.getMessage() + ")");
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    logger.debug("The pending Hive tables file could not be closed (" + e.getMessage() + ")");
+                } // try catch
+            } // if
+        } // try catch finally
+    } // savePending
+
+    /**
+     * Loads the provisioned tables from the record file, if given and existing.
+     */
+    private void loadRecord() {
+        if (recordFile == null || recordFile.isEmpty() || !new File(recordFile).exists()) {
+            return;
+        } // if
+
+        BufferedReader reader = null;
+
+        try {
+            reader = new BufferedReader(new FileReader(recordFile));
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    provisionedTables.add(line.trim());
+                } // if
+            } // while
+
+            logger.info("Provisioned Hive tables loaded (file=" + recordFile + ", numTables="
+                    + provisionedTables.size() + ")");
+        } catch (IOException e) {
+            logger.warn("The provisioned Hive tables could not be loaded (file=" + recordFile + ", details="
+                    + e.getMessage() + ")");
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    logger.debug("The Hive tables record file could not be closed (" + e.getMessage() + ")");
+                } // try catch
+            } // if
+        } // try catch finally
+    } // loadRecord
+
+    /**
+     * Loads the tables being provisioned before a restart, and their creation queries, from the pending file, if a
+     * record file was given and the pending file exists. Those tables already provisioned are skipped.
+     */
+    private void loadPending() {
+        if (recordFile == null || recordFile.isEmpty()) {
+            return;
+        } // if
+
+        File pendingFile = new File(recordFile + ".pending");
+
+        if (!pendingFile.exists()) {
+            return;
+        } // if
+
+        BufferedReader reader = null;
+
+        try {
+            reader = new BufferedReader(new FileReader(pendingFile));
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                int separator = line.indexOf('\t');
+
+                if (separator <= 0) {
+                    continue;
+                } // if
+
+                String tableName = line.substring(0, separator).trim();
+
+                if (!provisionedTables.contains(tableName)) {
+                    pendingTables.put(tableName, line.substring(separator + 1));
+                } // if
+            } // while
+
+            logger.info("Pending Hive tables loaded (file=" + pendingFile + ", numTables=" + pendingTables.size()
+                    + ")");
+        } catch (IOException e) {
+            logger.warn("The pending Hive tables could not be loaded (file=" + pendingFile + ", details="
+                    + e.getMessage() + ")");
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    logger.debug("The pending Hive tables file could not be closed (" + e.getMessage() + ")");
+                } // try catch
+            } // if
+        } // try catch finally
+    } // loadPending
+
+    /**
+     * Creation of a Hive table, retried if failed.
+     */
+    private class ProvisioningTask implements Runnable {
+
+        private String tableName;
+        private String query;
+        private int numRetries;
+
+        /**
+         * Constructor.
+         * @param tableName
+         * @param query
+         */
+        public ProvisioningTask(String tableName, String query) {
+            this.tableName = tableName;
+            this.query = query;
+            numRetries = 0;
+        } // ProvisioningTask
+
+        public String getTableName() {
+            return tableName;
+        } // getTableName
+
+        @Override
+        public void run() {
+            logger.info("Creating Hive external table=" + tableName);
+
+            if (createTable(query)) {
+                recordProvisioned(tableName);
+            } else if (numRetries < maxRetries) {
+                numRetries++;
+                logger.warn("The HiveQL external table could not be created, but Cygnus can continue working... "
+                        + "Retrying in " + retryInterval + " ms (table=" + tableName + ", retry=" + numRetries + "/"
+                        + maxRetries + ")");
+                schedule(this, retryInterval);
+            } else {
+                discardPending(tableName);
+                logger.warn("The HiveQL external table could not be created, but Cygnus can continue working... "
+                        + "Check your Hive/Shark installation (table=" + tableName + ")");
+            } // if else if
+        } // run
+
+    } // ProvisioningTask
+
+} // HiveTableProvisioner
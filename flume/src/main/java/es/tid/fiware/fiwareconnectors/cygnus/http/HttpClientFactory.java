@@ -19,19 +19,31 @@
 
 package es.tid.fiware.fiwareconnectors.cygnus.http;
 
+import es.tid.fiware.fiwareconnectors.cygnus.management.StatusReporter;
 import es.tid.fiware.fiwareconnectors.cygnus.utils.Constants;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
+import org.apache.http.HttpResponse;
 import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
 import org.apache.log4j.Logger;
 
 /**
@@ -41,47 +53,215 @@ import org.apache.log4j.Logger;
  * This is a convenience class in order the clients do not have to import stuff from org.apache.http and deal with its
  * details. It implements a Http client factory.
  * 
+ * Each factory owns its connections pool, thus the sinks do not share (nor overwrite) their pools, and a single Http
+ * client per pool, which is thread-safe and thus returned to every caller. The idle and expired connections are
+ * evicted in background.
+ * 
  */
-public class HttpClientFactory {
+public class HttpClientFactory implements StatusReporter {
     
-    private static Logger logger;
-    private static PoolingClientConnectionManager connectionsManager;
-    private static PoolingClientConnectionManager sslConnectionsManager;
+    private Logger logger;
+    private final int maxConns;
+    private final int maxConnsPerRoute;
+    private final int connectTimeout;
+    private final int socketTimeout;
+    private final long keepAlive;
+    private final long idleTimeout;
+    private PoolingClientConnectionManager connectionsManager;
+    private PoolingClientConnectionManager sslConnectionsManager;
+    private volatile DefaultHttpClient httpClient;
+    private volatile DefaultHttpClient sslHttpClient;
+    private ScheduledExecutorService evictor;
    
     /**
-     * Constructor.
+     * Constructor. The connections pool is created with the default configuration.
      * @param ssl True if SSL connections are desired. False otherwise.
      */
     public HttpClientFactory(boolean ssl) {
+        this(ssl, Constants.MAX_CONNS, Constants.MAX_CONNS_PER_ROUTE, Constants.HTTP_CONNECT_TIMEOUT,
+                Constants.HTTP_SOCKET_TIMEOUT, Constants.HTTP_KEEP_ALIVE, Constants.HTTP_IDLE_TIMEOUT);
+    } // HttpClientFactory
+    
+    /**
+     * Constructor.
+     * @param ssl True if SSL connections are desired. False otherwise.
+     * @param maxConns Maximum number of connections in the pool
+     * @param maxConnsPerRoute Maximum number of connections in the pool per route (i.e. per target host)
+     * @param connectTimeout Number of milliseconds waiting for a connection to be established, 0 if infinite
+     * @param socketTimeout Number of milliseconds waiting for data, 0 if infinite
+     * @param keepAlive Number of milliseconds a connection is kept alive when the server does not state it, 0 if
+     * indefinitely
+     * @param idleTimeout Number of milliseconds after which an idle connection is closed, 0 if never closed
+     */
+    public HttpClientFactory(boolean ssl, int maxConns, int maxConnsPerRoute, int connectTimeout, int socketTimeout,
+            long keepAlive, long idleTimeout) {
         // create the logger
         logger = Logger.getLogger(HttpClientFactory.class);
+        this.maxConns = maxConns;
+        this.maxConnsPerRoute = maxConnsPerRoute;
+        this.connectTimeout = connectTimeout;
+        this.socketTimeout = socketTimeout;
+        this.keepAlive = keepAlive;
+        this.idleTimeout = idleTimeout;
+        getHttpClient(ssl);
+        logger.info("Setting max total connections (" + maxConns + ")");
+        logger.info("Setting default max connections per route (" + maxConnsPerRoute + ")");
         
-        if (ssl) {
-            sslConnectionsManager = new PoolingClientConnectionManager(getSchemeRegistry());
-            sslConnectionsManager.setMaxTotal(Constants.MAX_CONNS);
-            sslConnectionsManager.setDefaultMaxPerRoute(Constants.MAX_CONNS_PER_ROUTE);
-        } else {
-            connectionsManager = new PoolingClientConnectionManager();
-            connectionsManager.setMaxTotal(Constants.MAX_CONNS);
-            connectionsManager.setDefaultMaxPerRoute(Constants.MAX_CONNS_PER_ROUTE);
-        } // if else
-        
-        logger.info("Setting max total connections (" + Constants.MAX_CONNS + ")");
-        logger.info("Settubg default max connections per route (" + Constants.MAX_CONNS_PER_ROUTE + ")");
+        if (idleTimeout > 0) {
+            evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "HttpClientFactory-evictor");
+                    thread.setDaemon(true);
+                    return thread;
+                } // newThread
+
+            });
+            evictor.scheduleWithFixedDelay(new Runnable() {
+
+                @Override
+                public void run() {
+                    evictIdleConnections();
+                } // run
+
+            }, idleTimeout, idleTimeout, TimeUnit.MILLISECONDS);
+        } // if
     } // HttpClientFactory
     
     /**
-     * 
+     * Gets the Http client of the (SSL) pool, which is created the first time it is requested. The same thread-safe
+     * Http client is returned on each call.
      * @param ssl True if SSL connections are desired. False otherwise.
      * @return A http client obtained from the (SSL) Connections Manager.
      */
     public DefaultHttpClient getHttpClient(boolean ssl) {
+        DefaultHttpClient client = ssl ? sslHttpClient : httpClient;
+        return client == null ? initHttpClient(ssl) : client;
+    } // getHttpClient
+    
+    /**
+     * Creates the Http client of the (SSL) pool, unless already created by another thread.
+     * @param ssl True if SSL connections are desired. False otherwise.
+     * @return A http client obtained from the (SSL) Connections Manager.
+     */
+    private synchronized DefaultHttpClient initHttpClient(boolean ssl) {
         if (ssl) {
-            return new DefaultHttpClient(sslConnectionsManager);
+            if (sslHttpClient == null) {
+                sslConnectionsManager = createConnectionsManager(getSchemeRegistry());
+                sslHttpClient = createHttpClient(sslConnectionsManager);
+            } // if
+            
+            return sslHttpClient;
         } else {
-            return new DefaultHttpClient(connectionsManager);
+            if (httpClient == null) {
+                connectionsManager = createConnectionsManager(null);
+                httpClient = createHttpClient(connectionsManager);
+            } // if
+            
+            return httpClient;
         } // if else
-    } // getHttpClient
+    } // initHttpClient
+    
+    /**
+     * Closes the expired connections, and those ones idle for more than the idle timeout.
+     */
+    public synchronized void evictIdleConnections() {
+        for (PoolingClientConnectionManager manager
+                : new PoolingClientConnectionManager[] {connectionsManager, sslConnectionsManager}) {
+            if (manager != null) {
+                manager.closeExpiredConnections();
+                manager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+            } // if
+        } // for
+    } // evictIdleConnections
+    
+    /**
+     * Closes all the connections and stops the background eviction. The factory cannot be used anymore.
+     */
+    public synchronized void close() {
+        if (evictor != null) {
+            evictor.shutdownNow();
+        } // if
+        
+        if (connectionsManager != null) {
+            connectionsManager.shutdown();
+        } // if
+        
+        if (sslConnectionsManager != null) {
+            sslConnectionsManager.shutdown();
+        } // if
+    } // close
+    
+    /**
+     * Gets the statistics of the connections pools: the number of leased, available (i.e. idle) and pending (i.e.
+     * waiting for a connection) connections, and the maximum number of connections.
+     * @return The statistics of the connections pools
+     */
+    @Override
+    public synchronized Map<String, Object> getStatus() {
+        LinkedHashMap<String, Object> status = new LinkedHashMap<String, Object>();
+        
+        if (connectionsManager != null) {
+            status.put("http", getStatus(connectionsManager.getTotalStats()));
+        } // if
+        
+        if (sslConnectionsManager != null) {
+            status.put("https", getStatus(sslConnectionsManager.getTotalStats()));
+        } // if
+        
+        return status;
+    } // getStatus
+    
+    private Map<String, Object> getStatus(PoolStats stats) {
+        LinkedHashMap<String, Object> status = new LinkedHashMap<String, Object>();
+        status.put("numLeased", stats.getLeased());
+        status.put("numAvailable", stats.getAvailable());
+        status.put("numPending", stats.getPending());
+        status.put("maxConns", stats.getMax());
+        return status;
+    } // getStatus
+    
+    /**
+     * Creates a connections manager.
+     * @param schemeRegistry Scheme registry, null for the default one
+     * @return A connections manager
+     */
+    private PoolingClientConnectionManager createConnectionsManager(SchemeRegistry schemeRegistry) {
+        PoolingClientConnectionManager manager = schemeRegistry == null
+                ? new PoolingClientConnectionManager() : new PoolingClientConnectionManager(schemeRegistry);
+        manager.setMaxTotal(maxConns);
+        manager.setDefaultMaxPerRoute(maxConnsPerRoute);
+        return manager;
+    } // createConnectionsManager
+    
+    /**
+     * Creates a Http client using the given connections manager.
+     * @param manager
+     * @return A Http client
+     */
+    private DefaultHttpClient createHttpClient(PoolingClientConnectionManager manager) {
+        DefaultHttpClient client = new DefaultHttpClient(manager);
+        HttpConnectionParams.setConnectionTimeout(client.getParams(), connectTimeout);
+        HttpConnectionParams.setSoTimeout(client.getParams(), socketTimeout);
+        
+        // the pooled connections may have been closed by the server while idle
+        HttpConnectionParams.setStaleCheckingEnabled(client.getParams(), true);
+        
+        if (keepAlive > 0) {
+            client.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+
+                @Override
+                public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                    long duration = super.getKeepAliveDuration(response, context);
+                    return duration > 0 ? duration : keepAlive;
+                } // getKeepAliveDuration
+
+            });
+        } // if
+        
+        return client;
+    } // createHttpClient
     
     /**
      * Gets a SchemeRegistry object accepting all the X509 certificates by default.
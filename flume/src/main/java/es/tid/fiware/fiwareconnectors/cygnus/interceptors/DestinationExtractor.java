@@ -19,75 +19,236 @@
 
 package es.tid.fiware.fiwareconnectors.cygnus.interceptors;
 
-import com.google.gson.Gson;
 import es.tid.fiware.fiwareconnectors.cygnus.containers.NotifyContextRequest;
 import es.tid.fiware.fiwareconnectors.cygnus.containers.NotifyContextRequest.ContextElement;
 import es.tid.fiware.fiwareconnectors.cygnus.containers.NotifyContextRequest.ContextElementResponse;
-import es.tid.fiware.fiwareconnectors.cygnus.containers.NotifyContextRequestSAXHandler;
+import es.tid.fiware.fiwareconnectors.cygnus.containers.NotifyContextRequestEvent;
+import es.tid.fiware.fiwareconnectors.cygnus.containers.NotifyContextRequestParser;
+import es.tid.fiware.fiwareconnectors.cygnus.containers.NotifyContextRequestSplitter;
+import es.tid.fiware.fiwareconnectors.cygnus.log.CygnusLogger;
+import es.tid.fiware.fiwareconnectors.cygnus.management.ManagementInterface;
+import es.tid.fiware.fiwareconnectors.cygnus.management.StatusReporter;
 import es.tid.fiware.fiwareconnectors.cygnus.utils.Constants;
+import es.tid.fiware.fiwareconnectors.cygnus.utils.LRUCache;
 import java.io.BufferedReader;
-import java.io.FileNotFoundException;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
 import org.apache.flume.Context;
 import org.apache.flume.Event;
 import org.apache.flume.interceptor.Interceptor;
 import org.apache.log4j.Logger;
-import org.xml.sax.InputSource;
 
 /**
  * Custom interceptor in charge of extracting the destination where the data must be persisted. This destination is
  * added as a 'destination' header.
  * 
+ * The intercepted event is replaced by an event carrying the parsed notification as well, thus the sinks do not have
+ * to parse it again.
+ * 
+ * Optionally, the events intercepted in batches (as the sources do) are split into an event per context element, each
+ * one with its own destination; thus, a notification carrying many context elements can be persisted in parallel by
+ * several sinks reading from the same channel. Since the intercepted events are put in the channel within a single
+ * transaction, an event is split only if the intercepted events do not exceed a maximum; otherwise, it is intercepted
+ * as a whole.
+ * 
+ * The matching table file is checked for changes in background, and reloaded without pausing the interception.
+ * 
  * @author frb
  */
 public class DestinationExtractor implements Interceptor {
     
     private Logger logger;
     private String matchingTableFile;
-    private ArrayList<MatchingRule> matchingTable;
+    private int matchingCacheSize;
+    private long matchingTableCheckInterval;
+    // copy-on-write reference, the compiled matching table is replaced as a whole when reloaded
+    private volatile CompiledMatchingTable compiledTable;
+    private ScheduledExecutorService watcher;
+    private final AtomicLong numReloads;
+    private final AtomicLong numReloadErrors;
+    private boolean splitContextElements;
+    private int splitMaxEvents;
     
     /**
      * Constructor.
+     * @param matchingTableFile
      */
     public DestinationExtractor(String matchingTableFile) {
+        this(matchingTableFile, false);
+    } // DestinationExtractor
+    
+    /**
+     * Constructor.
+     * @param matchingTableFile
+     * @param splitContextElements True if the events are split into an event per context element, false otherwise
+     */
+    public DestinationExtractor(String matchingTableFile, boolean splitContextElements) {
+        this(matchingTableFile, splitContextElements, Constants.MATCHING_CACHE_SIZE,
+                Constants.MATCHING_TABLE_CHECK_INTERVAL);
+    } // DestinationExtractor
+    
+    /**
+     * Constructor.
+     * @param matchingTableFile
+     * @param splitContextElements True if the events are split into an event per context element, false otherwise
+     * @param matchingCacheSize Maximum number of cached destinations, 0 if not cached
+     * @param matchingTableCheckInterval Number of milliseconds between checks of the matching table file for changes,
+     * 0 if not checked
+     */
+    public DestinationExtractor(String matchingTableFile, boolean splitContextElements, int matchingCacheSize,
+            long matchingTableCheckInterval) {
+        this(matchingTableFile, splitContextElements, Constants.SPLIT_MAX_EVENTS, matchingCacheSize,
+                matchingTableCheckInterval);
+    } // DestinationExtractor
+    
+    /**
+     * Constructor.
+     * @param matchingTableFile
+     * @param splitContextElements True if the events are split into an event per context element, false otherwise
+     * @param splitMaxEvents Maximum number of events resulting from the interception of a list of events, beyond which
+     * the events are not split; it must not be greater than the transaction capacity of the channel
+     * @param matchingCacheSize Maximum number of cached destinations, 0 if not cached
+     * @param matchingTableCheckInterval Number of milliseconds between checks of the matching table file for changes,
+     * 0 if not checked
+     */
+    public DestinationExtractor(String matchingTableFile, boolean splitContextElements, int splitMaxEvents,
+            int matchingCacheSize, long matchingTableCheckInterval) {
         logger = Logger.getLogger(DestinationExtractor.class);
         this.matchingTableFile = matchingTableFile;
+        this.splitContextElements = splitContextElements;
+        this.splitMaxEvents = splitMaxEvents;
+        this.matchingCacheSize = matchingCacheSize;
+        this.matchingTableCheckInterval = matchingTableCheckInterval;
+        compiledTable = new CompiledMatchingTable(new ArrayList<MatchingRule>(), matchingCacheSize, 0, 0, 0);
+        numReloads = new AtomicLong();
+        numReloadErrors = new AtomicLong();
     } // DestinationExtractor
     
     /**
      * Gets the matching table. This is protected since it is only going to be used in the tests.
      * @return
      */
-    protected ArrayList<MatchingRule> getMatchingTable() {
-        return matchingTable;
+    protected List<MatchingRule> getMatchingTable() {
+        return compiledTable.getRules();
     } // getMatchingTable
     
+    /**
+     * Gets the destinations cache. This is protected since it is only going to be used in the tests.
+     * @return
+     */
+    protected LRUCache<String, String> getDestinationsCache() {
+        return compiledTable.getCache();
+    } // getDestinationsCache
+    
     @Override
     public void initialize() {
         // load the matching table from the file where it is described
-        matchingTable = new ArrayList<MatchingRule>();
-        BufferedReader reader = null;
-        
         try {
-            reader = new BufferedReader(new FileReader(matchingTableFile));
-        } catch (FileNotFoundException e) {
-            logger.error("Runtime error (File not found. Details=" + e.getMessage() + ")");
-                return;
+            compiledTable = load();
+        } catch (IOException e) {
+            logger.error("Runtime error (" + e.getMessage() + ")");
         } // try catch
         
-        String line;
+        ManagementInterface.registerStatusReporter(getStatusReporterName(), new StatusReporter() {
+            
+            @Override
+            public Map<String, Object> getStatus() {
+                CompiledMatchingTable table = compiledTable;
+                LinkedHashMap<String, Object> status = new LinkedHashMap<String, Object>();
+                status.put("file", matchingTableFile);
+                status.put("numRules", table.getRules().size());
+                status.put("loadTime", table.getLoadTime() == 0 ? null : new Date(table.getLoadTime()).toString());
+                status.put("numReloads", numReloads.get());
+                status.put("numReloadErrors", numReloadErrors.get());
+                status.put("numCachedDestinations", table.getCache().size());
+                status.put("numCacheHits", table.getCache().getNumHits());
+                status.put("numCacheMisses", table.getCache().getNumMisses());
+                return status;
+            } // getStatus
+            
+        });
+        
+        // watch the matching table file for changes, in background
+        if (matchingTableCheckInterval > 0) {
+            watcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "DestinationExtractor-watcher");
+                    thread.setDaemon(true);
+                    return thread;
+                } // newThread
+
+            });
+            watcher.scheduleWithFixedDelay(new Runnable() {
+                
+                @Override
+                public void run() {
+                    reloadIfModified();
+                } // run
+                
+            }, matchingTableCheckInterval, matchingTableCheckInterval, TimeUnit.MILLISECONDS);
+        } // if
+    } // initialize
+    
+    /**
+     * Reloads the matching table if its file has been modified since last loaded. The new matching table is loaded and
+     * compiled aside, and then it replaces the current one at once, thus the events being intercepted are not paused.
+     * If the new matching table cannot be loaded, the current one is kept. It is protected due to it is only required
+     * for testing purposes.
+     */
+    protected void reloadIfModified() {
+        File file = new File(matchingTableFile);
+        CompiledMatchingTable table = compiledTable;
+        
+        if (file.lastModified() == table.getLastModified() && file.length() == table.getLength()) {
+            return;
+        } // if
+        
+        try {
+            compiledTable = load();
+            numReloads.incrementAndGet();
+            logger.info("Matching table reloaded (file=" + matchingTableFile + ", numRules="
+                    + compiledTable.getRules().size() + ")");
+        } catch (Exception e) {
+            numReloadErrors.incrementAndGet();
+            logger.error("The matching table could not be reloaded, the current one is kept (file="
+                    + matchingTableFile + ", details=" + e.getMessage() + ")");
+        } // try catch
+    } // reloadIfModified
+    
+    /**
+     * Loads and compiles the matching table; the destinations are cached, since most of the notifications are about
+     * the same entities.
+     * @return The compiled matching table
+     * @throws IOException
+     */
+    private CompiledMatchingTable load() throws IOException {
+        // the file attributes are got before reading it, thus a modification while reading causes a new reload
+        File file = new File(matchingTableFile);
+        long lastModified = file.lastModified();
+        long length = file.length();
+        ArrayList<MatchingRule> matchingTable = new ArrayList<MatchingRule>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
         
         try {
+            String line;
+            
             while ((line = reader.readLine()) != null) {
                 if (line.startsWith("#") || line.length() == 0) {
                     continue;
@@ -98,92 +259,171 @@ public class DestinationExtractor implements Interceptor {
                 ArrayList<String> fields = new ArrayList<String>(Arrays.asList(tokens[1].split(",")));
                 matchingTable.add(new MatchingRule(id, fields, tokens[2], tokens[3]));
             } // while
-        } catch (IOException e) {
-            logger.error("Runtime error (I/O exception. Details=" + e.getMessage() + ")");
-        } // try catch
-    } // initialize
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                logger.debug("The matching table file could not be closed (" + e.getMessage() + ")");
+            } // try catch
+        } // try finally
+        
+        return new CompiledMatchingTable(matchingTable, matchingCacheSize, System.currentTimeMillis(), lastModified,
+                length);
+    } // load
+    
+    /**
+     * Gets the name this interceptor is registered with in the management interface.
+     * @return The name this interceptor is registered with in the management interface
+     */
+    private String getStatusReporterName() {
+        return "matchingTable(" + matchingTableFile + ")";
+    } // getStatusReporterName
  
     @Override
     public Event intercept(Event event) {
         Map<String, String> headers = event.getHeaders();
-        String body = new String(event.getBody());
-        NotifyContextRequest notification = null;
-
-        if (headers.get(Constants.CONTENT_TYPE).contains("application/json")) {
-            Gson gson = new Gson();
-
-            try {
-                notification = gson.fromJson(body, NotifyContextRequest.class);
-            } catch (Exception e) {
-                logger.error("Runtime error (" + e.getMessage() + ")");
-                return null;
-            } // try catch
-        } else if (headers.get(Constants.CONTENT_TYPE).contains("application/xml")) {
-            SAXParserFactory saxParserFactory = SAXParserFactory.newInstance();
-            
-            try {
-                SAXParser saxParser = saxParserFactory.newSAXParser();
-                NotifyContextRequestSAXHandler handler = new NotifyContextRequestSAXHandler();
-                saxParser.parse(new InputSource(new StringReader(body)), handler);
-                notification = handler.getNotifyContextRequest();
-            } catch (Exception e) {
-                logger.error("Runtime error (" + e.getMessage() + ")");
-                return null;
-            } // try catch
-        } else {
-            // this point should never be reached since the content type has been checked when receiving the
-            // notification
-            logger.error("Runtime error (Unrecognized content type (not Json nor XML)");
+        NotifyContextRequest notification = parse(event);
+        
+        if (notification == null) {
             return null;
-        } // if else if
+        } // if
         
-        // iterate on the contextResponses
-        ArrayList<String> destinations = new ArrayList<String>();
-        ArrayList<ContextElementResponse> contextResponses = notification.getContextResponses();
+        headers.put(Constants.DESTINATION, getDestinations(notification));
         
-        for (ContextElementResponse contextElementResponse : contextResponses) {
-            ContextElement contextElement = contextElementResponse.getContextElement();
-            
-            // iterate on the matching rules
-            boolean added = false;
-            
-            for (MatchingRule rule : matchingTable) {
-                String concat = concatenateFields(rule.fields, contextElement);
-                Matcher matcher = rule.pattern.matcher(concat);
-                
-                if (matcher.matches()) {
-                    destinations.add(rule.destination);
-                    added = true;
-                    break;
-                } // if
-            } // for
-            
-            // check if no matching was found, in that case the default destination ('<entityId>-<entityType>') is used
-            if (!added) {
-                destinations.add(contextElement.getId() + "-" + contextElement.getType());
-            } // if
-        } // for
- 
-        headers.put(Constants.DESTINATION,
-                destinations.toString().replaceAll("\\[", "").replaceAll("\\]", "").replaceAll(" ", ""));
-        event.setHeaders(headers);
-        return event;
+        // the parsed notification travels together with the event, in order to be reused by the sinks
+        return new NotifyContextRequestEvent(headers, event.getBody(), notification);
     } // intercept
  
     @Override
     public List<Event> intercept(List<Event> events) {
         List<Event> interceptedEvents = new ArrayList<Event>(events.size());
         
-        for (Event event : events) {
+        for (int i = 0; i < events.size(); i++) {
+            Event event = events.get(i);
+            
+            if (splitContextElements) {
+                // the remaining events are counted as not split
+                split(event, interceptedEvents, splitMaxEvents - interceptedEvents.size() - (events.size() - i - 1));
+                continue;
+            } // if
+            
             Event interceptedEvent = intercept(event);
-            interceptedEvents.add(interceptedEvent);
+            
+            if (interceptedEvent != null) {
+                interceptedEvents.add(interceptedEvent);
+            } // if
         } // for
  
         return interceptedEvents;
     } // intercept
+    
+    /**
+     * Splits an event into an event per context element, each one with its own destination, thus the context elements
+     * can be persisted in parallel by different sinks. The event is not split if having a single context element, or
+     * if its body cannot be split (see NotifyContextRequestSplitter), or if it would result in more events than the
+     * given maximum; in that case, it is intercepted as a whole.
+     * @param event
+     * @param interceptedEvents List where the resulting events are added
+     * @param maxEvents Maximum number of events the event can be split into
+     */
+    private void split(Event event, List<Event> interceptedEvents, int maxEvents) {
+        NotifyContextRequest notification = parse(event);
+        
+        if (notification == null) {
+            return;
+        } // if
+        
+        ArrayList<ContextElementResponse> contextResponses = notification.getContextResponses();
+        List<byte[]> bodies = contextResponses.size() > 1 && contextResponses.size() <= maxEvents
+                ? NotifyContextRequestSplitter.split(event.getBody(), event.getHeaders().get(Constants.CONTENT_TYPE))
+                : null;
+        
+        if (bodies == null || bodies.size() != contextResponses.size()) {
+            // not split, but intercepted as a whole without parsing it again
+            Map<String, String> headers = event.getHeaders();
+            headers.put(Constants.DESTINATION, getDestinations(notification));
+            interceptedEvents.add(new NotifyContextRequestEvent(headers, event.getBody(), notification));
+            return;
+        } // if
+        
+        for (int i = 0; i < contextResponses.size(); i++) {
+            ContextElementResponse contextElementResponse = contextResponses.get(i);
+            NotifyContextRequest splitNotification = new NotifyContextRequest();
+            splitNotification.setSubscriptionId(notification.getSubscriptionId());
+            splitNotification.setOriginator(notification.getOriginator());
+            ArrayList<ContextElementResponse> splitContextResponses = new ArrayList<ContextElementResponse>(1);
+            splitContextResponses.add(contextElementResponse);
+            splitNotification.setContextResponses(splitContextResponses);
+            Map<String, String> headers = new HashMap<String, String>(event.getHeaders());
+            headers.put(Constants.DESTINATION, getDestination(contextElementResponse.getContextElement()));
+            interceptedEvents.add(new NotifyContextRequestEvent(headers, bodies.get(i), splitNotification));
+        } // for
+        
+        CygnusLogger.debug(logger, "Notification split into {} events", contextResponses.size());
+    } // split
+    
+    /**
+     * Parses the notification within an event.
+     * @param event
+     * @return The parsed notification, or null if it could not be parsed
+     */
+    private NotifyContextRequest parse(Event event) {
+        try {
+            return NotifyContextRequestParser.parse(event.getBody(), event.getHeaders().get(Constants.CONTENT_TYPE));
+        } catch (Exception e) {
+            logger.error("Runtime error (" + e.getMessage() + ")");
+            return null;
+        } // try catch
+    } // parse
+    
+    /**
+     * Gets the destinations of all the context elements of a notification.
+     * @param notification
+     * @return The comma-separated destinations, in the same order than the context elements
+     */
+    private String getDestinations(NotifyContextRequest notification) {
+        // iterate on the contextResponses
+        ArrayList<String> destinations = new ArrayList<String>();
+        
+        for (ContextElementResponse contextElementResponse : notification.getContextResponses()) {
+            destinations.add(getDestination(contextElementResponse.getContextElement()));
+        } // for
+        
+        return destinations.toString().replaceAll("\\[", "").replaceAll("\\]", "").replaceAll(" ", "");
+    } // getDestinations
+    
+    /**
+     * Gets the destination of a context element, given by the first matching rule or, if no rule matches, the default
+     * destination '<entityId>-<entityType>'. The destinations are cached by entity id and type, the only fields the
+     * rules can be about.
+     * @param contextElement
+     * @return The destination of the context element
+     */
+    private String getDestination(ContextElement contextElement) {
+        CompiledMatchingTable table = compiledTable;
+        String key = contextElement.getId() + '\u0000' + contextElement.getType();
+        String destination = table.getCache().get(key);
+        
+        if (destination == null) {
+            destination = table.getIndex().match(contextElement);
+            
+            if (destination == null) {
+                destination = contextElement.getId() + "-" + contextElement.getType();
+            } // if
+            
+            table.getCache().put(key, destination);
+        } // if
+        
+        return destination;
+    } // getDestination
  
     @Override
     public void close() {
+        if (watcher != null) {
+            watcher.shutdownNow();
+        } // if
+        
+        ManagementInterface.unregisterStatusReporter(getStatusReporterName());
     } // close
  
     /**
@@ -191,27 +431,84 @@ public class DestinationExtractor implements Interceptor {
      */
     public static class Builder implements Interceptor.Builder {
         private String matchingTableFile;
+        private boolean splitContextElements;
+        private int splitMaxEvents;
+        private int matchingCacheSize;
+        private long matchingTableCheckInterval;
  
         @Override
         public void configure(Context context) {
             matchingTableFile = context.getString("matching_table");
+            splitContextElements = context.getBoolean("split_context_elements", false);
+            splitMaxEvents = context.getInteger("split_max_events", Constants.SPLIT_MAX_EVENTS);
+            matchingCacheSize = context.getInteger("matching_cache_size", Constants.MATCHING_CACHE_SIZE);
+            matchingTableCheckInterval = context.getLong("matching_table_check_interval",
+                    Constants.MATCHING_TABLE_CHECK_INTERVAL);
         } // configure
  
         @Override
         public Interceptor build() {
-            return new DestinationExtractor(matchingTableFile);
+            return new DestinationExtractor(matchingTableFile, splitContextElements, splitMaxEvents,
+                    matchingCacheSize, matchingTableCheckInterval);
         } // build
     } // Builder
     
-    private String concatenateFields(ArrayList<String> fields, ContextElement contextElement) {
-        String concat = "";
+    /**
+     * Matching table as loaded at a given time, together with its compiled index and its destinations cache. It is not
+     * modified once created, but replaced.
+     */
+    private static class CompiledMatchingTable {
         
-        for (String field : fields) {
-            concat += contextElement.getString(field);
-        } // for
+        private final List<MatchingRule> rules;
+        private final MatchingTableIndex index;
+        private final LRUCache<String, String> cache;
+        private final long loadTime;
+        private final long lastModified;
+        private final long length;
+        
+        /**
+         * Constructor.
+         * @param rules
+         * @param cacheSize
+         * @param loadTime
+         * @param lastModified Last modification time of the file the table was loaded from
+         * @param length Length of the file the table was loaded from
+         */
+        public CompiledMatchingTable(List<MatchingRule> rules, int cacheSize, long loadTime, long lastModified,
+                long length) {
+            this.rules = Collections.unmodifiableList(rules);
+            this.index = new MatchingTableIndex(rules);
+            this.cache = new LRUCache<String, String>(cacheSize, 0);
+            this.loadTime = loadTime;
+            this.lastModified = lastModified;
+            this.length = length;
+        } // CompiledMatchingTable
+        
+        public List<MatchingRule> getRules() {
+            return rules;
+        } // getRules
+        
+        public MatchingTableIndex getIndex() {
+            return index;
+        } // getIndex
         
-        return concat;
-    } // concatenateFields
+        public LRUCache<String, String> getCache() {
+            return cache;
+        } // getCache
+        
+        public long getLoadTime() {
+            return loadTime;
+        } // getLoadTime
+        
+        public long getLastModified() {
+            return lastModified;
+        } // getLastModified
+        
+        public long getLength() {
+            return length;
+        } // getLength
+        
+    } // CompiledMatchingTable
     
     /**
      * Each one of the entries of the matching table.
@@ -260,6 +557,14 @@ public class DestinationExtractor implements Interceptor {
             return pattern.toString();
         } // getRegex
         
+        /**
+         * Gets the rule's compiled regular expression.
+         * @return the rule's compiled regular expression.
+         */
+        public Pattern getPattern() {
+            return pattern;
+        } // getPattern
+        
         /**
          * Gets the rule's destination.
          * @return The rule's destination.
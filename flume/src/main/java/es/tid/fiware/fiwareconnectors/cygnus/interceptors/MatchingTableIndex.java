@@ -0,0 +1,356 @@
+/**
+ * Copyright 2014 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-connectors (FI-WARE project).
+ *
+ * fiware-connectors is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-connectors is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-connectors. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with Francisco Romero
+ * francisco.romerobueno@telefonica.com
+ */
+
+package es.tid.fiware.fiwareconnectors.cygnus.interceptors;
+
+import es.tid.fiware.fiwareconnectors.cygnus.containers.NotifyContextRequest.ContextElement;
+import es.tid.fiware.fiwareconnectors.cygnus.interceptors.DestinationExtractor.MatchingRule;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ *
+ * @author frb
+ *
+ * Compiled matching table, giving the same destination than checking the matching rules one by one in the table order
+ * (the first matching rule wins), but without running all the regular expressions.
+ *
+ * The rules are grouped by their fields, thus the fields are concatenated once per group. Within a group:
+ *  - the rules whose regular expression is a literal are indexed in a hash map
+ *  - the rules whose regular expression is a literal followed by ".*" are indexed in a prefix trie
+ *  - the rest of rules are checked with their regular expressions, in the table order
+ * The groups are checked in the order of their first rule, and the checking stops as soon as no rule coming before the
+ * best matching one so far can be found.
+ *
+ * It is immutable, thus thread-safe.
+ */
+public class MatchingTableIndex {
+    
+    private static final String METACHARACTERS = "\\^$.|?*+()[]{}";
+    private final List<MatchingRule> rules;
+    private final ArrayList<FieldGroup> groups;
+    
+    /**
+     * Constructor.
+     * @param rules Matching rules, in the table order
+     */
+    public MatchingTableIndex(List<MatchingRule> rules) {
+        this.rules = new ArrayList<MatchingRule>(rules);
+        HashMap<List<String>, FieldGroup> groupsByFields = new HashMap<List<String>, FieldGroup>();
+        // the groups are created, and thus checked, in the order of their first rule
+        groups = new ArrayList<FieldGroup>();
+        
+        for (int position = 0; position < this.rules.size(); position++) {
+            MatchingRule rule = this.rules.get(position);
+            FieldGroup group = groupsByFields.get(rule.getFields());
+            
+            if (group == null) {
+                group = new FieldGroup(rule.getFields(), position);
+                groupsByFields.put(rule.getFields(), group);
+                groups.add(group);
+            } // if
+            
+            group.add(rule, position);
+        } // for
+    } // MatchingTableIndex
+    
+    /**
+     * Gets the destination of a context element.
+     * @param contextElement
+     * @return The destination of the first matching rule, or null if no rule matches
+     */
+    public String match(ContextElement contextElement) {
+        int best = Integer.MAX_VALUE;
+        
+        for (FieldGroup group : groups) {
+            if (group.getFirstPosition() >= best) {
+                break;
+            } // if
+            
+            best = group.match(group.concatenate(contextElement), best);
+        } // for
+        
+        return best == Integer.MAX_VALUE ? null : rules.get(best).getDestination();
+    } // match
+    
+    /**
+     * Gets the literal a regular expression stands for, if any. A leading "^" and a trailing "$" are ignored, since
+     * the whole concatenation must match anyway.
+     * @param regex
+     * @return The literal, or null if the regular expression is not a literal
+     */
+    protected static String getLiteral(String regex) {
+        int start = regex.startsWith("^") ? 1 : 0;
+        int end = regex.length();
+        
+        if (end > start && regex.charAt(end - 1) == '$' && !isEscaped(regex, end - 1)) {
+            end--;
+        } // if
+        
+        StringBuilder literal = new StringBuilder();
+        
+        for (int i = start; i < end; i++) {
+            char c = regex.charAt(i);
+            
+            if (c == '\\') {
+                // only escaped metacharacters are literals, the rest of escapes are character classes, quotations...
+                if (i + 1 == end || METACHARACTERS.indexOf(regex.charAt(i + 1)) < 0) {
+                    return null;
+                } // if
+                
+                literal.append(regex.charAt(++i));
+            } else if (METACHARACTERS.indexOf(c) >= 0) {
+                return null;
+            } else {
+                literal.append(c);
+            } // if else if
+        } // for
+        
+        return literal.toString();
+    } // getLiteral
+    
+    /**
+     * Checks if the character at the given position of a regular expression is escaped.
+     * @param regex
+     * @param position
+     * @return True if the character is escaped, false otherwise
+     */
+    private static boolean isEscaped(String regex, int position) {
+        int numBackslashes = 0;
+        
+        for (int i = position - 1; i >= 0 && regex.charAt(i) == '\\'; i--) {
+            numBackslashes++;
+        } // for
+        
+        return numBackslashes % 2 == 1;
+    } // isEscaped
+    
+    /**
+     * Checks if a string has no line terminators from the given position, thus it is matched by ".*".
+     * @param s
+     * @param from
+     * @return True if the string has no line terminators from the given position, false otherwise
+     */
+    private static boolean hasNoLineTerminators(String s, int from) {
+        for (int i = from; i < s.length(); i++) {
+            char c = s.charAt(i);
+            
+            if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                return false;
+            } // if
+        } // for
+        
+        return true;
+    } // hasNoLineTerminators
+    
+    /**
+     * Rules sharing the same fields.
+     */
+    private static class FieldGroup {
+        
+        private final String[] fields;
+        private final int firstPosition;
+        private final HashMap<String, Integer> literals;
+        private final TrieNode prefixes;
+        private final ArrayList<IndexedRule> regexRules;
+        
+        /**
+         * Constructor.
+         * @param fields
+         * @param firstPosition Position of the first rule of the group within the table
+         */
+        public FieldGroup(List<String> fields, int firstPosition) {
+            this.fields = fields.toArray(new String[fields.size()]);
+            this.firstPosition = firstPosition;
+            literals = new HashMap<String, Integer>();
+            prefixes = new TrieNode();
+            regexRules = new ArrayList<IndexedRule>();
+        } // FieldGroup
+        
+        public int getFirstPosition() {
+            return firstPosition;
+        } // getFirstPosition
+        
+        /**
+         * Adds a rule to the group. The rules must be added in the table order.
+         * @param rule
+         * @param position Position of the rule within the table
+         */
+        public void add(MatchingRule rule, int position) {
+            String regex = rule.getRegex();
+            String literal = getLiteral(regex);
+            
+            if (literal != null) {
+                if (!literals.containsKey(literal)) {
+                    literals.put(literal, position);
+                } // if
+                
+                return;
+            } // if
+            
+            if (regex.endsWith(".*") && !isEscaped(regex, regex.length() - 2)) {
+                String prefix = getLiteral(regex.substring(0, regex.length() - 2));
+                
+                if (prefix != null) {
+                    prefixes.add(prefix, new IndexedRule(rule, position));
+                    return;
+                } // if
+            } // if
+            
+            regexRules.add(new IndexedRule(rule, position));
+        } // add
+        
+        /**
+         * Concatenates the fields of the group, as given by a context element.
+         * @param contextElement
+         * @return The concatenation
+         */
+        public String concatenate(ContextElement contextElement) {
+            if (fields.length == 1) {
+                return String.valueOf(contextElement.getString(fields[0]));
+            } // if
+            
+            StringBuilder concat = new StringBuilder();
+            
+            for (String field : fields) {
+                concat.append(contextElement.getString(field));
+            } // for
+            
+            return concat.toString();
+        } // concatenate
+        
+        /**
+         * Finds the first rule of the group matching the concatenation, if coming before the best one so far.
+         * @param concat
+         * @param best Position of the best matching rule so far
+         * @return The position of the best matching rule
+         */
+        public int match(String concat, int best) {
+            Integer literal = literals.get(concat);
+            
+            if (literal != null && literal < best) {
+                best = literal;
+            } // if
+            
+            TrieNode node = prefixes;
+            
+            for (int i = 0; node != null; i++) {
+                IndexedRule rule = node.getRule();
+                
+                if (rule != null && rule.getPosition() < best
+                        && (hasNoLineTerminators(concat, i) || rule.matches(concat))) {
+                    best = rule.getPosition();
+                } // if
+                
+                node = i < concat.length() ? node.getChild(concat.charAt(i)) : null;
+            } // for
+            
+            for (IndexedRule rule : regexRules) {
+                if (rule.getPosition() >= best) {
+                    break;
+                } // if
+                
+                if (rule.matches(concat)) {
+                    best = rule.getPosition();
+                    break;
+                } // if
+            } // for
+            
+            return best;
+        } // match
+        
+    } // FieldGroup
+    
+    /**
+     * Node of a prefix trie, holding the first rule whose prefix ends at the node, if any.
+     */
+    private static class TrieNode {
+        
+        private HashMap<Character, TrieNode> children;
+        private IndexedRule rule;
+        
+        /**
+         * Adds a prefix, unless already added by a previous rule.
+         * @param prefix
+         * @param rule
+         */
+        public void add(String prefix, IndexedRule rule) {
+            TrieNode node = this;
+            
+            for (int i = 0; i < prefix.length(); i++) {
+                if (node.children == null) {
+                    node.children = new HashMap<Character, TrieNode>();
+                } // if
+                
+                TrieNode child = node.children.get(prefix.charAt(i));
+                
+                if (child == null) {
+                    child = new TrieNode();
+                    node.children.put(prefix.charAt(i), child);
+                } // if
+                
+                node = child;
+            } // for
+            
+            if (node.rule == null) {
+                node.rule = rule;
+            } // if
+        } // add
+        
+        public TrieNode getChild(char c) {
+            return children == null ? null : children.get(c);
+        } // getChild
+        
+        public IndexedRule getRule() {
+            return rule;
+        } // getRule
+        
+    } // TrieNode
+    
+    /**
+     * Matching rule together with its position within the table.
+     */
+    private static class IndexedRule {
+        
+        private final Pattern pattern;
+        private final int position;
+        
+        /**
+         * Constructor.
+         * @param rule
+         * @param position
+         */
+        public IndexedRule(MatchingRule rule, int position) {
+            this.pattern = rule.getPattern();
+            this.position = position;
+        } // IndexedRule
+        
+        public int getPosition() {
+            return position;
+        } // getPosition
+        
+        public boolean matches(String concat) {
+            return pattern.matcher(concat).matches();
+        } // matches
+        
+    } // IndexedRule
+    
+} // MatchingTableIndex
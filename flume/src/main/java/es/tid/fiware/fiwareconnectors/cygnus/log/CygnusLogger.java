@@ -19,14 +19,27 @@
 
 package es.tid.fiware.fiwareconnectors.cygnus.log;
 
+import es.tid.fiware.fiwareconnectors.cygnus.utils.Constants;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
 /**
  *
  * @author frb
+ *
+ * In addition to the component-aware tracing methods, this class provides level-guarded and parameterized static
+ * tracing methods for the hot paths, i.e. the message is only built if the level is enabled, replacing each "{}" in
+ * the message pattern with the next argument. The notification payloads are traced through a lazy wrapper (see
+ * payload) applying a global truncation and sampling policy.
  */
 public class CygnusLogger extends Logger {
     
+    private static volatile int payloadMaxLength = Constants.LOG_PAYLOAD_MAX_LENGTH;
+    private static volatile int payloadSamplingRate = Constants.LOG_PAYLOAD_SAMPLING_RATE;
+    private static final AtomicLong PAYLOAD_COUNT = new AtomicLong(0);
+    
     /**
      * Constructor.
      * @param name
@@ -80,4 +93,152 @@ public class CygnusLogger extends Logger {
         debug("[" + componentName + "] " + message);
     } // debug
     
+    /**
+     * Sets the payload tracing policy, common to all the components.
+     * @param maxLength Maximum number of characters traced per payload, 0 for no truncation
+     * @param samplingRate One of every samplingRate payloads is traced, 0 for never tracing payloads
+     */
+    public static void setPayloadPolicy(int maxLength, int samplingRate) {
+        payloadMaxLength = maxLength;
+        payloadSamplingRate = samplingRate;
+    } // setPayloadPolicy
+    
+    /**
+     * Traces a parameterized message with DEBUG level, only if enabled.
+     * @param logger
+     * @param pattern Message pattern, where each "{}" is replaced with the next argument
+     * @param args
+     */
+    public static void debug(Logger logger, String pattern, Object... args) {
+        if (logger.isDebugEnabled()) {
+            logger.debug(format(pattern, args));
+        } // if
+    } // debug
+    
+    /**
+     * Traces a parameterized message with INFO level, only if enabled.
+     * @param logger
+     * @param pattern Message pattern, where each "{}" is replaced with the next argument
+     * @param args
+     */
+    public static void info(Logger logger, String pattern, Object... args) {
+        if (logger.isInfoEnabled()) {
+            logger.info(format(pattern, args));
+        } // if
+    } // info
+    
+    /**
+     * Traces a parameterized message with WARN level, only if enabled.
+     * @param logger
+     * @param pattern Message pattern, where each "{}" is replaced with the next argument
+     * @param args
+     */
+    public static void warn(Logger logger, String pattern, Object... args) {
+        if (logger.isEnabledFor(Level.WARN)) {
+            logger.warn(format(pattern, args));
+        } // if
+    } // warn
+    
+    /**
+     * Wraps a payload for being traced as an argument of a parameterized message. The payload is converted into a
+     * String, truncated and sampled only when the message is built.
+     * @param parts Payload parts, joined with ", " if more than one
+     * @return The wrapped payload
+     */
+    public static Object payload(Object... parts) {
+        return new Payload(parts);
+    } // payload
+    
+    /**
+     * Formats a message pattern, replacing each "{}" with the next argument. It is protected due to it is only
+     * required for testing purposes.
+     * @param pattern
+     * @param args
+     * @return The formatted message
+     */
+    protected static String format(String pattern, Object... args) {
+        if (args == null || args.length == 0) {
+            return pattern;
+        } // if
+        
+        StringBuilder message = new StringBuilder(pattern.length() + 16 * args.length);
+        int start = 0;
+        
+        for (Object arg : args) {
+            int index = pattern.indexOf("{}", start);
+            
+            if (index == -1) {
+                break;
+            } // if
+            
+            message.append(pattern, start, index).append(arg);
+            start = index + 2;
+        } // for
+        
+        return message.append(pattern, start, pattern.length()).toString();
+    } // format
+    
+    /**
+     * Payload traced according to the truncation and sampling policy.
+     */
+    private static class Payload {
+        
+        private final Object[] parts;
+        
+        /**
+         * Constructor.
+         * @param parts
+         */
+        public Payload(Object[] parts) {
+            this.parts = parts;
+        } // Payload
+        
+        @Override
+        public String toString() {
+            int samplingRate = payloadSamplingRate;
+            
+            if (samplingRate <= 0 || PAYLOAD_COUNT.getAndIncrement() % samplingRate != 0) {
+                return "<not sampled>";
+            } // if
+            
+            int maxLength = payloadMaxLength;
+            
+            if (parts.length == 1 && parts[0] instanceof byte[]) {
+                // only the traced bytes are decoded
+                byte[] bytes = (byte[]) parts[0];
+                int length = maxLength <= 0 ? bytes.length : Math.min(bytes.length, maxLength);
+                String str;
+                
+                try {
+                    str = new String(bytes, 0, length, "UTF-8");
+                } catch (UnsupportedEncodingException e) {
+                    str = new String(bytes, 0, length);
+                } // try catch
+                
+                return length == bytes.length ? str : str + "...<" + (bytes.length - length) + " more bytes>";
+            } // if
+            
+            String str;
+            
+            if (parts.length == 1) {
+                str = String.valueOf(parts[0]);
+            } else {
+                StringBuilder joined = new StringBuilder();
+                
+                for (int i = 0; i < parts.length; i++) {
+                    joined.append(i == 0 ? "" : ", ").append(parts[i]);
+                } // for
+                
+                str = joined.toString();
+            } // if else
+            
+            if (maxLength <= 0 || str.length() <= maxLength) {
+                return str;
+            } // if
+            
+            return str.substring(0, maxLength) + "...<" + (str.length() - maxLength) + " more characters>";
+        } // toString
+        
+    } // Payload
+    
 } // CygnusLogger
@@ -19,8 +19,12 @@
 
 package es.tid.fiware.fiwareconnectors.cygnus.management;
 
+import com.google.gson.Gson;
 import es.tid.fiware.fiwareconnectors.cygnus.utils.Utils;
 import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -31,9 +35,49 @@ import org.mortbay.jetty.handler.AbstractHandler;
 /**
  *
  * @author frb
+ *
+ * Management interface of Cygnus. Available resources:
+ *  - /version, the Cygnus version
+ *  - /status, the status of the Cygnus components registered as status reporters, by name
  */
 public class ManagementInterface extends AbstractHandler {
     
+    // the components register themselves, since they are created by Flume and thus not reachable from here
+    private static final ConcurrentSkipListMap<String, StatusReporter> STATUS_REPORTERS =
+            new ConcurrentSkipListMap<String, StatusReporter>();
+    private static final Gson GSON = new Gson();
+    
+    /**
+     * Registers a status reporter, replacing the one with the same name, if any.
+     * @param name
+     * @param reporter
+     */
+    public static void registerStatusReporter(String name, StatusReporter reporter) {
+        STATUS_REPORTERS.put(name, reporter);
+    } // registerStatusReporter
+    
+    /**
+     * Unregisters a status reporter.
+     * @param name
+     */
+    public static void unregisterStatusReporter(String name) {
+        STATUS_REPORTERS.remove(name);
+    } // unregisterStatusReporter
+    
+    /**
+     * Gets the status of all the registered status reporters, as a Json object.
+     * @return The status of all the registered status reporters
+     */
+    protected static String getStatus() {
+        LinkedHashMap<String, Map<String, Object>> status = new LinkedHashMap<String, Map<String, Object>>();
+        
+        for (Map.Entry<String, StatusReporter> reporter : STATUS_REPORTERS.entrySet()) {
+            status.put(reporter.getKey(), reporter.getValue().getStatus());
+        } // for
+        
+        return GSON.toJson(status);
+    } // getStatus
+    
     @Override
     public void handle(String target, HttpServletRequest request, HttpServletResponse response, int dispatch)
         throws IOException, ServletException {
@@ -53,6 +97,10 @@ public class ManagementInterface extends AbstractHandler {
             response.setStatus(HttpServletResponse.SC_OK);
             response.getWriter().println("{\"version\":\"" + Utils.getCygnusVersion() + "." + Utils.getLastCommit()
                     + "\"}");
+        } else if (uri.equals("/status")) {
+            response.setContentType("json;charset=utf-8");
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.getWriter().println(getStatus());
         } else {
             response.setStatus(HttpServletResponse.SC_NOT_FOUND);
             response.getWriter().println("404 - Not found");
@@ -0,0 +1,38 @@
+/**
+ * Copyright 2014 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-connectors (FI-WARE project).
+ *
+ * fiware-connectors is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-connectors is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-connectors. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with Francisco Romero
+ * francisco.romerobueno@telefonica.com
+ */
+
+package es.tid.fiware.fiwareconnectors.cygnus.management;
+
+import java.util.Map;
+
+/**
+ *
+ * @author frb
+ *
+ * Cygnus component reporting its status through the management interface (see ManagementInterface).
+ */
+public interface StatusReporter {
+    
+    /**
+     * Gets the status of the component. It must be thread-safe, since it is called by the management interface thread.
+     * @return The status, as a map of names and values to be serialized as a Json object
+     */
+    Map<String, Object> getStatus();
+    
+} // StatusReporter
@@ -25,16 +25,30 @@ import es.tid.fiware.fiwareconnectors.cygnus.containers.NotifyContextRequest;
 import es.tid.fiware.fiwareconnectors.cygnus.containers.NotifyContextRequest.ContextAttribute;
 import es.tid.fiware.fiwareconnectors.cygnus.containers.NotifyContextRequest.ContextElement;
 import es.tid.fiware.fiwareconnectors.cygnus.containers.NotifyContextRequest.ContextElementResponse;
+import es.tid.fiware.fiwareconnectors.cygnus.errors.CygnusPersistenceError;
 import es.tid.fiware.fiwareconnectors.cygnus.http.HttpClientFactory;
 import es.tid.fiware.fiwareconnectors.cygnus.log.CygnusLogger;
+import es.tid.fiware.fiwareconnectors.cygnus.management.ManagementInterface;
 import es.tid.fiware.fiwareconnectors.cygnus.utils.Constants;
 import es.tid.fiware.fiwareconnectors.cygnus.utils.Utils;
 import java.sql.Timestamp;
 import org.apache.log4j.Logger;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import org.apache.flume.Context;
+import org.apache.log4j.MDC;
 
 /**
  * 
@@ -42,6 +56,14 @@ import org.apache.flume.Context;
  *
  * CKAN sink for Orion Context Broker.
  *
+ * The records of all the events within a batch are buffered in the persistence backend, and then upserted in a single
+ * request per resource.
+ *
+ * The events within a batch may be persisted in parallel by a fixed number of persistence workers. The events are
+ * partitioned by organization and resource, thus all the events regarding the same resource are persisted in order by
+ * the same worker, while different resources are persisted concurrently. The batch is not committed until all the
+ * workers have finished.
+ *
  */
 public class OrionCKANSink extends OrionSink {
 
@@ -52,6 +74,24 @@ public class OrionCKANSink extends OrionSink {
     private String defaultDataset;
     private String orionUrl;
     private boolean rowAttrPersistence;
+    private int httpMaxConns;
+    private int httpMaxConnsPerRoute;
+    private int httpConnectTimeout;
+    private int httpSocketTimeout;
+    private long httpKeepAlive;
+    private long httpIdleTimeout;
+    private int upsertBatchSize;
+    private long upsertBatchBytes;
+    private long upsertBatchTimeout;
+    private int cacheSize;
+    private long cacheTTL;
+    private long negativeCacheTTL;
+    private ArrayList<String> warmupOrganizations;
+    private int warmupThreads;
+    private long warmupTimeout;
+    private String cacheSnapshotFile;
+    private int persistenceWorkers;
+    private ExecutorService[] workers;
     private HttpClientFactory httpClientFactory;
     private CKANBackend persistenceBackend;
     
@@ -104,6 +144,23 @@ public class OrionCKANSink extends OrionSink {
         return rowAttrPersistence;
     } // getRowAttrPersistence
     
+    /**
+     * Gets the number of persistence workers. It is protected due to it is only required for testing purposes.
+     * @return The number of persistence workers
+     */
+    protected int getPersistenceWorkers() {
+        return persistenceWorkers;
+    } // getPersistenceWorkers
+    
+    /**
+     * Gets the number of threads warming up the cache. It is protected due to it is only required for testing
+     * purposes.
+     * @return The number of threads warming up the cache
+     */
+    protected int getWarmupThreads() {
+        return warmupThreads;
+    } // getWarmupThreads
+    
     /**
      * Gets the Http client factory. It is protected due to it is only required for testing purposes.
      * @return The Http client factory
@@ -138,6 +195,7 @@ public class OrionCKANSink extends OrionSink {
     
     @Override
     public void configure(Context context) {
+        super.configure(context);
         apiKey = context.getString("api_key", "nokey");
         logger.debug("[" + this.getName() + "] Reading configuration (api_key=" + apiKey + ")");
         ckanHost = context.getString("ckan_host", "localhost");
@@ -150,26 +208,359 @@ public class OrionCKANSink extends OrionSink {
         logger.debug("[" + this.getName() + "] Reading configuration (orion_url=" + orionUrl + ")");
         rowAttrPersistence = context.getString("attr_persistence", "row").equals("row");
         logger.debug("[" + this.getName() + "] Reading configuration (attr_persistence=" + rowAttrPersistence + ")");
+        upsertBatchSize = context.getInteger("upsert_batch_size", Constants.CKAN_UPSERT_BATCH_SIZE);
+        logger.debug("[" + this.getName() + "] Reading configuration (upsert_batch_size=" + upsertBatchSize + ")");
+        upsertBatchBytes = context.getLong("upsert_batch_bytes", Constants.CKAN_UPSERT_BATCH_BYTES);
+        logger.debug("[" + this.getName() + "] Reading configuration (upsert_batch_bytes=" + upsertBatchBytes + ")");
+        upsertBatchTimeout = context.getLong("upsert_batch_timeout", Constants.CKAN_UPSERT_BATCH_TIMEOUT);
+        logger.debug("[" + this.getName() + "] Reading configuration (upsert_batch_timeout=" + upsertBatchTimeout
+                + ")");
+        cacheSize = context.getInteger("cache_size", Constants.CKAN_CACHE_SIZE);
+        logger.debug("[" + this.getName() + "] Reading configuration (cache_size=" + cacheSize + ")");
+        cacheTTL = context.getLong("cache_ttl", Constants.CKAN_CACHE_TTL);
+        logger.debug("[" + this.getName() + "] Reading configuration (cache_ttl=" + cacheTTL + ")");
+        negativeCacheTTL = context.getLong("negative_cache_ttl", Constants.CKAN_NEGATIVE_CACHE_TTL);
+        logger.debug("[" + this.getName() + "] Reading configuration (negative_cache_ttl=" + negativeCacheTTL + ")");
+        warmupOrganizations = new ArrayList<String>();
+        
+        for (String organization : context.getString("warmup_organizations", "").split(",")) {
+            if (!organization.trim().isEmpty()) {
+                warmupOrganizations.add(organization.trim());
+            } // if
+        } // for
+        
+        logger.debug("[" + this.getName() + "] Reading configuration (warmup_organizations=" + warmupOrganizations
+                + ")");
+        warmupThreads = context.getInteger("warmup_threads", Constants.CKAN_WARMUP_THREADS);
+        
+        if (warmupThreads < 1) {
+            logger.error("[" + this.getName() + "] Bad configuration (warmup_threads must be greater than 0, using 1)");
+            warmupThreads = 1;
+        } // if
+        
+        logger.debug("[" + this.getName() + "] Reading configuration (warmup_threads=" + warmupThreads + ")");
+        warmupTimeout = context.getLong("warmup_timeout", Constants.CKAN_WARMUP_TIMEOUT);
+        logger.debug("[" + this.getName() + "] Reading configuration (warmup_timeout=" + warmupTimeout + ")");
+        cacheSnapshotFile = context.getString("cache_snapshot_file", "");
+        logger.debug("[" + this.getName() + "] Reading configuration (cache_snapshot_file=" + cacheSnapshotFile + ")");
+        persistenceWorkers = context.getInteger("persistence_workers", Constants.CKAN_PERSISTENCE_WORKERS);
+        
+        if (persistenceWorkers < 1) {
+            logger.error("[" + this.getName() + "] Bad configuration (persistence_workers must be greater than 0, "
+                    + "using 1)");
+            persistenceWorkers = 1;
+        } // if
+        
+        logger.debug("[" + this.getName() + "] Reading configuration (persistence_workers=" + persistenceWorkers
+                + ")");
+        httpMaxConns = context.getInteger("http_max_conns", Constants.MAX_CONNS);
+        logger.debug("[" + this.getName() + "] Reading configuration (http_max_conns=" + httpMaxConns + ")");
+        httpMaxConnsPerRoute = context.getInteger("http_max_conns_per_route", Constants.MAX_CONNS_PER_ROUTE);
+        logger.debug("[" + this.getName() + "] Reading configuration (http_max_conns_per_route=" + httpMaxConnsPerRoute
+                + ")");
+        httpConnectTimeout = context.getInteger("http_connect_timeout", Constants.HTTP_CONNECT_TIMEOUT);
+        logger.debug("[" + this.getName() + "] Reading configuration (http_connect_timeout=" + httpConnectTimeout
+                + ")");
+        httpSocketTimeout = context.getInteger("http_socket_timeout", Constants.HTTP_SOCKET_TIMEOUT);
+        logger.debug("[" + this.getName() + "] Reading configuration (http_socket_timeout=" + httpSocketTimeout + ")");
+        httpKeepAlive = context.getLong("http_keep_alive", Constants.HTTP_KEEP_ALIVE);
+        logger.debug("[" + this.getName() + "] Reading configuration (http_keep_alive=" + httpKeepAlive + ")");
+        httpIdleTimeout = context.getLong("http_idle_timeout", Constants.HTTP_IDLE_TIMEOUT);
+        logger.debug("[" + this.getName() + "] Reading configuration (http_idle_timeout=" + httpIdleTimeout + ")");
     } // configure
 
     @Override
     public void start() {
-        // create a Http clients factory (no SSL)
-        httpClientFactory = new HttpClientFactory(false);
+        // create a Http clients factory (no SSL), with its own connections pool
+        httpClientFactory = new HttpClientFactory(false, httpMaxConns, httpMaxConnsPerRoute, httpConnectTimeout,
+                httpSocketTimeout, httpKeepAlive, httpIdleTimeout);
+        ManagementInterface.registerStatusReporter("httpClientFactory(" + this.getName() + ")", httpClientFactory);
 
         try {
             // create persistenceBackend backend
-            persistenceBackend = new CKANBackendImpl(apiKey, ckanHost, ckanPort, defaultDataset, orionUrl);
+            CKANBackendImpl backend = new CKANBackendImpl(apiKey, ckanHost, ckanPort, defaultDataset, orionUrl,
+                    upsertBatchSize, upsertBatchBytes, upsertBatchTimeout, cacheSize, cacheTTL, negativeCacheTTL);
+            ManagementInterface.registerStatusReporter("ckanBackend(" + this.getName() + ")", backend);
+            persistenceBackend = backend;
         } catch (Exception ex) {
             logger.error(ex.getMessage());
         } // try catch
+        
+        // warm up the caches before starting, thus the first notifications for the known organizations do not have to
+        // initialize them; those ones within the snapshot are not initialized again
+        if (persistenceBackend != null) {
+            List<String> snapshotOrganizations = persistenceBackend.loadSnapshot(cacheSnapshotFile);
+            ArrayList<String> organizations = new ArrayList<String>(warmupOrganizations);
+            organizations.removeAll(snapshotOrganizations);
+            persistenceBackend.warmUp(httpClientFactory.getHttpClient(false), organizations, warmupThreads,
+                    warmupTimeout);
+        } // if
+        
+        // create the persistence workers, if more than one; otherwise the events are persisted by the sink runner
+        if (persistenceWorkers > 1) {
+            workers = new ExecutorService[persistenceWorkers];
+            
+            for (int i = 0; i < persistenceWorkers; i++) {
+                workers[i] = createWorker(i);
+            } // for
+        } // if
 
         super.start();
         logger.info("[" + this.getName() + "] Startup completed");
     } // start
     
+    @Override
+    public void stop() {
+        // stop the persistence workers; the batch being persisted, if any, is waited for by the sink runner
+        if (workers != null) {
+            for (ExecutorService worker : workers) {
+                worker.shutdown();
+            } // for
+            
+            workers = null;
+        } // if
+        
+        // save the caches, thus the next start comes up with them
+        if (persistenceBackend != null) {
+            persistenceBackend.saveSnapshot(cacheSnapshotFile);
+        } // if
+        
+        // close the connections pool
+        if (httpClientFactory != null) {
+            ManagementInterface.unregisterStatusReporter("httpClientFactory(" + this.getName() + ")");
+            httpClientFactory.close();
+        } // if
+        
+        ManagementInterface.unregisterStatusReporter("ckanBackend(" + this.getName() + ")");
+        super.stop();
+    } // stop
+    
     @Override
     void persist(Map<String, String> eventHeaders, NotifyContextRequest notification) throws Exception {
+        addContextData(eventHeaders, notification);
+        persistenceBackend.flush(httpClientFactory.getHttpClient(false));
+    } // persist
+    
+    /**
+     * Persists a batch of events. The events are partitioned by organization and resource, and each partition is
+     * persisted by a persistence worker; this method returns once all the partitions have been persisted, or have
+     * failed. If there are no workers, or all the events belong to the same partition, the batch is persisted by the
+     * calling thread.
+     * @param batch
+     * @throws Exception
+     */
+    @Override
+    void persistBatch(ArrayList<OrionEvent> batch) throws Exception {
+        ExecutorService[] currentWorkers = workers;
+        
+        if (currentWorkers == null) {
+            persistPartition(batch);
+            return;
+        } // if
+        
+        // partition the not processed events, keeping their order within each partition
+        ArrayList<ArrayList<OrionEvent>> partitions = new ArrayList<ArrayList<OrionEvent>>(currentWorkers.length);
+        int numPartitions = 0;
+        
+        for (int i = 0; i < currentWorkers.length; i++) {
+            partitions.add(new ArrayList<OrionEvent>());
+        } // for
+        
+        for (OrionEvent orionEvent : batch) {
+            if (orionEvent.isProcessed()) {
+                continue;
+            } // if
+            
+            ArrayList<OrionEvent> partition = partitions.get(getPartition(orionEvent.getHeaders(),
+                    currentWorkers.length));
+            
+            if (partition.isEmpty()) {
+                numPartitions++;
+            } // if
+            
+            partition.add(orionEvent);
+        } // for
+        
+        if (numPartitions <= 1) {
+            persistPartition(batch);
+            return;
+        } // if
+        
+        // persist the partitions in parallel; a partition cannot be submitted if the sink is being stopped, then its
+        // events are not processed
+        ArrayList<Future<Void>> futures = new ArrayList<Future<Void>>(numPartitions);
+        Exception error = null;
+        
+        for (int i = 0; i < currentWorkers.length; i++) {
+            final ArrayList<OrionEvent> partition = partitions.get(i);
+            
+            if (partition.isEmpty()) {
+                continue;
+            } // if
+            
+            try {
+                futures.add(currentWorkers[i].submit(new Callable<Void>() {
+
+                    @Override
+                    public Void call() throws Exception {
+                        try {
+                            persistPartition(partition);
+                            return null;
+                        } finally {
+                            // the worker threads are reused for other transactions
+                            MDC.remove(Constants.TRANSACTION_ID);
+                        } // try finally
+                    } // call
+
+                }));
+            } catch (RejectedExecutionException e) {
+                error = new CygnusPersistenceError("The events could not be given to a persistence worker ("
+                        + e.getMessage() + ")");
+            } // try catch
+        } // for
+        
+        // wait for all the partitions, since the Flume transaction cannot be committed until then; a persistence error
+        // is preferred to any other error, thus the events not processed are re-injected
+        boolean interrupted = false;
+        
+        for (Future<Void> future : futures) {
+            boolean done = false;
+            
+            while (!done) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    // the partitions not started yet are cancelled, but the running ones are waited for anyway,
+                    // otherwise their events could be marked as processed once the transaction has been finished
+                    interrupted = true;
+                    
+                    for (Future<Void> pending : futures) {
+                        pending.cancel(false);
+                    } // for
+                    
+                    continue;
+                } catch (CancellationException e) {
+                    // the partition was not started, thus its events are not processed
+                    logger.debug("[" + getName() + "] A partition was cancelled before being persisted");
+                } catch (ExecutionException e) {
+                    Exception cause = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    
+                    if (error == null || (cause instanceof CygnusPersistenceError
+                            && !(error instanceof CygnusPersistenceError))) {
+                        error = cause;
+                    } // if
+                } // try catch
+                
+                done = true;
+            } // while
+        } // for
+        
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+            throw new CygnusPersistenceError("Interrupted while waiting for the persistence workers");
+        } // if
+        
+        if (error != null) {
+            throw error;
+        } // if
+    } // persistBatch
+    
+    /**
+     * Persists a list of events by buffering the records of all of them in the persistence backend, and then
+     * upserting them at the same time, or before if the buffer gets full. The events are marked as processed only once
+     * their records have been upserted. The events not processed are persisted in order, stopping at the first
+     * persistence error.
+     * @param events
+     * @throws Exception
+     */
+    private void persistPartition(List<OrionEvent> events) throws Exception {
+        ArrayList<OrionEvent> buffered = new ArrayList<OrionEvent>();
+        
+        for (OrionEvent orionEvent : events) {
+            if (orionEvent.isProcessed()) {
+                continue;
+            } // if
+
+            MDC.put(Constants.TRANSACTION_ID, orionEvent.getHeaders().get(Constants.TRANSACTION_ID));
+
+            try {
+                addContextData(orionEvent.getHeaders(), orionEvent.getNotification());
+                buffered.add(orionEvent);
+            } catch (CygnusPersistenceError e) {
+                // the records buffered so far are upserted, since only the remaining events will be re-injected
+                flushBuffered(buffered);
+                throw e;
+            } catch (Exception e) {
+                logError(e);
+                orionEvent.setProcessed(true);
+            } // try catch
+            
+            if (persistenceBackend.isFlushRequired()) {
+                flushBuffered(buffered);
+            } // if
+        } // for
+        
+        flushBuffered(buffered);
+    } // persistPartition
+    
+    /**
+     * Upserts the records buffered in the persistence backend, marking as processed the events they belong to. If the
+     * upsert fails the buffer is emptied anyway, and the events are not marked as processed, thus they are re-injected.
+     * @param buffered
+     * @throws Exception
+     */
+    private void flushBuffered(ArrayList<OrionEvent> buffered) throws Exception {
+        persistenceBackend.flush(httpClientFactory.getHttpClient(false));
+        
+        for (OrionEvent orionEvent : buffered) {
+            orionEvent.setProcessed(true);
+        } // for
+        
+        buffered.clear();
+    } // flushBuffered
+    
+    /**
+     * Gets the partition an event belongs to, given its organization and resource.
+     * @param eventHeaders
+     * @param numPartitions
+     * @return The partition, from 0 to numPartitions - 1
+     */
+    protected static int getPartition(Map<String, String> eventHeaders, int numPartitions) {
+        String key = eventHeaders.get(Constants.ORG_HEADER) + "/" + eventHeaders.get(Constants.DESTINATION);
+        return (key.hashCode() & Integer.MAX_VALUE) % numPartitions;
+    } // getPartition
+    
+    /**
+     * Creates a persistence worker, i.e. a single thread executor. Its queue is bounded to a single task since at most
+     * a partition per batch is given to each worker, and the batch is waited for.
+     * @param index
+     * @return The persistence worker
+     */
+    private ExecutorService createWorker(final int index) {
+        final String threadName = "OrionCKANSink-" + this.getName() + "-worker-" + index;
+        ThreadFactory threadFactory = new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, threadName);
+                thread.setDaemon(true);
+                return thread;
+            } // newThread
+
+        };
+        
+        return new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(1),
+                threadFactory);
+    } // createWorker
+    
+    /**
+     * Buffers in the persistence backend the records regarding a notification.
+     * @param eventHeaders
+     * @param notification
+     * @throws Exception
+     */
+    private void addContextData(Map<String, String> eventHeaders, NotifyContextRequest notification)
+        throws Exception {
         // get some header values
         Long recvTimeTs = new Long(eventHeaders.get("timestamp")).longValue();
         String organization = eventHeaders.get(Constants.ORG_HEADER);
@@ -189,8 +580,8 @@ public class OrionCKANSink extends OrionSink {
             ContextElement contextElement = contextElementResponse.getContextElement();
             String entityId = Utils.encode(contextElement.getId());
             String entityType = Utils.encode(contextElement.getType());
-            logger.debug("[" + this.getName() + "] Processing context element (id=" + entityId + ", type=" + entityType
-                    + ")");
+            CygnusLogger.debug(logger, "[{}] Processing context element (id={}, type={})", this.getName(), entityId,
+                    entityType);
             
             if (resourceName.length() > Constants.CKAN_RESOURCE_MAX_LEN) {
                 logger.error("[" + this.getName() + "] Bad configuration (A CKAN resource name '" + resourceName
@@ -225,13 +616,13 @@ public class OrionCKANSink extends OrionSink {
                 String attrType = contextAttribute.getType();
                 String attrValue = contextAttribute.getContextValue(true);
                 String attrMd = contextAttribute.getContextMetadata();
-                logger.debug("[" + this.getName() + "] Processing context attribute (name=" + attrName + ", type="
-                        + attrType + ")");
+                CygnusLogger.debug(logger, "[{}] Processing context attribute (name={}, type={})", this.getName(),
+                        attrName, attrType);
 
                 if (rowAttrPersistence) {
-                    logger.info("[" + this.getName() + "] Persisting data at OrionCKANSink. <" + recvTimeTs + ", "
-                            + recvTime + ", " + organization + ", " + resourceName + ", " + attrName + ", " + attrType
-                            + ", " + attrValue + ", " + attrMd + ">");
+                    CygnusLogger.info(logger, "[{}] Persisting data at OrionCKANSink. <{}, {}, {}, {}, {}, {}, {}>",
+                            this.getName(), recvTimeTs, recvTime, organization, resourceName, attrName, attrType,
+                            CygnusLogger.payload(attrValue, attrMd));
                     persistenceBackend.persist(httpClientFactory.getHttpClient(false), recvTimeTs, recvTime,
                             organization, resourceName, attrName, attrType, attrValue, attrMd);
                 } else {
@@ -243,12 +634,12 @@ public class OrionCKANSink extends OrionSink {
             // if the attribute persistence mode is per column, now is the time to insert a new row containing full
             // attribute list of name-values.
             if (!rowAttrPersistence) {
-                logger.info("[" + this.getName() + "] Persisting data at OrionCKANSink. <" + recvTime + ", "
-                        + organization + ", " + resourceName + ", " + attrs.toString() + ", " + mds.toString() + ">");
+                CygnusLogger.info(logger, "[{}] Persisting data at OrionCKANSink. <{}, {}, {}, {}>", this.getName(),
+                        recvTime, organization, resourceName, CygnusLogger.payload(attrs, mds));
                 persistenceBackend.persist(httpClientFactory.getHttpClient(false), recvTime, organization, resourceName,
                         attrs, mds);
             } // if
         } // for
-    } // persist
+    } // addContextData
     
-} // OrionHDFSSink
+} // OrionCKANSink
@@ -25,16 +25,21 @@ import es.tid.fiware.fiwareconnectors.cygnus.containers.NotifyContextRequest;
 import es.tid.fiware.fiwareconnectors.cygnus.containers.NotifyContextRequest.ContextAttribute;
 import es.tid.fiware.fiwareconnectors.cygnus.containers.NotifyContextRequest.ContextElement;
 import es.tid.fiware.fiwareconnectors.cygnus.containers.NotifyContextRequest.ContextElementResponse;
+import es.tid.fiware.fiwareconnectors.cygnus.errors.CygnusPersistenceError;
+import es.tid.fiware.fiwareconnectors.cygnus.hive.HiveTableProvisioner;
 import es.tid.fiware.fiwareconnectors.cygnus.http.HttpClientFactory;
 import es.tid.fiware.fiwareconnectors.cygnus.log.CygnusLogger;
+import es.tid.fiware.fiwareconnectors.cygnus.management.ManagementInterface;
 import es.tid.fiware.fiwareconnectors.cygnus.utils.Constants;
 import es.tid.fiware.fiwareconnectors.cygnus.utils.Utils;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import org.apache.flume.Context;
 import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
 
 /**
  * 
@@ -61,7 +66,12 @@ import org.apache.log4j.Logger;
  * It is important to note that certain degree of reliability is achieved by using a rolling back mechanism in the
  * channel, i.e. an event is not removed from the channel until it is not appropriately persisted.
  * 
- * In addition, Hive tables are created for each entity taking the data from:
+ * The lines to be appended to already existing files are buffered per file, and appended all at the same time by means
+ * of a unique multi-line append per file. The buffer is flushed when the number of buffered lines, their size or the
+ * age of the oldest one reach the configured limits, and always before the Flume transaction is committed, thus the
+ * events are not removed from the channel until their lines have been appended.
+ * 
+ * In addition, Hive tables are created in background for each entity taking the data from:
  * 
  * hdfs:///user/<default_username>/<organization>/<entityDescriptor>/
  * 
@@ -88,6 +98,24 @@ public class OrionHDFSSink extends OrionSink {
     private String namingPrefix;
     private String hiveHost;
     private String hivePort;
+    private String hiveProvisionedTablesFile;
+    private long hiveRetryInterval;
+    private int hiveMaxRetries;
+    private int appendBatchSize;
+    private long appendBatchBytes;
+    private long appendBatchTimeout;
+    private int fileCacheSize;
+    private long fileCacheTTL;
+    private int httpMaxConns;
+    private int httpMaxConnsPerRoute;
+    private int httpConnectTimeout;
+    private int httpSocketTimeout;
+    private long httpKeepAlive;
+    private long httpIdleTimeout;
+    private LinkedHashMap<String, StringBuilder> appendBuffer;
+    private int numBufferedLines;
+    private long numBufferedBytes;
+    private long oldestBufferedLineTime;
     private HDFSBackend persistenceBackend;
     private HttpClientFactory httpClientFactory;
     
@@ -97,6 +125,10 @@ public class OrionHDFSSink extends OrionSink {
     public OrionHDFSSink() {
         super();
         logger = CygnusLogger.getLogger(OrionHDFSSink.class);
+        appendBuffer = new LinkedHashMap<String, StringBuilder>();
+        numBufferedLines = 0;
+        numBufferedBytes = 0;
+        oldestBufferedLineTime = 0;
     } // OrionHDFSSink
     
     /**
@@ -148,6 +180,67 @@ public class OrionHDFSSink extends OrionSink {
         return hivePort;
     } // getHivePort
     
+    /**
+     * Gets the file where the provisioned Hive tables are recorded. It is protected due to it is only required for
+     * testing purposes.
+     * @return The file where the provisioned Hive tables are recorded
+     */
+    protected String getHiveProvisionedTablesFile() {
+        return hiveProvisionedTablesFile;
+    } // getHiveProvisionedTablesFile
+    
+    /**
+     * Gets the maximum number of lines buffered before appending them. It is protected due to it is only required for
+     * testing purposes.
+     * @return The maximum number of lines buffered before appending them
+     */
+    protected int getAppendBatchSize() {
+        return appendBatchSize;
+    } // getAppendBatchSize
+    
+    /**
+     * Gets the maximum number of bytes buffered before appending them. It is protected due to it is only required for
+     * testing purposes.
+     * @return The maximum number of bytes buffered before appending them
+     */
+    protected long getAppendBatchBytes() {
+        return appendBatchBytes;
+    } // getAppendBatchBytes
+    
+    /**
+     * Gets the maximum number of milliseconds a line is buffered before appending it. It is protected due to it is only
+     * required for testing purposes.
+     * @return The maximum number of milliseconds a line is buffered before appending it
+     */
+    protected long getAppendBatchTimeout() {
+        return appendBatchTimeout;
+    } // getAppendBatchTimeout
+    
+    /**
+     * Gets the maximum number of files known to exist. It is protected due to it is only required for testing purposes.
+     * @return The maximum number of files known to exist
+     */
+    protected int getFileCacheSize() {
+        return fileCacheSize;
+    } // getFileCacheSize
+    
+    /**
+     * Gets the maximum number of milliseconds a file is known to exist without checking it again. It is protected due
+     * to it is only required for testing purposes.
+     * @return The maximum number of milliseconds a file is known to exist without checking it again
+     */
+    protected long getFileCacheTTL() {
+        return fileCacheTTL;
+    } // getFileCacheTTL
+    
+    /**
+     * Gets the number of buffered lines. It is protected due to it is only required for testing purposes.
+     * @return The number of buffered lines
+     */
+    protected int getNumBufferedLines() {
+        return numBufferedLines;
+    } // getNumBufferedLines
+    
     /**
      * Gets the Http client factory. It is protected due to it is only required for testing purposes.
      * @return The Http client factory
@@ -182,6 +275,7 @@ public class OrionHDFSSink extends OrionSink {
        
     @Override
     public void configure(Context context) {
+        super.configure(context);
         cosmosHost = context.getString("cosmos_host", "localhost").split(",");
         logger.debug("[" + this.getName() + "] Reading configuration (cosmos_host=" + Arrays.toString(cosmosHost)
                 + ")");
@@ -222,22 +316,60 @@ public class OrionHDFSSink extends OrionSink {
         logger.debug("[" + this.getName() + "] Reading configuration (hive_host=" + hiveHost + ")");
         hivePort = context.getString("hive_port", "10000");
         logger.debug("[" + this.getName() + "] Reading configuration (hive_port=" + hivePort + ")");
+        hiveProvisionedTablesFile = context.getString("hive_provisioned_tables_file", "");
+        logger.debug("[" + this.getName() + "] Reading configuration (hive_provisioned_tables_file="
+                + hiveProvisionedTablesFile + ")");
+        hiveRetryInterval = context.getLong("hive_retry_interval", Constants.HIVE_RETRY_INTERVAL);
+        logger.debug("[" + this.getName() + "] Reading configuration (hive_retry_interval=" + hiveRetryInterval + ")");
+        hiveMaxRetries = context.getInteger("hive_max_retries", Constants.HIVE_MAX_RETRIES);
+        logger.debug("[" + this.getName() + "] Reading configuration (hive_max_retries=" + hiveMaxRetries + ")");
+        appendBatchSize = context.getInteger("append_batch_size", Constants.HDFS_APPEND_BATCH_SIZE);
+        logger.debug("[" + this.getName() + "] Reading configuration (append_batch_size=" + appendBatchSize + ")");
+        appendBatchBytes = context.getLong("append_batch_bytes", Constants.HDFS_APPEND_BATCH_BYTES);
+        logger.debug("[" + this.getName() + "] Reading configuration (append_batch_bytes=" + appendBatchBytes + ")");
+        appendBatchTimeout = context.getLong("append_batch_timeout", Constants.HDFS_APPEND_BATCH_TIMEOUT);
+        logger.debug("[" + this.getName() + "] Reading configuration (append_batch_timeout=" + appendBatchTimeout
+                + ")");
+        fileCacheSize = context.getInteger("file_cache_size", Constants.HDFS_FILE_CACHE_SIZE);
+        logger.debug("[" + this.getName() + "] Reading configuration (file_cache_size=" + fileCacheSize + ")");
+        fileCacheTTL = context.getLong("file_cache_ttl", Constants.HDFS_FILE_CACHE_TTL);
+        logger.debug("[" + this.getName() + "] Reading configuration (file_cache_ttl=" + fileCacheTTL + ")");
+        httpMaxConns = context.getInteger("http_max_conns", Constants.MAX_CONNS);
+        logger.debug("[" + this.getName() + "] Reading configuration (http_max_conns=" + httpMaxConns + ")");
+        httpMaxConnsPerRoute = context.getInteger("http_max_conns_per_route", Constants.MAX_CONNS_PER_ROUTE);
+        logger.debug("[" + this.getName() + "] Reading configuration (http_max_conns_per_route=" + httpMaxConnsPerRoute
+                + ")");
+        httpConnectTimeout = context.getInteger("http_connect_timeout", Constants.HTTP_CONNECT_TIMEOUT);
+        logger.debug("[" + this.getName() + "] Reading configuration (http_connect_timeout=" + httpConnectTimeout
+                + ")");
+        httpSocketTimeout = context.getInteger("http_socket_timeout", Constants.HTTP_SOCKET_TIMEOUT);
+        logger.debug("[" + this.getName() + "] Reading configuration (http_socket_timeout=" + httpSocketTimeout + ")");
+        httpKeepAlive = context.getLong("http_keep_alive", Constants.HTTP_KEEP_ALIVE);
+        logger.debug("[" + this.getName() + "] Reading configuration (http_keep_alive=" + httpKeepAlive + ")");
+        httpIdleTimeout = context.getLong("http_idle_timeout", Constants.HTTP_IDLE_TIMEOUT);
+        logger.debug("[" + this.getName() + "] Reading configuration (http_idle_timeout=" + httpIdleTimeout + ")");
     } // configure
 
     @Override
     public void start() {
-        // create a Http clients factory (no SSL)
-        httpClientFactory = new HttpClientFactory(false);
+        // create a Http clients factory (no SSL), with its own connections pool
+        httpClientFactory = new HttpClientFactory(false, httpMaxConns, httpMaxConnsPerRoute, httpConnectTimeout,
+                httpSocketTimeout, httpKeepAlive, httpIdleTimeout);
+        ManagementInterface.registerStatusReporter("httpClientFactory(" + this.getName() + ")", httpClientFactory);
+        
+        // create the Hive tables provisioner, working in background
+        HiveTableProvisioner hiveProvisioner = new HiveTableProvisioner(hiveHost, hivePort, cosmosDefaultUsername,
+                cosmosDefaultPassword, hiveProvisionedTablesFile, hiveRetryInterval, hiveMaxRetries);
         
         try {
             // create the persistence backend
             if (hdfsAPI.equals("httpfs")) {
                 persistenceBackend = new HDFSBackendImpl(cosmosHost, cosmosPort, cosmosDefaultUsername,
-                        cosmosDefaultPassword, hiveHost, hivePort);
+                        cosmosDefaultPassword, hiveHost, hivePort, fileCacheSize, fileCacheTTL, hiveProvisioner);
                 logger.debug("[" + this.getName() + "] HttpFS persistence backend created");
             } else if (hdfsAPI.equals("webhdfs")) {
                 persistenceBackend = new HDFSBackendImpl(cosmosHost, cosmosPort, cosmosDefaultUsername,
-                        cosmosDefaultPassword, hiveHost, hivePort);
+                        cosmosDefaultPassword, hiveHost, hivePort, fileCacheSize, fileCacheTTL, hiveProvisioner);
                 logger.debug("[" + this.getName() + "] WebHDFS persistence backend created");
             } else {
                 // this point should never be reached since the HDFS API has been checked while configuring the sink
@@ -252,9 +384,154 @@ public class OrionHDFSSink extends OrionSink {
         super.start();
         logger.info("[" + this.getName() + "] Startup completed");
     } // start
+    
+    @Override
+    public void stop() {
+        // stop the background provisioning of Hive tables
+        if (persistenceBackend != null) {
+            persistenceBackend.close();
+        } // if
+        
+        // close the connections pool
+        if (httpClientFactory != null) {
+            ManagementInterface.unregisterStatusReporter("httpClientFactory(" + this.getName() + ")");
+            httpClientFactory.close();
+        } // if
+        
+        super.stop();
+    } // stop
 
     @Override
     void persist(Map<String, String> eventHeaders, NotifyContextRequest notification) throws Exception {
+        try {
+            addContextData(eventHeaders, notification);
+        } finally {
+            // the lines buffered so far are appended even if the notification failed, since they would be lost
+            // otherwise
+            flush();
+        } // try finally
+    } // persist
+    
+    /**
+     * Persists a batch of events by buffering the lines of all of them, and then appending them to the files at the
+     * same time. The buffer is flushed as soon as any of the append batch limits is reached, and in any case before
+     * returning, thus the events are marked as processed once their lines have been appended.
+     * @param batch
+     * @throws Exception
+     */
+    @Override
+    void persistBatch(ArrayList<OrionEvent> batch) throws Exception {
+        ArrayList<OrionEvent> buffered = new ArrayList<OrionEvent>();
+        
+        for (OrionEvent orionEvent : batch) {
+            if (orionEvent.isProcessed()) {
+                continue;
+            } // if
+            
+            MDC.put(Constants.TRANSACTION_ID, orionEvent.getHeaders().get(Constants.TRANSACTION_ID));
+            
+            try {
+                addContextData(orionEvent.getHeaders(), orionEvent.getNotification());
+                buffered.add(orionEvent);
+            } catch (CygnusPersistenceError e) {
+                // the lines buffered so far are appended, since only the remaining events will be re-injected
+                flushBuffered(buffered);
+                throw e;
+            } catch (Exception e) {
+                logError(e);
+                orionEvent.setProcessed(true);
+            } // try catch
+            
+            if (isAppendBatchFull()) {
+                flushBuffered(buffered);
+            } // if
+        } // for
+        
+        flushBuffered(buffered);
+    } // persistBatch
+    
+    /**
+     * Appends the buffered lines, marking as processed the events they belong to. If the append fails the buffer is
+     * emptied anyway, and the events are not marked as processed, thus they are re-injected.
+     * @param buffered
+     * @throws Exception
+     */
+    private void flushBuffered(ArrayList<OrionEvent> buffered) throws Exception {
+        flush();
+        
+        for (OrionEvent orionEvent : buffered) {
+            orionEvent.setProcessed(true);
+        } // for
+        
+        buffered.clear();
+    } // flushBuffered
+    
+    /**
+     * Appends all the buffered lines, a unique multi-line append per file. The buffer is emptied even if the append
+     * fails, since the lines are expected to be re-injected by the caller.
+     * @throws Exception
+     */
+    private void flush() throws Exception {
+        if (appendBuffer.isEmpty()) {
+            return;
+        } // if
+        
+        CygnusLogger.debug(logger, "[{}] Flushing buffered HDFS lines (numLines={}, numBytes={}, numFiles={})",
+                this.getName(), numBufferedLines, numBufferedBytes, appendBuffer.size());
+        ArrayList<Map.Entry<String, StringBuilder>> appends =
+                new ArrayList<Map.Entry<String, StringBuilder>>(appendBuffer.entrySet());
+        appendBuffer = new LinkedHashMap<String, StringBuilder>();
+        numBufferedLines = 0;
+        numBufferedBytes = 0;
+        oldestBufferedLineTime = 0;
+        
+        for (Map.Entry<String, StringBuilder> append : appends) {
+            // FIXME: current version of the notification only provides the organization, being null the username
+            persistenceBackend.append(httpClientFactory.getHttpClient(false), null, append.getKey(),
+                    append.getValue().toString());
+        } // for
+    } // flush
+    
+    /**
+     * Buffers a line to be appended to an already existing file.
+     * @param filePath
+     * @param line
+     */
+    private void bufferLine(String filePath, String line) {
+        StringBuilder lines = appendBuffer.get(filePath);
+        
+        if (lines == null) {
+            lines = new StringBuilder(line);
+            appendBuffer.put(filePath, lines);
+        } else {
+            lines.append('\n').append(line);
+        } // if else
+        
+        if (numBufferedLines == 0) {
+            oldestBufferedLineTime = System.currentTimeMillis();
+        } // if
+        
+        numBufferedLines++;
+        numBufferedBytes += Utils.getUTF8Length(line) + 1;
+    } // bufferLine
+    
+    /**
+     * Checks if any of the append batch limits has been reached.
+     * @return True if the buffered lines must be appended, false otherwise
+     */
+    private boolean isAppendBatchFull() {
+        return numBufferedLines > 0 && (numBufferedLines >= appendBatchSize || numBufferedBytes >= appendBatchBytes
+                || System.currentTimeMillis() - oldestBufferedLineTime >= appendBatchTimeout);
+    } // isAppendBatchFull
+    
+    /**
+     * Buffers the lines regarding a notification. Those files not existing yet are created with their first line.
+     * @param eventHeaders
+     * @param notification
+     * @throws Exception
+     */
+    private void addContextData(Map<String, String> eventHeaders, NotifyContextRequest notification)
+        throws Exception {
         // get some header values
         Long recvTimeTs = new Long(eventHeaders.get("timestamp")).longValue();
         String organization = eventHeaders.get(Constants.ORG_HEADER);
@@ -272,8 +549,8 @@ public class OrionHDFSSink extends OrionSink {
             ContextElement contextElement = contextElementResponse.getContextElement();
             String entityId = Utils.encode(contextElement.getId());
             String entityType = Utils.encode(contextElement.getType());
-            logger.debug("[" + this.getName() + "] Processing context element (id=" + entityId + ", type="
-                    + entityType + ")");
+            CygnusLogger.debug(logger, "[{}] Processing context element (id={}, type={})", this.getName(), entityId,
+                    entityType);
             
             // check if the fileName exists in HDFS right now, i.e. when its attrName has been got
             boolean fileExists = false;
@@ -308,8 +585,8 @@ public class OrionHDFSSink extends OrionSink {
                 String attrType = contextAttribute.getType();
                 String attrValue = contextAttribute.getContextValue(true);
                 String attrMetadata = contextAttribute.getContextMetadata();
-                logger.debug("[" + this.getName() + "] Processing context attribute (name=" + attrName + ", type="
-                        + attrType + ")");
+                CygnusLogger.debug(logger, "[{}] Processing context attribute (name={}, type={})", this.getName(),
+                        attrName, attrType);
                 
                 if (rowAttrPersistence) {
                     // create a Json document to be persisted
@@ -323,17 +600,14 @@ public class OrionHDFSSink extends OrionSink {
                             + "\"" + Constants.ATTR_VALUE + "\":" + attrValue + ","
                             + "\"" + Constants.ATTR_MD + "\":" + attrMetadata
                             + "}";
-                    logger.info("[" + this.getName() + "] Persisting data at OrionHDFSSink. HDFS file ("
-                            + fileName + "), Data (" + rowLine + ")");
+                    CygnusLogger.info(logger, "[{}] Persisting data at OrionHDFSSink. HDFS file ({}), Data ({})",
+                            this.getName(), fileName, CygnusLogger.payload(rowLine));
                     
-                    // if the fileName exists, append the Json document to it; otherwise, create it with initial content and
-                    // mark as existing (this avoids checking if the fileName exists each time a Json document is going to
-                    // be persisted)
+                    // if the fileName exists, buffer the Json document for appending it; otherwise, create it with
+                    // initial content and mark as existing (this avoids checking if the fileName exists each time a
+                    // Json document is going to be persisted)
                     if (fileExists) {
-                        // FIXME: current version of the notification only provides the organization, being null the
-                        // username
-                        persistenceBackend.append(httpClientFactory.getHttpClient(false), null, organization + "/"
-                                + fileName + "/" + fileName + ".txt", rowLine);
+                        bufferLine(organization + "/" + fileName + "/" + fileName + ".txt", rowLine);
                     } else {
                         // having in mind the HDFS structure:
                         // hdfs:///user/<username>/<organization>/<entityDescriptor>/<entityDescriptor>.txt
@@ -364,14 +638,11 @@ public class OrionHDFSSink extends OrionSink {
             if (!rowAttrPersistence) {
                 // insert a new row containing full attribute list
                 columnLine = columnLine.subSequence(0, columnLine.length() - 1) + "}";
-                logger.info("[" + this.getName() + "] Persisting data at OrionHDFSSink. HDFS file (" + fileName
-                        + "), Data (" + columnLine + ")");
+                CygnusLogger.info(logger, "[{}] Persisting data at OrionHDFSSink. HDFS file ({}), Data ({})",
+                        this.getName(), fileName, CygnusLogger.payload(columnLine));
                 
                 if (fileExists) {
-                    // FIXME: current version of the notification only provides the organization, being null the
-                    // username
-                    persistenceBackend.append(httpClientFactory.getHttpClient(false), null, organization + "/"
-                            + fileName + "/" + fileName + ".txt", columnLine);
+                    bufferLine(organization + "/" + fileName + "/" + fileName + ".txt", columnLine);
                 } else {
                     // having in mind the HDFS structure:
                     // hdfs:///user/<username>/<organization>/<entityDescriptor>/<entityDescriptor>.txt
@@ -392,6 +663,6 @@ public class OrionHDFSSink extends OrionSink {
                 } // if else
             } // if
         } // for
-    } // persist
+    } // addContextData
     
 } // OrionHDFSSink
@@ -20,11 +20,13 @@
 package es.tid.fiware.fiwareconnectors.cygnus.sinks;
 
 import es.tid.fiware.fiwareconnectors.cygnus.backends.mysql.MySQLBackend;
+import es.tid.fiware.fiwareconnectors.cygnus.backends.mysql.MySQLConnectionPool;
 import es.tid.fiware.fiwareconnectors.cygnus.containers.NotifyContextRequest;
 import es.tid.fiware.fiwareconnectors.cygnus.containers.NotifyContextRequest.ContextAttribute;
 import es.tid.fiware.fiwareconnectors.cygnus.containers.NotifyContextRequest.ContextElement;
 import es.tid.fiware.fiwareconnectors.cygnus.containers.NotifyContextRequest.ContextElementResponse;
 import es.tid.fiware.fiwareconnectors.cygnus.errors.CygnusBadConfiguration;
+import es.tid.fiware.fiwareconnectors.cygnus.errors.CygnusPersistenceError;
 import es.tid.fiware.fiwareconnectors.cygnus.log.CygnusLogger;
 import es.tid.fiware.fiwareconnectors.cygnus.utils.Constants;
 import es.tid.fiware.fiwareconnectors.cygnus.utils.Utils;
@@ -34,6 +36,7 @@ import java.util.HashMap;
 import java.util.Map;
 import org.apache.flume.Context;
 import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
 
 /**
  *
@@ -62,6 +65,11 @@ public class OrionMySQLSink extends OrionSink {
     private String mysqlPassword;
     private boolean rowAttrPersistence;
     private String namingPrefix;
+    private int insertBatchSize;
+    private int poolMaxSize;
+    private long poolMaxIdleTime;
+    private long poolMaxWaitTime;
+    private long schemaCacheTTL;
     private MySQLBackend persistenceBackend;
     
     /**
@@ -121,6 +129,51 @@ public class OrionMySQLSink extends OrionSink {
         return namingPrefix;
     } // getNamingPrefix
     
+    /**
+     * Returns the maximum number of rows inserted at the same time. It is protected due to it is only required for
+     * testing purposes.
+     * @return The maximum number of rows inserted at the same time
+     */
+    protected int getInsertBatchSize() {
+        return insertBatchSize;
+    } // getInsertBatchSize
+    
+    /**
+     * Returns the maximum number of connections per database. It is protected due to it is only required for testing
+     * purposes.
+     * @return The maximum number of connections per database
+     */
+    protected int getPoolMaxSize() {
+        return poolMaxSize;
+    } // getPoolMaxSize
+    
+    /**
+     * Returns the maximum number of milliseconds a connection is idle before closing it. It is protected due to it is
+     * only required for testing purposes.
+     * @return The maximum number of milliseconds a connection is idle before closing it
+     */
+    protected long getPoolMaxIdleTime() {
+        return poolMaxIdleTime;
+    } // getPoolMaxIdleTime
+    
+    /**
+     * Returns the maximum number of milliseconds waiting for a connection to be released. It is protected due to it is
+     * only required for testing purposes.
+     * @return The maximum number of milliseconds waiting for a connection to be released
+     */
+    protected long getPoolMaxWaitTime() {
+        return poolMaxWaitTime;
+    } // getPoolMaxWaitTime
+    
+    /**
+     * Returns the maximum number of milliseconds a database or table is known to exist before creating it again. It is
+     * protected due to it is only required for testing purposes.
+     * @return The maximum number of milliseconds a database or table is known to exist before creating it again
+     */
+    protected long getSchemaCacheTTL() {
+        return schemaCacheTTL;
+    } // getSchemaCacheTTL
+    
     /**
      * Returns the persistence backend. It is protected due to it is only required for testing purposes.
      * @return The persistence backend
@@ -139,6 +192,7 @@ public class OrionMySQLSink extends OrionSink {
     
     @Override
     public void configure(Context context) {
+        super.configure(context);
         mysqlHost = context.getString("mysql_host", "localhost");
         logger.debug("[" + this.getName() + "] Reading configuration (mysql_host=" + mysqlHost + ")");
         mysqlPort = context.getString("mysql_port", "3306");
@@ -161,19 +215,115 @@ public class OrionMySQLSink extends OrionSink {
         } // if
         
         logger.debug("[" + this.getName() + "] Reading configuration (naming_prefix=" + namingPrefix + ")");
+        insertBatchSize = context.getInteger("insert_batch_size", Constants.MYSQL_INSERT_BATCH_SIZE);
+        logger.debug("[" + this.getName() + "] Reading configuration (insert_batch_size=" + insertBatchSize + ")");
+        poolMaxSize = context.getInteger("pool_max_size", Constants.MYSQL_POOL_MAX_SIZE);
+        
+        if (poolMaxSize < 1) {
+            logger.error("[" + this.getName() + "] Bad configuration (pool_max_size must be greater than 0)");
+            logger.info("[" + this.getName() + "] Exiting Cygnus");
+            System.exit(-1);
+        } // if
+        
+        logger.debug("[" + this.getName() + "] Reading configuration (pool_max_size=" + poolMaxSize + ")");
+        poolMaxIdleTime = context.getLong("pool_max_idle_time", Constants.MYSQL_POOL_MAX_IDLE_TIME);
+        logger.debug("[" + this.getName() + "] Reading configuration (pool_max_idle_time=" + poolMaxIdleTime + ")");
+        poolMaxWaitTime = context.getLong("pool_max_wait_time", Constants.MYSQL_POOL_MAX_WAIT_TIME);
+        logger.debug("[" + this.getName() + "] Reading configuration (pool_max_wait_time=" + poolMaxWaitTime + ")");
+        schemaCacheTTL = context.getLong("schema_cache_ttl", Constants.MYSQL_SCHEMA_CACHE_TTL);
+        logger.debug("[" + this.getName() + "] Reading configuration (schema_cache_ttl=" + schemaCacheTTL + ")");
     } // configure
 
     @Override
     public void start() {
         // create the persistence backend
         logger.debug("[" + this.getName() + "] MySQL persistence backend created");
-        persistenceBackend = new MySQLBackend(mysqlHost, mysqlPort, mysqlUsername, mysqlPassword);
+        MySQLConnectionPool pool = new MySQLConnectionPool(mysqlHost, mysqlPort, mysqlUsername, mysqlPassword,
+                poolMaxSize, poolMaxIdleTime, poolMaxWaitTime);
+        persistenceBackend = new MySQLBackend(pool, insertBatchSize, schemaCacheTTL);
         super.start();
         logger.info("[" + this.getName() + "] Startup completed");
     } // start
+    
+    @Override
+    public void stop() {
+        // close the pooled connections
+        if (persistenceBackend != null) {
+            persistenceBackend.close();
+        } // if
+
+        super.stop();
+    } // stop
 
     @Override
     void persist(Map<String, String> eventHeaders, NotifyContextRequest notification) throws Exception {
+        addContextData(eventHeaders, notification);
+        persistenceBackend.flush();
+    } // persist
+    
+    /**
+     * Persists a batch of events by buffering the rows of all of them in the persistence backend, and then inserting
+     * them at the same time, or before if the buffer gets full. The events are marked as processed only once their rows
+     * have been inserted.
+     * @param batch
+     * @throws Exception
+     */
+    @Override
+    void persistBatch(ArrayList<OrionEvent> batch) throws Exception {
+        ArrayList<OrionEvent> buffered = new ArrayList<OrionEvent>();
+        
+        for (OrionEvent orionEvent : batch) {
+            if (orionEvent.isProcessed()) {
+                continue;
+            } // if
+
+            MDC.put(Constants.TRANSACTION_ID, orionEvent.getHeaders().get(Constants.TRANSACTION_ID));
+
+            try {
+                addContextData(orionEvent.getHeaders(), orionEvent.getNotification());
+                buffered.add(orionEvent);
+            } catch (CygnusPersistenceError e) {
+                // the rows buffered so far are inserted, since only the remaining events will be re-injected
+                flushBuffered(buffered);
+                throw e;
+            } catch (Exception e) {
+                logError(e);
+                orionEvent.setProcessed(true);
+            } // try catch
+            
+            if (persistenceBackend.isFlushRequired()) {
+                flushBuffered(buffered);
+            } // if
+        } // for
+        
+        flushBuffered(buffered);
+    } // persistBatch
+    
+    /**
+     * Inserts the rows buffered in the persistence backend, marking as processed the events they belong to. If the
+     * insertion fails the buffer is emptied anyway, and the events are not marked as processed, thus they are
+     * re-injected.
+     * @param buffered
+     * @throws Exception
+     */
+    private void flushBuffered(ArrayList<OrionEvent> buffered) throws Exception {
+        persistenceBackend.flush();
+        
+        for (OrionEvent orionEvent : buffered) {
+            orionEvent.setProcessed(true);
+        } // for
+        
+        buffered.clear();
+    } // flushBuffered
+    
+    /**
+     * Buffers in the persistence backend the rows regarding a notification.
+     * @param eventHeaders
+     * @param notification
+     * @throws Exception
+     */
+    private void addContextData(Map<String, String> eventHeaders, NotifyContextRequest notification)
+        throws Exception {
         // get some header values
         Long recvTimeTs = new Long(eventHeaders.get("timestamp")).longValue();
         String organization = eventHeaders.get(Constants.ORG_HEADER);
@@ -185,8 +335,8 @@ public class OrionMySQLSink extends OrionSink {
         // FIXME: organization is given in order to support multi-tenancy... should be used instead of the current
         // cosmosUsername
 
-        // create the database for this organization if not yet existing... the cost of trying to create it is the same
-        // than checking if it exits and then creating it
+        // create the database for this organization if not yet existing... the backend remembers the databases it has
+        // already created, thus this is only done once
         String dbName = namingPrefix + organization;
         
         if (dbName.length() > Constants.MYSQL_DB_NAME_MAX_LEN) {
@@ -213,8 +363,8 @@ public class OrionMySQLSink extends OrionSink {
             ContextElement contextElement = contextElementResponse.getContextElement();
             String entityId = Utils.encode(contextElement.getId());
             String entityType = Utils.encode(contextElement.getType());
-            logger.debug("[" + this.getName() + "] Processing context element (id= + " + entityId + ", type= "
-                    + entityType + ")");
+            CygnusLogger.debug(logger, "[{}] Processing context element (id={}, type={})", this.getName(), entityId,
+                    entityType);
             
             if (tableName.length() > Constants.MYSQL_DB_NAME_MAX_LEN) {
                 logger.error("[" + this.getName() + "] Bad configuration (A MySQL table name '" + tableName + "' has "
@@ -230,8 +380,8 @@ public class OrionMySQLSink extends OrionSink {
             // these tables are fixed 7-field row ones; otherwise, the size of the table is unknown and cannot be
             // created in execution time, it must be previously provisioned
             if (rowAttrPersistence) {
-                // create the table for this entity if not existing yet... the cost of trying yo create it is the same
-                // than checking if it exits and then creating it
+                // create the table for this entity if not existing yet... the backend remembers the tables it has
+                // already created, thus this is only done once
                 persistenceBackend.createTable(dbName, tableName);
             } // if
             
@@ -259,15 +409,14 @@ public class OrionMySQLSink extends OrionSink {
                 String attrType = contextAttribute.getType();
                 String attrValue = contextAttribute.getContextValue(false);
                 String attrMetadata = contextAttribute.getContextMetadata();
-                logger.debug("[" + this.getName() + "] Processing context attribute (name=" + attrName + ", type="
-                        + attrType + ")");
+                CygnusLogger.debug(logger, "[{}] Processing context attribute (name={}, type={})", this.getName(),
+                        attrName, attrType);
                 
                 if (rowAttrPersistence) {
-                    logger.info("[" + this.getName() + "] Persisting data at OrionMySQLSink. Database: " + dbName
-                            + ", Table: " + tableName + ", Data: " + recvTimeTs / 1000 + "," + recvTime + ","
-                            + entityId + "," + entityType + "," + attrName + "," + entityType + "," + attrValue + ","
-                            + attrMetadata);
-                    persistenceBackend.insertContextData(dbName, tableName, recvTimeTs / 1000, recvTime,
+                    CygnusLogger.info(logger, "[{}] Persisting data at OrionMySQLSink. Database: {}, Table: {}, Data: "
+                            + "{},{},{},{},{},{},{}", this.getName(), dbName, tableName, recvTimeTs / 1000, recvTime,
+                            entityId, entityType, attrName, attrType, CygnusLogger.payload(attrValue, attrMetadata));
+                    persistenceBackend.addContextData(dbName, tableName, recvTimeTs / 1000, recvTime,
                             entityId, entityType, attrName, attrType, attrValue, attrMetadata);
                 } else {
                     attrs.put(attrName, attrValue);
@@ -278,12 +427,12 @@ public class OrionMySQLSink extends OrionSink {
             // if the attribute persistence mode is per column, now is the time to insert a new row containing full
             // attribute list of attrName-values.
             if (!rowAttrPersistence) {
-                logger.info("[" + this.getName() + "] Persisting data at OrionMySQLSink. Database: " + dbName
-                        + ", Table: " + tableName + ", Timestamp: " + recvTime + ", Data (attrs): " + attrs.toString()
-                        + ", (metadata): " + mds.toString());
-                persistenceBackend.insertContextData(dbName, tableName, recvTime, attrs, mds);
+                CygnusLogger.info(logger, "[{}] Persisting data at OrionMySQLSink. Database: {}, Table: {}, Timestamp: "
+                        + "{}, Data (attrs, metadata): {}", this.getName(), dbName, tableName, recvTime,
+                        CygnusLogger.payload(attrs, mds));
+                persistenceBackend.addContextData(dbName, tableName, recvTime, attrs, mds);
             } // if
         } // for
-    } // persist
+    } // addContextData
     
 } // OrionMySQLSink
\ No newline at end of file
@@ -19,19 +19,19 @@
 
 package es.tid.fiware.fiwareconnectors.cygnus.sinks;
 
-import com.google.gson.Gson;
 import es.tid.fiware.fiwareconnectors.cygnus.containers.NotifyContextRequest;
-import es.tid.fiware.fiwareconnectors.cygnus.containers.NotifyContextRequestSAXHandler;
+import es.tid.fiware.fiwareconnectors.cygnus.containers.NotifyContextRequestEvent;
+import es.tid.fiware.fiwareconnectors.cygnus.containers.NotifyContextRequestParser;
 import es.tid.fiware.fiwareconnectors.cygnus.errors.CygnusBadConfiguration;
 import es.tid.fiware.fiwareconnectors.cygnus.errors.CygnusBadContextData;
 import es.tid.fiware.fiwareconnectors.cygnus.errors.CygnusPersistenceError;
 import es.tid.fiware.fiwareconnectors.cygnus.errors.CygnusRuntimeError;
+import es.tid.fiware.fiwareconnectors.cygnus.log.CygnusLogger;
+import java.util.ArrayList;
 import java.util.Map;
 import es.tid.fiware.fiwareconnectors.cygnus.utils.Constants;
-import java.io.StringReader;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
 import org.apache.flume.Channel;
+import org.apache.flume.Context;
 import org.apache.flume.Event;
 import org.apache.flume.EventDeliveryException;
 import org.apache.flume.Sink.Status;
@@ -40,7 +40,6 @@ import org.apache.flume.conf.Configurable;
 import org.apache.flume.sink.AbstractSink;
 import org.apache.log4j.Logger;
 import org.apache.log4j.MDC;
-import org.xml.sax.InputSource;
 
 /**
  *
@@ -49,11 +48,15 @@ import org.xml.sax.InputSource;
  * Abstract class containing the common code to all the sinks persisting data comming from Orion Context Broker.
  * 
  * The common attributes are:
- *  - there is no common attributes
+ *  - batchSize, the maximum number of events taken from the channel within a single Flume transaction
+ *  - batchTimeout, the maximum number of milliseconds spent waiting for a batch to be completed
+ *  - batchFailurePolicy, what is re-injected in the channel when a batch cannot be fully persisted
  * The common methods are:
+ *  - void configure(Context context), reading the common attributes (it must be called by the extending classes)
  *  - void stop()
  *  - Status process() throws EventDeliveryException
- *  - void persist(Event event) throws Exception
+ *  - NotifyContextRequest parse(Event event) throws Exception
+ *  - void persistBatch(ArrayList<OrionEvent> batch) throws Exception, which may be overridden
  * The non common parts, and therefore those that are sink dependant and must be implemented are:
  *  - void configure(Context context)
  *  - void start()
@@ -61,7 +64,23 @@ import org.xml.sax.InputSource;
  */
 public abstract class OrionSink extends AbstractSink implements Configurable {
 
+    /**
+     * Failure policy rolling back the whole batch when any of its events could not be persisted.
+     */
+    public static final String POLICY_ROLLBACK = "rollback";
+    
+    /**
+     * Failure policy committing the batch and re-injecting in the channel only the events not persisted.
+     */
+    public static final String POLICY_REINJECT_FAILED = "reinject_failed";
+    
+    // milliseconds between two consecutive takes when waiting for a batch to be completed
+    private static final long BATCH_POLLING_INTERVAL = 100;
+    
     private Logger logger;
+    protected int batchSize;
+    protected long batchTimeout;
+    protected String batchFailurePolicy;
     
     /**
      * Constructor.
@@ -72,8 +91,72 @@ public abstract class OrionSink extends AbstractSink implements Configurable {
         
         // create a logger
         logger = Logger.getLogger(OrionSink.class);
+        
+        // default batching parameters, i.e. one event per Flume transaction
+        batchSize = 1;
+        batchTimeout = 0;
+        batchFailurePolicy = POLICY_ROLLBACK;
     } // OrionSink
     
+    /**
+     * Gets the batch size. It is protected due to it is only required for testing purposes.
+     * @return The batch size
+     */
+    protected int getBatchSize() {
+        return batchSize;
+    } // getBatchSize
+    
+    /**
+     * Gets the batch timeout. It is protected due to it is only required for testing purposes.
+     * @return The batch timeout (milliseconds)
+     */
+    protected long getBatchTimeout() {
+        return batchTimeout;
+    } // getBatchTimeout
+    
+    /**
+     * Gets the batch failure policy. It is protected due to it is only required for testing purposes.
+     * @return The batch failure policy
+     */
+    protected String getBatchFailurePolicy() {
+        return batchFailurePolicy;
+    } // getBatchFailurePolicy
+    
+    /**
+     * Reads the configuration parameters common to all the sinks. The extending classes must call this method from
+     * their own configure method.
+     * @param context
+     */
+    @Override
+    public void configure(Context context) {
+        batchSize = context.getInteger("batch_size", 1);
+        
+        if (batchSize < 1) {
+            logger.error("[" + this.getName() + "] Bad configuration (batch_size must be greater than 0, using 1)");
+            batchSize = 1;
+        } // if
+        
+        logger.debug("[" + this.getName() + "] Reading configuration (batch_size=" + batchSize + ")");
+        batchTimeout = context.getLong("batch_timeout", 0L);
+        
+        if (batchTimeout < 0) {
+            logger.error("[" + this.getName() + "] Bad configuration (batch_timeout must be 0 or greater, using 0)");
+            batchTimeout = 0;
+        } // if
+        
+        logger.debug("[" + this.getName() + "] Reading configuration (batch_timeout=" + batchTimeout + ")");
+        batchFailurePolicy = context.getString("batch_failure_policy", POLICY_ROLLBACK);
+        
+        if (!batchFailurePolicy.equals(POLICY_ROLLBACK) && !batchFailurePolicy.equals(POLICY_REINJECT_FAILED)) {
+            logger.error("[" + this.getName() + "] Bad configuration (Unrecognized batch_failure_policy "
+                    + batchFailurePolicy + ", using " + POLICY_ROLLBACK + ")");
+            batchFailurePolicy = POLICY_ROLLBACK;
+        } // if
+        
+        logger.debug("[" + this.getName() + "] Reading configuration (batch_failure_policy=" + batchFailurePolicy
+                + ")");
+    } // configure
+    
     @Override
     public void stop() {
         super.stop();
@@ -84,7 +167,7 @@ public abstract class OrionSink extends AbstractSink implements Configurable {
         Status status = null;
         Channel ch = null;
         Transaction txn = null;
-        Event event = null;
+        ArrayList<Event> events = null;
 
         try {
             // get the channel
@@ -104,121 +187,269 @@ public abstract class OrionSink extends AbstractSink implements Configurable {
         } // try catch
 
         try {
-            // get the event
-            event = ch.take();
+            // get the events
+            events = takeBatch(ch);
             
-            if (event == null) {
+            if (events.isEmpty()) {
                 txn.commit();
                 txn.close();
                 return Status.READY;
             } // if
         } catch (Exception e) {
             logger.error("Channel error (The event could not be got. Details=" + e.getMessage() + ")");
+            txn.rollback();
+            txn.close();
             throw new EventDeliveryException(e);
         } // try catch
-            
-        try {
-            // set the transactionId in MDC
-            MDC.put(Constants.TRANSACTION_ID, event.getHeaders().get(Constants.TRANSACTION_ID));
-        } catch (Exception e) {
-            logger.error("Runtime error (" + e.getMessage() + ")");
-        } // catch
+        
+        // parse the events; those events that cannot be parsed are discarded
+        ArrayList<OrionEvent> batch = new ArrayList<OrionEvent>(events.size());
+        
+        for (Event event : events) {
+            try {
+                // set the transactionId in MDC
+                MDC.put(Constants.TRANSACTION_ID, event.getHeaders().get(Constants.TRANSACTION_ID));
+            } catch (Exception e) {
+                logger.error("Runtime error (" + e.getMessage() + ")");
+            } // catch
 
-        logger.info("Event got from the channel (id=" + event.hashCode() + ", headers=" + event.getHeaders().toString()
-                + ", bodyLength=" + event.getBody().length + ")");
+            CygnusLogger.info(logger, "Event got from the channel (id={}, headers={}, bodyLength={})", event.hashCode(),
+                    event.getHeaders(), event.getBody().length);
+            OrionEvent orionEvent = new OrionEvent(event);
+            
+            try {
+                orionEvent.setNotification(parse(event));
+            } catch (Exception e) {
+                logError(e);
+                orionEvent.setProcessed(true);
+            } // try catch
+            
+            batch.add(orionEvent);
+        } // for
         
         try {
-            // persist the event
-            persist(event);
-            
-            // the transaction has succeded
-            txn.commit();
-            status = Status.READY;
+            // persist the events
+            persistBatch(batch);
         } catch (Exception e) {
-            // rollback only if the exception is about a persistence error
+            // the events not marked as processed will be re-injected only if the exception is about a persistence
+            // error; otherwise they are discarded
             if (e instanceof CygnusPersistenceError) {
                 logger.error(e.getMessage());
+            } else {
+                logError(e);
                 
-                // check the event TTL
+                for (OrionEvent orionEvent : batch) {
+                    orionEvent.setProcessed(true);
+                } // for
+            } // if else
+        } // try catch
+        
+        // get the events that could not be persisted
+        ArrayList<Event> failedEvents = new ArrayList<Event>();
+        
+        for (OrionEvent orionEvent : batch) {
+            if (!orionEvent.isProcessed()) {
+                failedEvents.add(orionEvent.getEvent());
+            } // if
+        } // for
+        
+        try {
+            if (failedEvents.isEmpty()) {
+                // the transaction has succeded
+                txn.commit();
+                status = Status.READY;
+            } else if (batchFailurePolicy.equals(POLICY_REINJECT_FAILED)) {
+                status = reinjectFailed(ch, txn, failedEvents);
+            } else {
+                status = rollbackBatch(ch, txn, events);
+            } // if else if
+        } finally {
+            // close the transaction
+            txn.close();
+            CygnusLogger.info(logger, "Finishing transaction ({})", MDC.get(Constants.TRANSACTION_ID));
+        } // try catch finally
+
+        return status;
+    } // process
+    
+    /**
+     * Takes up to batchSize events from the channel. If the channel becomes empty before the batch is completed, the
+     * channel is polled until batchTimeout milliseconds have elapsed since the first take.
+     * @param ch
+     * @return The list of taken events, empty if no event was available
+     * @throws Exception
+     */
+    private ArrayList<Event> takeBatch(Channel ch) throws Exception {
+        ArrayList<Event> events = new ArrayList<Event>(batchSize);
+        long deadline = System.currentTimeMillis() + batchTimeout;
+        
+        while (events.size() < batchSize) {
+            Event event = ch.take();
+            
+            if (event != null) {
+                events.add(event);
+                continue;
+            } // if
+            
+            long remaining = deadline - System.currentTimeMillis();
+            
+            if (events.isEmpty() || remaining <= 0) {
+                break;
+            } // if
+            
+            try {
+                Thread.sleep(Math.min(remaining, BATCH_POLLING_INTERVAL));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } // try catch
+        } // while
+        
+        return events;
+    } // takeBatch
+    
+    /**
+     * Rolls back the whole batch, decreasing the TTL of all its events. The TTL works per event, i.e. if the TTL of
+     * some of the events within the batch has expired, those events are dropped and the others are re-injected in the
+     * channel within the same Flume transaction the batch was taken, which is committed.
+     * @param ch
+     * @param txn
+     * @param events
+     * @return The sink status after the rollback
+     */
+    private Status rollbackBatch(Channel ch, Transaction txn, ArrayList<Event> events) {
+        ArrayList<Event> alive = new ArrayList<Event>(events.size());
+        
+        for (Event event : events) {
+            if (new Integer(event.getHeaders().get(Constants.TTL)).intValue() > 0) {
+                alive.add(event);
+            } else {
+                logger.warn("The event TTL has expired, it is no more re-injected in the channel (id="
+                        + event.hashCode() + ", ttl=0)");
+            } // if else
+        } // for
+        
+        if (alive.size() == events.size()) {
+            for (Event event : events) {
                 int ttl = new Integer(event.getHeaders().get(Constants.TTL)).intValue();
-                
+                String newTTL = new Integer(ttl - 1).toString();
+                event.getHeaders().put(Constants.TTL, newTTL);
+                logger.info("An event was put again in the channel (id=" + event.hashCode() + ", ttl=" + newTTL
+                        + ")");
+            } // for
+            
+            txn.rollback();
+            return Status.BACKOFF;
+        } else {
+            // the transaction cannot be rolled back without re-injecting the expired events as well
+            return reinjectFailed(ch, txn, alive);
+        } // if else
+    } // rollbackBatch
+    
+    /**
+     * Re-injects the not persisted events in the channel within the same Flume transaction the batch was taken, and
+     * commits it. Those events whose TTL has expired are not re-injected.
+     * @param ch
+     * @param txn
+     * @param failedEvents
+     * @return The sink status after the re-injection
+     */
+    private Status reinjectFailed(Channel ch, Transaction txn, ArrayList<Event> failedEvents) {
+        boolean reinjected = false;
+        
+        try {
+            for (Event event : failedEvents) {
+                int ttl = new Integer(event.getHeaders().get(Constants.TTL)).intValue();
+
                 if (ttl > 0) {
                     String newTTL = new Integer(ttl - 1).toString();
                     event.getHeaders().put(Constants.TTL, newTTL);
-                    txn.rollback();
-                    status = Status.BACKOFF;
+                    ch.put(event);
+                    reinjected = true;
                     logger.info("An event was put again in the channel (id=" + event.hashCode() + ", ttl=" + newTTL
                             + ")");
                 } else {
                     logger.warn("The event TTL has expired, it is no more re-injected in the channel (id="
                             + event.hashCode() + ", ttl=0)");
-                    txn.commit();
-                    status = Status.READY;
                 } // if else
-            } else {
-                if (e instanceof CygnusRuntimeError) {
-                    logger.error(e.getMessage());
-                } else if (e instanceof CygnusBadConfiguration) {
-                    logger.warn(e.getMessage());
-                } else if (e instanceof CygnusBadContextData) {
-                    logger.warn(e.getMessage());
-                } else {
-                    logger.warn(e.getMessage());
-                } // if else if
-
-                txn.commit();
-                status = Status.READY;
-            } // if else
-        } finally {
-            // close the transaction
-            txn.close();
-            logger.info("Finishing transaction (" + MDC.get(Constants.TRANSACTION_ID) + ")");
-        } // try catch finally
-
-        return status;
-    } // process
+            } // for
+            
+            txn.commit();
+        } catch (Exception e) {
+            // the failed events could not be re-injected, thus the whole batch is rolled back
+            logger.error("Channel error (The failed events could not be re-injected, rolling back the whole batch. "
+                    + "Details=" + e.getMessage() + ")");
+            txn.rollback();
+            return Status.BACKOFF;
+        } // try catch
+        
+        return reinjected ? Status.BACKOFF : Status.READY;
+    } // reinjectFailed
     
     /**
-     * Given an event, it is preprocessed before it is persisted. Depending on the content type, it is appropriately
-     * parsed (Json or XML) in order to obtain a NotifyContextRequest instance.
+     * Traces an error not regarding the persistence, i.e. an error that causes the event to be discarded.
+     * @param e
+     */
+    void logError(Exception e) {
+        if (e instanceof CygnusRuntimeError) {
+            logger.error(e.getMessage());
+        } else if (e instanceof CygnusBadConfiguration) {
+            logger.warn(e.getMessage());
+        } else if (e instanceof CygnusBadContextData) {
+            logger.warn(e.getMessage());
+        } else {
+            logger.warn(e.getMessage());
+        } // if else if
+    } // logError
+    
+    /**
+     * Given an event, it is preprocessed before it is persisted. If the event already carries the parsed notification
+     * (see DestinationExtractor) it is reused; otherwise, depending on the content type, the event body is
+     * appropriately parsed (Json or XML) in order to obtain a NotifyContextRequest instance.
      * 
      * @param event A Flume event containing the data to be persisted and certain metadata (headers).
+     * @return The notification object regarding the event body
      * @throws Exception
      */
-    private void persist(Event event) throws Exception {
-        String eventData = new String(event.getBody());
-        Map<String, String> eventHeaders = event.getHeaders();
-
-        // parse the eventData
-        NotifyContextRequest notification = null;
-
-        if (eventHeaders.get(Constants.CONTENT_TYPE).contains("application/json")) {
-            Gson gson = new Gson();
-
-            try {
-                notification = gson.fromJson(eventData, NotifyContextRequest.class);
-            } catch (Exception e) {
-                throw new CygnusBadContextData(e.getMessage());
-            } // try catch
-        } else if (eventHeaders.get(Constants.CONTENT_TYPE).contains("application/xml")) {
-            SAXParserFactory saxParserFactory = SAXParserFactory.newInstance();
+    private NotifyContextRequest parse(Event event) throws Exception {
+        if (event instanceof NotifyContextRequestEvent) {
+            NotifyContextRequest notification = ((NotifyContextRequestEvent) event).getNotification();
+            
+            if (notification != null) {
+                return notification;
+            } // if
+        } // if
+        
+        return NotifyContextRequestParser.parse(event.getBody(), event.getHeaders().get(Constants.CONTENT_TYPE));
+    } // parse
+    
+    /**
+     * Persists a batch of events taken within the same Flume transaction. This default implementation persists the
+     * events one by one, stopping at the first persistence error; the events not marked as processed at that moment
+     * are considered as failed and handled according to the batch failure policy. Events causing any other error are
+     * discarded. Sinks able to persist several events at the same time may override this method.
+     * @param batch Events (already parsed) taken from the channel; those already processed must be skipped
+     * @throws Exception
+     */
+    void persistBatch(ArrayList<OrionEvent> batch) throws Exception {
+        for (OrionEvent orionEvent : batch) {
+            if (orionEvent.isProcessed()) {
+                continue;
+            } // if
+            
+            MDC.put(Constants.TRANSACTION_ID, orionEvent.getHeaders().get(Constants.TRANSACTION_ID));
             
             try {
-                SAXParser saxParser = saxParserFactory.newSAXParser();
-                NotifyContextRequestSAXHandler handler = new NotifyContextRequestSAXHandler();
-                saxParser.parse(new InputSource(new StringReader(eventData)), handler);
-                notification = handler.getNotifyContextRequest();
+                persist(orionEvent.getHeaders(), orionEvent.getNotification());
+            } catch (CygnusPersistenceError e) {
+                throw e;
             } catch (Exception e) {
-                throw new CygnusBadContextData(e.getMessage());
+                logError(e);
             } // try catch
-        } else {
-            // this point should never be reached since the content type has been checked when receiving the
-            // notification
-            throw new Exception("Unrecognized content type (not Json nor XML)");
-        } // if else if
-
-        persist(eventHeaders, notification);
-    } // persist
+            
+            orionEvent.setProcessed(true);
+        } // for
+    } // persistBatch
     
     /**
      * This is the method the classes extending this class must implement when dealing with persistence.
@@ -228,4 +459,73 @@ public abstract class OrionSink extends AbstractSink implements Configurable {
      */
     abstract void persist(Map<String, String> eventHeaders, NotifyContextRequest notification) throws Exception;
     
+    /**
+     * Flume event taken from the channel, together with its parsed notification and its processing status.
+     */
+    protected static class OrionEvent {
+        
+        private Event event;
+        private NotifyContextRequest notification;
+        private boolean processed;
+        
+        /**
+         * Constructor.
+         * @param event
+         */
+        public OrionEvent(Event event) {
+            this.event = event;
+            this.notification = null;
+            this.processed = false;
+        } // OrionEvent
+        
+        /**
+         * Gets the Flume event.
+         * @return The Flume event
+         */
+        public Event getEvent() {
+            return event;
+        } // getEvent
+        
+        /**
+         * Gets the Flume event headers.
+         * @return The Flume event headers
+         */
+        public Map<String, String> getHeaders() {
+            return event.getHeaders();
+        } // getHeaders
+        
+        /**
+         * Gets the notification regarding the event body.
+         * @return The notification regarding the event body
+         */
+        public NotifyContextRequest getNotification() {
+            return notification;
+        } // getNotification
+        
+        /**
+         * Returns if the event has been processed, i.e. it has been persisted or it has been discarded.
+         * @return True if the event has been processed, false otherwise
+         */
+        public boolean isProcessed() {
+            return processed;
+        } // isProcessed
+        
+        /**
+         * Sets the notification regarding the event body.
+         * @param notification
+         */
+        public void setNotification(NotifyContextRequest notification) {
+            this.notification = notification;
+        } // setNotification
+        
+        /**
+         * Sets if the event has been processed.
+         * @param processed
+         */
+        public void setProcessed(boolean processed) {
+            this.processed = processed;
+        } // setProcessed
+        
+    } // OrionEvent
+    
 } // OrionSink
\ No newline at end of file
@@ -0,0 +1,448 @@
+/**
+ * Copyright 2014 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-connectors (FI-WARE project).
+ *
+ * fiware-connectors is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-connectors is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-connectors. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with Francisco Romero
+ * francisco.romerobueno@telefonica.com
+ */
+
+package es.tid.fiware.fiwareconnectors.cygnus.sources;
+
+import es.tid.fiware.fiwareconnectors.cygnus.errors.CygnusAdmissionRejected;
+import es.tid.fiware.fiwareconnectors.cygnus.handlers.OrionRestHandler;
+import es.tid.fiware.fiwareconnectors.cygnus.utils.Constants;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.flume.ChannelException;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.EventDrivenSource;
+import org.apache.flume.conf.Configurable;
+import org.apache.flume.instrumentation.SourceCounter;
+import org.apache.flume.source.AbstractSource;
+import org.apache.flume.source.http.HTTPBadRequestException;
+import org.apache.http.MethodNotSupportedException;
+import org.apache.log4j.Logger;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFactory;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.codec.frame.TooLongFrameException;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpChunkAggregator;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpRequestDecoder;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.handler.codec.http.QueryStringDecoder;
+
+/**
+ *
+ * @author frb
+ *
+ * Flume source receiving Orion Context Broker notifications through an asynchronous HTTP server based on Netty, as an
+ * alternative to the default HTTP Flume source together with the OrionRestHandler. The connections are multiplexed by
+ * a small pool of worker threads reading the notifications in a non blocking way, thus a high number of connections
+ * does not require the same number of threads.
+ *
+ * The notifications are checked and converted into Flume events by an OrionRestHandler, thus the same rules apply.
+ * The events are queued and put in the channel in batches by a single thread, the ones of as many notifications as
+ * queued at the same time while the number of events does not exceed the batch size (a notification sent to the batch
+ * target has many events, and a notification having more events than the batch size is put alone); each
+ * notification is responded once its batch has been put in the channel (200), or has failed (503 if the channel is
+ * full). A 503 is responded as well if the queue is full. The notifications not admitted by the admission control of
+ * the handler are responded with 503 or 429, and a Retry-After header.
+ *
+ * The handler parameters are configured with the same "handler." prefix than the default HTTP Flume source.
+ */
+public class OrionNIOSource extends AbstractSource implements EventDrivenSource, Configurable {
+
+    private Logger logger;
+    private String host;
+    private int port;
+    private int workerThreads;
+    private int maxBodySize;
+    private int batchSize;
+    private int queueSize;
+    private boolean managementInterface;
+    private OrionRestHandler handler;
+    private SourceCounter sourceCounter;
+    private LinkedBlockingQueue<PendingNotification> queue;
+    private ChannelFactory channelFactory;
+    private ChannelGroup channels;
+    private Channel serverChannel;
+    private Thread batcher;
+
+    /**
+     * Constructor.
+     */
+    public OrionNIOSource() {
+        logger = Logger.getLogger(OrionNIOSource.class);
+    } // OrionNIOSource
+
+    /**
+     * Gets the local port the source is listening on. It is protected due to it is only required for testing purposes.
+     * @return The local port
+     */
+    protected int getLocalPort() {
+        return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+    } // getLocalPort
+
+    @Override
+    public void configure(Context context) {
+        host = context.getString("bind", "0.0.0.0");
+        logger.debug("[" + this.getName() + "] Reading configuration (bind=" + host + ")");
+        port = context.getInteger("port", 5050);
+        logger.debug("[" + this.getName() + "] Reading configuration (port=" + port + ")");
+        workerThreads = context.getInteger("worker_threads", Constants.NIO_SOURCE_WORKER_THREADS);
+        logger.debug("[" + this.getName() + "] Reading configuration (worker_threads=" + workerThreads + ")");
+        maxBodySize = context.getInteger("max_body_size", Constants.NIO_SOURCE_MAX_BODY_SIZE);
+        logger.debug("[" + this.getName() + "] Reading configuration (max_body_size=" + maxBodySize + ")");
+        batchSize = context.getInteger("batch_size", Constants.NIO_SOURCE_BATCH_SIZE);
+        logger.debug("[" + this.getName() + "] Reading configuration (batch_size=" + batchSize + ")");
+        queueSize = context.getInteger("queue_size", Constants.NIO_SOURCE_QUEUE_SIZE);
+        logger.debug("[" + this.getName() + "] Reading configuration (queue_size=" + queueSize + ")");
+
+        if (workerThreads <= 0 || batchSize <= 0 || queueSize <= 0) {
+            logger.error("[" + this.getName() + "] Bad configuration (worker_threads, batch_size and queue_size must "
+                    + "be greater than 0)");
+            logger.info("[" + this.getName() + "] Exiting Cygnus");
+            System.exit(-1);
+        } // if
+
+        managementInterface = context.getBoolean("management_interface", false);
+        logger.debug("[" + this.getName() + "] Reading configuration (management_interface=" + managementInterface
+                + ")");
+
+        // the management interface is not started unless explicitly enabled, since another source may have started
+        // it on the same port
+        handler = new OrionRestHandler(managementInterface);
+        handler.configure(new Context(context.getSubProperties("handler.")));
+
+        if (sourceCounter == null) {
+            sourceCounter = new SourceCounter(this.getName());
+        } // if
+    } // configure
+
+    @Override
+    public synchronized void start() {
+        queue = new LinkedBlockingQueue<PendingNotification>(queueSize);
+        channels = new DefaultChannelGroup(this.getName());
+        channelFactory = new NioServerSocketChannelFactory(
+                Executors.newCachedThreadPool(createThreadFactory(this.getName() + "-boss")),
+                Executors.newCachedThreadPool(createThreadFactory(this.getName() + "-worker")), workerThreads);
+        ServerBootstrap bootstrap = new ServerBootstrap(channelFactory);
+        bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+
+            @Override
+            public ChannelPipeline getPipeline() {
+                return Channels.pipeline(new HttpRequestDecoder(), new HttpChunkAggregator(maxBodySize),
+                        new HttpResponseEncoder(), new NotificationHandler());
+            } // getPipeline
+
+        });
+        bootstrap.setOption("child.tcpNoDelay", true);
+        bootstrap.setOption("child.keepAlive", true);
+        serverChannel = bootstrap.bind(new InetSocketAddress(host, port));
+        channels.add(serverChannel);
+        batcher = createThreadFactory(this.getName() + "-batcher").newThread(new Batcher());
+        batcher.start();
+        sourceCounter.start();
+        super.start();
+        logger.info("[" + this.getName() + "] Startup completed (port=" + getLocalPort() + ")");
+    } // start
+
+    @Override
+    public synchronized void stop() {
+        // stop accepting notifications, then stop putting the queued ones in the channel
+        channels.close().awaitUninterruptibly();
+        channelFactory.releaseExternalResources();
+        batcher.interrupt();
+
+        try {
+            batcher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } // try catch
+
+        sourceCounter.stop();
+        super.stop();
+        logger.info("[" + this.getName() + "] Shutdown completed (discarded queued notifications=" + queue.size()
+                + ")");
+    } // stop
+
+    /**
+     * Responds a notification with an empty body, closing the connection if not persistent.
+     * @param channel
+     * @param status
+     * @param keepAlive
+     * @param retryAfter Number of seconds after which the notification should be retried, 0 if not to be retried
+     */
+    private static void respond(Channel channel, HttpResponseStatus status, boolean keepAlive, long retryAfter) {
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, status);
+        HttpHeaders.setContentLength(response, 0);
+
+        if (retryAfter > 0) {
+            response.setHeader(HttpHeaders.Names.RETRY_AFTER, retryAfter);
+        } // if
+
+        if (keepAlive) {
+            response.setHeader(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+        } // if
+
+        ChannelFuture future = channel.write(response);
+
+        if (!keepAlive) {
+            future.addListener(ChannelFutureListener.CLOSE);
+        } // if
+    } // respond
+
+    /**
+     * Creates a factory of daemon threads named after the given prefix.
+     * @param prefix
+     * @return The thread factory
+     */
+    private static ThreadFactory createThreadFactory(final String prefix) {
+        return new ThreadFactory() {
+
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, prefix + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            } // newThread
+
+        };
+    } // createThreadFactory
+
+    /**
+     * Checks the received notifications and queues their events, in the worker threads.
+     */
+    private class NotificationHandler extends SimpleChannelUpstreamHandler {
+
+        @Override
+        public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) {
+            channels.add(e.getChannel());
+        } // channelOpen
+
+        @Override
+        public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) {
+            HttpRequest request = (HttpRequest) e.getMessage();
+            boolean keepAlive = HttpHeaders.isKeepAlive(request);
+            Map<String, String> headers = new HashMap<String, String>();
+
+            for (Map.Entry<String, String> header : request.getHeaders()) {
+                headers.put(header.getKey().toLowerCase(Locale.ENGLISH), header.getValue());
+            } // for
+
+            String target = new QueryStringDecoder(request.getUri()).getPath();
+            Map<String, String> eventHeaders;
+
+            try {
+                eventHeaders = handler.checkNotification(request.getMethod().getName(), target, headers);
+            } catch (CygnusAdmissionRejected ex) {
+                respond(e.getChannel(), HttpResponseStatus.valueOf(ex.getStatusCode()), keepAlive,
+                        ex.getRetryAfter());
+                return;
+            } catch (MethodNotSupportedException ex) {
+                respond(e.getChannel(), HttpResponseStatus.METHOD_NOT_ALLOWED, keepAlive, 0);
+                return;
+            } catch (HTTPBadRequestException ex) {
+                respond(e.getChannel(), HttpResponseStatus.BAD_REQUEST, keepAlive, 0);
+                return;
+            } catch (Exception ex) {
+                logger.error("[" + getName() + "] The notification could not be checked (details="
+                        + ex.getMessage() + ")");
+                respond(e.getChannel(), HttpResponseStatus.INTERNAL_SERVER_ERROR, keepAlive, 0);
+                return;
+            } // try catch
+
+            // from now on, the notification must be released once responded, by the batcher if queued
+            boolean queued = false;
+
+            try {
+                ChannelBuffer content = request.getContent();
+                List<Event> events;
+
+                if (content.hasArray()) {
+                    events = handler.createEvents(target, eventHeaders, content.array(),
+                            content.arrayOffset() + content.readerIndex(), content.readableBytes());
+                } else {
+                    byte[] body = new byte[content.readableBytes()];
+                    content.readBytes(body);
+                    events = handler.createEvents(target, eventHeaders, body, 0, body.length);
+                } // if else
+
+                sourceCounter.addToEventReceivedCount(events.size());
+                queued = queue.offer(new PendingNotification(events, e.getChannel(), keepAlive));
+
+                if (!queued) {
+                    logger.warn("[" + getName() + "] The notification could not be queued, the queue is full "
+                            + "(queue_size=" + queueSize + ")");
+                    respond(e.getChannel(), HttpResponseStatus.SERVICE_UNAVAILABLE, keepAlive, 0);
+                } // if
+            } catch (HTTPBadRequestException ex) {
+                respond(e.getChannel(), HttpResponseStatus.BAD_REQUEST, keepAlive, 0);
+            } catch (RuntimeException ex) {
+                logger.error("[" + getName() + "] The notification could not be processed (details="
+                        + ex.getMessage() + ")");
+                respond(e.getChannel(), HttpResponseStatus.INTERNAL_SERVER_ERROR, keepAlive, 0);
+            } finally {
+                if (!queued) {
+                    handler.releaseNotification();
+                } // if
+            } // try catch finally
+        } // messageReceived
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) {
+            if (e.getCause() instanceof TooLongFrameException) {
+                logger.warn("[" + getName() + "] Bad HTTP notification (body greater than " + maxBodySize
+                        + " bytes)");
+                respond(e.getChannel(), HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, false, 0);
+            } else {
+                logger.debug("[" + getName() + "] Closing the connection (details=" + e.getCause().getMessage()
+                        + ")");
+                e.getChannel().close();
+            } // if else
+        } // exceptionCaught
+
+    } // NotificationHandler
+
+    /**
+     * Puts the queued events in the channel in batches, and responds the notifications.
+     */
+    private class Batcher implements Runnable {
+
+        @Override
+        public void run() {
+            ArrayList<PendingNotification> batch = new ArrayList<PendingNotification>(batchSize);
+            ArrayList<Event> events = new ArrayList<Event>(batchSize);
+
+            while (!Thread.currentThread().isInterrupted()) {
+                PendingNotification next;
+
+                try {
+                    // wait for a notification; it is taken even if it has more events than the batch size, since
+                    // otherwise it could never be put
+                    next = queue.take();
+                } catch (InterruptedException e) {
+                    break;
+                } // try catch
+
+                batch.add(next);
+                events.addAll(next.getEvents());
+
+                // then take as many queued notifications as fitting in the batch size; this is the only consumer of
+                // the queue, thus the peeked notification is the polled one
+                next = queue.peek();
+
+                while (next != null && events.size() + next.getEvents().size() <= batchSize) {
+                    batch.add(queue.poll());
+                    events.addAll(next.getEvents());
+                    next = queue.peek();
+                } // while
+
+                HttpResponseStatus status;
+                sourceCounter.incrementAppendBatchReceivedCount();
+
+                try {
+                    getChannelProcessor().processEventBatch(events);
+                    sourceCounter.incrementAppendBatchAcceptedCount();
+                    sourceCounter.addToEventAcceptedCount(events.size());
+                    status = HttpResponseStatus.OK;
+                } catch (ChannelException e) {
+                    logger.warn("[" + getName() + "] The events could not be put in the channel (numEvents="
+                            + events.size() + ", details=" + e.getMessage() + ")");
+                    status = HttpResponseStatus.SERVICE_UNAVAILABLE;
+                } catch (Exception e) {
+                    logger.error("[" + getName() + "] The events could not be put in the channel (numEvents="
+                            + events.size() + ", details=" + e.getMessage() + ")");
+                    status = HttpResponseStatus.INTERNAL_SERVER_ERROR;
+                } // try catch
+
+                for (PendingNotification pending : batch) {
+                    respond(pending.getChannel(), status, pending.isKeepAlive(), 0);
+                    handler.releaseNotification();
+                } // for
+
+                batch.clear();
+                events.clear();
+            } // while
+        } // run
+
+    } // Batcher
+
+    /**
+     * Events of a notification waiting for being put in the channel, together with the connection where to respond.
+     */
+    private static class PendingNotification {
+
+        private final List<Event> events;
+        private final Channel channel;
+        private final boolean keepAlive;
+
+        /**
+         * Constructor.
+         * @param events
+         * @param channel
+         * @param keepAlive
+         */
+        public PendingNotification(List<Event> events, Channel channel, boolean keepAlive) {
+            this.events = events;
+            this.channel = channel;
+            this.keepAlive = keepAlive;
+        } // PendingNotification
+
+        public List<Event> getEvents() {
+            return events;
+        } // getEvents
+
+        public Channel getChannel() {
+            return channel;
+        } // getChannel
+
+        public boolean isKeepAlive() {
+            return keepAlive;
+        } // isKeepAlive
+
+    } // PendingNotification
+
+} // OrionNIOSource
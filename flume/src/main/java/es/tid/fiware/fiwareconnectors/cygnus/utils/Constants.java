@@ -36,7 +36,28 @@ public final class Constants {
     public static final String CONTENT_TYPE = "content-type";
     public static final String USER_AGENT   = "user-agent";
     public static final int ORG_MAX_LEN = 32;
+    
+    // HTTP notifications body
+    public static final int BODY_BUFFER_SIZE = 8192;
+    public static final int BODY_BUFFER_MAX_POOLED_SIZE = 1048576;
+    
+    // Orion NIO source
+    public static final int NIO_SOURCE_WORKER_THREADS = 4;
+    public static final int NIO_SOURCE_MAX_BODY_SIZE = 1048576;
+    public static final int NIO_SOURCE_BATCH_SIZE = 100;
+    public static final int NIO_SOURCE_QUEUE_SIZE = 10000;
+    
+    // Admission control
+    public static final long ADMISSION_CHANNEL_FILL_CHECK_INTERVAL = 1000;
+    public static final long ADMISSION_RETRY_AFTER = 1;
+    public static final int ADMISSION_MAX_TENANTS = 10000;
+    public static final int BATCH_MAX_NOTIFICATIONS = 100;
 
+    // Destination extractor
+    public static final int MATCHING_CACHE_SIZE = 10000;
+    public static final long MATCHING_TABLE_CHECK_INTERVAL = 10000;
+    public static final int SPLIT_MAX_EVENTS = 100;
+    
     // Common fields for sinks/backends
     public static final String RECV_TIME_TS = "recvTimeTs";
     public static final String RECV_TIME    = "recvTime";
@@ -51,18 +72,49 @@ public final class Constants {
 
     // Logging
     public static final String TRANSACTION_ID = "transactionId";
+    public static final int LOG_PAYLOAD_MAX_LENGTH = 1024;
+    public static final int LOG_PAYLOAD_SAMPLING_RATE = 1;
     
     // HTTP client factory
     public static final int MAX_CONNS = 500;
     public static final int MAX_CONNS_PER_ROUTE = 100;
+    public static final int HTTP_CONNECT_TIMEOUT = 30000;
+    public static final int HTTP_SOCKET_TIMEOUT = 60000;
+    public static final long HTTP_KEEP_ALIVE = 60000;
+    public static final long HTTP_IDLE_TIMEOUT = 30000;
     
     // MySQL
     public static final int MYSQL_DB_NAME_MAX_LEN = 64;
     public static final int MYSQL_TABLE_NAME_MAX_LEN = 64;
+    public static final int MYSQL_INSERT_BATCH_SIZE = 500;
+    public static final int MYSQL_POOL_MAX_SIZE = 5;
+    public static final long MYSQL_POOL_MAX_IDLE_TIME = 300000;
+    public static final long MYSQL_POOL_MAX_WAIT_TIME = 10000;
+    public static final long MYSQL_SCHEMA_CACHE_TTL = 0;
+    
+    // HDFS
+    public static final int HDFS_APPEND_BATCH_SIZE = 1000;
+    public static final long HDFS_APPEND_BATCH_BYTES = 1048576;
+    public static final long HDFS_APPEND_BATCH_TIMEOUT = 1000;
+    public static final int HDFS_FILE_CACHE_SIZE = 10000;
+    public static final long HDFS_FILE_CACHE_TTL = 3600000;
+    
+    // Hive
+    public static final long HIVE_RETRY_INTERVAL = 60000;
+    public static final int HIVE_MAX_RETRIES = 10;
     
     // CKAN
     public static final int CKAN_PKG_MAX_LEN = 100;
     public static final int CKAN_RESOURCE_MAX_LEN = 100;
+    public static final int CKAN_UPSERT_BATCH_SIZE = 500;
+    public static final long CKAN_UPSERT_BATCH_BYTES = 1048576;
+    public static final long CKAN_UPSERT_BATCH_TIMEOUT = 1000;
+    public static final int CKAN_CACHE_SIZE = 10000;
+    public static final long CKAN_CACHE_TTL = 3600000;
+    public static final long CKAN_NEGATIVE_CACHE_TTL = 60000;
+    public static final int CKAN_WARMUP_THREADS = 4;
+    public static final long CKAN_WARMUP_TIMEOUT = 60000;
+    public static final int CKAN_PERSISTENCE_WORKERS = 1;
     
     // Others
     public static final String EMPTY_MD = "[]";
@@ -0,0 +1,207 @@
+/**
+ * Copyright 2014 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-connectors (FI-WARE project).
+ *
+ * fiware-connectors is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-connectors is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-connectors. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with Francisco Romero
+ * francisco.romerobueno@telefonica.com
+ */
+
+package es.tid.fiware.fiwareconnectors.cygnus.utils;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ *
+ * @author frb
+ *
+ * Bounded cache evicting the least recently used entries once the maximum size is reached. In addition, the entries
+ * expire after a time-to-live since they were put, if any. It is thread-safe.
+ *
+ * @param <K> Key type
+ * @param <V> Value type
+ */
+public class LRUCache<K, V> {
+
+    private final int maxSize;
+    private final long ttl;
+    private final LinkedHashMap<K, CacheEntry<V>> entries;
+    private long numHits;
+    private long numMisses;
+    private long numEvictions;
+
+    /**
+     * Constructor.
+     * @param maxSize Maximum number of entries
+     * @param ttl Maximum number of milliseconds an entry is valid since it was put, 0 if never expiring
+     */
+    public LRUCache(final int maxSize, long ttl) {
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+
+        // access-ordered, thus the eldest entry is the least recently used one
+        entries = new LinkedHashMap<K, CacheEntry<V>>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, CacheEntry<V>> eldest) {
+                if (size() > maxSize) {
+                    numEvictions++;
+                    return true;
+                } // if
+                
+                return false;
+            } // removeEldestEntry
+
+        };
+
+        numHits = 0;
+        numMisses = 0;
+        numEvictions = 0;
+    } // LRUCache
+
+    /**
+     * Gets the value of the given key, if cached and not expired.
+     * @param key
+     * @return The cached value, or null if not cached or expired
+     */
+    public synchronized V get(K key) {
+        CacheEntry<V> entry = entries.get(key);
+
+        if (entry == null) {
+            numMisses++;
+            return null;
+        } // if
+
+        if (ttl > 0 && System.currentTimeMillis() - entry.getPutTime() > ttl) {
+            entries.remove(key);
+            numMisses++;
+            return null;
+        } // if
+
+        numHits++;
+        return entry.getValue();
+    } // get
+
+    /**
+     * Checks if the given key is cached and not expired.
+     * @param key
+     * @return True if the key is cached and not expired, false otherwise
+     */
+    public boolean contains(K key) {
+        return get(key) != null;
+    } // contains
+
+    /**
+     * Puts a value for the given key, evicting the least recently used entry if the maximum size is exceeded.
+     * @param key
+     * @param value
+     */
+    public synchronized void put(K key, V value) {
+        if (maxSize <= 0) {
+            return;
+        } // if
+
+        entries.put(key, new CacheEntry<V>(value, System.currentTimeMillis()));
+    } // put
+
+    /**
+     * Removes the given key.
+     * @param key
+     * @return The removed value, or null if not cached
+     */
+    public synchronized V remove(K key) {
+        CacheEntry<V> entry = entries.remove(key);
+        return entry == null ? null : entry.getValue();
+    } // remove
+
+    /**
+     * Removes all the entries.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    } // clear
+
+    /**
+     * Gets a copy of the keys, including the expired ones not yet removed.
+     * @return A copy of the keys
+     */
+    public synchronized Set<K> keySet() {
+        return new HashSet<K>(entries.keySet());
+    } // keySet
+
+    /**
+     * Gets the number of entries, including the expired ones not yet removed.
+     * @return The number of entries
+     */
+    public synchronized int size() {
+        return entries.size();
+    } // size
+
+    /**
+     * Gets the number of lookups finding a not expired value.
+     * @return The number of hits
+     */
+    public synchronized long getNumHits() {
+        return numHits;
+    } // getNumHits
+
+    /**
+     * Gets the number of lookups not finding a value, or finding an expired one.
+     * @return The number of misses
+     */
+    public synchronized long getNumMisses() {
+        return numMisses;
+    } // getNumMisses
+
+    /**
+     * Gets the number of entries evicted since the maximum size was exceeded.
+     * @return The number of evictions
+     */
+    public synchronized long getNumEvictions() {
+        return numEvictions;
+    } // getNumEvictions
+
+    /**
+     * Cached value together with the time it was put.
+     *
+     * @param <V> Value type
+     */
+    private static class CacheEntry<V> {
+
+        private final V value;
+        private final long putTime;
+
+        /**
+         * Constructor.
+         * @param value
+         * @param putTime
+         */
+        public CacheEntry(V value, long putTime) {
+            this.value = value;
+            this.putTime = putTime;
+        } // CacheEntry
+
+        public V getValue() {
+            return value;
+        } // getValue
+
+        public long getPutTime() {
+            return putTime;
+        } // getPutTime
+
+    } // CacheEntry
+
+} // LRUCache
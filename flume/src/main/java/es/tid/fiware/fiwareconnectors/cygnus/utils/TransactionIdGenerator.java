@@ -0,0 +1,83 @@
+/**
+ * Copyright 2014 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-connectors (FI-WARE project).
+ *
+ * fiware-connectors is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-connectors is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-connectors. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with Francisco Romero
+ * francisco.romerobueno@telefonica.com
+ */
+
+package es.tid.fiware.fiwareconnectors.cygnus.utils;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * @author frb
+ *
+ * Lock-free generator of unique transaction identifiers. The format for the identifiers is:
+ * <nodeId>-<bootTimeSeconds>-<bootTimeMilliseconds>-<transactionCount%10000000000>
+ *
+ * The node identifier makes the identifiers unique across several Cygnus instances, e.g. behind a load balancer. It is
+ * thread-safe; the transaction count is taken from an atomic counter, thus two threads never get the same identifier.
+ */
+public class TransactionIdGenerator {
+
+    private static final long MAX_COUNT = 10000000000L;
+    private static final int COUNT_DIGITS = 10;
+    private final String prefix;
+    private final long bootTimeMilliseconds;
+    private final AtomicLong transactionCount;
+
+    /**
+     * Constructor.
+     * @param nodeId Identifier of this Cygnus instance, the default one (see getDefaultNodeId) if null or empty
+     * @param bootTime Boot time, in milliseconds
+     */
+    public TransactionIdGenerator(String nodeId, long bootTime) {
+        prefix = (nodeId == null || nodeId.isEmpty() ? getDefaultNodeId() : nodeId) + "-" + (bootTime / 1000) + "-";
+        bootTimeMilliseconds = bootTime % 1000;
+        transactionCount = new AtomicLong(0);
+    } // TransactionIdGenerator
+
+    /**
+     * Gets the default node identifier, i.e. <pid>@<hostname>, which is unique for each running Cygnus instance.
+     * @return The default node identifier
+     */
+    public static String getDefaultNodeId() {
+        return ManagementFactory.getRuntimeMXBean().getName();
+    } // getDefaultNodeId
+
+    /**
+     * Generates a new unique transaction identifier.
+     * @return A new unique transaction identifier
+     */
+    public String generateTransId() {
+        long count = transactionCount.getAndIncrement();
+
+        // once the truncated transaction count restarts, the boot time milliseconds are increased
+        long transCountTrunked = count % MAX_COUNT;
+        long bootTimeMillisecondsShifted = (bootTimeMilliseconds + count / MAX_COUNT) % 1000;
+        String countStr = Long.toString(transCountTrunked);
+        StringBuilder transId = new StringBuilder(prefix.length() + 4 + COUNT_DIGITS);
+        transId.append(prefix).append(bootTimeMillisecondsShifted).append('-');
+
+        for (int i = countStr.length(); i < COUNT_DIGITS; i++) {
+            transId.append('0');
+        } // for
+
+        return transId.append(countStr).toString();
+    } // generateTransId
+
+} // TransactionIdGenerator
@@ -0,0 +1,124 @@
+/**
+ * Copyright 2014 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-connectors (FI-WARE project).
+ *
+ * fiware-connectors is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-connectors is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-connectors. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with Francisco Romero
+ * francisco.romerobueno@telefonica.com
+ */
+
+package es.tid.fiware.fiwareconnectors.cygnus.utils;
+
+import java.io.Reader;
+
+/**
+ *
+ * @author frb
+ *
+ * Reader decoding UTF-8 characters directly from a byte array, without any intermediate buffer nor String copy. Bad
+ * encoded characters are replaced by U+FFFD, as String does. It is not thread-safe.
+ */
+public class UTF8ByteArrayReader extends Reader {
+
+    private static final char REPLACEMENT = '\uFFFD';
+    private final byte[] bytes;
+    private final int end;
+    private int pos;
+    private char pendingLowSurrogate;
+
+    /**
+     * Constructor.
+     * @param bytes
+     */
+    public UTF8ByteArrayReader(byte[] bytes) {
+        this.bytes = bytes;
+        this.end = bytes.length;
+        this.pos = 0;
+        this.pendingLowSurrogate = 0;
+    } // UTF8ByteArrayReader
+
+    @Override
+    public int read(char[] cbuf, int off, int len) {
+        if (len == 0) {
+            return 0;
+        } // if
+
+        int n = 0;
+
+        if (pendingLowSurrogate != 0) {
+            cbuf[off + n++] = pendingLowSurrogate;
+            pendingLowSurrogate = 0;
+        } // if
+
+        while (n < len && pos < end) {
+            int b = bytes[pos];
+
+            // fast path for ASCII characters
+            if (b >= 0) {
+                cbuf[off + n++] = (char) b;
+                pos++;
+                continue;
+            } // if
+
+            int size;
+            int c;
+
+            if ((b & 0xE0) == 0xC0) {
+                size = 2;
+                c = b & 0x1F;
+            } else if ((b & 0xF0) == 0xE0) {
+                size = 3;
+                c = b & 0x0F;
+            } else if ((b & 0xF8) == 0xF0) {
+                size = 4;
+                c = b & 0x07;
+            } else {
+                cbuf[off + n++] = REPLACEMENT;
+                pos++;
+                continue;
+            } // if else if
+
+            int i = 1;
+
+            while (i < size && pos + i < end && (bytes[pos + i] & 0xC0) == 0x80) {
+                c = (c << 6) | (bytes[pos + i] & 0x3F);
+                i++;
+            } // while
+
+            pos += i;
+
+            if (i < size) {
+                cbuf[off + n++] = REPLACEMENT;
+            } else if (c >= 0x10000) {
+                c -= 0x10000;
+                cbuf[off + n++] = (char) (0xD800 | (c >> 10));
+                char low = (char) (0xDC00 | (c & 0x3FF));
+
+                if (n < len) {
+                    cbuf[off + n++] = low;
+                } else {
+                    pendingLowSurrogate = low;
+                } // if else
+            } else {
+                cbuf[off + n++] = (char) c;
+            } // if else if
+        } // while
+
+        return n == 0 ? -1 : n;
+    } // read
+
+    @Override
+    public void close() {
+    } // close
+
+} // UTF8ByteArrayReader
@@ -54,6 +54,37 @@ public final class Utils {
         return in.replaceAll("[^a-zA-Z0-9]", "_");
     } // encode
     
+    /**
+     * Gets the number of bytes of a string once encoded in UTF-8, without encoding it. The unpaired surrogates are
+     * counted as the single byte '?' they are replaced by.
+     * 
+     * @param in
+     * @return The number of bytes of the UTF-8 encoded version of the input string.
+     */
+    public static int getUTF8Length(CharSequence in) {
+        int length = 0;
+        
+        for (int i = 0; i < in.length(); i++) {
+            char c = in.charAt(i);
+            
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < in.length()
+                    && Character.isLowSurrogate(in.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            } // if else if
+        } // for
+        
+        return length;
+    } // getUTF8Length
+    
     /**
      * Converts a XML node into Json.
      * @param xmlNode
@@ -20,7 +20,11 @@
 package es.tid.fiware.fiwareconnectors.cygnus.backends.ckan;
 
 import es.tid.fiware.fiwareconnectors.cygnus.errors.CygnusBadConfiguration;
+import es.tid.fiware.fiwareconnectors.cygnus.errors.CygnusPersistenceError;
+import java.io.File;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.ProtocolVersion;
 import org.apache.http.client.methods.HttpUriRequest;
@@ -96,8 +100,8 @@ public class CKANBackendImplTest {
         
         // set up the behaviour of the mocked classes
         when(mockHttpClientInitOrg.execute(Mockito.any(HttpUriRequest.class))).thenReturn(respOrganizationShow);
-        when(mockHttpClientPersistRow.execute(Mockito.any(HttpUriRequest.class))).thenReturn(respResourceCreate,
-                respDatastoreCreate, respDatastoreUpsert);
+        when(mockHttpClientPersistRow.execute(Mockito.any(HttpUriRequest.class))).thenReturn(respOrganizationShow,
+                respResourceCreate, respResourceCreate, respDatastoreCreate, respDatastoreUpsert);
         when(mockHttpClientPersistColumn.execute(Mockito.any(HttpUriRequest.class))).thenReturn(respOrganizationShow,
                 respResourceCreate, respDatastoreCreate, respDatastoreUpsert);
     } // setUp
@@ -118,6 +122,132 @@ public class CKANBackendImplTest {
         } // try catch finally
     } // testInitOrg
     
+    /**
+     * Test of initOrg method, of class CKANBackendImpl. Concurrent initializations of the same organization query CKAN
+     * only once, and a failed initialization is not retried while negatively cached.
+     */
+    @Test
+    public void testInitOrgSingleFlight() throws Exception {
+        System.out.println("Testing CKANBackendImpl.initOrg (single-flight)");
+        final BasicHttpResponse respOrganizationShow = new BasicHttpResponse(new ProtocolVersion("HTTP", 1, 1), 200,
+                "OK");
+        respOrganizationShow.setEntity(new StringEntity(
+                "{\"result\":{\"state\":\"active\",\"id\":\"12345\",\"packages\":[]}}"));
+        final HttpClient mockHttpClient = mock(HttpClient.class);
+        when(mockHttpClient.execute(Mockito.any(HttpUriRequest.class))).thenAnswer(
+                new org.mockito.stubbing.Answer<BasicHttpResponse>() {
+                    @Override
+                    public BasicHttpResponse answer(org.mockito.invocation.InvocationOnMock invocation)
+                        throws Exception {
+                        Thread.sleep(50);
+                        return respOrganizationShow;
+                    } // answer
+                });
+        Thread[] threads = new Thread[5];
+        
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                
+                @Override
+                public void run() {
+                    try {
+                        backend.initOrg(mockHttpClient, orgName);
+                    } catch (Exception e) {
+                        System.out.println(e.getMessage());
+                    } // try catch
+                } // run
+                
+            };
+            threads[i].start();
+        } // for
+        
+        for (Thread thread : threads) {
+            thread.join();
+        } // for
+        
+        assertEquals(1, backend.getNumOrgLoads());
+        
+        // a deleted organization is a bad configuration, negatively cached
+        BasicHttpResponse respDeleted = new BasicHttpResponse(new ProtocolVersion("HTTP", 1, 1), 200, "OK");
+        respDeleted.setEntity(new StringEntity("{\"result\":{\"state\":\"deleted\",\"id\":\"6789\"}}"));
+        HttpClient mockHttpClientDeleted = mock(HttpClient.class);
+        when(mockHttpClientDeleted.execute(Mockito.any(HttpUriRequest.class))).thenReturn(respDeleted);
+        
+        for (int i = 0; i < 2; i++) {
+            try {
+                backend.initOrg(mockHttpClientDeleted, "deletedOrg");
+                fail("A deleted organization was initialized");
+            } catch (CygnusBadConfiguration e) {
+                assertEquals(2, backend.getNumOrgLoads());
+            } // try catch
+        } // for
+        
+        verify(mockHttpClientDeleted, times(1)).execute(Mockito.any(HttpUriRequest.class));
+    } // testInitOrgSingleFlight
+    
+    /**
+     * Test of initOrg method, of class CKANBackendImpl. The CKAN version is got only once, for the first organization
+     * whose default package already exists.
+     */
+    @Test
+    public void testInitOrgVersion() throws Exception {
+        System.out.println("Testing CKANBackendImpl.initOrg (version)");
+        HttpClient mockHttpClient = mock(HttpClient.class);
+        when(mockHttpClient.execute(Mockito.any(HttpUriRequest.class))).thenAnswer(
+                new org.mockito.stubbing.Answer<BasicHttpResponse>() {
+                    @Override
+                    public BasicHttpResponse answer(org.mockito.invocation.InvocationOnMock invocation)
+                        throws Exception {
+                        String uri = ((HttpUriRequest) invocation.getArguments()[0]).getURI().toString();
+                        BasicHttpResponse resp = new BasicHttpResponse(new ProtocolVersion("HTTP", 1, 1), 200, "OK");
+                        
+                        if (uri.endsWith("/api/util/status")) {
+                            resp.setEntity(new StringEntity("{\"ckan_version\":\"2.2\"}"));
+                        } else {
+                            String org = uri.substring(uri.indexOf("id=") + 3);
+                            resp.setEntity(new StringEntity("{\"result\":{\"state\":\"active\",\"id\":\"12345\","
+                                    + "\"packages\":[{\"name\":\"" + org + "_" + defaultPackage + "\",\"state\":"
+                                    + "\"active\",\"id\":\"6789\",\"resources\":[{\"name\":\"" + resourceName
+                                    + "\",\"id\":\"1111\"}]}]}}"));
+                        } // if else
+                        
+                        return resp;
+                    } // answer
+                });
+        backend.initOrg(mockHttpClient, "org1");
+        backend.initOrg(mockHttpClient, "org2");
+        assertEquals(1, backend.getNumVersionQueries());
+        assertEquals(2, backend.getNumOrgLoads());
+        verify(mockHttpClient, times(3)).execute(Mockito.any(HttpUriRequest.class));
+        assertEquals("2.2", backend.getStatus().get("ckanVersion"));
+    } // testInitOrgVersion
+    
+    /**
+     * Test of warmUp method, of class CKANBackendImpl. The warmed up organizations are saved to a snapshot, and
+     * another backend loading it does not initialize them again.
+     */
+    @Test
+    public void testWarmUpAndSnapshot() throws Exception {
+        System.out.println("Testing CKANBackendImpl.warmUp and CKANBackendImpl.saveSnapshot");
+        BasicHttpResponse respOrganizationShow = new BasicHttpResponse(new ProtocolVersion("HTTP", 1, 1), 200, "OK");
+        respOrganizationShow.setEntity(new StringEntity("{\"result\":{\"state\":\"active\",\"id\":\"12345\","
+                + "\"packages\":[]}}"));
+        when(mockHttpClientInitOrg.execute(Mockito.any(HttpUriRequest.class))).thenReturn(respOrganizationShow);
+        backend.warmUp(mockHttpClientInitOrg, Arrays.asList("org1", "org2", "org3"), 2, 10000);
+        assertEquals(3, backend.getNumOrgLoads());
+        File file = File.createTempFile("ckan_cache_snapshot", "");
+        file.deleteOnExit();
+        backend.saveSnapshot(file.getAbsolutePath());
+        
+        CKANBackendImpl restartedBackend = new CKANBackendImpl(apiKey, host, port, defaultPackage, orionURL);
+        List<String> orgNames = restartedBackend.loadSnapshot(file.getAbsolutePath());
+        assertEquals(3, orgNames.size());
+        HttpClient mockHttpClient = mock(HttpClient.class);
+        restartedBackend.initOrg(mockHttpClient, "org2");
+        assertEquals(0, restartedBackend.getNumOrgLoads());
+        verify(mockHttpClient, never()).execute(Mockito.any(HttpUriRequest.class));
+    } // testWarmUpAndSnapshot
+    
     /**
      * Test of persist (row) method, of class CKANBackendImpl.
      */
@@ -158,4 +288,166 @@ public class CKANBackendImplTest {
         } // try catch finally
     } // testPersistColumn
     
+    /**
+     * Test of persist (row) method, of class CKANBackendImpl. A resource evicted from the cache before its
+     * organization is looked up again by reloading the organization, instead of being created twice.
+     */
+    @Test
+    public void testPersistRowEvicted() throws Exception {
+        System.out.println("Testing CKANBackendImpl.persist (row, evicted resource)");
+        backend = new CKANBackendImpl(apiKey, host, port, defaultPackage, orionURL, 100, 1048576, 60000, 1, 0, 0);
+        HttpClient mockHttpClient = mock(HttpClient.class);
+        when(mockHttpClient.execute(Mockito.any(HttpUriRequest.class))).thenAnswer(
+                new org.mockito.stubbing.Answer<BasicHttpResponse>() {
+                    @Override
+                    public BasicHttpResponse answer(org.mockito.invocation.InvocationOnMock invocation)
+                        throws Exception {
+                        String uri = ((HttpUriRequest) invocation.getArguments()[0]).getURI().toString();
+                        BasicHttpResponse resp = new BasicHttpResponse(new ProtocolVersion("HTTP", 1, 1), 200, "OK");
+                        
+                        if (uri.endsWith("/api/util/status")) {
+                            resp.setEntity(new StringEntity("{\"ckan_version\":\"2.2\"}"));
+                        } else if (uri.contains("organization_show")) {
+                            String org = uri.substring(uri.indexOf("id=") + 3);
+                            resp.setEntity(new StringEntity("{\"result\":{\"state\":\"active\",\"id\":\"12345\","
+                                    + "\"packages\":[{\"name\":\"" + org + "_" + defaultPackage + "\",\"state\":"
+                                    + "\"active\",\"id\":\"6789\",\"resources\":[{\"name\":\"" + resourceName
+                                    + "\",\"id\":\"1111\"}]}]}}"));
+                        } else {
+                            fail("The resource was created although it already existed (uri=" + uri + ")");
+                        } // if else
+                        
+                        return resp;
+                    } // answer
+                });
+        
+        // the second organization evicts the first one and its resource, being the cache size 1
+        backend.initOrg(mockHttpClient, "org1");
+        backend.initOrg(mockHttpClient, "org2");
+        backend.persist(mockHttpClient, recvTimeTs, recvTime, "org1", resourceName, attrName, attrType, attrValue,
+                attrMd);
+        assertEquals(3, backend.getNumOrgLoads());
+        assertEquals(1, backend.getNumBufferedRecords());
+        verify(mockHttpClient, times(4)).execute(Mockito.any(HttpUriRequest.class));
+    } // testPersistRowEvicted
+    
+    /**
+     * Test of persist (row) method, of class CKANBackendImpl. A resource evicted from the cache while its organization
+     * is still cached is looked up again within the default package only, without reloading the organization.
+     */
+    @Test
+    public void testPersistRowEvictedResource() throws Exception {
+        System.out.println("Testing CKANBackendImpl.persist (row, evicted resource, cached organization)");
+        backend = new CKANBackendImpl(apiKey, host, port, defaultPackage, orionURL, 100, 1048576, 60000, 1, 0, 0);
+        final String resources = "[{\"name\":\"" + resourceName + "\",\"id\":\"1111\"},{\"name\":\"Room2-Room\","
+                + "\"id\":\"2222\"}]";
+        HttpClient mockHttpClient = mock(HttpClient.class);
+        when(mockHttpClient.execute(Mockito.any(HttpUriRequest.class))).thenAnswer(
+                new org.mockito.stubbing.Answer<BasicHttpResponse>() {
+                    @Override
+                    public BasicHttpResponse answer(org.mockito.invocation.InvocationOnMock invocation)
+                        throws Exception {
+                        String uri = ((HttpUriRequest) invocation.getArguments()[0]).getURI().toString();
+                        BasicHttpResponse resp = new BasicHttpResponse(new ProtocolVersion("HTTP", 1, 1), 200, "OK");
+                        
+                        if (uri.endsWith("/api/util/status")) {
+                            resp.setEntity(new StringEntity("{\"ckan_version\":\"2.2\"}"));
+                        } else if (uri.contains("organization_show")) {
+                            resp.setEntity(new StringEntity("{\"result\":{\"state\":\"active\",\"id\":\"12345\","
+                                    + "\"packages\":[{\"name\":\"org1_" + defaultPackage + "\",\"state\":"
+                                    + "\"active\",\"id\":\"6789\",\"resources\":" + resources + "}]}}"));
+                        } else if (uri.contains("package_show?id=6789")) {
+                            resp.setEntity(new StringEntity("{\"result\":{\"resources\":" + resources + "}}"));
+                        } else {
+                            fail("The resource was created although it already existed (uri=" + uri + ")");
+                        } // if else
+                        
+                        return resp;
+                    } // answer
+                });
+        
+        // the second resource evicts the first one, being the cache size 1
+        backend.initOrg(mockHttpClient, "org1");
+        backend.persist(mockHttpClient, recvTimeTs, recvTime, "org1", resourceName, attrName, attrType, attrValue,
+                attrMd);
+        assertEquals(1, backend.getNumOrgLoads());
+        assertEquals(1, backend.getNumBufferedRecords());
+        verify(mockHttpClient, times(3)).execute(Mockito.any(HttpUriRequest.class));
+    } // testPersistRowEvictedResource
+    
+    /**
+     * Test of flush method, of class CKANBackendImpl. The buffered records are upserted in a single request, and a
+     * rejected batch is split in halves until the bad record is isolated and discarded.
+     */
+    @Test
+    public void testFlush() throws Exception {
+        System.out.println("Testing CKANBackendImpl.flush");
+        backend = new CKANBackendImpl(apiKey, host, port, defaultPackage, orionURL, 100, 1048576, 60000);
+        BasicHttpResponse respOK = new BasicHttpResponse(new ProtocolVersion("HTTP", 1, 1), 200, "OK");
+        respOK.setEntity(new StringEntity("{\"result\":{\"id\":\"12345\"}}"));
+        BasicHttpResponse respConflict = new BasicHttpResponse(new ProtocolVersion("HTTP", 1, 1), 409, "Conflict");
+        respConflict.setEntity(new StringEntity("{\"error\":{\"__type\":\"Validation Error\"}}"));
+        BasicHttpResponse respOrganizationShow = new BasicHttpResponse(new ProtocolVersion("HTTP", 1, 1), 200, "OK");
+        respOrganizationShow.setEntity(new StringEntity("{\"result\":{\"state\":\"active\",\"id\":\"12345\","
+                + "\"packages\":[]}}"));
+        
+        // organization loading and package creation, resource and datastore creation, then the upsert of 3 records
+        // (rejected), 1 record, 2 records (rejected), 1 record and 1 (bad) record
+        HttpClient mockHttpClient = mock(HttpClient.class);
+        when(mockHttpClient.execute(Mockito.any(HttpUriRequest.class))).thenReturn(respOrganizationShow, respOK,
+                respOK, respOK, respConflict, respOK, respConflict, respOK, respConflict);
+        
+        for (int i = 0; i < 3; i++) {
+            backend.persist(mockHttpClient, recvTimeTs, recvTime, orgName, resourceName, attrName, attrType,
+                    attrValue, attrMd);
+        } // for
+        
+        assertEquals(3, backend.getNumBufferedRecords());
+        verify(mockHttpClient, times(4)).execute(Mockito.any(HttpUriRequest.class));
+        backend.flush(mockHttpClient);
+        assertEquals(0, backend.getNumBufferedRecords());
+        verify(mockHttpClient, times(9)).execute(Mockito.any(HttpUriRequest.class));
+    } // testFlush
+    
+    /**
+     * Test of flush method, of class CKANBackendImpl. The buffer is not flushed by itself, but flushing is required
+     * once the maximum batch size is reached; a failed upsert is a persistence error, and empties the buffer.
+     */
+    @Test
+    public void testFlushError() throws Exception {
+        System.out.println("Testing CKANBackendImpl.flush (error)");
+        backend = new CKANBackendImpl(apiKey, host, port, defaultPackage, orionURL, 2, 1048576, 60000);
+        BasicHttpResponse respOK = new BasicHttpResponse(new ProtocolVersion("HTTP", 1, 1), 200, "OK");
+        respOK.setEntity(new StringEntity("{\"result\":{\"id\":\"12345\"}}"));
+        BasicHttpResponse respError = new BasicHttpResponse(new ProtocolVersion("HTTP", 1, 1), 500, "Error");
+        respError.setEntity(new StringEntity("{\"error\":{\"__type\":\"Internal Error\"}}"));
+        BasicHttpResponse respOrganizationShow = new BasicHttpResponse(new ProtocolVersion("HTTP", 1, 1), 200, "OK");
+        respOrganizationShow.setEntity(new StringEntity("{\"result\":{\"state\":\"active\",\"id\":\"12345\","
+                + "\"packages\":[]}}"));
+        
+        // organization loading and package creation, resource and datastore creation, then the upsert of 3 records
+        // (failed)
+        HttpClient mockHttpClient = mock(HttpClient.class);
+        when(mockHttpClient.execute(Mockito.any(HttpUriRequest.class))).thenReturn(respOrganizationShow, respOK,
+                respOK, respOK, respError);
+        
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i >= 2, backend.isFlushRequired());
+            backend.persist(mockHttpClient, recvTimeTs, recvTime, orgName, resourceName, attrName, attrType,
+                    attrValue, attrMd);
+        } // for
+        
+        assertTrue(backend.isFlushRequired());
+        assertEquals(3, backend.getNumBufferedRecords());
+        
+        try {
+            backend.flush(mockHttpClient);
+            fail("A failed upsert was not notified");
+        } catch (CygnusPersistenceError e) {
+            assertEquals(0, backend.getNumBufferedRecords());
+            assertFalse(backend.isFlushRequired());
+            verify(mockHttpClient, times(5)).execute(Mockito.any(HttpUriRequest.class));
+        } // try catch
+    } // testFlushError
+    
 } // CKANBackendImplTest
@@ -150,4 +150,28 @@ public class HDFSBackendImplTest {
         } // try catch finally
     } // testExists
     
+    /**
+     * Test of exists method, of class HDFSBackendImpl. The files known to exist are not checked again, unless an append
+     * fails.
+     */
+    @Test
+    public void testExistsCached() throws Exception {
+        System.out.println("Testing HDFSBackendImpl.exists (cached)");
+        assertTrue(backend.exists(mockHttpClientExistsCreateDir, user, dirPath));
+        assertTrue(backend.exists(mockHttpClientExistsCreateDir, user, dirPath));
+        verify(mockHttpClientExistsCreateDir, times(1)).execute(Mockito.any(HttpUriRequest.class));
+        backend.createFile(mockHttpClientCreateFile, user, dirPath + "/file.txt", data);
+        assertTrue(backend.exists(mockHttpClientExistsCreateDir, user, dirPath + "/file.txt"));
+        verify(mockHttpClientExistsCreateDir, times(1)).execute(Mockito.any(HttpUriRequest.class));
+        
+        try {
+            // the mocked client returns 200 to the first step of the append
+            backend.append(mockHttpClientExistsCreateDir, user, dirPath + "/file.txt", data);
+            fail("The append did not fail");
+        } catch (Exception e) {
+            assertTrue(backend.exists(mockHttpClientExistsCreateDir, user, dirPath + "/file.txt"));
+            verify(mockHttpClientExistsCreateDir, times(3)).execute(Mockito.any(HttpUriRequest.class));
+        } // try catch
+    } // testExistsCached
+    
 } // HDFSBackendImplTest
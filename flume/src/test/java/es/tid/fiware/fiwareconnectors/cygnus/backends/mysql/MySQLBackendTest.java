@@ -19,9 +19,21 @@
 
 package es.tid.fiware.fiwareconnectors.cygnus.backends.mysql;
 
+import static org.junit.Assert.*; // this is required by "fail" like assertions
+import static org.mockito.Mockito.*; // this is required by "when" like functions
+import es.tid.fiware.fiwareconnectors.cygnus.errors.CygnusPersistenceError;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.HashMap;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
 /**
@@ -34,9 +46,15 @@ public class MySQLBackendTest {
     // instance to be tested
     private MySQLBackend backend;
     
-    // FIXME: the Connection object return by getConnection must be mocked. In order to pass mocked connections to the
-    // MySQLBackend, the connection object must be another argument of the different methods, e.g.:
-    // void createDatabase(Connection connection, String dbName) instead of void createDatabase(String dbName)
+    // mocks
+    @Mock
+    private MySQLConnectionPool mockPool;
+    @Mock
+    private Connection mockConnection;
+    @Mock
+    private Statement mockStatement;
+    @Mock
+    private PreparedStatement mockPreparedStatement;
     
     // constants
     private final String host = "localhost";
@@ -54,23 +72,67 @@ public class MySQLBackendTest {
     public void setUp() throws Exception {
         // set up the instance of the tested class
         backend = new MySQLBackend(host, port, user, password);
+        
+        // set up the behaviour of the mocked classes
+        when(mockPool.borrowConnection(anyString())).thenReturn(mockConnection);
+        when(mockConnection.createStatement()).thenReturn(mockStatement);
+        when(mockConnection.prepareStatement(anyString())).thenReturn(mockPreparedStatement);
     } // setUp
     
     /**
-     * Test of createDatabase method, of class MySQLBackend.
+     * Test of createDatabase method, of class MySQLBackend. An already created database is not created again.
      */
     @Test
-    public void testCreateDatabase() {
+    public void testCreateDatabase() throws Exception {
         System.out.println("Testing MySQLBackend.createDatabase");
+        backend = new MySQLBackend(mockPool, 100, 0);
+        backend.createDatabase("db1");
+        backend.createDatabase("db1");
+        verify(mockStatement, times(1)).executeUpdate(anyString());
+        verify(mockPool, times(1)).releaseConnection("", mockConnection);
     } // testCreateDatabase
     
     /**
-     * Test of createTable method, of class MySQLBackend.
+     * Test of createTable method, of class MySQLBackend. An already created table is not created again, unless its
+     * cache entry has expired.
      */
     @Test
-    public void testCreateTable() {
+    public void testCreateTable() throws Exception {
         System.out.println("Testing MySQLBackend.createTable");
+        backend = new MySQLBackend(mockPool, 100, 0);
+        backend.createTable("db1", "table1");
+        backend.createTable("db1", "table1");
+        backend.createTable("db1", "table2");
+        verify(mockStatement, times(2)).executeUpdate(anyString());
+        backend = new MySQLBackend(mockPool, 100, 10);
+        backend.createTable("db1", "table1");
+        Thread.sleep(50);
+        backend.createTable("db1", "table1");
+        verify(mockStatement, times(4)).executeUpdate(anyString());
     } // testCreateTable
+    
+    /**
+     * Test of createTable method, of class MySQLBackend. A known database which cannot be connected anymore is
+     * forgotten, and the creation fails in order to be retried.
+     */
+    @Test
+    public void testCreateTableNoSuchDatabase() throws Exception {
+        System.out.println("Testing MySQLBackend.createTable (no such database)");
+        backend = new MySQLBackend(mockPool, 100, 0);
+        backend.createDatabase("db1");
+        backend.createTable("db1", "table1");
+        when(mockPool.borrowConnection("db1")).thenThrow(new CygnusPersistenceError("Unknown database 'db1'"))
+                .thenReturn(mockConnection);
+        
+        try {
+            backend.createTable("db1", "table2");
+            fail("The creation in a not existing database did not fail");
+        } catch (CygnusPersistenceError e) {
+            backend.createDatabase("db1");
+            backend.createTable("db1", "table2");
+            verify(mockStatement, times(4)).executeUpdate(anyString());
+        } // try catch
+    } // testCreateTableNoSuchDatabase
 
     
     /**
@@ -82,6 +144,121 @@ public class MySQLBackendTest {
     } // testInsertContextData
 
     
+    /**
+     * Test of insertContextData method, of class MySQLBackend. A known table which does not exist anymore is forgotten,
+     * and the insertion fails in order to be retried.
+     */
+    @Test
+    public void testInsertContextDataNoSuchTable() throws Exception {
+        System.out.println("Testing MySQLBackend.insertContextData (no such table)");
+        when(mockPreparedStatement.executeBatch()).thenThrow(new BatchUpdateException("Table doesn't exist", "42S02",
+                1146, new int[0]));
+        backend = new MySQLBackend(mockPool, 100, 0);
+        backend.createDatabase("db1");
+        backend.createTable("db1", "table1");
+        
+        try {
+            backend.insertContextData("db1", "table1", 1, "recvTime", "id", "type", "name", "type", "v", "[]");
+            fail("The insertion in a not existing table did not fail");
+        } catch (CygnusPersistenceError e) {
+            backend.createDatabase("db1");
+            backend.createTable("db1", "table1");
+            verify(mockStatement, times(4)).executeUpdate(anyString());
+        } // try catch
+    } // testInsertContextDataNoSuchTable
+    
+    /**
+     * Test of addContextData method, of class MySQLBackend. The rows are buffered per database, table and column list.
+     */
+    @Test
+    public void testAddContextData() throws Exception {
+        System.out.println("Testing MySQLBackend.addContextData");
+        backend = new MySQLBackend(host, port, user, password, 100);
+        backend.addContextData("db1", "table1", 1, "recvTime", "id", "type", "name1", "type", "v'1", "[]");
+        backend.addContextData("db1", "table1", 1, "recvTime", "id", "type", "name2", "type", "v'2", "[]");
+        backend.addContextData("db1", "table2", 1, "recvTime", "id", "type", "name1", "type", "v'1", "[]");
+        backend.addContextData("db2", "table1", 1, "recvTime", "id", "type", "name1", "type", "v'1", "[]");
+        HashMap<String, String> attrs = new HashMap<String, String>();
+        attrs.put("name1", "v'1");
+        HashMap<String, String> mds = new HashMap<String, String>();
+        mds.put("name1_md", "[]");
+        backend.addContextData("db1", "table1", "recvTime", attrs, mds);
+        assertEquals(5, backend.getNumBufferedRows());
+        assertEquals(4, backend.getNumInsertBatches());
+    } // testAddContextData
+    
+    /**
+     * Test of flush method, of class MySQLBackend. The buffer is not flushed by itself, but flushing is required once
+     * the maximum batch size is reached; a failed insertion empties the buffer anyway.
+     */
+    @Test
+    public void testFlushError() throws Exception {
+        System.out.println("Testing MySQLBackend.flush (error)");
+        when(mockPreparedStatement.executeBatch()).thenThrow(new SQLTimeoutException("Timeout"));
+        backend = new MySQLBackend(mockPool, 2, 0);
+        
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i >= 2, backend.isFlushRequired());
+            backend.addContextData("db1", "table1", 1, "recvTime", "id", "type", "name", "type", "v", "[]");
+        } // for
+        
+        assertEquals(3, backend.getNumBufferedRows());
+        
+        try {
+            backend.flush();
+            fail("A failed insertion was not notified");
+        } catch (CygnusPersistenceError e) {
+            assertEquals(0, backend.getNumBufferedRows());
+            assertFalse(backend.isFlushRequired());
+        } // try catch
+    } // testFlushError
+    
+    /**
+     * Test of flush method, of class MySQLBackend. A connection error is not taken as bad data, thus the rows are not
+     * inserted one by one but the insertion fails in order to be retried.
+     */
+    @Test
+    public void testFlushConnectionError() throws Exception {
+        System.out.println("Testing MySQLBackend.flush (connection error)");
+        when(mockPreparedStatement.executeBatch()).thenThrow(new SQLRecoverableException("Connection reset"))
+                .thenThrow(new SQLException("Communications link failure", "08S01", 0));
+        backend = new MySQLBackend(mockPool, 100, 0);
+        
+        for (int i = 0; i < 2; i++) {
+            backend.addContextData("db1", "table1", 1, "recvTime", "id", "type", "name", "type", "v", "[]");
+            backend.addContextData("db1", "table1", 2, "recvTime", "id", "type", "name", "type", "v", "[]");
+            
+            try {
+                backend.flush();
+                fail("A failed insertion was not notified");
+            } catch (CygnusPersistenceError e) {
+                verify(mockPreparedStatement, never()).executeUpdate();
+            } // try catch
+        } // for
+    } // testFlushConnectionError
+    
+    /**
+     * Test of flush method, of class MySQLBackend. When the batch is rejected due to bad data, only the rows not
+     * applied by the batch are inserted one by one, thus no row is duplicated.
+     */
+    @Test
+    public void testFlushBadData() throws Exception {
+        System.out.println("Testing MySQLBackend.flush (bad data)");
+        when(mockPreparedStatement.executeBatch()).thenThrow(new BatchUpdateException("Data too long", "22001", 1406,
+                new int[] {1}));
+        when(mockPreparedStatement.executeUpdate()).thenThrow(new SQLException("Data too long", "22001", 1406))
+                .thenReturn(1);
+        backend = new MySQLBackend(mockPool, 100, 0);
+        
+        for (int i = 0; i < 3; i++) {
+            backend.addContextData("db1", "table1", i, "recvTime", "id", "type", "name", "type", "v", "[]");
+        } // for
+        
+        backend.flush();
+        verify(mockPreparedStatement, times(2)).executeUpdate();
+        assertEquals(0, backend.getNumBufferedRows());
+    } // testFlushBadData
+    
     /**
      * Test of getConnection method, of class MySQLBackend.
      */
@@ -0,0 +1,172 @@
+/**
+ * Copyright 2014 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-connectors (FI-WARE project).
+ *
+ * fiware-connectors is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-connectors is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-connectors. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with Francisco Romero
+ * francisco.romerobueno@telefonica.com
+ */
+
+package es.tid.fiware.fiwareconnectors.cygnus.backends.mysql;
+
+import static org.junit.Assert.*; // this is required by "fail" like assertions
+import static org.mockito.Mockito.*; // this is required by "when" like functions
+import es.tid.fiware.fiwareconnectors.cygnus.errors.CygnusPersistenceError;
+import java.sql.Connection;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+/**
+ *
+ * @author frb
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class MySQLConnectionPoolTest {
+
+    // constants
+    private final String host = "localhost";
+    private final String port = "3306";
+    private final String user = "root";
+    private final String password = "12345abcde";
+
+    /**
+     * Pool creating mocked connections instead of real ones.
+     */
+    private class MockedConnectionPool extends MySQLConnectionPool {
+
+        private boolean valid;
+
+        public MockedConnectionPool(int maxPoolSize, long maxIdleTime, long maxWaitTime) {
+            super(host, port, user, password, maxPoolSize, maxIdleTime, maxWaitTime);
+            valid = true;
+        } // MockedConnectionPool
+
+        public void setValid(boolean valid) {
+            this.valid = valid;
+        } // setValid
+
+        @Override
+        protected Connection createConnection(String dbName) throws Exception {
+            // the connections are created and validated out of the pool lock
+            assertFalse(Thread.holdsLock(this));
+            Connection con = mock(Connection.class);
+            when(con.isValid(anyInt())).thenAnswer(new org.mockito.stubbing.Answer<Boolean>() {
+                @Override
+                public Boolean answer(org.mockito.invocation.InvocationOnMock invocation) {
+                    assertFalse(Thread.holdsLock(MockedConnectionPool.this));
+                    return valid;
+                } // answer
+            });
+            return con;
+        } // createConnection
+
+    } // MockedConnectionPool
+
+    /**
+     * Test of borrowConnection method, of class MySQLConnectionPool. A released connection is reused by the next
+     * borrower of the same database, but not by the borrowers of other databases.
+     */
+    @Test
+    public void testBorrowConnection() throws Exception {
+        System.out.println("Testing MySQLConnectionPool.borrowConnection");
+        MockedConnectionPool pool = new MockedConnectionPool(5, 60000, 0);
+        Connection con1 = pool.borrowConnection("db1");
+        pool.releaseConnection("db1", con1);
+        assertSame(con1, pool.borrowConnection("db1"));
+        assertNotSame(con1, pool.borrowConnection("db2"));
+        assertEquals(2, pool.getNumCreated());
+        assertEquals(3, pool.getNumBorrowed());
+        assertEquals(1, pool.getNumReused());
+        assertEquals(2, pool.getNumActive());
+        assertEquals(0, pool.getNumIdle());
+    } // testBorrowConnection
+
+    /**
+     * Test of borrowConnection method, of class MySQLConnectionPool. No more connections than the maximum pool size are
+     * opened per database.
+     */
+    @Test
+    public void testBorrowConnectionMaxPoolSize() throws Exception {
+        System.out.println("Testing MySQLConnectionPool.borrowConnection (maximum pool size)");
+        MockedConnectionPool pool = new MockedConnectionPool(1, 60000, 10);
+        pool.borrowConnection("db1");
+        pool.borrowConnection("db2");
+
+        try {
+            pool.borrowConnection("db1");
+            fail("A connection was borrowed beyond the maximum pool size");
+        } catch (CygnusPersistenceError e) {
+            assertEquals(1, pool.getNumWaits());
+        } // try catch
+    } // testBorrowConnectionMaxPoolSize
+
+    /**
+     * Test of borrowConnection method, of class MySQLConnectionPool. Not valid connections are discarded.
+     */
+    @Test
+    public void testBorrowConnectionValidation() throws Exception {
+        System.out.println("Testing MySQLConnectionPool.borrowConnection (validation)");
+        MockedConnectionPool pool = new MockedConnectionPool(1, 60000, 0);
+        Connection con1 = pool.borrowConnection("db1");
+        pool.releaseConnection("db1", con1);
+        pool.setValid(false);
+        Connection con2 = pool.borrowConnection("db1");
+        assertNotSame(con1, con2);
+        verify(con1).close();
+        assertEquals(1, pool.getNumInvalidated());
+        assertEquals(2, pool.getNumCreated());
+    } // testBorrowConnectionValidation
+
+    /**
+     * Test of evictIdleConnections method, of class MySQLConnectionPool.
+     */
+    @Test
+    public void testEvictIdleConnections() throws Exception {
+        System.out.println("Testing MySQLConnectionPool.evictIdleConnections");
+        MockedConnectionPool pool = new MockedConnectionPool(5, 10, 0);
+        Connection con1 = pool.borrowConnection("db1");
+        pool.releaseConnection("db1", con1);
+        Thread.sleep(50);
+        pool.evictIdleConnections();
+        verify(con1).close();
+        assertEquals(1, pool.getNumEvicted());
+        assertEquals(0, pool.getNumIdle());
+    } // testEvictIdleConnections
+
+    /**
+     * Test of close method, of class MySQLConnectionPool. The idle connections are closed at once, and the borrowed
+     * ones when released; no connection is borrowed afterwards.
+     */
+    @Test
+    public void testClose() throws Exception {
+        System.out.println("Testing MySQLConnectionPool.close");
+        MockedConnectionPool pool = new MockedConnectionPool(5, 60000, 0);
+        Connection con1 = pool.borrowConnection("db1");
+        Connection con2 = pool.borrowConnection("db1");
+        pool.releaseConnection("db1", con1);
+        pool.close();
+        verify(con1).close();
+        verify(con2, never()).close();
+        pool.releaseConnection("db1", con2);
+        verify(con2).close();
+
+        try {
+            pool.borrowConnection("db1");
+            fail("A connection was borrowed from a closed pool");
+        } catch (CygnusPersistenceError e) {
+            assertEquals(2, pool.getNumCreated());
+        } // try catch
+    } // testClose
+
+} // MySQLConnectionPoolTest
@@ -0,0 +1,240 @@
+/**
+ * Copyright 2014 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-connectors (FI-WARE project).
+ *
+ * fiware-connectors is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-connectors is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-connectors. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with Francisco Romero
+ * francisco.romerobueno@telefonica.com
+ */
+
+package es.tid.fiware.fiwareconnectors.cygnus.containers;
+
+import static org.junit.Assert.*; // this is required by "fail" like assertions
+import com.google.gson.Gson;
+import es.tid.fiware.fiwareconnectors.cygnus.containers.NotifyContextRequest.ContextAttribute;
+import es.tid.fiware.fiwareconnectors.cygnus.errors.CygnusBadContextData;
+import org.junit.Test;
+
+/**
+ *
+ * @author frb
+ */
+public class NotifyContextRequestParserTest {
+
+    // constants
+    private final String notifyJson = ""
+            + "{"
+            +   "\"subscriptionId\" : \"51c0ac9ed714fb3b37d7d5a8\","
+            +   "\"originator\" : \"localhost\","
+            +   "\"contextResponses\" : ["
+            +     "{"
+            +       "\"contextElement\" : {"
+            +         "\"attributes\" : ["
+            +           "{"
+            +             "\"name\" : \"temperature\","
+            +             "\"type\" : \"centigrade\","
+            +             "\"value\" : \"26.5\""
+            +           "}"
+            +         "],"
+            +         "\"type\" : \"Room\","
+            +         "\"isPattern\" : \"false\","
+            +         "\"id\" : \"Room1\""
+            +       "},"
+            +       "\"statusCode\" : {"
+            +         "\"code\" : \"200\","
+            +         "\"reasonPhrase\" : \"OK\""
+            +       "}"
+            +     "}"
+            +   "]"
+            + "}";
+    private final String notifyJsonCompound = ""
+            + "{"
+            +   "\"subscriptionId\" : \"51c0ac9ed714fb3b37d7d5a8\","
+            +   "\"originator\" : \"localhost\","
+            +   "\"unknownField\" : { \"a\" : [1, 2] },"
+            +   "\"contextResponses\" : ["
+            +     "{"
+            +       "\"contextElement\" : {"
+            +         "\"attributes\" : ["
+            +           "{"
+            +             "\"name\" : \"field1\","
+            +             "\"type\" : \"type1\","
+            +             "\"value\" : { \"a\" : { \"x\" : 1.50, \"y\" : [true, null, \"v\\\"1\"] }, \"b\" : 2 },"
+            +             "\"metadatas\" : ["
+            +               "{"
+            +                 "\"name\" : \"ID\","
+            +                 "\"type\" : \"string\","
+            +                 "\"value\" : [\"wall\", 1e3]"
+            +               "},"
+            +               "{"
+            +                 "\"name\" : \"unit\","
+            +                 "\"type\" : \"string\","
+            +                 "\"value\" : 7"
+            +               "}"
+            +             "]"
+            +           "},"
+            +           "{"
+            +             "\"name\" : \"field2\","
+            +             "\"type\" : \"type2\","
+            +             "\"value\" : 26.5"
+            +           "}"
+            +         "],"
+            +         "\"type\" : \"Room\","
+            +         "\"isPattern\" : false,"
+            +         "\"id\" : \"Room1\""
+            +       "},"
+            +       "\"statusCode\" : {"
+            +         "\"code\" : 200,"
+            +         "\"reasonPhrase\" : \"OK\""
+            +       "}"
+            +     "}"
+            +   "]"
+            + "}";
+    private final String notifyXMLTemplate = ""
+            + "<notifyContextRequest>"
+            +   "<subscriptionId>51c0ac9ed714fb3b37d7d5a8</subscriptionId>"
+            +   "<originator>localhost</originator>"
+            +   "<contextResponseList>"
+            +     "<contextElementResponse>"
+            +       "<contextElement>"
+            +         "<entityId type=\"Room\" isPattern=\"false\">"
+            +           "<id>%s</id>"
+            +         "</entityId>"
+            +         "<contextAttributeList>"
+            +           "<contextAttribute>"
+            +             "<name>temperature</name>"
+            +             "<type>centigrade</type>"
+            +             "<contextValue>%s</contextValue>"
+            +           "</contextAttribute>"
+            +         "</contextAttributeList>"
+            +       "</contextElement>"
+            +       "<statusCode>"
+            +         "<code>200</code>"
+            +         "<reasonPhrase>OK</reasonPhrase>"
+            +       "</statusCode>"
+            +     "</contextElementResponse>"
+            +   "</contextResponseList>"
+            + "</notifyContextRequest>";
+
+    /**
+     * Test of parse method, of class NotifyContextRequestParser. Json notifications are parsed.
+     */
+    @Test
+    public void testParseJson() throws Exception {
+        System.out.println("Testing NotifyContextRequestParser.parse (Json)");
+        NotifyContextRequest notification = NotifyContextRequestParser.parse(notifyJson, "application/json");
+        assertEquals("51c0ac9ed714fb3b37d7d5a8", notification.getSubscriptionId());
+        assertEquals(1, notification.getContextResponses().size());
+        NotifyContextRequest.ContextElement contextElement =
+                notification.getContextResponses().get(0).getContextElement();
+        assertEquals("Room1", contextElement.getId());
+        assertEquals("26.5", contextElement.getAttributes().get(0).getContextValue(false));
+    } // testParseJson
+
+    /**
+     * Test of parse method, of class NotifyContextRequestParser. Json notifications are parsed from the raw payload in
+     * streaming mode, giving the same values than Gson reflection, even for the compound ones.
+     */
+    @Test
+    public void testParseJsonStreaming() throws Exception {
+        System.out.println("Testing NotifyContextRequestParser.parse (Json, streaming)");
+        NotifyContextRequest expected = new Gson().fromJson(notifyJsonCompound, NotifyContextRequest.class);
+        NotifyContextRequest notification = NotifyContextRequestParser.parse(notifyJsonCompound.getBytes("UTF-8"),
+                "application/json; charset=utf-8");
+        assertEquals(expected.getSubscriptionId(), notification.getSubscriptionId());
+        assertEquals(1, notification.getContextResponses().size());
+        NotifyContextRequest.ContextElementResponse expectedResponse = expected.getContextResponses().get(0);
+        NotifyContextRequest.ContextElementResponse response = notification.getContextResponses().get(0);
+        assertEquals(expectedResponse.getContextElement().getId(), response.getContextElement().getId());
+        assertEquals("false", response.getContextElement().getIsPattern());
+        assertEquals("200", response.getStatusCode().getCode());
+        assertEquals(2, response.getContextElement().getAttributes().size());
+
+        for (int i = 0; i < 2; i++) {
+            ContextAttribute expectedAttribute = expectedResponse.getContextElement().getAttributes().get(i);
+            ContextAttribute attribute = response.getContextElement().getAttributes().get(i);
+            assertEquals(expectedAttribute.getName(), attribute.getName());
+            assertEquals(expectedAttribute.getContextValue(false), attribute.getContextValue(false));
+            assertEquals(expectedAttribute.getContextValue(true), attribute.getContextValue(true));
+            assertEquals(expectedAttribute.getContextMetadata(), attribute.getContextMetadata());
+        } // for
+    } // testParseJsonStreaming
+
+    /**
+     * Test of write method, of class NotifyContextRequestTypeAdapter. The notifications are serialized with the same
+     * values, either parsed in streaming mode or mapped by Gson.
+     */
+    @Test
+    public void testWriteJson() throws Exception {
+        System.out.println("Testing NotifyContextRequestTypeAdapter.write");
+        NotifyContextRequestTypeAdapter adapter = new NotifyContextRequestTypeAdapter();
+        NotifyContextRequest[] notifications = {
+            NotifyContextRequestParser.parse(notifyJsonCompound, "application/json"),
+            new Gson().fromJson(notifyJsonCompound, NotifyContextRequest.class)
+        };
+
+        for (NotifyContextRequest notification : notifications) {
+            NotifyContextRequest written = adapter.fromJson(adapter.toJson(notification));
+            assertEquals(notification.getSubscriptionId(), written.getSubscriptionId());
+            assertEquals(notification.getOriginator(), written.getOriginator());
+            assertEquals(1, written.getContextResponses().size());
+            NotifyContextRequest.ContextElementResponse expectedResponse = notification.getContextResponses().get(0);
+            NotifyContextRequest.ContextElementResponse response = written.getContextResponses().get(0);
+            assertEquals(expectedResponse.getContextElement().getId(), response.getContextElement().getId());
+            assertEquals("false", response.getContextElement().getIsPattern());
+            assertEquals("200", response.getStatusCode().getCode());
+            assertEquals(2, response.getContextElement().getAttributes().size());
+
+            for (int i = 0; i < 2; i++) {
+                ContextAttribute expectedAttribute = expectedResponse.getContextElement().getAttributes().get(i);
+                ContextAttribute attribute = response.getContextElement().getAttributes().get(i);
+                assertEquals(expectedAttribute.getName(), attribute.getName());
+                assertEquals(expectedAttribute.getContextValue(false), attribute.getContextValue(false));
+                assertEquals(expectedAttribute.getContextValue(true), attribute.getContextValue(true));
+                assertEquals(expectedAttribute.getContextMetadata(), attribute.getContextMetadata());
+            } // for
+        } // for
+    } // testWriteJson
+
+    /**
+     * Test of parse method, of class NotifyContextRequestParser. XML notifications are parsed by the same thread
+     * reusing the parsing objects, even after a malformed notification, without mixing their contents.
+     */
+    @Test
+    public void testParseXMLReuse() throws Exception {
+        System.out.println("Testing NotifyContextRequestParser.parse (XML, reusing the parser)");
+
+        for (int i = 0; i < 3; i++) {
+            NotifyContextRequest notification = NotifyContextRequestParser.parse(
+                    String.format(notifyXMLTemplate, "Room" + i, "2" + i), "application/xml");
+            assertEquals(1, notification.getContextResponses().size());
+            NotifyContextRequest.ContextElement contextElement =
+                    notification.getContextResponses().get(0).getContextElement();
+            assertEquals("Room" + i, contextElement.getId());
+            assertEquals(1, contextElement.getAttributes().size());
+            assertEquals("2" + i, contextElement.getAttributes().get(0).getContextValue(false));
+        } // for
+
+        try {
+            NotifyContextRequestParser.parse("<notifyContextRequest><subscriptionId>", "application/xml");
+            fail("A malformed notification was parsed");
+        } catch (CygnusBadContextData e) {
+            assertTrue(true);
+        } // try catch
+
+        NotifyContextRequest notification = NotifyContextRequestParser.parse(
+                String.format(notifyXMLTemplate, "Room9", "29"), "application/xml");
+        assertEquals("Room9", notification.getContextResponses().get(0).getContextElement().getId());
+    } // testParseXMLReuse
+
+} // NotifyContextRequestParserTest
@@ -0,0 +1,85 @@
+/**
+ * Copyright 2014 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-connectors (FI-WARE project).
+ *
+ * fiware-connectors is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-connectors is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-connectors. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with Francisco Romero
+ * francisco.romerobueno@telefonica.com
+ */
+
+package es.tid.fiware.fiwareconnectors.cygnus.containers;
+
+import static org.junit.Assert.*; // this is required by "fail" like assertions
+import java.util.List;
+import org.junit.Test;
+
+/**
+ *
+ * @author frb
+ */
+public class NotifyContextRequestSplitterTest {
+    
+    // constants
+    private final String notification = ""
+            + "{"
+            +   "\"subscriptionId\" : \"contextResponses\","
+            +   "\"originator\" : \"localhost\","
+            +   "\"contextResponses\" : ["
+            +     "{"
+            +       "\"contextElement\" : {"
+            +         "\"attributes\" : [{\"name\" : \"t\", \"type\" : \"c\", \"value\" : \"}]\\\"\"}],"
+            +         "\"type\" : \"Room\", \"isPattern\" : \"false\", \"id\" : \"Room1\""
+            +       "},"
+            +       "\"statusCode\" : {\"code\" : \"200\", \"reasonPhrase\" : \"OK\"}"
+            +     "},"
+            +     "{"
+            +       "\"contextElement\" : {"
+            +         "\"attributes\" : [{\"name\" : \"t\", \"type\" : \"c\", \"value\" : [\"1\", \"2\"]}],"
+            +         "\"type\" : \"Room\", \"isPattern\" : \"false\", \"id\" : \"Room2\""
+            +       "},"
+            +       "\"statusCode\" : {\"code\" : \"200\", \"reasonPhrase\" : \"OK\"}"
+            +     "}"
+            +   "]"
+            + "}";
+    
+    /**
+     * Test of split method, of class NotifyContextRequestSplitter. Each split notification keeps everything but the
+     * other context elements.
+     */
+    @Test
+    public void testSplitJson() throws Exception {
+        System.out.println("Testing NotifyContextRequestSplitter.split (Json)");
+        List<byte[]> bodies = NotifyContextRequestSplitter.split(notification.getBytes("UTF-8"), "application/json");
+        assertEquals(2, bodies.size());
+        
+        for (int i = 0; i < bodies.size(); i++) {
+            NotifyContextRequest split = NotifyContextRequestParser.parse(bodies.get(i), "application/json");
+            assertEquals("contextResponses", split.getSubscriptionId());
+            assertEquals("localhost", split.getOriginator());
+            assertEquals(1, split.getContextResponses().size());
+            assertEquals("Room" + (i + 1), split.getContextResponses().get(0).getContextElement().getId());
+        } // for
+    } // testSplitJson
+    
+    /**
+     * Test of split method, of class NotifyContextRequestSplitter. Nothing is split if the context responses are not
+     * found.
+     */
+    @Test
+    public void testSplitNotFound() throws Exception {
+        System.out.println("Testing NotifyContextRequestSplitter.split (not found)");
+        assertTrue(NotifyContextRequestSplitter.split("{\"a\" : 1}".getBytes("UTF-8"), "application/json").isEmpty());
+        assertTrue(NotifyContextRequestSplitter.split("<a>1</a>".getBytes("UTF-8"), "application/xml").isEmpty());
+    } // testSplitNotFound
+    
+} // NotifyContextRequestSplitterTest
@@ -0,0 +1,191 @@
+/**
+ * Copyright 2014 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-connectors (FI-WARE project).
+ *
+ * fiware-connectors is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-connectors is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-connectors. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with Francisco Romero
+ * francisco.romerobueno@telefonica.com
+ */
+
+package es.tid.fiware.fiwareconnectors.cygnus.handlers;
+
+import static org.junit.Assert.*; // this is required by "fail" like assertions
+import es.tid.fiware.fiwareconnectors.cygnus.errors.CygnusAdmissionRejected;
+import org.junit.Test;
+
+/**
+ *
+ * @author frb
+ */
+public class AdmissionControllerTest {
+    
+    /**
+     * Admission controller whose channels fill percentage is set by the test.
+     */
+    private class MockedAdmissionController extends AdmissionController {
+        
+        private double channelFill;
+        
+        public MockedAdmissionController(int maxInFlight, double channelFillHighWater, double tenantRate,
+                double tenantBurst) {
+            super(maxInFlight, channelFillHighWater, 0, tenantRate, tenantBurst, 5);
+            channelFill = 0;
+        } // MockedAdmissionController
+        
+        public void setChannelFill(double channelFill) {
+            this.channelFill = channelFill;
+        } // setChannelFill
+        
+        @Override
+        protected double readChannelFill() {
+            return channelFill;
+        } // readChannelFill
+        
+    } // MockedAdmissionController
+    
+    /**
+     * Test of admit method, of class AdmissionController. No more notifications than the maximum are in flight.
+     */
+    @Test
+    public void testAdmitMaxInFlight() throws Exception {
+        System.out.println("Testing AdmissionController.admit (maximum in flight)");
+        AdmissionController controller = new MockedAdmissionController(2, 0, 0, 0);
+        controller.admit("org1");
+        controller.admit("org2");
+        
+        try {
+            controller.admit("org3");
+            fail("A notification was admitted beyond the maximum in flight");
+        } catch (CygnusAdmissionRejected e) {
+            assertEquals(503, e.getStatusCode());
+            assertEquals(5, e.getRetryAfter());
+        } // try catch
+        
+        controller.release();
+        controller.admit("org3");
+        assertEquals(2, controller.getNumInFlight());
+        assertEquals(1, controller.getNumRejectedOverloaded());
+    } // testAdmitMaxInFlight
+    
+    /**
+     * Test of admit method, of class AdmissionController. The notifications are rejected while the channels are too
+     * full.
+     */
+    @Test
+    public void testAdmitChannelFill() throws Exception {
+        System.out.println("Testing AdmissionController.admit (channel fill)");
+        MockedAdmissionController controller = new MockedAdmissionController(0, 90, 0, 0);
+        controller.admit("org1");
+        controller.setChannelFill(95);
+        
+        try {
+            controller.admit("org1");
+            fail("A notification was admitted beyond the channel fill high-water mark");
+        } catch (CygnusAdmissionRejected e) {
+            assertEquals(503, e.getStatusCode());
+        } // try catch
+        
+        controller.setChannelFill(50);
+        controller.admit("org1");
+    } // testAdmitChannelFill
+    
+    /**
+     * Test of admit method, of class AdmissionController. An organization exceeding its rate limit does not affect the
+     * others.
+     */
+    @Test
+    public void testAdmitTenantRate() throws Exception {
+        System.out.println("Testing AdmissionController.admit (tenant rate)");
+        AdmissionController controller = new MockedAdmissionController(0, 0, 0.1, 2);
+        controller.admit("org1");
+        controller.admit("org1");
+        
+        try {
+            controller.admit("org1");
+            fail("A notification was admitted beyond the rate limit");
+        } catch (CygnusAdmissionRejected e) {
+            assertEquals(429, e.getStatusCode());
+            assertTrue(e.getRetryAfter() > 0 && e.getRetryAfter() <= 10);
+        } // try catch
+        
+        controller.admit("org2");
+        assertEquals(1, controller.getNumRejectedRateLimited());
+        assertEquals(3, controller.getNumInFlight());
+    } // testAdmitTenantRate
+    
+    /**
+     * Test of admit method, of class AdmissionController. A notification rejected due to the notifications in flight
+     * does not consume a token of its organization.
+     */
+    @Test
+    public void testAdmitMaxInFlightTenantRate() throws Exception {
+        System.out.println("Testing AdmissionController.admit (maximum in flight and tenant rate)");
+        AdmissionController controller = new MockedAdmissionController(1, 0, 0.1, 1);
+        controller.admit("org1");
+        
+        try {
+            controller.admit("org2");
+            fail("A notification was admitted beyond the maximum in flight");
+        } catch (CygnusAdmissionRejected e) {
+            assertEquals(503, e.getStatusCode());
+        } // try catch
+        
+        controller.release();
+        controller.admit("org2");
+        assertEquals(0, controller.getNumRejectedRateLimited());
+    } // testAdmitMaxInFlightTenantRate
+    
+    /**
+     * Test of admit method, of class AdmissionController. The organizations beyond the maximum number of buckets share
+     * a single one.
+     */
+    @Test
+    public void testAdmitMaxTenants() throws Exception {
+        System.out.println("Testing AdmissionController.admit (maximum tenants)");
+        AdmissionController controller = new AdmissionController(0, 0, 0, 0.1, 1, 2, 5);
+        controller.admit("org1");
+        controller.admit("org2");
+        controller.admit("org3");
+        assertEquals(2, controller.getNumBuckets());
+        
+        try {
+            controller.admit("org4");
+            fail("A notification was admitted beyond the rate limit of the shared bucket");
+        } catch (CygnusAdmissionRejected e) {
+            assertEquals(429, e.getStatusCode());
+        } // try catch
+        
+        assertEquals(2, controller.getNumBuckets());
+    } // testAdmitMaxTenants
+    
+    /**
+     * Test of charge method, of class AdmissionController. The notifications charged to an organization are never
+     * rejected, but the next ones are until the debt is paid.
+     */
+    @Test
+    public void testCharge() throws Exception {
+        System.out.println("Testing AdmissionController.charge");
+        AdmissionController controller = new MockedAdmissionController(0, 0, 0.1, 2);
+        controller.admit("org1");
+        controller.charge("org1", 5);
+        
+        try {
+            controller.admit("org1");
+            fail("A notification was admitted beyond the rate limit");
+        } catch (CygnusAdmissionRejected e) {
+            assertEquals(429, e.getStatusCode());
+            assertTrue(e.getRetryAfter() > 10);
+        } // try catch
+    } // testCharge
+    
+} // AdmissionControllerTest
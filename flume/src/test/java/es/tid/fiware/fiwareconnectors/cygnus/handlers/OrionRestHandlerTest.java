@@ -19,11 +19,12 @@
 
 package es.tid.fiware.fiwareconnectors.cygnus.handlers;
 
+import es.tid.fiware.fiwareconnectors.cygnus.errors.CygnusAdmissionRejected;
 import es.tid.fiware.fiwareconnectors.cygnus.utils.TestConstants;
 import es.tid.fiware.fiwareconnectors.cygnus.utils.TestUtils;
-import java.io.BufferedReader;
+import es.tid.fiware.fiwareconnectors.cygnus.utils.TransactionIdGenerator;
 import java.io.ByteArrayInputStream;
-import java.io.InputStreamReader;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -35,9 +36,11 @@ import org.mockito.runners.MockitoJUnitRunner;
 import org.junit.Before;
 import java.util.List;
 import java.util.Map;
+import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServletRequest;
 import org.apache.flume.Context;
 import org.apache.flume.Event;
+import org.apache.flume.source.http.HTTPBadRequestException;
 import org.junit.Test;
 import org.mockito.Mock;
 
@@ -93,10 +96,34 @@ public class OrionRestHandlerTest {
         when(mockRequest.getHeader("user-agent")).thenReturn(orionVersion);
         when(mockRequest.getHeader("content-type")).thenReturn(contentType);
         when(mockRequest.getHeader("fiware-service")).thenReturn(notifiedService);
-        when(mockRequest.getReader()).thenReturn(new BufferedReader(new InputStreamReader(new ByteArrayInputStream(
-                "<tag1>1</tag1>      <tag2>2</tag2>".getBytes()))));
+        when(mockRequest.getContentLength()).thenReturn(-1);
+        when(mockRequest.getInputStream()).thenReturn(new MockServletInputStream(
+                "<tag1>1</tag1>      <tag2>2</tag2>".getBytes()));
     } // setUp
     
+    /**
+     * Servlet input stream reading from a byte array.
+     */
+    private class MockServletInputStream extends ServletInputStream {
+        
+        private ByteArrayInputStream in;
+        
+        public MockServletInputStream(byte[] data) {
+            in = new ByteArrayInputStream(data);
+        } // MockServletInputStream
+        
+        @Override
+        public int read() throws IOException {
+            return in.read();
+        } // read
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return in.read(b, off, len);
+        } // read
+        
+    } // MockServletInputStream
+    
     /**
      * Test of configure method, of class OrionRestHandler.
      */
@@ -106,6 +133,7 @@ public class OrionRestHandlerTest {
         handler.configure(context);
         assertEquals(notificationsTarget, handler.getNotificationTarget());
         assertEquals(defaultOrg, handler.getDefaultOrganization());
+        assertEquals(TransactionIdGenerator.getDefaultNodeId(), handler.getNodeId());
     } // testConfigure
 
     /**
@@ -129,4 +157,120 @@ public class OrionRestHandlerTest {
         assertTrue(eventMessage.length != 0);
     } // testGetEvents
     
+    /**
+     * Test of getEvents method, of class OrionRestHandler. The body is adapted, with or without a Content-Length
+     * header, and even if larger than the body buffer.
+     */
+    @Test
+    public void testGetEventsBodyAdaptation() throws Exception {
+        System.out.println("getEvents (body adaptation)");
+        handler.configure(context);
+        String body = "{\"contextValue\" : \"<tag1>1</tag1>  \r\n  <tag2>2</tag2>\", \"a\" : \"ñ contextValues\"}";
+        String expected = "{\"value\" : \"<tag1>1</tag1><tag2>2</tag2>\", \"a\" : \"ñ values\"}";
+        when(mockRequest.getInputStream()).thenReturn(new MockServletInputStream(body.getBytes("UTF-8")));
+        Event event = handler.getEvents(mockRequest).get(0);
+        assertEquals(expected, new String(event.getBody(), "UTF-8"));
+        
+        StringBuilder largeBody = new StringBuilder();
+        StringBuilder largeExpected = new StringBuilder();
+        
+        for (int i = 0; i < 1000; i++) {
+            largeBody.append(body).append('\n');
+            largeExpected.append(expected);
+        } // for
+        
+        byte[] largeBodyBytes = largeBody.toString().getBytes("UTF-8");
+        when(mockRequest.getHeaderNames()).thenReturn(
+                Collections.enumeration(new ArrayList(Arrays.asList(headerNamesStr))));
+        when(mockRequest.getContentLength()).thenReturn(largeBodyBytes.length);
+        when(mockRequest.getInputStream()).thenReturn(new MockServletInputStream(largeBodyBytes));
+        event = handler.getEvents(mockRequest).get(0);
+        assertEquals(largeExpected.toString(), new String(event.getBody(), "UTF-8"));
+    } // testGetEventsBodyAdaptation
+    
+    /**
+     * Test of getEvents method, of class OrionRestHandler. A batch of notifications, either a Json array or
+     * newline-delimited Json, results in an event per notification.
+     */
+    @Test
+    public void testGetEventsBatch() throws Exception {
+        System.out.println("getEvents (batch)");
+        handler.configure(context);
+        assertEquals(notificationsTarget + "/batch", handler.getBatchNotificationTarget());
+        when(mockRequest.getRequestURI()).thenReturn(notificationsTarget + "/batch");
+        String[] bodies = {
+            "[{\"a\" : \"1\"}, {\"b\" : [\"}\", \"\\\"{\"]}]",
+            "{\"a\" : \"1\"}\n{\"b\" : [\"}\", \"\\\"{\"]}\n"
+        };
+        
+        for (String body : bodies) {
+            when(mockRequest.getHeaderNames()).thenReturn(
+                    Collections.enumeration(new ArrayList(Arrays.asList(headerNamesStr))));
+            when(mockRequest.getInputStream()).thenReturn(new MockServletInputStream(body.getBytes("UTF-8")));
+            List<Event> events = handler.getEvents(mockRequest);
+            assertEquals(2, events.size());
+            assertEquals("{\"a\" : \"1\"}", new String(events.get(0).getBody(), "UTF-8"));
+            assertEquals("{\"b\" : [\"}\", \"\\\"{\"]}", new String(events.get(1).getBody(), "UTF-8"));
+            assertNotSame(events.get(0).getHeaders(), events.get(1).getHeaders());
+            assertEquals(events.get(0).getHeaders(), events.get(1).getHeaders());
+        } // for
+        
+        String[] badBodies = {"[{\"a\" : 1}", "[{\"a\" : 1},]", "[{\"a\" : 1},,{\"b\" : 2}]", "[,{\"a\" : 1}]",
+            "[{\"a\" : 1} {\"b\" : 2}]", "{\"a\" : 1},{\"b\" : 2}"};
+        
+        for (String badBody : badBodies) {
+            when(mockRequest.getHeaderNames()).thenReturn(
+                    Collections.enumeration(new ArrayList(Arrays.asList(headerNamesStr))));
+            when(mockRequest.getInputStream()).thenReturn(new MockServletInputStream(badBody.getBytes()));
+
+            try {
+                handler.getEvents(mockRequest);
+                fail("A bad batch of notifications was accepted (" + badBody + ")");
+            } catch (HTTPBadRequestException e) {
+                assertEquals(0, handler.getAdmissionController().getNumInFlight());
+            } // try catch
+        } // for
+    } // testGetEventsBatch
+    
+    /**
+     * Test of getEvents method, of class OrionRestHandler. A batch with more notifications than the maximum is
+     * rejected, and the rate limit of the organization is charged with all the notifications within a batch.
+     */
+    @Test
+    public void testGetEventsBatchLimits() throws Exception {
+        System.out.println("getEvents (batch limits)");
+        context.put("batch_max_notifications", "3");
+        context.put("tenant_rate_limit", "0.1");
+        context.put("tenant_rate_burst", "3");
+        handler.configure(context);
+        assertEquals(3, handler.getBatchMaxNotifications());
+        when(mockRequest.getRequestURI()).thenReturn(notificationsTarget + "/batch");
+        when(mockRequest.getInputStream()).thenReturn(new MockServletInputStream(
+                "[{\"a\" : 1}, {\"a\" : 2}, {\"a\" : 3}, {\"a\" : 4}]".getBytes()));
+        
+        try {
+            handler.getEvents(mockRequest);
+            fail("A batch with too many notifications was accepted");
+        } catch (HTTPBadRequestException e) {
+            assertEquals(0, handler.getAdmissionController().getNumInFlight());
+        } // try catch
+        
+        // a token was charged by the rejected batch, the remaining ones are charged by this one
+        when(mockRequest.getHeaderNames()).thenReturn(
+                Collections.enumeration(new ArrayList(Arrays.asList(headerNamesStr))));
+        when(mockRequest.getInputStream()).thenReturn(new MockServletInputStream(
+                "[{\"a\" : 1}, {\"a\" : 2}]".getBytes()));
+        assertEquals(2, handler.getEvents(mockRequest).size());
+        when(mockRequest.getHeaderNames()).thenReturn(
+                Collections.enumeration(new ArrayList(Arrays.asList(headerNamesStr))));
+        when(mockRequest.getInputStream()).thenReturn(new MockServletInputStream("{\"a\" : 1}".getBytes()));
+        
+        try {
+            handler.getEvents(mockRequest);
+            fail("A notification was accepted beyond the rate limit");
+        } catch (CygnusAdmissionRejected e) {
+            assertEquals(429, e.getStatusCode());
+        } // try catch
+    } // testGetEventsBatchLimits
+    
 } // OrionRestHandlerTest
\ No newline at end of file
@@ -0,0 +1,172 @@
+/**
+ * Copyright 2014 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-connectors (FI-WARE project).
+ *
+ * fiware-connectors is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-connectors is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-connectors. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with Francisco Romero
+ * francisco.romerobueno@telefonica.com
+ */
+
+package es.tid.fiware.fiwareconnectors.cygnus.hive;
+
+import static org.junit.Assert.*; // this is required by "fail" like assertions
+import java.io.File;
+import org.junit.Test;
+
+/**
+ *
+ * @author frb
+ */
+public class HiveTableProvisionerTest {
+
+    // constants
+    private final String hiveHost = "localhost";
+    private final String hivePort = "10000";
+    private final String user = "hdfs-user";
+    private final String password = "12345abcde";
+    private final String tableName = "hdfs_user_org_entity_row";
+    private final String query = "create external table if not exists " + tableName;
+
+    /**
+     * Provisioner not connecting to Hive, but failing a given number of times before succeeding.
+     */
+    private class DummyProvisioner extends HiveTableProvisioner {
+
+        private int numFailures;
+        private int numCalls;
+
+        public DummyProvisioner(String recordFile, int numFailures) {
+            super(hiveHost, hivePort, user, password, recordFile, 10, 2);
+            this.numFailures = numFailures;
+            numCalls = 0;
+        } // DummyProvisioner
+
+        public synchronized int getNumCalls() {
+            return numCalls;
+        } // getNumCalls
+
+        @Override
+        protected synchronized boolean createTable(String query) {
+            numCalls++;
+            return numCalls > numFailures;
+        } // createTable
+
+    } // DummyProvisioner
+
+    /**
+     * Waits until there is no pending table, up to one second.
+     * @param provisioner
+     * @throws Exception
+     */
+    private void waitForProvisioning(HiveTableProvisioner provisioner) throws Exception {
+        for (int i = 0; i < 100 && provisioner.getNumPending() > 0; i++) {
+            Thread.sleep(10);
+        } // for
+    } // waitForProvisioning
+
+    /**
+     * Test of provision method, of class HiveTableProvisioner. A provisioned table is recorded, and not created again,
+     * even by another provisioner using the same record file.
+     */
+    @Test
+    public void testProvision() throws Exception {
+        System.out.println("Testing HiveTableProvisioner.provision");
+        File recordFile = File.createTempFile("hive_provisioned_tables", ".txt");
+        recordFile.delete();
+        recordFile.deleteOnExit();
+        DummyProvisioner provisioner = new DummyProvisioner(recordFile.getAbsolutePath(), 0);
+        provisioner.provision(tableName, query);
+        waitForProvisioning(provisioner);
+        provisioner.provision(tableName, query);
+        waitForProvisioning(provisioner);
+        assertTrue(provisioner.isProvisioned(tableName));
+        assertEquals(1, provisioner.getNumCalls());
+        provisioner.shutdown();
+        provisioner = new DummyProvisioner(recordFile.getAbsolutePath(), 0);
+        assertTrue(provisioner.isProvisioned(tableName));
+        provisioner.provision(tableName, query);
+        waitForProvisioning(provisioner);
+        assertEquals(0, provisioner.getNumCalls());
+        provisioner.shutdown();
+    } // testProvision
+
+    /**
+     * Test of provision method, of class HiveTableProvisioner. A failed table creation is retried, up to the maximum
+     * number of retries.
+     */
+    @Test
+    public void testProvisionRetry() throws Exception {
+        System.out.println("Testing HiveTableProvisioner.provision (retry)");
+        DummyProvisioner provisioner = new DummyProvisioner("", 2);
+        provisioner.provision(tableName, query);
+        waitForProvisioning(provisioner);
+        assertTrue(provisioner.isProvisioned(tableName));
+        assertEquals(3, provisioner.getNumCalls());
+        provisioner.shutdown();
+        provisioner = new DummyProvisioner("", 3);
+        provisioner.provision(tableName, query);
+        waitForProvisioning(provisioner);
+        assertFalse(provisioner.isProvisioned(tableName));
+        assertEquals(3, provisioner.getNumCalls());
+        provisioner.shutdown();
+    } // testProvisionRetry
+
+    /**
+     * Test of provision method, of class HiveTableProvisioner. A table still being provisioned when shutting down the
+     * provisioner is persisted, and provisioned by another provisioner using the same record file.
+     */
+    @Test
+    public void testProvisionPending() throws Exception {
+        System.out.println("Testing HiveTableProvisioner.provision (pending)");
+        File recordFile = File.createTempFile("hive_provisioned_tables", ".txt");
+        recordFile.delete();
+        recordFile.deleteOnExit();
+        File pendingFile = new File(recordFile.getAbsolutePath() + ".pending");
+        pendingFile.deleteOnExit();
+        DummyProvisioner provisioner = new DummyProvisioner(recordFile.getAbsolutePath(), 100);
+        provisioner.provision(tableName, query);
+        provisioner.shutdown();
+        assertFalse(provisioner.isProvisioned(tableName));
+        assertTrue(pendingFile.exists());
+        provisioner = new DummyProvisioner(recordFile.getAbsolutePath(), 0);
+        waitForProvisioning(provisioner);
+        assertTrue(provisioner.isProvisioned(tableName));
+        assertFalse(pendingFile.exists());
+        provisioner.shutdown();
+        provisioner = new DummyProvisioner(recordFile.getAbsolutePath(), 0);
+        assertTrue(provisioner.isProvisioned(tableName));
+        assertEquals(0, provisioner.getNumPending());
+        provisioner.shutdown();
+    } // testProvisionPending
+
+    /**
+     * Test of provision method, of class HiveTableProvisioner. The background thread is not started until the first
+     * provisioning, nor after shutting down the provisioner.
+     */
+    @Test
+    public void testProvisionStart() throws Exception {
+        System.out.println("Testing HiveTableProvisioner.provision (start)");
+        DummyProvisioner provisioner = new DummyProvisioner("", 0);
+        assertFalse(provisioner.isStarted());
+        provisioner.provision(tableName, query);
+        assertTrue(provisioner.isStarted());
+        waitForProvisioning(provisioner);
+        provisioner.shutdown();
+        provisioner = new DummyProvisioner("", 0);
+        provisioner.shutdown();
+        provisioner.provision(tableName, query);
+        assertFalse(provisioner.isStarted());
+        assertEquals(0, provisioner.getNumCalls());
+    } // testProvisionStart
+
+} // HiveTableProvisionerTest
@@ -0,0 +1,73 @@
+/**
+ * Copyright 2014 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-connectors (FI-WARE project).
+ *
+ * fiware-connectors is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-connectors is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-connectors. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with Francisco Romero
+ * francisco.romerobueno@telefonica.com
+ */
+
+package es.tid.fiware.fiwareconnectors.cygnus.http;
+
+import java.util.Map;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.params.HttpConnectionParams;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author frb
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class HttpClientFactoryTest {
+    
+    /**
+     * Test of getHttpClient method, of class HttpClientFactory. The same Http client is returned on each call, and
+     * the factories do not share their pools.
+     */
+    @Test
+    public void testGetHttpClient() {
+        System.out.println("Testing HttpClientFactory.getHttpClient");
+        HttpClientFactory factory1 = new HttpClientFactory(false, 10, 5, 1000, 2000, 0, 0);
+        HttpClientFactory factory2 = new HttpClientFactory(false);
+        DefaultHttpClient client = factory1.getHttpClient(false);
+        assertSame(client, factory1.getHttpClient(false));
+        assertNotSame(client, factory2.getHttpClient(false));
+        assertNotSame(client.getConnectionManager(), factory2.getHttpClient(false).getConnectionManager());
+        assertEquals(1000, HttpConnectionParams.getConnectionTimeout(client.getParams()));
+        assertEquals(2000, HttpConnectionParams.getSoTimeout(client.getParams()));
+        factory1.close();
+        factory2.close();
+    } // testGetHttpClient
+    
+    /**
+     * Test of getStatus method, of class HttpClientFactory.
+     */
+    @Test
+    public void testGetStatus() {
+        System.out.println("Testing HttpClientFactory.getStatus");
+        HttpClientFactory factory = new HttpClientFactory(false, 10, 5, 1000, 2000, 0, 0);
+        Map<String, Object> status = factory.getStatus();
+        assertFalse(status.containsKey("https"));
+        Map<String, Object> httpStatus = (Map<String, Object>) status.get("http");
+        assertEquals(10, httpStatus.get("maxConns"));
+        assertEquals(0, httpStatus.get("numLeased"));
+        factory.getHttpClient(true);
+        assertTrue(factory.getStatus().containsKey("https"));
+        factory.close();
+    } // testGetStatus
+    
+} // HttpClientFactoryTest
@@ -23,9 +23,15 @@ import java.util.HashMap;
 import java.util.Map;
 import org.apache.flume.event.EventBuilder;
 import org.apache.flume.Event;
+import es.tid.fiware.fiwareconnectors.cygnus.containers.NotifyContextRequest;
+import es.tid.fiware.fiwareconnectors.cygnus.containers.NotifyContextRequestEvent;
+import es.tid.fiware.fiwareconnectors.cygnus.containers.NotifyContextRequestParser;
 import es.tid.fiware.fiwareconnectors.cygnus.interceptors.DestinationExtractor.MatchingRule;
 import es.tid.fiware.fiwareconnectors.cygnus.utils.Constants;
+import java.io.File;
+import java.io.FileWriter;
 import java.util.ArrayList;
+import java.util.List;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -116,7 +122,7 @@ public class DestinationExtractorTest {
     public void testInitialize() {
         System.out.println("Testing EntityDescriptorExtractor.initialize");
         destExtractor.initialize();
-        ArrayList<MatchingRule> matchingTable = destExtractor.getMatchingTable();
+        List<MatchingRule> matchingTable = destExtractor.getMatchingTable();
         assertTrue(matchingTable.size() == 2);
         MatchingRule firstRule = matchingTable.get(0);
         assertEquals(1, firstRule.getId());
@@ -139,6 +145,97 @@ public class DestinationExtractorTest {
         Event interceptedEvent = destExtractor.intercept(event);
         String destination = interceptedEvent.getHeaders().get(Constants.DESTINATION);
         assertEquals(destination, "rooms,rooms");
+        assertTrue(interceptedEvent instanceof NotifyContextRequestEvent);
+        assertEquals(2, ((NotifyContextRequestEvent) interceptedEvent).getNotification().getContextResponses().size());
+        assertArrayEquals(event.getBody(), interceptedEvent.getBody());
+        assertEquals(2, destExtractor.getDestinationsCache().size());
     } // testIntercept
+    
+    /**
+     * Test of intercept method, of class DestinationExtractor. The events intercepted in batches are split into an
+     * event per context element, each one with its own destination and body.
+     */
+    @Test
+    public void testInterceptSplit() throws Exception {
+        System.out.println("Testing DestinationExtractor.intercept (split)");
+        destExtractor = new DestinationExtractor(matchingTableFile, true);
+        destExtractor.initialize();
+        ArrayList<Event> events = new ArrayList<Event>();
+        events.add(event);
+        List<Event> interceptedEvents = destExtractor.intercept(events);
+        assertEquals(2, interceptedEvents.size());
+        
+        for (Event interceptedEvent : interceptedEvents) {
+            assertEquals("rooms", interceptedEvent.getHeaders().get(Constants.DESTINATION));
+            NotifyContextRequest notification = NotifyContextRequestParser.parse(interceptedEvent.getBody(),
+                    "application/xml");
+            assertEquals(1, notification.getContextResponses().size());
+            assertEquals(1, ((NotifyContextRequestEvent) interceptedEvent).getNotification().getContextResponses()
+                    .size());
+        } // for
+        
+        assertNotSame(interceptedEvents.get(0).getHeaders(), interceptedEvents.get(1).getHeaders());
+        assertTrue(new String(interceptedEvents.get(1).getBody()).contains("<id>Room.22</id>"));
+    } // testInterceptSplit
+    
+    /**
+     * Test of intercept method, of class DestinationExtractor. The events are not split beyond the maximum number of
+     * intercepted events.
+     */
+    @Test
+    public void testInterceptSplitMaxEvents() throws Exception {
+        System.out.println("Testing DestinationExtractor.intercept (split maximum events)");
+        int[][] expected = {{2, 2}, {3, 3}, {4, 4}};
+        
+        for (int[] maxAndSize : expected) {
+            destExtractor = new DestinationExtractor(matchingTableFile, true, maxAndSize[0], 100, 0);
+            destExtractor.initialize();
+            ArrayList<Event> events = new ArrayList<Event>();
+            events.add(EventBuilder.withBody(eventData.getBytes(), new HashMap<String, String>(eventHeaders)));
+            events.add(EventBuilder.withBody(eventData.getBytes(), new HashMap<String, String>(eventHeaders)));
+            assertEquals(maxAndSize[1], destExtractor.intercept(events).size());
+            destExtractor.close();
+        } // for
+    } // testInterceptSplitMaxEvents
+    
+    /**
+     * Test of reloadIfModified method, of class DestinationExtractor. A modified matching table is reloaded, and the
+     * current one is kept if the modified one cannot be loaded.
+     */
+    @Test
+    public void testReloadIfModified() throws Exception {
+        System.out.println("Testing DestinationExtractor.reloadIfModified");
+        File file = File.createTempFile("matching_table", ".conf");
+        file.deleteOnExit();
+        writeFile(file, "1|entityId,entityType|Room\\.(\\d*)Room|rooms\n");
+        destExtractor = new DestinationExtractor(file.getAbsolutePath(), false, 100, 0);
+        destExtractor.initialize();
+        assertEquals("rooms,rooms", destExtractor.intercept(event).getHeaders().get(Constants.DESTINATION));
+        
+        // not modified, thus not reloaded
+        destExtractor.reloadIfModified();
+        assertEquals(2, destExtractor.getDestinationsCache().size());
+        
+        // modified, thus reloaded and with an empty cache
+        writeFile(file, "1|entityId,entityType|Room\\.(\\d*)Room|rooms\n2|entityId|Room|otherrooms\n");
+        file.setLastModified(file.lastModified() + 1000);
+        destExtractor.reloadIfModified();
+        assertEquals(2, destExtractor.getMatchingTable().size());
+        assertEquals(0, destExtractor.getDestinationsCache().size());
+        
+        // not valid, thus the current one is kept
+        writeFile(file, "not a valid rule\n");
+        file.setLastModified(file.lastModified() + 2000);
+        destExtractor.reloadIfModified();
+        assertEquals(2, destExtractor.getMatchingTable().size());
+        assertEquals("rooms,rooms", destExtractor.intercept(event).getHeaders().get(Constants.DESTINATION));
+        destExtractor.close();
+    } // testReloadIfModified
+    
+    private void writeFile(File file, String content) throws Exception {
+        FileWriter writer = new FileWriter(file);
+        writer.write(content);
+        writer.close();
+    } // writeFile
 
 } // DestinationExtractorTest
@@ -0,0 +1,130 @@
+/**
+ * Copyright 2014 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-connectors (FI-WARE project).
+ *
+ * fiware-connectors is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-connectors is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-connectors. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with Francisco Romero
+ * francisco.romerobueno@telefonica.com
+ */
+
+package es.tid.fiware.fiwareconnectors.cygnus.interceptors;
+
+import static org.junit.Assert.*; // this is required by "fail" like assertions
+import es.tid.fiware.fiwareconnectors.cygnus.containers.NotifyContextRequest;
+import es.tid.fiware.fiwareconnectors.cygnus.containers.NotifyContextRequest.ContextElement;
+import es.tid.fiware.fiwareconnectors.cygnus.interceptors.DestinationExtractor.MatchingRule;
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.junit.Test;
+
+/**
+ *
+ * @author frb
+ */
+public class MatchingTableIndexTest {
+    
+    // other instances
+    private final DestinationExtractor destExtractor = new DestinationExtractor("");
+    
+    /**
+     * Creates a matching rule.
+     * @param id
+     * @param fields
+     * @param regex
+     * @param destination
+     * @return The matching rule
+     */
+    private MatchingRule createRule(int id, String fields, String regex, String destination) {
+        return destExtractor.new MatchingRule(id, new ArrayList<String>(Arrays.asList(fields.split(","))), regex,
+                destination);
+    } // createRule
+    
+    /**
+     * Creates a context element.
+     * @param id
+     * @param type
+     * @return The context element
+     */
+    private ContextElement createContextElement(String id, String type) {
+        ContextElement contextElement = new NotifyContextRequest().new ContextElement();
+        contextElement.setId(id);
+        contextElement.setType(type);
+        return contextElement;
+    } // createContextElement
+    
+    /**
+     * Test of getLiteral method, of class MatchingTableIndex.
+     */
+    @Test
+    public void testGetLiteral() {
+        System.out.println("Testing MatchingTableIndex.getLiteral");
+        assertEquals("Car", MatchingTableIndex.getLiteral("Car"));
+        assertEquals("Room.1", MatchingTableIndex.getLiteral("^Room\\.1$"));
+        assertEquals("a$", MatchingTableIndex.getLiteral("a\\$"));
+        assertNull(MatchingTableIndex.getLiteral("Room\\.(\\d*)Room"));
+        assertNull(MatchingTableIndex.getLiteral("Car|Bus"));
+        assertNull(MatchingTableIndex.getLiteral("Car\\d"));
+    } // testGetLiteral
+    
+    /**
+     * Test of match method, of class MatchingTableIndex. The first matching rule in the table order wins, whatever
+     * the way it is indexed.
+     */
+    @Test
+    public void testMatch() {
+        System.out.println("Testing MatchingTableIndex.match");
+        ArrayList<MatchingRule> rules = new ArrayList<MatchingRule>();
+        rules.add(createRule(1, "entityId,entityType", "Room\\.(\\d*)Room", "rooms"));
+        rules.add(createRule(2, "entityId", "Car", "cars"));
+        rules.add(createRule(3, "entityId", "Car.*", "car-prefixed"));
+        rules.add(createRule(4, "entityType", "^Bus$", "buses"));
+        rules.add(createRule(5, "entityId", "C.*", "c-prefixed"));
+        rules.add(createRule(6, "entityId,entityType", "Room\\.1.*", "never-room1"));
+        rules.add(createRule(7, "entityId", ".*", "any"));
+        MatchingTableIndex index = new MatchingTableIndex(rules);
+        String[][] cases = {
+            {"Room.1", "Room", "rooms"},
+            {"Room.1", "Office", "never-room1"},
+            {"Car", "Bus", "cars"},
+            {"Car1", "Bus", "car-prefixed"},
+            {"Van", "Bus", "buses"},
+            {"Cab", "Taxi", "c-prefixed"},
+            {"Van", "Taxi", "any"},
+            {"Car\n1", "Taxi", null}
+        };
+        
+        for (String[] c : cases) {
+            ContextElement contextElement = createContextElement(c[0], c[1]);
+            
+            // the linear matching gives the expected destination, and so the index
+            String expected = null;
+            
+            for (MatchingRule rule : rules) {
+                StringBuilder concat = new StringBuilder();
+                
+                for (String field : rule.getFields()) {
+                    concat.append(contextElement.getString(field));
+                } // for
+                
+                if (rule.getPattern().matcher(concat).matches()) {
+                    expected = rule.getDestination();
+                    break;
+                } // if
+            } // for
+            
+            assertEquals(c[2], expected);
+            assertEquals(expected, index.match(contextElement));
+        } // for
+    } // testMatch
+    
+} // MatchingTableIndexTest
@@ -0,0 +1,99 @@
+/**
+ * Copyright 2014 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-connectors (FI-WARE project).
+ *
+ * fiware-connectors is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-connectors is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-connectors. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with Francisco Romero
+ * francisco.romerobueno@telefonica.com
+ */
+
+package es.tid.fiware.fiwareconnectors.cygnus.log;
+
+import static org.junit.Assert.*; // this is required by "fail" like assertions
+import es.tid.fiware.fiwareconnectors.cygnus.utils.Constants;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ *
+ * @author frb
+ */
+public class CygnusLoggerTest {
+
+    /**
+     * Restores the default payload policy, since it is global.
+     */
+    @After
+    public void tearDown() {
+        CygnusLogger.setPayloadPolicy(Constants.LOG_PAYLOAD_MAX_LENGTH, Constants.LOG_PAYLOAD_SAMPLING_RATE);
+    } // tearDown
+
+    /**
+     * Test of format method, of class CygnusLogger.
+     */
+    @Test
+    public void testFormat() {
+        System.out.println("Testing CygnusLogger.format");
+        assertEquals("a=1, b=null, c={}", CygnusLogger.format("a={}, b={}, c={}", 1, null));
+        assertEquals("a=1, b=2", CygnusLogger.format("a={}, b={}", 1, 2, 3));
+        assertEquals("no args", CygnusLogger.format("no args"));
+    } // testFormat
+
+    /**
+     * Test of debug method, of class CygnusLogger. The message is not built if the level is not enabled.
+     */
+    @Test
+    public void testDebugNotEnabled() {
+        System.out.println("Testing CygnusLogger.debug (level not enabled)");
+        Logger logger = Logger.getLogger(CygnusLoggerTest.class);
+        logger.setLevel(Level.INFO);
+        Object arg = new Object() {
+
+            @Override
+            public String toString() {
+                fail("The message was built while the level was not enabled");
+                return null;
+            } // toString
+
+        };
+
+        CygnusLogger.debug(logger, "arg={}", arg);
+    } // testDebugNotEnabled
+
+    /**
+     * Test of payload method, of class CygnusLogger. The payloads are truncated and sampled.
+     */
+    @Test
+    public void testPayload() throws Exception {
+        System.out.println("Testing CygnusLogger.payload");
+        CygnusLogger.setPayloadPolicy(5, 1);
+        assertEquals("12345...<3 more characters>", CygnusLogger.payload("12345678").toString());
+        assertEquals("12345...<3 more bytes>", CygnusLogger.payload("12345678".getBytes("UTF-8")).toString());
+        assertEquals("1, 2", CygnusLogger.payload("1", "2").toString());
+        CygnusLogger.setPayloadPolicy(0, 2);
+        int numSampled = 0;
+
+        for (int i = 0; i < 10; i++) {
+            if (CygnusLogger.payload("12345678").toString().equals("12345678")) {
+                numSampled++;
+            } // if
+        } // for
+
+        assertEquals(5, numSampled);
+        CygnusLogger.setPayloadPolicy(0, 0);
+        assertEquals("<not sampled>", CygnusLogger.payload("12345678").toString());
+    } // testPayload
+
+} // CygnusLoggerTest
@@ -20,6 +20,8 @@
 package es.tid.fiware.fiwareconnectors.cygnus.management;
 
 import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.junit.Before;
@@ -81,4 +83,30 @@ public class ManagementInterfaceTest {
         } // try catch
     } // testHandle
     
+    /**
+     * Test of getStatus method, of class ManagementInterface.
+     */
+    @Test
+    public void testGetStatus() {
+        System.out.println("Testing ManagementInterface.getStatus");
+        ManagementInterface.registerStatusReporter("test", new StatusReporter() {
+            
+            @Override
+            public Map<String, Object> getStatus() {
+                HashMap<String, Object> status = new HashMap<String, Object>();
+                status.put("numRules", 2);
+                return status;
+            } // getStatus
+            
+        });
+        
+        try {
+            assertTrue(ManagementInterface.getStatus().contains("\"test\":{\"numRules\":2}"));
+        } finally {
+            ManagementInterface.unregisterStatusReporter("test");
+        } // try finally
+        
+        assertFalse(ManagementInterface.getStatus().contains("\"test\""));
+    } // testGetStatus
+    
 } // ManagementInterfaceTest
@@ -23,15 +23,27 @@ import static org.mockito.Mockito.*; // this is required by "when" like function
 import static org.junit.Assert.*; // this is required by "fail" like assertions
 import es.tid.fiware.fiwareconnectors.cygnus.backends.ckan.CKANBackend;
 import es.tid.fiware.fiwareconnectors.cygnus.containers.NotifyContextRequest;
+import es.tid.fiware.fiwareconnectors.cygnus.errors.CygnusPersistenceError;
 import es.tid.fiware.fiwareconnectors.cygnus.http.HttpClientFactory;
 import es.tid.fiware.fiwareconnectors.cygnus.utils.Constants;
+import es.tid.fiware.fiwareconnectors.cygnus.sinks.OrionSink.OrionEvent;
 import es.tid.fiware.fiwareconnectors.cygnus.utils.TestUtils;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.http.client.HttpClient;
 import org.junit.Before;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.apache.flume.Context;
+import org.apache.flume.event.EventBuilder;
 import org.apache.flume.channel.MemoryChannel;
 import org.apache.flume.lifecycle.LifecycleState;
 import org.junit.Test;
@@ -137,6 +149,19 @@ public class OrionCKANSinkTest {
         assertEquals(apiKey, sink.getAPIKey());
         assertEquals(dataset, sink.getDefaultDataset());
     } // testConfigure
+    
+    /**
+     * Test of configure method, of class OrionCKANSink. A not positive number of warming up threads is replaced by 1,
+     * thus the sink can be started.
+     */
+    @Test
+    public void testConfigureWarmupThreads() {
+        System.out.println("configure (warmup threads)");
+        context.put("warmup_organizations", "org1,org2");
+        context.put("warmup_threads", "0");
+        sink.configure(context);
+        assertEquals(1, sink.getWarmupThreads());
+    } // testConfigureWarmupThreads
 
     /**
      * Test of start method, of class OrionCKANSink.
@@ -174,4 +199,176 @@ public class OrionCKANSinkTest {
         } // try catch finally
     } // testProcessContextResponses
     
+    /**
+     * Test of persistBatch method, of class OrionCKANSink. The buffer is flushed once full, and the events are marked
+     * as processed only if their records were upserted.
+     */
+    @Test
+    public void testPersistBatchFlushError() throws Exception {
+        System.out.println("persistBatch (flush error)");
+        context.put("attr_persistence", "row");
+        sink.configure(context);
+        when(mockCKANBackend.isFlushRequired()).thenReturn(true);
+        doNothing().doThrow(new CygnusPersistenceError("Dummy persistence error")).when(mockCKANBackend).flush(
+                any(HttpClient.class));
+        ArrayList<OrionEvent> batch = new ArrayList<OrionEvent>();
+        
+        for (int i = 0; i < 3; i++) {
+            HashMap<String, String> headers = new HashMap<String, String>();
+            headers.put("timestamp", "123456789");
+            headers.put(Constants.TRANSACTION_ID, "1234567890-123-" + i);
+            headers.put(Constants.ORG_HEADER, "any_org");
+            headers.put(Constants.DESTINATION, "any_dest");
+            OrionEvent orionEvent = new OrionEvent(EventBuilder.withBody(new byte[0], headers));
+            orionEvent.setNotification(notifyContextRequest);
+            batch.add(orionEvent);
+        } // for
+        
+        try {
+            sink.persistBatch(batch);
+            fail("A failed flush was not notified");
+        } catch (CygnusPersistenceError e) {
+            assertTrue(batch.get(0).isProcessed());
+            assertFalse(batch.get(1).isProcessed());
+            assertFalse(batch.get(2).isProcessed());
+            verify(mockCKANBackend, times(2)).flush(any(HttpClient.class));
+        } // try catch
+    } // testPersistBatchFlushError
+    
+    /**
+     * Test of persistBatch method, of class OrionCKANSink. The events are persisted by the persistence workers, all the
+     * events regarding the same resource by the same worker, and a flush is done per worker.
+     */
+    @Test
+    public void testPersistBatchWorkers() throws Exception {
+        System.out.println("persistBatch (persistence workers)");
+        int numWorkers = 4;
+        context.put("attr_persistence", "row");
+        context.put("persistence_workers", Integer.toString(numWorkers));
+        sink.configure(context);
+        assertEquals(numWorkers, sink.getPersistenceWorkers());
+        sink.setChannel(new MemoryChannel());
+        sink.start();
+        sink.setHttpClientFactory(mockHttpClientFactory);
+        sink.setPersistenceBackend(mockCKANBackend);
+        
+        // record the threads persisting each resource
+        final Map<String, Set<String>> threadsPerResource =
+                Collections.synchronizedMap(new HashMap<String, Set<String>>());
+        doAnswer(new Answer<Void>() {
+            
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                String resourceName = (String) invocation.getArguments()[4];
+                
+                synchronized (threadsPerResource) {
+                    if (!threadsPerResource.containsKey(resourceName)) {
+                        threadsPerResource.put(resourceName, new HashSet<String>());
+                    } // if
+                    
+                    threadsPerResource.get(resourceName).add(Thread.currentThread().getName());
+                } // synchronized
+                
+                return null;
+            } // answer
+            
+        }).when(mockCKANBackend).persist(any(HttpClient.class), anyLong(), anyString(), anyString(), anyString(),
+                anyString(), anyString(), anyString(), anyString());
+        
+        // a batch of events regarding several resources
+        ArrayList<OrionEvent> batch = new ArrayList<OrionEvent>();
+        HashSet<Integer> partitions = new HashSet<Integer>();
+        
+        for (int i = 0; i < 16; i++) {
+            HashMap<String, String> headers = new HashMap<String, String>();
+            headers.put("timestamp", "123456789");
+            headers.put(Constants.TRANSACTION_ID, "1234567890-123-" + i);
+            headers.put(Constants.ORG_HEADER, "any_org");
+            headers.put(Constants.DESTINATION, "any_dest_" + (i % 8));
+            partitions.add(OrionCKANSink.getPartition(headers, numWorkers));
+            OrionEvent orionEvent = new OrionEvent(EventBuilder.withBody(new byte[0], headers));
+            orionEvent.setNotification(notifyContextRequest);
+            batch.add(orionEvent);
+        } // for
+        
+        sink.persistBatch(batch);
+        sink.stop();
+        
+        for (OrionEvent orionEvent : batch) {
+            assertTrue(orionEvent.isProcessed());
+        } // for
+        
+        HashSet<String> threads = new HashSet<String>();
+        assertEquals(8, threadsPerResource.size());
+        
+        for (Set<String> resourceThreads : threadsPerResource.values()) {
+            assertEquals(1, resourceThreads.size());
+            threads.addAll(resourceThreads);
+        } // for
+        
+        assertEquals(partitions.size(), threads.size());
+        verify(mockCKANBackend, times(partitions.size())).flush(any(HttpClient.class));
+    } // testPersistBatchWorkers
+    
+    /**
+     * Test of persistBatch method, of class OrionCKANSink. If interrupted while waiting for the persistence workers,
+     * the running partitions are waited for before notifying the error.
+     */
+    @Test
+    public void testPersistBatchWorkersInterrupted() throws Exception {
+        System.out.println("persistBatch (persistence workers, interrupted)");
+        int numWorkers = 2;
+        context.put("attr_persistence", "row");
+        context.put("persistence_workers", Integer.toString(numWorkers));
+        sink.configure(context);
+        sink.setChannel(new MemoryChannel());
+        sink.start();
+        sink.setHttpClientFactory(mockHttpClientFactory);
+        sink.setPersistenceBackend(mockCKANBackend);
+        
+        // the flushes take a while
+        final AtomicInteger numStartedFlushes = new AtomicInteger();
+        final AtomicInteger numFinishedFlushes = new AtomicInteger();
+        doAnswer(new Answer<Void>() {
+            
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Exception {
+                numStartedFlushes.incrementAndGet();
+                Thread.sleep(100);
+                numFinishedFlushes.incrementAndGet();
+                return null;
+            } // answer
+            
+        }).when(mockCKANBackend).flush(any(HttpClient.class));
+        
+        // a batch of events regarding several resources
+        ArrayList<OrionEvent> batch = new ArrayList<OrionEvent>();
+        HashSet<Integer> partitions = new HashSet<Integer>();
+        
+        for (int i = 0; i < 8; i++) {
+            HashMap<String, String> headers = new HashMap<String, String>();
+            headers.put("timestamp", "123456789");
+            headers.put(Constants.TRANSACTION_ID, "1234567890-123-" + i);
+            headers.put(Constants.ORG_HEADER, "any_org");
+            headers.put(Constants.DESTINATION, "any_dest_" + i);
+            partitions.add(OrionCKANSink.getPartition(headers, numWorkers));
+            OrionEvent orionEvent = new OrionEvent(EventBuilder.withBody(new byte[0], headers));
+            orionEvent.setNotification(notifyContextRequest);
+            batch.add(orionEvent);
+        } // for
+        
+        assertEquals(numWorkers, partitions.size());
+        Thread.currentThread().interrupt();
+        
+        try {
+            sink.persistBatch(batch);
+            fail("The interruption was not notified");
+        } catch (CygnusPersistenceError e) {
+            assertTrue(Thread.interrupted());
+            assertEquals(numStartedFlushes.get(), numFinishedFlushes.get());
+        } finally {
+            sink.stop();
+        } // try catch finally
+    } // testPersistBatchWorkersInterrupted
+    
 } // OrionCKANSinkTest
@@ -23,16 +23,20 @@ import static org.junit.Assert.*; // this is required by "fail" like assertions
 import static org.mockito.Mockito.*; // this is required by "when" like functions
 import es.tid.fiware.fiwareconnectors.cygnus.backends.hdfs.HDFSBackend;
 import es.tid.fiware.fiwareconnectors.cygnus.containers.NotifyContextRequest;
+import es.tid.fiware.fiwareconnectors.cygnus.errors.CygnusPersistenceError;
 import es.tid.fiware.fiwareconnectors.cygnus.http.HttpClientFactory;
 import es.tid.fiware.fiwareconnectors.cygnus.utils.Constants;
 import es.tid.fiware.fiwareconnectors.cygnus.utils.TestUtils;
+import java.util.ArrayList;
 import java.util.HashMap;
 import org.junit.Before;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.apache.flume.Context;
 import org.apache.flume.channel.MemoryChannel;
+import org.apache.flume.event.EventBuilder;
 import org.apache.flume.lifecycle.LifecycleState;
+import org.apache.http.client.HttpClient;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
@@ -179,4 +183,75 @@ public class OrionHDFSSinkTest {
         } // try catch finally
     } // testProcessContextResponses
     
+    /**
+     * Test of persistBatch method, of class OrionHDFSSink. The lines regarding the same file are appended at the same
+     * time.
+     */
+    @Test
+    public void testPersistBatch() throws Exception {
+        System.out.println("persistBatch");
+        sink.configure(context);
+        sink.setChannel(new MemoryChannel());
+        when(mockWebHDFSBackend.exists((HttpClient) any(), anyString(), anyString())).thenReturn(true);
+        HashMap<String, String> headers = new HashMap<String, String>();
+        headers.put("timestamp", "123456789");
+        headers.put(Constants.ORG_HEADER, "any_org");
+        headers.put(Constants.DESTINATION, "any_dest");
+        headers.put(Constants.TRANSACTION_ID, "1234567890-123-0000000000");
+        ArrayList<OrionSink.OrionEvent> batch = new ArrayList<OrionSink.OrionEvent>();
+        
+        for (int i = 0; i < 3; i++) {
+            OrionSink.OrionEvent orionEvent = new OrionSink.OrionEvent(EventBuilder.withBody(new byte[0], headers));
+            orionEvent.setNotification(notifyContextRequest);
+            batch.add(orionEvent);
+        } // for
+        
+        sink.persistBatch(batch);
+        verify(mockWebHDFSBackend, times(1)).append((HttpClient) any(), anyString(),
+                eq("any_org/any_dest/any_dest.txt"), anyString());
+        assertEquals(0, sink.getNumBufferedLines());
+        
+        for (OrionSink.OrionEvent orionEvent : batch) {
+            assertTrue(orionEvent.isProcessed());
+        } // for
+    } // testPersistBatch
+    
+    /**
+     * Test of persistBatch method, of class OrionHDFSSink. The events are marked as processed only if their lines were
+     * appended, and a failed append is not retried within the same batch.
+     */
+    @Test
+    public void testPersistBatchFlushError() throws Exception {
+        System.out.println("persistBatch (flush error)");
+        context.put("append_batch_size", "1");
+        sink.configure(context);
+        sink.setChannel(new MemoryChannel());
+        when(mockWebHDFSBackend.exists((HttpClient) any(), anyString(), anyString())).thenReturn(true);
+        doNothing().doThrow(new CygnusPersistenceError("Dummy persistence error")).when(mockWebHDFSBackend).append(
+                (HttpClient) any(), anyString(), anyString(), anyString());
+        HashMap<String, String> headers = new HashMap<String, String>();
+        headers.put("timestamp", "123456789");
+        headers.put(Constants.ORG_HEADER, "any_org");
+        headers.put(Constants.DESTINATION, "any_dest");
+        headers.put(Constants.TRANSACTION_ID, "1234567890-123-0000000000");
+        ArrayList<OrionSink.OrionEvent> batch = new ArrayList<OrionSink.OrionEvent>();
+        
+        for (int i = 0; i < 3; i++) {
+            OrionSink.OrionEvent orionEvent = new OrionSink.OrionEvent(EventBuilder.withBody(new byte[0], headers));
+            orionEvent.setNotification(notifyContextRequest);
+            batch.add(orionEvent);
+        } // for
+        
+        try {
+            sink.persistBatch(batch);
+            fail("A failed append was not notified");
+        } catch (CygnusPersistenceError e) {
+            assertTrue(batch.get(0).isProcessed());
+            assertFalse(batch.get(1).isProcessed());
+            assertFalse(batch.get(2).isProcessed());
+            assertEquals(0, sink.getNumBufferedLines());
+            verify(mockWebHDFSBackend, times(2)).append((HttpClient) any(), anyString(), anyString(), anyString());
+        } // try catch
+    } // testPersistBatchFlushError
+    
 } // OrionHDFSSinkTest
@@ -23,10 +23,14 @@ import static org.junit.Assert.*; // this is required by "fail" like assertions
 import static org.mockito.Mockito.*; // this is required by "when" like functions
 import es.tid.fiware.fiwareconnectors.cygnus.backends.mysql.MySQLBackend;
 import es.tid.fiware.fiwareconnectors.cygnus.containers.NotifyContextRequest;
+import es.tid.fiware.fiwareconnectors.cygnus.errors.CygnusPersistenceError;
+import es.tid.fiware.fiwareconnectors.cygnus.sinks.OrionSink.OrionEvent;
 import es.tid.fiware.fiwareconnectors.cygnus.utils.Constants;
 import es.tid.fiware.fiwareconnectors.cygnus.utils.TestUtils;
+import java.util.ArrayList;
 import java.util.HashMap;
 import org.apache.flume.Context;
+import org.apache.flume.event.EventBuilder;
 import org.apache.flume.channel.MemoryChannel;
 import org.apache.flume.lifecycle.LifecycleState;
 import org.junit.Before;
@@ -175,4 +179,38 @@ public class OrionMySQLSinkTest {
         } // try catch finally
     } // testProcessContextResponses
     
+    /**
+     * Test of persistBatch method, of class OrionMySQLSink. The buffer is flushed once full, and the events are marked
+     * as processed only if their rows were inserted.
+     */
+    @Test
+    public void testPersistBatchFlushError() throws Exception {
+        System.out.println("persistBatch (flush error)");
+        sink.configure(context);
+        when(mockMySQLBackend.isFlushRequired()).thenReturn(true);
+        doNothing().doThrow(new CygnusPersistenceError("Dummy persistence error")).when(mockMySQLBackend).flush();
+        ArrayList<OrionEvent> batch = new ArrayList<OrionEvent>();
+        
+        for (int i = 0; i < 3; i++) {
+            HashMap<String, String> headers = new HashMap<String, String>();
+            headers.put("timestamp", "123456789");
+            headers.put(Constants.TRANSACTION_ID, "1234567890-123-" + i);
+            headers.put(Constants.ORG_HEADER, "any_org");
+            headers.put(Constants.DESTINATION, "any_dest");
+            OrionEvent orionEvent = new OrionEvent(EventBuilder.withBody(new byte[0], headers));
+            orionEvent.setNotification(notifyContextRequest);
+            batch.add(orionEvent);
+        } // for
+        
+        try {
+            sink.persistBatch(batch);
+            fail("A failed flush was not notified");
+        } catch (CygnusPersistenceError e) {
+            assertTrue(batch.get(0).isProcessed());
+            assertFalse(batch.get(1).isProcessed());
+            assertFalse(batch.get(2).isProcessed());
+            verify(mockMySQLBackend, times(2)).flush();
+        } // try catch
+    } // testPersistBatchFlushError
+    
 } // OrionMySQLSinkTest
\ No newline at end of file
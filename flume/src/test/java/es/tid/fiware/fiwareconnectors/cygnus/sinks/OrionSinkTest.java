@@ -0,0 +1,226 @@
+/**
+ * Copyright 2014 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-connectors (FI-WARE project).
+ *
+ * fiware-connectors is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-connectors is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-connectors. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with Francisco Romero
+ * francisco.romerobueno@telefonica.com
+ */
+
+package es.tid.fiware.fiwareconnectors.cygnus.sinks;
+
+import static org.junit.Assert.*; // this is required by "fail" like assertions
+import es.tid.fiware.fiwareconnectors.cygnus.containers.NotifyContextRequest;
+import es.tid.fiware.fiwareconnectors.cygnus.errors.CygnusPersistenceError;
+import es.tid.fiware.fiwareconnectors.cygnus.utils.Constants;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.Sink.Status;
+import org.apache.flume.Transaction;
+import org.apache.flume.channel.MemoryChannel;
+import org.apache.flume.conf.Configurables;
+import org.apache.flume.event.EventBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author frb
+ */
+public class OrionSinkTest {
+    
+    // instance to be tested
+    private DummySink sink;
+    
+    // other instances
+    private MemoryChannel channel;
+    private Context context;
+    
+    // constants
+    private final String notifyXMLSimple = ""
+            + "<notifyContextRequest>"
+            +   "<subscriptionId>51c0ac9ed714fb3b37d7d5a8</subscriptionId>"
+            +   "<originator>localhost</originator>"
+            +   "<contextResponseList>"
+            +     "<contextElementResponse>"
+            +       "<contextElement>"
+            +         "<entityId type=\"AType\" isPattern=\"false\">"
+            +           "<id>Entity</id>"
+            +         "</entityId>"
+            +         "<contextAttributeList>"
+            +           "<contextAttribute>"
+            +             "<name>attribute</name>"
+            +             "<type>attributeType</type>"
+            +             "<contextValue>foo</contextValue>"
+            +           "</contextAttribute>"
+            +         "</contextAttributeList>"
+            +       "</contextElement>"
+            +       "<statusCode>"
+            +         "<code>200</code>"
+            +         "<reasonPhrase>OK</reasonPhrase>"
+            +       "</statusCode>"
+            +     "</contextElementResponse>"
+            +   "</contextResponseList>"
+            + "</notifyContextRequest>";
+    
+    /**
+     * Sets up tests by creating a unique instance of the tested class.
+     *  
+     * @throws Exception
+     */
+    @Before
+    public void setUp() throws Exception {
+        // set up the instance of the tested class
+        sink = new DummySink();
+        
+        // set up other instances
+        channel = new MemoryChannel();
+        Configurables.configure(channel, new Context());
+        context = new Context();
+        context.put("batch_size", "3");
+        context.put("batch_timeout", "0");
+    } // setUp
+    
+    /**
+     * Test of configure method, of class OrionSink.
+     */
+    @Test
+    public void testConfigure() {
+        System.out.println("configure");
+        context.put("batch_failure_policy", OrionSink.POLICY_REINJECT_FAILED);
+        sink.configure(context);
+        assertEquals(3, sink.getBatchSize());
+        assertEquals(0, sink.getBatchTimeout());
+        assertEquals(OrionSink.POLICY_REINJECT_FAILED, sink.getBatchFailurePolicy());
+    } // testConfigure
+    
+    /**
+     * Test of process method, of class OrionSink. All the events within the batch are persisted.
+     */
+    @Test
+    public void testProcessBatch() throws Exception {
+        System.out.println("process (batch)");
+        sink.configure(context);
+        sink.setChannel(channel);
+        putEvents(4);
+        assertEquals(Status.READY, sink.process());
+        assertEquals(3, sink.persisted.size());
+        assertEquals(Status.READY, sink.process());
+        assertEquals(4, sink.persisted.size());
+        assertEquals(0, countEvents());
+    } // testProcessBatch
+    
+    /**
+     * Test of process method, of class OrionSink. The whole batch is rolled back when an event fails.
+     */
+    @Test
+    public void testProcessRollback() throws Exception {
+        System.out.println("process (rollback)");
+        sink.configure(context);
+        sink.setChannel(channel);
+        sink.failingTransId = "1";
+        putEvents(3);
+        assertEquals(Status.BACKOFF, sink.process());
+        assertEquals(3, countEvents());
+    } // testProcessRollback
+    
+    /**
+     * Test of process method, of class OrionSink. When rolling back the batch, only the events whose TTL has expired
+     * are dropped.
+     */
+    @Test
+    public void testProcessRollbackExpired() throws Exception {
+        System.out.println("process (rollback, expired)");
+        sink.configure(context);
+        sink.setChannel(channel);
+        sink.failingTransId = "0";
+        putEvents(3, 1);
+        assertEquals(Status.BACKOFF, sink.process());
+        assertEquals(2, countEvents());
+    } // testProcessRollbackExpired
+    
+    /**
+     * Test of process method, of class OrionSink. Only the failed events are re-injected.
+     */
+    @Test
+    public void testProcessReinjectFailed() throws Exception {
+        System.out.println("process (reinject_failed)");
+        context.put("batch_failure_policy", OrionSink.POLICY_REINJECT_FAILED);
+        sink.configure(context);
+        sink.setChannel(channel);
+        sink.failingTransId = "1";
+        putEvents(3);
+        assertEquals(Status.BACKOFF, sink.process());
+        assertEquals(1, sink.persisted.size());
+        assertEquals(2, countEvents());
+    } // testProcessReinjectFailed
+    
+    private void putEvents(int numEvents) {
+        putEvents(numEvents, 0);
+    } // putEvents
+    
+    private void putEvents(int numEvents, int numExpiredEvents) {
+        Transaction txn = channel.getTransaction();
+        txn.begin();
+        
+        for (int i = 0; i < numEvents; i++) {
+            Map<String, String> headers = new HashMap<String, String>();
+            headers.put(Constants.CONTENT_TYPE, "application/xml");
+            headers.put(Constants.TRANSACTION_ID, Integer.toString(i));
+            headers.put(Constants.TTL, i < numExpiredEvents ? "0" : "10");
+            channel.put(EventBuilder.withBody(notifyXMLSimple.getBytes(), headers));
+        } // for
+        
+        txn.commit();
+        txn.close();
+    } // putEvents
+    
+    private int countEvents() {
+        int count = 0;
+        Transaction txn = channel.getTransaction();
+        txn.begin();
+        
+        while (channel.take() != null) {
+            count++;
+        } // while
+        
+        txn.rollback();
+        txn.close();
+        return count;
+    } // countEvents
+    
+    /**
+     * Sink recording the persisted transaction ids, and failing for a given one.
+     */
+    private class DummySink extends OrionSink {
+        
+        private ArrayList<String> persisted = new ArrayList<String>();
+        private String failingTransId = null;
+        
+        @Override
+        void persist(Map<String, String> eventHeaders, NotifyContextRequest notification) throws Exception {
+            String transId = eventHeaders.get(Constants.TRANSACTION_ID);
+            
+            if (transId.equals(failingTransId)) {
+                throw new CygnusPersistenceError("Dummy persistence error");
+            } // if
+            
+            persisted.add(transId);
+        } // persist
+        
+    } // DummySink
+    
+} // OrionSinkTest
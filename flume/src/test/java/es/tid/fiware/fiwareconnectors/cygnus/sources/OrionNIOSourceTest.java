@@ -0,0 +1,204 @@
+/**
+ * Copyright 2014 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-connectors (FI-WARE project).
+ *
+ * fiware-connectors is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-connectors is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-connectors. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with Francisco Romero
+ * francisco.romerobueno@telefonica.com
+ */
+
+package es.tid.fiware.fiwareconnectors.cygnus.sources;
+
+import static org.junit.Assert.*; // this is required by "fail" like assertions
+import static org.mockito.Mockito.*; // this is required by "when" like functions
+import es.tid.fiware.fiwareconnectors.cygnus.utils.Constants;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.flume.ChannelException;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.channel.ChannelProcessor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+/**
+ *
+ * @author frb
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class OrionNIOSourceTest {
+
+    // instance to be tested
+    private OrionNIOSource source;
+
+    // other instances
+    private Context context;
+    private List<Event> events;
+
+    // mocks
+    @Mock
+    private ChannelProcessor mockChannelProcessor;
+
+    // constants
+    private final String notificationsTarget = "/notify";
+    private final String orionVersion = "orion/0.9.0";
+    private final String contentType = "application/json";
+    private final String notifiedService = "service";
+    private final String body = "{\"contextValue\" : \"1\"}\n";
+
+    /**
+     * Sets up tests by creating a unique instance of the tested class, and by defining the behaviour of the mocked
+     * classes.
+     *
+     * @throws Exception
+     */
+    @Before
+    public void setUp() throws Exception {
+        // set up the instance of the tested class
+        source = new OrionNIOSource();
+        source.setName("nio-source");
+
+        // set up other instances
+        context = new Context();
+        context.put("bind", "localhost");
+        context.put("port", "0");
+        context.put("handler.notification_target", notificationsTarget);
+        events = new ArrayList<Event>();
+
+        // set up the behaviour of the mocked classes; the events are copied since the source reuses the list
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                events.addAll((List<Event>) invocation.getArguments()[0]);
+                return null;
+            } // answer
+
+        }).when(mockChannelProcessor).processEventBatch(anyList());
+
+        source.setChannelProcessor(mockChannelProcessor);
+        source.configure(context);
+        source.start();
+    } // setUp
+
+    /**
+     * Stops the tested instance.
+     */
+    @After
+    public void tearDown() {
+        source.stop();
+    } // tearDown
+
+    /**
+     * Sends a notification to the tested instance.
+     * @param method
+     * @param userAgent
+     * @return The response code
+     * @throws Exception
+     */
+    private int notify(String method, String userAgent) throws Exception {
+        URL url = new URL("http://localhost:" + source.getLocalPort() + notificationsTarget);
+        HttpURLConnection con = (HttpURLConnection) url.openConnection();
+        con.setRequestMethod(method);
+        con.setRequestProperty("User-Agent", userAgent);
+        con.setRequestProperty("Content-Type", contentType);
+        con.setRequestProperty("Fiware-Service", notifiedService);
+
+        if (method.equals("POST")) {
+            con.setDoOutput(true);
+            OutputStream out = con.getOutputStream();
+            out.write(body.getBytes("UTF-8"));
+            out.close();
+        } // if
+
+        int code = con.getResponseCode();
+        con.disconnect();
+        return code;
+    } // notify
+
+    /**
+     * Test of the notifications processing, of class OrionNIOSource. The notification is responded once its event has
+     * been put in the channel, the same way the OrionRestHandler does.
+     */
+    @Test
+    public void testNotification() throws Exception {
+        System.out.println("Testing OrionNIOSource (notification)");
+        assertEquals(200, notify("POST", orionVersion));
+        assertEquals(1, events.size());
+        Event event = events.get(0);
+        assertEquals("{\"value\" : \"1\"}", new String(event.getBody(), "UTF-8"));
+        assertEquals(contentType, event.getHeaders().get(Constants.CONTENT_TYPE));
+        assertEquals(notifiedService, event.getHeaders().get(Constants.ORG_HEADER));
+        assertNotNull(event.getHeaders().get(Constants.TRANSACTION_ID));
+    } // testNotification
+
+    /**
+     * Test of the notifications processing, of class OrionNIOSource. The bad notifications are rejected without
+     * putting anything in the channel.
+     */
+    @Test
+    public void testBadNotification() throws Exception {
+        System.out.println("Testing OrionNIOSource (bad notification)");
+        assertEquals(400, notify("POST", "curl/7.29.0"));
+        assertEquals(405, notify("GET", orionVersion));
+        verify(mockChannelProcessor, never()).processEventBatch(anyList());
+    } // testBadNotification
+
+    /**
+     * Test of the notifications processing, of class OrionNIOSource. A 503 is responded if the channel is full.
+     */
+    @Test
+    public void testChannelFull() throws Exception {
+        System.out.println("Testing OrionNIOSource (channel full)");
+        doThrow(new ChannelException("full")).when(mockChannelProcessor).processEventBatch(anyList());
+        assertEquals(503, notify("POST", orionVersion));
+    } // testChannelFull
+
+    /**
+     * Test of the notifications processing, of class OrionNIOSource. The notifications not admitted are responded
+     * with a Retry-After header.
+     */
+    @Test
+    public void testNotAdmitted() throws Exception {
+        System.out.println("Testing OrionNIOSource (not admitted)");
+        source.stop();
+        context.put("handler.tenant_rate_limit", "0.1");
+        context.put("handler.tenant_rate_burst", "1");
+        source.configure(context);
+        source.start();
+        assertEquals(200, notify("POST", orionVersion));
+        URL url = new URL("http://localhost:" + source.getLocalPort() + notificationsTarget);
+        HttpURLConnection con = (HttpURLConnection) url.openConnection();
+        con.setRequestMethod("POST");
+        con.setRequestProperty("User-Agent", orionVersion);
+        con.setRequestProperty("Content-Type", contentType);
+        con.setRequestProperty("Fiware-Service", notifiedService);
+        con.setDoOutput(true);
+        OutputStream out = con.getOutputStream();
+        out.write(body.getBytes("UTF-8"));
+        out.close();
+        assertEquals(429, con.getResponseCode());
+        assertEquals("10", con.getHeaderField("Retry-After"));
+        con.disconnect();
+    } // testNotAdmitted
+
+} // OrionNIOSourceTest
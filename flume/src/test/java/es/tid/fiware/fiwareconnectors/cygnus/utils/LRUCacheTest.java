@@ -0,0 +1,65 @@
+/**
+ * Copyright 2014 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-connectors (FI-WARE project).
+ *
+ * fiware-connectors is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-connectors is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-connectors. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with Francisco Romero
+ * francisco.romerobueno@telefonica.com
+ */
+
+package es.tid.fiware.fiwareconnectors.cygnus.utils;
+
+import static org.junit.Assert.*; // this is required by "fail" like assertions
+import org.junit.Test;
+
+/**
+ *
+ * @author frb
+ */
+public class LRUCacheTest {
+
+    /**
+     * Test of put method, of class LRUCache. The least recently used entry is evicted.
+     */
+    @Test
+    public void testPut() {
+        System.out.println("Testing LRUCache.put");
+        LRUCache<String, String> cache = new LRUCache<String, String>(2, 0);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        assertEquals("1", cache.get("a"));
+        cache.put("c", "3");
+        assertEquals(2, cache.size());
+        assertNull(cache.get("b"));
+        assertEquals("1", cache.get("a"));
+        assertEquals("3", cache.get("c"));
+        assertEquals(3, cache.getNumHits());
+        assertEquals(1, cache.getNumMisses());
+        assertEquals(1, cache.getNumEvictions());
+    } // testPut
+
+    /**
+     * Test of get method, of class LRUCache. The expired entries are not returned.
+     */
+    @Test
+    public void testGet() throws Exception {
+        System.out.println("Testing LRUCache.get");
+        LRUCache<String, String> cache = new LRUCache<String, String>(2, 10);
+        cache.put("a", "1");
+        assertTrue(cache.contains("a"));
+        Thread.sleep(50);
+        assertFalse(cache.contains("a"));
+        assertEquals(0, cache.size());
+    } // testGet
+
+} // LRUCacheTest
@@ -0,0 +1,82 @@
+/**
+ * Copyright 2014 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-connectors (FI-WARE project).
+ *
+ * fiware-connectors is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-connectors is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-connectors. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with Francisco Romero
+ * francisco.romerobueno@telefonica.com
+ */
+
+package es.tid.fiware.fiwareconnectors.cygnus.utils;
+
+import static org.junit.Assert.*; // this is required by "fail" like assertions
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Test;
+
+/**
+ *
+ * @author frb
+ */
+public class TransactionIdGeneratorTest {
+
+    /**
+     * Test of generateTransId method, of class TransactionIdGenerator. The format is the expected one.
+     */
+    @Test
+    public void testGenerateTransId() {
+        System.out.println("Testing TransactionIdGenerator.generateTransId");
+        TransactionIdGenerator generator = new TransactionIdGenerator("node1", 1234567890123L);
+        assertEquals("node1-1234567890-123-0000000000", generator.generateTransId());
+        assertEquals("node1-1234567890-123-0000000001", generator.generateTransId());
+        assertTrue(new TransactionIdGenerator(null, 1234567890123L).generateTransId().startsWith(
+                TransactionIdGenerator.getDefaultNodeId() + "-"));
+    } // testGenerateTransId
+
+    /**
+     * Test of generateTransId method, of class TransactionIdGenerator. The identifiers generated by several threads
+     * are unique.
+     */
+    @Test
+    public void testGenerateTransIdConcurrent() throws Exception {
+        System.out.println("Testing TransactionIdGenerator.generateTransId (concurrent)");
+        final TransactionIdGenerator generator = new TransactionIdGenerator("node1", System.currentTimeMillis());
+        final Set<String> transIds = Collections.synchronizedSet(new HashSet<String>());
+        final int numThreads = 8;
+        final int numTransIds = 10000;
+        Thread[] threads = new Thread[numThreads];
+
+        for (int i = 0; i < numThreads; i++) {
+            threads[i] = new Thread() {
+
+                @Override
+                public void run() {
+                    for (int j = 0; j < numTransIds; j++) {
+                        transIds.add(generator.generateTransId());
+                    } // for
+                } // run
+
+            };
+
+            threads[i].start();
+        } // for
+
+        for (Thread thread : threads) {
+            thread.join();
+        } // for
+
+        assertEquals(numThreads * numTransIds, transIds.size());
+    } // testGenerateTransIdConcurrent
+
+} // TransactionIdGeneratorTest
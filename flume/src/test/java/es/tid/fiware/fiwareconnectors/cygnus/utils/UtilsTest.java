@@ -0,0 +1,45 @@
+/**
+ * Copyright 2014 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-connectors (FI-WARE project).
+ *
+ * fiware-connectors is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-connectors is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-connectors. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with Francisco Romero
+ * francisco.romerobueno@telefonica.com
+ */
+
+package es.tid.fiware.fiwareconnectors.cygnus.utils;
+
+import static org.junit.Assert.*; // this is required by "fail" like assertions
+import org.junit.Test;
+
+/**
+ *
+ * @author frb
+ */
+public class UtilsTest {
+
+    /**
+     * Test of getUTF8Length method, of class Utils. The length is the one of the UTF-8 encoded string, even for the
+     * characters out of the basic multilingual plane and the unpaired surrogates.
+     */
+    @Test
+    public void testGetUTF8Length() throws Exception {
+        System.out.println("Testing Utils.getUTF8Length");
+        String[] strings = {"", "temperature", "26,5 ºC", "温度", "🌡", "a\ud83cb", "\udf21"};
+
+        for (String string : strings) {
+            assertEquals(string.getBytes("UTF-8").length, Utils.getUTF8Length(string));
+        } // for
+    } // testGetUTF8Length
+
+} // UtilsTest